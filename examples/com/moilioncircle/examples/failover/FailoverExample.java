@@ -56,15 +56,8 @@ public class FailoverExample {
         // You will see that 30002 is the master and 30005 is the slave of 30002.
         // Write some KV to 30002 then run the following code.
         // After code running then kill 30002. the slave 30005 will be the new master. you will see following code will do failover with partial synchronizations(PSYNC2) .
-        Replicator r = new RedisReplicator("redis://127.0.0.1:30002?verbose=yes&retries=10");
-        try {
-            r.open();
-        } catch (IOException e) {
-            // failover
-            String replId = r.getConfiguration().getReplId();
-            long offset = r.getConfiguration().getReplOffset();
-            r = new RedisReplicator("redis://127.0.0.1:30005?verbose=yes&retries=10&replId=" + replId + "&replOffset=" + offset);
-            r.open();
-        }
+        // With sentinels use sentinels=host:26379,host:26380&sentinelMaster=mymaster instead of failoverCandidates.
+        Replicator r = new RedisReplicator("redis://127.0.0.1:30002?verbose=yes&retries=10&failoverCandidates=127.0.0.1:30005");
+        r.open();
     }
 }
@@ -133,6 +133,7 @@ public abstract class AbstractReplicator extends AbstractReplicatorListener impl
     protected final AtomicReference<Status> connected = new AtomicReference<>(DISCONNECTED);
     protected final Map<ModuleKey, ModuleParser<? extends Module>> modules = new ConcurrentHashMap<>();
     protected final Map<CommandName, CommandParser<? extends Command>> commands = new ConcurrentHashMap<>();
+    protected volatile AsyncEventWindow window;
     
     @Override
     public CommandParser<? extends Command> getCommandParser(CommandName command) {
@@ -164,6 +165,14 @@ public abstract class AbstractReplicator extends AbstractReplicatorListener impl
         return modules.remove(ModuleKey.key(moduleName, moduleVersion));
     }
     
+    /**
+     * @return the offset acknowledged to the master, held back to the checkpoint of an {@link AsyncEventWindow}
+     */
+    protected long ackOffset() {
+        AsyncEventWindow window = this.window;
+        return window == null ? configuration.getReplOffset() : window.getCheckpoint();
+    }
+    
     public void submitEvent(Event event) {
         try {
             doEventListener(this, event);
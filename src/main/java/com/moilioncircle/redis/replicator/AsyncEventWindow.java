@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.event.AsyncEventListener;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Hands the events of a replicator to an {@link AsyncEventListener} and keeps at most {@code maxEvents} events and
+ * {@code maxBytes} bytes of the replication stream in flight. the thread that parses the input waits while the
+ * window is full, a {@link RedisHubReplicator} is {@link RedisHubReplicator#suspend() suspended} instead.
+ * <p>
+ * the checkpoint is the offset of the oldest event that is not completed yet, or the parsed offset if all are.
+ * it is the offset acknowledged to the master and the offset to resume from with {@code replOffset} or, for an
+ * aof, {@code aofOffset}. the events of an rdb all have the offset of the full sync, they are bounded by count only.
+ * a failed stage is reported to the exception listeners and closes the replicator, the checkpoint stays before the
+ * failed event.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class AsyncEventWindow implements EventListener {
+
+    protected final int maxEvents;
+    protected final long maxBytes;
+    protected final Replicator replicator;
+    protected final AsyncEventListener listener;
+    protected final Queue<Entry> pending = new ArrayDeque<>();
+    protected final AtomicBoolean suspended = new AtomicBoolean();
+    protected AbstractReplicator inner;
+    protected int inFlight;
+    protected volatile Throwable error;
+
+    public AsyncEventWindow(Replicator replicator, AsyncEventListener listener) {
+        this(replicator, listener, 1024, 64L * 1024 * 1024);
+    }
+
+    /**
+     * @param replicator the replicator
+     * @param listener   the asynchronous listener
+     * @param maxEvents  max uncompleted events
+     * @param maxBytes   max bytes of the replication stream between the checkpoint and the parsed offset
+     */
+    public AsyncEventWindow(Replicator replicator, AsyncEventListener listener, int maxEvents, long maxBytes) {
+        if (maxEvents <= 0) throw new IllegalArgumentException(String.valueOf(maxEvents));
+        if (maxBytes <= 0) throw new IllegalArgumentException(String.valueOf(maxBytes));
+        this.replicator = Objects.requireNonNull(replicator);
+        this.listener = Objects.requireNonNull(listener);
+        this.maxEvents = maxEvents;
+        this.maxBytes = maxBytes;
+        Replicator r = replicator instanceof RedisReplicator ? ((RedisReplicator) replicator).getReplicator() : replicator;
+        if (r instanceof AbstractReplicator) {
+            this.inner = (AbstractReplicator) r;
+            this.inner.window = this;
+        }
+        replicator.addEventListener(this);
+    }
+
+    public long getCheckpoint() {
+        // an event submitted after the offset is read does not start before it
+        long offset = offset();
+        synchronized (this) {
+            Entry head = pending.peek();
+            return head == null ? offset : Math.min(offset, head.offset);
+        }
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public void onEvent(final Replicator replicator, final Event event) {
+        if (error != null) return;
+        final Entry entry = new Entry(offset());
+        synchronized (this) {
+            pending.add(entry);
+            inFlight++;
+        }
+        CompletionStage<?> stage;
+        try {
+            stage = listener.onEvent(replicator, event);
+        } catch (Throwable e) {
+            failed(replicator, event, e);
+            return;
+        }
+        stage.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object o, Throwable e) {
+                if (e != null) failed(replicator, event, e);
+                else completed(entry);
+            }
+        });
+        await();
+    }
+
+    protected void await() {
+        if (inner instanceof RedisHubReplicator && ((RedisHubReplicator) inner).loop.inLoop()) {
+            if (!full()) return;
+            // the window may have been drained in between by another thread
+            suspended.set(true);
+            ((RedisHubReplicator) inner).suspend();
+            if (!full() && suspended.compareAndSet(true, false)) ((RedisHubReplicator) inner).unsuspend();
+            return;
+        }
+        synchronized (this) {
+            try {
+                while (full() && error == null) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    protected void completed(Entry entry) {
+        synchronized (this) {
+            entry.done = true;
+            inFlight--;
+            while (!pending.isEmpty() && pending.peek().done) pending.poll();
+            notifyAll();
+        }
+        if (suspended.get() && !full() && suspended.compareAndSet(true, false)) ((RedisHubReplicator) inner).unsuspend();
+    }
+
+    protected void failed(Replicator replicator, Event event, Throwable e) {
+        synchronized (this) {
+            if (error != null) return;
+            error = e;
+            notifyAll();
+        }
+        if (inner != null) inner.doExceptionListener(inner, e, event);
+        Replicators.closeQuietly(this.replicator);
+        if (suspended.compareAndSet(true, false)) ((RedisHubReplicator) inner).unsuspend();
+    }
+
+    protected synchronized boolean full() {
+        if (inFlight >= maxEvents) return true;
+        Entry head = pending.peek();
+        return head != null && offset() - head.offset >= maxBytes;
+    }
+
+    protected long offset() {
+        Configuration configuration = replicator.getConfiguration();
+        return inner instanceof RedisAofReplicator ? configuration.getAofOffset() : configuration.getReplOffset();
+    }
+
+    protected static class Entry {
+        protected final long offset;
+        protected boolean done;
+
+        protected Entry(long offset) {
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.event.Event;
+
+/**
+ * An event of a master of a {@link ClusterReplicator}.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class ClusterEvent implements Event {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ClusterNode node;
+    private final int slot;
+    private final Event event;
+
+    public ClusterEvent(ClusterNode node, int slot, Event event) {
+        this.node = node;
+        this.slot = slot;
+        this.event = event;
+    }
+
+    /**
+     * @return the master that sent the event
+     */
+    public ClusterNode getNode() {
+        return node;
+    }
+
+    /**
+     * @return hash slot of the key of the event, -1 if the event has no key, e.g. {@code SELECT} or a sync event
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    public Event getEvent() {
+        return event;
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterEvent{" +
+                "node=" + node +
+                ", slot=" + slot +
+                ", event=" + event +
+                '}';
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+
+import static com.moilioncircle.redis.replicator.util.CRC16.SLOTS;
+
+/**
+ * A master of a redis cluster, parsed from a line of {@code CLUSTER NODES}:
+ * <pre>
+ * &lt;id&gt; &lt;ip:port@cport[,hostname]&gt; &lt;flags&gt; &lt;master&gt; &lt;ping-sent&gt; &lt;pong-recv&gt; &lt;config-epoch&gt; &lt;link-state&gt; &lt;slot&gt; ...
+ * </pre>
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class ClusterNode implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+    private final String host;
+    private final int port;
+    private final BitSet slots;
+
+    public ClusterNode(String id, String host, int port, BitSet slots) {
+        this.id = Objects.requireNonNull(id);
+        this.host = Objects.requireNonNull(host);
+        this.port = port;
+        this.slots = slots;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the slots served by the master, importing and migrating slots are not included
+     */
+    public BitSet getSlots() {
+        return (BitSet) slots.clone();
+    }
+
+    public boolean hasSlot(int slot) {
+        return slot >= 0 && slots.get(slot);
+    }
+
+    /**
+     * @param nodes the reply of {@code CLUSTER NODES}
+     * @return the masters that serve slots and are not failed
+     */
+    public static List<ClusterNode> parse(String nodes) {
+        List<ClusterNode> list = new ArrayList<>();
+        for (String line : nodes.split("\n")) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length < 8) continue;
+            String flags = "," + fields[2] + ",";
+            if (!flags.contains(",master,") || flags.contains(",fail,") || flags.contains(",noaddr,") || flags.contains(",handshake,")) continue;
+            String address = fields[1];
+            int at = address.indexOf('@');
+            if (at >= 0) address = address.substring(0, at);
+            int comma = address.indexOf(',');
+            if (comma >= 0) address = address.substring(0, comma);
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) continue;
+            BitSet slots = new BitSet(SLOTS);
+            for (int i = 8; i < fields.length; i++) {
+                String range = fields[i];
+                // [slot->-id] or [slot-<-id]
+                if (range.startsWith("[")) continue;
+                int dash = range.indexOf('-');
+                if (dash < 0) {
+                    slots.set(Integer.parseInt(range));
+                } else {
+                    slots.set(Integer.parseInt(range.substring(0, dash)), Integer.parseInt(range.substring(dash + 1)) + 1);
+                }
+            }
+            if (slots.isEmpty()) continue;
+            list.add(new ClusterNode(fields[0], address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)), slots));
+        }
+        return list;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ClusterNode that = (ClusterNode) o;
+        return port == that.port && id.equals(that.id) && host.equals(that.host) && slots.equals(that.slots);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, host, port, slots);
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterNode{" +
+                "id='" + id + '\'' +
+                ", host='" + host + '\'' +
+                ", port=" + port +
+                ", slots=" + slots.cardinality() +
+                '}';
+    }
+}
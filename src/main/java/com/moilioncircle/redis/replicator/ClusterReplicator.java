@@ -0,0 +1,529 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.cmd.Command;
+import com.moilioncircle.redis.replicator.cmd.CommandName;
+import com.moilioncircle.redis.replicator.cmd.CommandParser;
+import com.moilioncircle.redis.replicator.cmd.RedisCodec;
+import com.moilioncircle.redis.replicator.cmd.ReplyParser;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.event.PreCommandSyncEvent;
+import com.moilioncircle.redis.replicator.io.RawByteListener;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.io.RedisOutputStream;
+import com.moilioncircle.redis.replicator.net.RedisSocketFactory;
+import com.moilioncircle.redis.replicator.rdb.RdbVisitor;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.Module;
+import com.moilioncircle.redis.replicator.rdb.module.ModuleParser;
+import com.moilioncircle.redis.replicator.util.CRC16;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.moilioncircle.redis.replicator.Constants.DOLLAR;
+import static com.moilioncircle.redis.replicator.Constants.STAR;
+import static com.moilioncircle.redis.replicator.Status.CONNECTED;
+import static com.moilioncircle.redis.replicator.Status.DISCONNECTED;
+import static com.moilioncircle.redis.replicator.Status.DISCONNECTING;
+
+/**
+ * Replicates every master of a redis cluster.
+ * <pre>
+ * ClusterReplicator r = new ClusterReplicator("127.0.0.1", 30001, Configuration.defaultSetting(), 4, 10000);
+ * r.addEventListener(new EventListener() {
+ *     public void onEvent(Replicator replicator, Event event) {
+ *         ClusterEvent e = (ClusterEvent) event;
+ *         // e.getNode(), e.getSlot(), e.getEvent()
+ *     }
+ * });
+ * r.open();
+ * </pre>
+ * The masters and their slots are discovered with {@code CLUSTER NODES} from the seed node, at most
+ * {@code concurrency} masters are synced at the same time so that the cluster does not fork every master at once.
+ * Each master is a {@link RedisReplicator} on its own thread, their events are delivered one at a time as
+ * {@link ClusterEvent}s tagged with the master and the hash slot of the key.
+ * <p>
+ * The topology is read again every {@code refreshPeriod}, only the masters that are new, moved or gone are synced
+ * or stopped. A master that stopped by itself, e.g. after its retries, is synced again on the next refresh.
+ * {@link #open()} returns when the replicator is closed or the seed and all known masters are unreachable at start.
+ * The failover settings of the configuration are not used by the masters, a failover of a master is followed by the
+ * refresh. A snapshot cache is not supported, override {@link #replicator(ClusterNode, Configuration)} to customize the
+ * replicator of a master.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class ClusterReplicator extends AbstractReplicatorListener implements Replicator {
+
+    protected static final Logger logger = LoggerFactory.getLogger(ClusterReplicator.class);
+
+    protected final int port;
+    protected final String host;
+    protected final int concurrency;
+    protected final long refreshPeriod;
+    protected final ThreadFactory threadFactory;
+    protected final Configuration configuration;
+    protected final AtomicReference<Status> connected = new AtomicReference<>(DISCONNECTED);
+    protected final Map<CommandName, CommandParser<? extends Command>> commands = new ConcurrentHashMap<>();
+    protected final Map<String, ModuleParser<? extends Module>> modules = new ConcurrentHashMap<>();
+    protected volatile RdbVisitor rdbVisitor;
+
+    /*
+     * guarded by this
+     */
+    protected final Map<String, Master> masters = new LinkedHashMap<>();
+    protected final Deque<Master> waiting = new ArrayDeque<>();
+    protected int syncing;
+
+    public ClusterReplicator(String host, int port, Configuration configuration) {
+        this(host, port, configuration, 4, 10000L);
+    }
+
+    public ClusterReplicator(String host, int port, Configuration configuration, int concurrency, long refreshPeriod) {
+        this(host, port, configuration, concurrency, refreshPeriod, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * @param host          seed host
+     * @param port          seed port
+     * @param configuration copied for every master
+     * @param concurrency   max masters in a full sync at the same time
+     * @param refreshPeriod period of {@code CLUSTER NODES} in milliseconds
+     * @param threadFactory creates the thread of every master
+     */
+    public ClusterReplicator(String host, int port, Configuration configuration, int concurrency, long refreshPeriod, ThreadFactory threadFactory) {
+        if (concurrency <= 0) throw new IllegalArgumentException(String.valueOf(concurrency));
+        if (refreshPeriod <= 0) throw new IllegalArgumentException(String.valueOf(refreshPeriod));
+        this.host = Objects.requireNonNull(host);
+        this.port = port;
+        this.configuration = Objects.requireNonNull(configuration);
+        this.concurrency = concurrency;
+        this.refreshPeriod = refreshPeriod;
+        this.threadFactory = Objects.requireNonNull(threadFactory);
+        if (configuration.isUseDefaultExceptionListener())
+            addExceptionListener(new DefaultExceptionListener());
+    }
+
+    /**
+     * @return the masters being replicated
+     */
+    public synchronized List<ClusterNode> getNodes() {
+        List<ClusterNode> list = new ArrayList<>();
+        for (Master master : masters.values()) list.add(master.node);
+        return list;
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (!connected.compareAndSet(DISCONNECTED, CONNECTED)) return;
+        try {
+            refresh(nodes());
+            while (getStatus() == CONNECTED) {
+                synchronized (this) {
+                    if (getStatus() == CONNECTED) wait(refreshPeriod);
+                }
+                if (getStatus() != CONNECTED) break;
+                try {
+                    refresh(nodes());
+                } catch (IOException e) {
+                    logger.warn("[redis-replicator] failed to refresh the cluster nodes. {}", e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connected.set(DISCONNECTING);
+            List<Master> list;
+            synchronized (this) {
+                list = new ArrayList<>(masters.values());
+                waiting.clear();
+            }
+            for (Master master : list) stop(master);
+            for (Master master : list) master.await();
+            connected.set(DISCONNECTED);
+            doCloseListener(this);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!connected.compareAndSet(CONNECTED, DISCONNECTING)) return;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the masters of the first of the seed and the known masters that replies to {@code CLUSTER NODES}
+     * @throws IOException if none of them replies
+     */
+    protected List<ClusterNode> nodes() throws IOException {
+        Map<String, Integer> candidates = new LinkedHashMap<>();
+        candidates.put(host + ":" + port, port);
+        for (ClusterNode node : getNodes()) candidates.put(node.getHost() + ":" + node.getPort(), node.getPort());
+        IOException error = null;
+        for (Map.Entry<String, Integer> candidate : candidates.entrySet()) {
+            String address = candidate.getKey();
+            try {
+                return nodes(address.substring(0, address.lastIndexOf(':')), candidate.getValue());
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        throw error;
+    }
+
+    protected List<ClusterNode> nodes(String host, int port) throws IOException {
+        try (Socket socket = new RedisSocketFactory(configuration).createSocket(host, port, configuration.getConnectionTimeout())) {
+            RedisOutputStream out = new RedisOutputStream(socket.getOutputStream());
+            ReplyParser parser = new ReplyParser(new RedisInputStream(socket.getInputStream(), configuration.getBufferSize()), new RedisCodec());
+            String password = configuration.getAuthPassword();
+            if (password != null) {
+                send(out, "AUTH".getBytes(), password.getBytes());
+                String reply = Strings.toString(parser.parse());
+                if (!"OK".equals(reply)) logger.warn("[AUTH {}] failed. {}", password, reply);
+            }
+            send(out, "CLUSTER".getBytes(), "NODES".getBytes());
+            String reply = Strings.toString(parser.parse());
+            List<ClusterNode> nodes = ClusterNode.parse(reply);
+            if (nodes.isEmpty()) throw new IOException("CLUSTER NODES failed. reason : [" + reply + "]");
+            return nodes;
+        }
+    }
+
+    protected void send(RedisOutputStream out, byte[]... args) throws IOException {
+        out.write(STAR);
+        out.write(String.valueOf(args.length).getBytes());
+        out.writeCrLf();
+        for (byte[] arg : args) {
+            out.write(DOLLAR);
+            out.write(String.valueOf(arg.length).getBytes());
+            out.writeCrLf();
+            out.write(arg);
+            out.writeCrLf();
+        }
+        out.flush();
+    }
+
+    /**
+     * starts the new and moved masters and stops the moved and gone ones, a change of slots only retags.
+     *
+     * @param nodes the current masters
+     */
+    protected void refresh(List<ClusterNode> nodes) {
+        List<Master> stopped = new ArrayList<>();
+        synchronized (this) {
+            if (getStatus() != CONNECTED) return;
+            Map<String, ClusterNode> desired = new HashMap<>();
+            for (ClusterNode node : nodes) desired.put(node.getId(), node);
+            for (Master master : new ArrayList<>(masters.values())) {
+                ClusterNode node = desired.remove(master.node.getId());
+                if (node == null || !node.getHost().equals(master.node.getHost()) || node.getPort() != master.node.getPort()) {
+                    logger.info("cluster node {} is gone", master.node);
+                    masters.remove(master.node.getId());
+                    waiting.remove(master);
+                    stopped.add(master);
+                    if (node != null) desired.put(node.getId(), node);
+                } else {
+                    master.node = node;
+                }
+            }
+            for (ClusterNode node : desired.values()) {
+                logger.info("cluster node {} is found", node);
+                Master master = new Master(node);
+                masters.put(node.getId(), master);
+                waiting.add(master);
+            }
+            next();
+        }
+        for (Master master : stopped) stop(master);
+    }
+
+    /*
+     * guarded by this
+     */
+    protected void next() {
+        while (syncing < concurrency && !waiting.isEmpty() && getStatus() == CONNECTED) {
+            Master master = waiting.poll();
+            master.syncing = true;
+            syncing++;
+            master.thread = threadFactory.newThread(master);
+            master.thread.start();
+        }
+    }
+
+    protected synchronized void release(Master master) {
+        if (!master.syncing) return;
+        master.syncing = false;
+        syncing--;
+        next();
+    }
+
+    protected void stop(Master master) {
+        Replicators.closeQuietly(master.replicator);
+    }
+
+    /**
+     * @param node          the master
+     * @param configuration a copy of the configuration without replId, offset and failover settings
+     * @return the replicator of the master
+     */
+    protected Replicator replicator(ClusterNode node, Configuration configuration) {
+        return new RedisReplicator(node.getHost(), node.getPort(), configuration);
+    }
+
+    /**
+     * the visitor of {@link #setRdbVisitor(RdbVisitor)} is shared by the masters, which sync {@code concurrency}
+     * at a time. Override to create a visitor per master if the visitor keeps state while parsing,
+     * e.g. {@code MemoryRdbVisitor} or {@code FilterRdbVisitor}.
+     *
+     * @param replicator the replicator of a master
+     * @return the rdb visitor of the master, null to keep its default visitor
+     */
+    protected RdbVisitor rdbVisitor(Replicator replicator) {
+        return rdbVisitor;
+    }
+
+    /**
+     * @param raw a command
+     * @return slot of the key of the command, -1 if the command has no key
+     */
+    protected static int slot(Object[] raw) {
+        int index;
+        switch (Strings.toString(raw[0]).toUpperCase()) {
+            case "EVAL":
+            case "EVALSHA":
+            case "EVAL_RO":
+            case "EVALSHA_RO":
+            case "FCALL":
+            case "FCALL_RO":
+                index = raw.length > 3 && !"0".equals(Strings.toString(raw[2])) ? 3 : -1;
+                break;
+            case "BITOP":
+            case "XGROUP":
+                index = 2;
+                break;
+            case "SELECT":
+            case "PING":
+            case "MULTI":
+            case "EXEC":
+            case "SCRIPT":
+            case "FUNCTION":
+            case "FLUSHALL":
+            case "FLUSHDB":
+            case "SWAPDB":
+            case "PUBLISH":
+            case "REPLCONF":
+                index = -1;
+                break;
+            default:
+                index = 1;
+        }
+        if (index < 0 || index >= raw.length || !(raw[index] instanceof byte[])) return -1;
+        return CRC16.slot((byte[]) raw[index]);
+    }
+
+    protected class Master implements Runnable, EventListener, ExceptionListener, RawByteListener {
+        protected volatile ClusterNode node;
+        protected final Replicator replicator;
+        protected Thread thread;
+        protected boolean syncing;
+        // slot of the command being parsed, parsers and listeners run on the thread of the master
+        protected int slot = -1;
+
+        protected Master(ClusterNode node) {
+            this.node = node;
+            Configuration configuration = ClusterReplicator.this.configuration.copy();
+            configuration.setReplId("?").setReplOffset(-1).setSnapshotCache(null).setUseDefaultExceptionListener(false);
+            // candidates and sentinels name the cluster, not this master
+            configuration.setFailoverCandidates(null).setSentinels(null).setSentinelMaster(null);
+            this.replicator = replicator(node, configuration);
+            RdbVisitor visitor = rdbVisitor(replicator);
+            if (visitor != null) replicator.setRdbVisitor(visitor);
+            for (Map.Entry<CommandName, CommandParser<? extends Command>> e : commands.entrySet()) {
+                replicator.addCommandParser(e.getKey(), e.getValue());
+            }
+            for (Map.Entry<String, ModuleParser<? extends Module>> e : modules.entrySet()) {
+                String key = e.getKey();
+                int colon = key.lastIndexOf(':');
+                replicator.addModuleParser(key.substring(0, colon), Integer.parseInt(key.substring(colon + 1)), e.getValue());
+            }
+            Replicator inner = replicator instanceof RedisReplicator ? ((RedisReplicator) replicator).getReplicator() : replicator;
+            if (inner instanceof AbstractReplicator) {
+                for (Map.Entry<CommandName, CommandParser<? extends Command>> e : ((AbstractReplicator) inner).commands.entrySet()) {
+                    inner.addCommandParser(e.getKey(), wrap(e.getValue()));
+                }
+            }
+            replicator.addEventListener(this);
+            replicator.addExceptionListener(this);
+            replicator.addRawByteListener(this);
+        }
+
+        protected <T extends Command> CommandParser<T> wrap(final CommandParser<T> parser) {
+            return new CommandParser<T>() {
+                @Override
+                public T parse(Object[] command) {
+                    slot = slot(command);
+                    return parser.parse(command);
+                }
+            };
+        }
+
+        @Override
+        public void run() {
+            try {
+                replicator.open();
+            } catch (IOException | RuntimeException e) {
+                doExceptionListener(ClusterReplicator.this, e, null);
+            } finally {
+                synchronized (ClusterReplicator.this) {
+                    if (masters.get(node.getId()) == this) masters.remove(node.getId());
+                }
+                release(this);
+            }
+        }
+
+        @Override
+        public void onEvent(Replicator replicator, Event event) {
+            if (event instanceof PreCommandSyncEvent) release(this);
+            int slot = -1;
+            if (event instanceof Command) {
+                slot = this.slot;
+            } else if (event instanceof KeyValuePair && ((KeyValuePair<?, ?>) event).getKey() instanceof byte[]) {
+                slot = CRC16.slot((byte[]) ((KeyValuePair<?, ?>) event).getKey());
+            }
+            this.slot = -1;
+            synchronized (eventListeners) {
+                doEventListener(ClusterReplicator.this, new ClusterEvent(node, slot, event));
+            }
+        }
+
+        @Override
+        public void handle(Replicator replicator, Throwable throwable, Event event) {
+            doExceptionListener(ClusterReplicator.this, throwable, event);
+        }
+
+        @Override
+        public void handle(byte... rawBytes) {
+            for (RawByteListener listener : rawByteListeners) listener.handle(rawBytes);
+        }
+
+        protected void await() {
+            Thread thread;
+            synchronized (ClusterReplicator.this) {
+                thread = this.thread;
+            }
+            if (thread == null) return;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     * register
+     */
+    @Override
+    public void builtInCommandParserRegister() {
+        // the replicator of every master registers its own
+    }
+
+    @Override
+    public CommandParser<? extends Command> getCommandParser(CommandName command) {
+        return commands.get(command);
+    }
+
+    /**
+     * applies to the masters that are started after it
+     */
+    @Override
+    public <T extends Command> void addCommandParser(CommandName command, CommandParser<T> parser) {
+        commands.put(command, parser);
+    }
+
+    @Override
+    public CommandParser<? extends Command> removeCommandParser(CommandName command) {
+        return commands.remove(command);
+    }
+
+    @Override
+    public ModuleParser<? extends Module> getModuleParser(String moduleName, int moduleVersion) {
+        return modules.get(moduleName + ":" + moduleVersion);
+    }
+
+    /**
+     * applies to the masters that are started after it
+     */
+    @Override
+    public <T extends Module> void addModuleParser(String moduleName, int moduleVersion, ModuleParser<T> parser) {
+        modules.put(moduleName + ":" + moduleVersion, parser);
+    }
+
+    @Override
+    public ModuleParser<? extends Module> removeModuleParser(String moduleName, int moduleVersion) {
+        return modules.remove(moduleName + ":" + moduleVersion);
+    }
+
+    /**
+     * applies to the masters that are started after it
+     */
+    @Override
+    public void setRdbVisitor(RdbVisitor rdbVisitor) {
+        this.rdbVisitor = rdbVisitor;
+    }
+
+    @Override
+    public RdbVisitor getRdbVisitor() {
+        return rdbVisitor;
+    }
+
+    @Override
+    public boolean verbose() {
+        return configuration.isVerbose();
+    }
+
+    @Override
+    public Status getStatus() {
+        return connected.get();
+    }
+
+    @Override
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+}
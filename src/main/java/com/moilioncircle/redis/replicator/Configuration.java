@@ -16,6 +16,8 @@
 
 package com.moilioncircle.redis.replicator;
 
+import com.moilioncircle.redis.replicator.util.ByteArrayFactory;
+
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocketFactory;
@@ -90,6 +92,55 @@ public class Configuration {
      */
     private int asyncCachedBytes = 512 * 1024;
 
+    /**
+     * blocks read ahead by file replicators, 0 to read on the parsing thread
+     *
+     * @since 3.1.0
+     */
+    private int readAheadDepth = 0;
+
+    /**
+     * bytes of a read ahead block
+     *
+     * @since 3.1.0
+     */
+    private int readAheadBlockSize = 4 * 1024 * 1024;
+
+    /**
+     * threads parsing a local aof file by byte ranges, 0 to parse serially
+     *
+     * @since 3.1.0
+     */
+    private int aofParallelism = 0;
+
+    /**
+     * bytes of an aof range parsed by one thread
+     *
+     * @since 3.1.0
+     */
+    private int aofRangeSize = 64 * 1024 * 1024;
+
+    /**
+     * keep reading a local aof file as it grows, across rewrites
+     *
+     * @since 3.1.0
+     */
+    private boolean aofFollow = false;
+
+    /**
+     * aof file offset of the command being submitted, same as replOffset. resume from it with ?aofOffset=
+     *
+     * @since 3.1.0
+     */
+    private final AtomicLong aofOffset = new AtomicLong(0);
+
+    /**
+     * local copy of the last full sync rdb. a socket replicator without replId replays it and continues with PSYNC
+     *
+     * @since 3.1.0
+     */
+    private String snapshotCache = null;
+
     /**
      * rate limit (unit : bytes/second)
      *
@@ -134,6 +185,48 @@ public class Configuration {
      */
     private HostnameVerifier hostnameVerifier;
 
+    /**
+     * allocates the arrays that rdb strings are read into
+     *
+     * @since 3.1.0
+     */
+    private ByteArrayFactory byteArrayFactory = ByteArrayFactory.HEAP;
+
+    /**
+     * shared timer and io pool instead of the threads of each replicator
+     *
+     * @since 3.1.0
+     */
+    private ReplicatorRuntime runtime;
+
+    /**
+     * comma separated {@code host:port} of the replicas that may be promoted when the master is gone
+     *
+     * @since 3.1.0
+     */
+    private String failoverCandidates = null;
+
+    /**
+     * comma separated {@code host:port} of the sentinels that monitor {@link #sentinelMaster}
+     *
+     * @since 3.1.0
+     */
+    private String sentinels = null;
+
+    /**
+     * master name of the sentinels
+     *
+     * @since 3.1.0
+     */
+    private String sentinelMaster = null;
+
+    /**
+     * delay before the next overlapping connection attempt of a failover (unit : millisecond)
+     *
+     * @since 3.1.0
+     */
+    private int failoverDelay = 200;
+
     /**
      * psync master repl_id
      */
@@ -262,6 +355,74 @@ public class Configuration {
         return this;
     }
 
+    public int getReadAheadDepth() {
+        return readAheadDepth;
+    }
+
+    public Configuration setReadAheadDepth(int readAheadDepth) {
+        this.readAheadDepth = readAheadDepth;
+        return this;
+    }
+
+    public int getReadAheadBlockSize() {
+        return readAheadBlockSize;
+    }
+
+    public Configuration setReadAheadBlockSize(int readAheadBlockSize) {
+        this.readAheadBlockSize = readAheadBlockSize;
+        return this;
+    }
+
+    public int getAofParallelism() {
+        return aofParallelism;
+    }
+
+    public Configuration setAofParallelism(int aofParallelism) {
+        this.aofParallelism = aofParallelism;
+        return this;
+    }
+
+    public boolean isAofFollow() {
+        return aofFollow;
+    }
+
+    public Configuration setAofFollow(boolean aofFollow) {
+        this.aofFollow = aofFollow;
+        return this;
+    }
+
+    public long getAofOffset() {
+        return aofOffset.get();
+    }
+
+    public Configuration setAofOffset(long aofOffset) {
+        this.aofOffset.set(aofOffset);
+        return this;
+    }
+
+    public Configuration addAofOffset(long offset) {
+        this.aofOffset.addAndGet(offset);
+        return this;
+    }
+
+    public String getSnapshotCache() {
+        return snapshotCache;
+    }
+
+    public Configuration setSnapshotCache(String snapshotCache) {
+        this.snapshotCache = snapshotCache;
+        return this;
+    }
+
+    public int getAofRangeSize() {
+        return aofRangeSize;
+    }
+
+    public Configuration setAofRangeSize(int aofRangeSize) {
+        this.aofRangeSize = aofRangeSize;
+        return this;
+    }
+
     public int getRateLimit() {
         return rateLimit;
     }
@@ -343,6 +504,133 @@ public class Configuration {
         return this;
     }
 
+    public ByteArrayFactory getByteArrayFactory() {
+        return byteArrayFactory;
+    }
+
+    /**
+     * @param byteArrayFactory e.g. {@link com.moilioncircle.redis.replicator.util.DirectByteArrayFactory} to keep huge values out of heap
+     * @return Configuration
+     * @since 3.1.0
+     */
+    public Configuration setByteArrayFactory(ByteArrayFactory byteArrayFactory) {
+        this.byteArrayFactory = byteArrayFactory;
+        return this;
+    }
+
+    public ReplicatorRuntime getRuntime() {
+        return runtime;
+    }
+
+    /**
+     * @param runtime heartbeats, GETACK replies and async cached reads run on the shared threads of the runtime
+     * @return Configuration
+     * @since 3.1.0
+     */
+    public Configuration setRuntime(ReplicatorRuntime runtime) {
+        this.runtime = runtime;
+        return this;
+    }
+
+    public String getFailoverCandidates() {
+        return failoverCandidates;
+    }
+
+    /**
+     * @param failoverCandidates e.g. {@code "10.0.0.2:6379,10.0.0.3:6379"}, the promoted one continues with {@code PSYNC replId offset}
+     * @return Configuration
+     * @since 3.1.0
+     */
+    public Configuration setFailoverCandidates(String failoverCandidates) {
+        this.failoverCandidates = failoverCandidates;
+        return this;
+    }
+
+    public String getSentinels() {
+        return sentinels;
+    }
+
+    /**
+     * @param sentinels e.g. {@code "10.0.0.5:26379,10.0.0.6:26379"}, asked for the address of {@link #getSentinelMaster()}
+     * @return Configuration
+     * @since 3.1.0
+     */
+    public Configuration setSentinels(String sentinels) {
+        this.sentinels = sentinels;
+        return this;
+    }
+
+    public String getSentinelMaster() {
+        return sentinelMaster;
+    }
+
+    /**
+     * @param sentinelMaster master name of the sentinels
+     * @return Configuration
+     * @since 3.1.0
+     */
+    public Configuration setSentinelMaster(String sentinelMaster) {
+        this.sentinelMaster = sentinelMaster;
+        return this;
+    }
+
+    public int getFailoverDelay() {
+        return failoverDelay;
+    }
+
+    /**
+     * @param failoverDelay delay before the next overlapping connection attempt of a failover
+     * @return Configuration
+     * @since 3.1.0
+     */
+    public Configuration setFailoverDelay(int failoverDelay) {
+        this.failoverDelay = failoverDelay;
+        return this;
+    }
+
+    /**
+     * @return a copy with its own offsets, e.g. for every master of a cluster
+     * @since 3.1.0
+     */
+    public Configuration copy() {
+        Configuration copy = new Configuration();
+        copy.connectionTimeout = connectionTimeout;
+        copy.readTimeout = readTimeout;
+        copy.receiveBufferSize = receiveBufferSize;
+        copy.sendBufferSize = sendBufferSize;
+        copy.retries = retries;
+        copy.retryTimeInterval = retryTimeInterval;
+        copy.bufferSize = bufferSize;
+        copy.authPassword = authPassword;
+        copy.discardRdbEvent = discardRdbEvent;
+        copy.asyncCachedBytes = asyncCachedBytes;
+        copy.readAheadDepth = readAheadDepth;
+        copy.readAheadBlockSize = readAheadBlockSize;
+        copy.aofParallelism = aofParallelism;
+        copy.aofRangeSize = aofRangeSize;
+        copy.aofFollow = aofFollow;
+        copy.aofOffset.set(aofOffset.get());
+        copy.snapshotCache = snapshotCache;
+        copy.rateLimit = rateLimit;
+        copy.verbose = verbose;
+        copy.heartbeatPeriod = heartbeatPeriod;
+        copy.useDefaultExceptionListener = useDefaultExceptionListener;
+        copy.ssl = ssl;
+        copy.sslSocketFactory = sslSocketFactory;
+        copy.sslParameters = sslParameters;
+        copy.hostnameVerifier = hostnameVerifier;
+        copy.byteArrayFactory = byteArrayFactory;
+        copy.runtime = runtime;
+        copy.failoverCandidates = failoverCandidates;
+        copy.sentinels = sentinels;
+        copy.sentinelMaster = sentinelMaster;
+        copy.failoverDelay = failoverDelay;
+        copy.replId = replId;
+        copy.replStreamDB = replStreamDB;
+        copy.replOffset.set(replOffset.get());
+        return copy;
+    }
+
     public static Configuration valueOf(RedisURI uri) {
         Configuration configuration = defaultSetting();
         Map<String, String> parameters = uri.parameters;
@@ -376,6 +664,27 @@ public class Configuration {
         if (parameters.containsKey("asyncCachedBytes")) {
             configuration.setAsyncCachedBytes(getInt(parameters.get("asyncCachedBytes"), 512 * 1024));
         }
+        if (parameters.containsKey("readAheadDepth")) {
+            configuration.setReadAheadDepth(getInt(parameters.get("readAheadDepth"), 0));
+        }
+        if (parameters.containsKey("readAheadBlockSize")) {
+            configuration.setReadAheadBlockSize(getInt(parameters.get("readAheadBlockSize"), 4 * 1024 * 1024));
+        }
+        if (parameters.containsKey("aofParallelism")) {
+            configuration.setAofParallelism(getInt(parameters.get("aofParallelism"), 0));
+        }
+        if (parameters.containsKey("aofRangeSize")) {
+            configuration.setAofRangeSize(getInt(parameters.get("aofRangeSize"), 64 * 1024 * 1024));
+        }
+        if (parameters.containsKey("aofFollow")) {
+            configuration.setAofFollow(getBool(parameters.get("aofFollow"), false));
+        }
+        if (parameters.containsKey("aofOffset")) {
+            configuration.setAofOffset(getLong(parameters.get("aofOffset"), 0L));
+        }
+        if (parameters.containsKey("snapshotCache")) {
+            configuration.setSnapshotCache(parameters.get("snapshotCache"));
+        }
         if (parameters.containsKey("rateLimit")) {
             configuration.setRateLimit(getInt(parameters.get("rateLimit"), 0));
         }
@@ -391,6 +700,18 @@ public class Configuration {
         if (parameters.containsKey("ssl")) {
             configuration.setSsl(getBool(parameters.get("ssl"), false));
         }
+        if (parameters.containsKey("failoverCandidates")) {
+            configuration.setFailoverCandidates(parameters.get("failoverCandidates"));
+        }
+        if (parameters.containsKey("sentinels")) {
+            configuration.setSentinels(parameters.get("sentinels"));
+        }
+        if (parameters.containsKey("sentinelMaster")) {
+            configuration.setSentinelMaster(parameters.get("sentinelMaster"));
+        }
+        if (parameters.containsKey("failoverDelay")) {
+            configuration.setFailoverDelay(getInt(parameters.get("failoverDelay"), 200));
+        }
         if (parameters.containsKey("replId")) {
             configuration.setReplId(parameters.get("replId"));
         }
@@ -446,6 +767,13 @@ public class Configuration {
                 ", authPassword='" + authPassword + '\'' +
                 ", discardRdbEvent=" + discardRdbEvent +
                 ", asyncCachedBytes=" + asyncCachedBytes +
+                ", readAheadDepth=" + readAheadDepth +
+                ", readAheadBlockSize=" + readAheadBlockSize +
+                ", aofParallelism=" + aofParallelism +
+                ", aofRangeSize=" + aofRangeSize +
+                ", aofFollow=" + aofFollow +
+                ", aofOffset=" + aofOffset +
+                ", snapshotCache='" + snapshotCache + '\'' +
                 ", rateLimit=" + rateLimit +
                 ", verbose=" + verbose +
                 ", heartbeatPeriod=" + heartbeatPeriod +
@@ -454,6 +782,12 @@ public class Configuration {
                 ", sslSocketFactory=" + sslSocketFactory +
                 ", sslParameters=" + sslParameters +
                 ", hostnameVerifier=" + hostnameVerifier +
+                ", byteArrayFactory=" + byteArrayFactory +
+                ", runtime=" + runtime +
+                ", failoverCandidates='" + failoverCandidates + '\'' +
+                ", sentinels='" + sentinels + '\'' +
+                ", sentinelMaster='" + sentinelMaster + '\'' +
+                ", failoverDelay=" + failoverDelay +
                 ", replId='" + replId + '\'' +
                 ", replStreamDB=" + replStreamDB +
                 ", replOffset=" + replOffset +
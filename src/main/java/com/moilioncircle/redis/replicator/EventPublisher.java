@@ -0,0 +1,256 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A Reactive Streams publisher of the events of a replicator. the replicator is opened on the first request, the
+ * thread that parses the input waits while the demand is zero so that nothing more is read, on a socket the kernel
+ * buffers fill up and the master keeps the backlog in its output buffer. {@link RedisHubReplicator}s are
+ * {@link RedisHubReplicator#suspend() suspended} instead of blocking the selector thread, at most one event is
+ * buffered in both cases.
+ * <p>
+ * {@link Subscriber} and {@link Subscription} have the same methods as {@code java.util.concurrent.Flow} and
+ * {@code org.reactivestreams}, so that an adapter is a plain delegation, {@link FlowEventPublisher} is the one for
+ * {@code java.util.concurrent.Flow} on java 9 and later. the publisher is unicast, the replicator
+ * is closed when the subscription is cancelled and the subscriber completes when the replicator is closed. a
+ * failure of {@link Replicator#open()} or a fatal failure of a {@link RedisHubReplicator} is signalled as an error.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class EventPublisher {
+
+    protected final Replicator replicator;
+    protected final ThreadFactory threadFactory;
+    protected final AtomicBoolean subscribed = new AtomicBoolean();
+
+    public EventPublisher(Replicator replicator) {
+        this(replicator, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * @param replicator    the replicator, no other event listener is required
+     * @param threadFactory creates the thread that runs {@link Replicator#open()}
+     */
+    public EventPublisher(Replicator replicator, ThreadFactory threadFactory) {
+        this.replicator = Objects.requireNonNull(replicator);
+        this.threadFactory = Objects.requireNonNull(threadFactory);
+    }
+
+    public void subscribe(Subscriber<? super Event> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("already subscribed"));
+            return;
+        }
+        EventSubscription subscription = new EventSubscription(subscriber);
+        replicator.addEventListener(subscription);
+        replicator.addCloseListener(subscription);
+        replicator.addExceptionListener(subscription);
+        subscriber.onSubscribe(subscription);
+    }
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        void request(long n);
+
+        void cancel();
+    }
+
+    protected class EventSubscription implements Subscription, EventListener, CloseListener, ExceptionListener {
+
+        protected final Subscriber<? super Event> subscriber;
+        protected final Queue<Event> queue = new ConcurrentLinkedQueue<>();
+        protected final AtomicLong requested = new AtomicLong();
+        protected final AtomicInteger wip = new AtomicInteger();
+        protected final AtomicBoolean opened = new AtomicBoolean();
+        protected final AtomicBoolean suspended = new AtomicBoolean();
+        protected final AtomicReference<Throwable> error = new AtomicReference<>();
+        // the replicator is closed and open() returned
+        protected final AtomicInteger pending = new AtomicInteger(2);
+        protected volatile boolean waiting;
+        protected volatile boolean cancelled;
+        protected volatile boolean done;
+        protected boolean terminated;
+
+        protected EventSubscription(Subscriber<? super Event> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error.compareAndSet(null, new IllegalArgumentException(String.valueOf(n)));
+                done = true;
+                cancel0();
+                drain();
+                return;
+            }
+            for (;;) {
+                long r = requested.get();
+                long v = r + n < 0 ? Long.MAX_VALUE : r + n;
+                if (requested.compareAndSet(r, v)) break;
+            }
+            if (!cancelled && opened.compareAndSet(false, true)) open();
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancel0();
+            drain();
+        }
+
+        protected void cancel0() {
+            if (cancelled) return;
+            cancelled = true;
+            wakeup();
+            Replicators.closeQuietly(replicator);
+        }
+
+        protected void open() {
+            threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        replicator.open();
+                    } catch (IOException | RuntimeException e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        complete();
+                    }
+                }
+            }).start();
+        }
+
+        @Override
+        public void onEvent(Replicator replicator, Event event) {
+            if (cancelled) return;
+            queue.offer(event);
+            drain();
+            if (queue.isEmpty()) return;
+            if (replicator instanceof RedisHubReplicator && ((RedisHubReplicator) replicator).loop.inLoop()) {
+                // the queue may have been drained in between by another thread
+                suspended.set(true);
+                ((RedisHubReplicator) replicator).suspend();
+                if (queue.isEmpty() && suspended.compareAndSet(true, false)) ((RedisHubReplicator) replicator).unsuspend();
+                return;
+            }
+            // the parsing thread stops here until the event is requested
+            synchronized (this) {
+                waiting = true;
+                try {
+                    while (!queue.isEmpty() && !cancelled) wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    waiting = false;
+                }
+            }
+        }
+
+        @Override
+        public void handle(Replicator replicator, Throwable e, Event event) {
+            // a failure of onNext is a broken subscriber
+            if (event != null) {
+                error.compareAndSet(null, e);
+                cancel0();
+            } else if (replicator instanceof RedisHubReplicator) {
+                error.compareAndSet(null, e);
+            }
+        }
+
+        @Override
+        public void handle(Replicator replicator) {
+            complete();
+        }
+
+        protected void complete() {
+            if (pending.decrementAndGet() != 0) return;
+            done = true;
+            drain();
+        }
+
+        protected void drain() {
+            if (wip.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                if (terminated) {
+                    queue.clear();
+                } else {
+                    while (!cancelled && requested.get() > 0) {
+                        Event event = queue.poll();
+                        if (event == null) break;
+                        if (requested.get() != Long.MAX_VALUE) requested.decrementAndGet();
+                        subscriber.onNext(event);
+                    }
+                    if (cancelled) queue.clear();
+                    if (done && queue.isEmpty()) {
+                        terminated = true;
+                        Throwable e = error.get();
+                        if (e != null) subscriber.onError(e);
+                        else if (!cancelled) subscriber.onComplete();
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+            if (queue.isEmpty()) wakeup();
+        }
+
+        protected void wakeup() {
+            if (waiting) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+            if (suspended.compareAndSet(true, false)) ((RedisHubReplicator) replicator).unsuspend();
+        }
+    }
+}
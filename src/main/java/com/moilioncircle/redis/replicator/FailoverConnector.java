@@ -0,0 +1,295 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.cmd.RedisCodec;
+import com.moilioncircle.redis.replicator.cmd.ReplyParser;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.io.RedisOutputStream;
+import com.moilioncircle.redis.replicator.net.RedisSocketFactory;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import static com.moilioncircle.redis.replicator.Constants.DOLLAR;
+import static com.moilioncircle.redis.replicator.Constants.STAR;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Finds the master to continue the replication with after a failover.
+ * <p>
+ * The sentinels of {@link Configuration#getSentinels()} are asked for {@link Configuration#getSentinelMaster()} first,
+ * then the answer, the current master and {@link Configuration#getFailoverCandidates()} are probed with {@code ROLE}.
+ * Attempts overlap: the next one starts when the previous fails or after {@link Configuration#getFailoverDelay()},
+ * so an unreachable endpoint costs a delay instead of a connection timeout. The first master wins, otherwise the
+ * best replica. The socket of the winner is returned as is, the replicator sends {@code PSYNC replId offset} on it and
+ * a promoted replica continues with a partial resync.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class FailoverConnector {
+
+    protected static final Logger logger = LoggerFactory.getLogger(FailoverConnector.class);
+
+    protected static final int MASTER = 3;
+    protected static final int REPLICA = 2;
+    protected static final int UNKNOWN = 1;
+
+    protected final Configuration configuration;
+    protected final RedisSocketFactory socketFactory;
+    protected final ThreadFactory threadFactory = ReplicatorRuntime.factory("redis-replicator-failover");
+
+    public FailoverConnector(Configuration configuration) {
+        this.configuration = Objects.requireNonNull(configuration);
+        this.socketFactory = new RedisSocketFactory(configuration);
+    }
+
+    /**
+     * @param configuration the configuration
+     * @return true if failover candidates or sentinels are configured
+     */
+    public static boolean isEnabled(Configuration configuration) {
+        return configuration.getFailoverCandidates() != null || (configuration.getSentinels() != null && configuration.getSentinelMaster() != null);
+    }
+
+    /**
+     * @param host current master
+     * @param port current master
+     * @return connected endpoint
+     * @throws IOException if no endpoint is reachable
+     */
+    public Endpoint connect(String host, int port) throws IOException {
+        Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+        if (configuration.getSentinels() != null && configuration.getSentinelMaster() != null) {
+            try {
+                Endpoint master = race(parse(configuration.getSentinels()), true);
+                endpoints.put(master.toString(), master);
+                logger.info("sentinel master {} is {}", configuration.getSentinelMaster(), master);
+            } catch (IOException e) {
+                logger.warn("[redis-replicator] failed to ask sentinels for {}. {}", configuration.getSentinelMaster(), e.getMessage());
+            }
+        }
+        List<Endpoint> list = new ArrayList<>();
+        list.add(new Endpoint(host, port));
+        if (configuration.getFailoverCandidates() != null) list.addAll(parse(configuration.getFailoverCandidates()));
+        for (Endpoint endpoint : list) if (!endpoints.containsKey(endpoint.toString())) endpoints.put(endpoint.toString(), endpoint);
+        Endpoint endpoint = race(new ArrayList<>(endpoints.values()), false);
+        logger.info("connected to {} redis-server[{}:{}]", endpoint.rank == MASTER ? "master" : "replica", endpoint.host, endpoint.port);
+        return endpoint;
+    }
+
+    protected Endpoint race(List<Endpoint> endpoints, final boolean sentinel) throws IOException {
+        final Race race = new Race();
+        Executor executor = configuration.getRuntime() != null ? configuration.getRuntime().getExecutor() : new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                threadFactory.newThread(command).start();
+            }
+        };
+        CompletionService<Endpoint> service = new ExecutorCompletionService<>(executor);
+        Endpoint best = null;
+        IOException error = null;
+        int started = 0, finished = 0;
+        try {
+            while (finished < endpoints.size()) {
+                if (started < endpoints.size()) {
+                    final Endpoint endpoint = endpoints.get(started++);
+                    service.submit(new Callable<Endpoint>() {
+                        @Override
+                        public Endpoint call() throws Exception {
+                            return sentinel ? sentinel(race, endpoint) : role(race, endpoint);
+                        }
+                    });
+                }
+                Future<Endpoint> future = started < endpoints.size() ? service.poll(configuration.getFailoverDelay(), MILLISECONDS) : service.take();
+                if (future == null) continue;
+                finished++;
+                try {
+                    Endpoint endpoint = future.get();
+                    if (best == null || endpoint.rank > best.rank) best = endpoint;
+                    if (best.rank == MASTER) break;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    error = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            best = null;
+            error = new InterruptedIOException();
+        } finally {
+            race.finish(best);
+        }
+        if (best != null) return best;
+        throw error != null ? error : new IOException("no endpoint");
+    }
+
+    protected Endpoint role(Race race, Endpoint endpoint) throws IOException {
+        Socket socket = race.register(socketFactory.createSocket(endpoint.host, endpoint.port, configuration.getConnectionTimeout()));
+        socket.setSoTimeout(configuration.getConnectionTimeout());
+        RedisOutputStream out = new RedisOutputStream(socket.getOutputStream());
+        ReplyParser parser = new ReplyParser(new RedisInputStream(socket.getInputStream(), 512), new RedisCodec());
+        String password = configuration.getAuthPassword();
+        if (password != null) {
+            send(out, "AUTH".getBytes(), password.getBytes());
+            parser.parse();
+        }
+        send(out, "ROLE".getBytes());
+        Object reply = parser.parse();
+        int rank = UNKNOWN;
+        if (reply instanceof Object[] && ((Object[]) reply).length > 0) {
+            Object[] role = (Object[]) reply;
+            String name = Strings.toString(role[0]);
+            if ("master".equals(name)) rank = MASTER;
+            // a replica that is not connected to its master replies NOMASTERLINK to PSYNC
+            else if ("slave".equals(name) && role.length > 3 && "connected".equals(Strings.toString(role[3]))) rank = REPLICA;
+        }
+        socket.setSoTimeout(Math.max(configuration.getReadTimeout(), 0));
+        return new Endpoint(endpoint.host, endpoint.port, socket, rank);
+    }
+
+    protected Endpoint sentinel(Race race, Endpoint endpoint) throws IOException {
+        try (Socket socket = race.register(socketFactory.createSocket(endpoint.host, endpoint.port, configuration.getConnectionTimeout()))) {
+            socket.setSoTimeout(configuration.getConnectionTimeout());
+            RedisOutputStream out = new RedisOutputStream(socket.getOutputStream());
+            ReplyParser parser = new ReplyParser(new RedisInputStream(socket.getInputStream(), 512), new RedisCodec());
+            send(out, "SENTINEL".getBytes(), "get-master-addr-by-name".getBytes(), configuration.getSentinelMaster().getBytes());
+            Object reply = parser.parse();
+            if (!(reply instanceof Object[]) || ((Object[]) reply).length != 2) {
+                throw new IOException("SENTINEL get-master-addr-by-name failed. reason : [" + Strings.toString(reply) + "]");
+            }
+            Object[] address = (Object[]) reply;
+            return new Endpoint(Strings.toString(address[0]), Integer.parseInt(Strings.toString(address[1])), null, MASTER);
+        }
+    }
+
+    protected static void send(RedisOutputStream out, byte[]... args) throws IOException {
+        out.write(STAR);
+        out.write(String.valueOf(args.length).getBytes());
+        out.writeCrLf();
+        for (byte[] arg : args) {
+            out.write(DOLLAR);
+            out.write(String.valueOf(arg.length).getBytes());
+            out.writeCrLf();
+            out.write(arg);
+            out.writeCrLf();
+        }
+        out.flush();
+    }
+
+    protected static List<Endpoint> parse(String endpoints) {
+        List<Endpoint> list = new ArrayList<>();
+        for (String endpoint : endpoints.split(",")) {
+            endpoint = endpoint.trim();
+            if (endpoint.isEmpty()) continue;
+            int colon = endpoint.lastIndexOf(':');
+            if (colon <= 0) throw new IllegalArgumentException(endpoint);
+            list.add(new Endpoint(endpoint.substring(0, colon), Integer.parseInt(endpoint.substring(colon + 1))));
+        }
+        return list;
+    }
+
+    /*
+     * sockets of the losers, including the ones connected after the race, are closed
+     */
+    protected static class Race {
+        private boolean finished;
+        private final List<Socket> sockets = new ArrayList<>();
+
+        protected synchronized Socket register(Socket socket) throws IOException {
+            if (finished) {
+                socket.close();
+                throw new IOException("failover finished");
+            }
+            sockets.add(socket);
+            return socket;
+        }
+
+        protected void finish(Endpoint best) {
+            List<Socket> list;
+            synchronized (this) {
+                finished = true;
+                list = new ArrayList<>(sockets);
+            }
+            Socket winner = best != null ? best.socket : null;
+            for (Socket socket : list) {
+                if (socket == winner) continue;
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // NOP
+                }
+            }
+        }
+    }
+
+    public static class Endpoint {
+        protected final String host;
+        protected final int port;
+        protected final Socket socket;
+        protected final int rank;
+
+        protected Endpoint(String host, int port) {
+            this(host, port, null, 0);
+        }
+
+        protected Endpoint(String host, int port, Socket socket, int rank) {
+            this.host = host;
+            this.port = port;
+            this.socket = socket;
+            this.rank = rank;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * @return connected socket, the role of the endpoint is already read
+         */
+        public Socket getSocket() {
+            return socket;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
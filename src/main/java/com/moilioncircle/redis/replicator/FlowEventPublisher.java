@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.event.Event;
+
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An {@link EventPublisher} as a {@link Flow.Publisher}, every signal is delegated as is.
+ * <p>
+ * this class is compiled with {@code --release 9} like {@code module-info}, the rest of the library still runs on
+ * java 8. do not load it on java 8.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class FlowEventPublisher implements Flow.Publisher<Event> {
+
+    protected final EventPublisher publisher;
+
+    public FlowEventPublisher(Replicator replicator) {
+        this(new EventPublisher(replicator));
+    }
+
+    /**
+     * @param replicator    the replicator, no other event listener is required
+     * @param threadFactory creates the thread that runs {@link Replicator#open()}
+     */
+    public FlowEventPublisher(Replicator replicator, ThreadFactory threadFactory) {
+        this(new EventPublisher(replicator, threadFactory));
+    }
+
+    public FlowEventPublisher(EventPublisher publisher) {
+        this.publisher = Objects.requireNonNull(publisher);
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super Event> subscriber) {
+        Objects.requireNonNull(subscriber);
+        publisher.subscribe(new EventPublisher.Subscriber<Event>() {
+            @Override
+            public void onSubscribe(final EventPublisher.Subscription subscription) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                        subscription.request(n);
+                    }
+
+                    @Override
+                    public void cancel() {
+                        subscription.cancel();
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(Event item) {
+                subscriber.onNext(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                subscriber.onError(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                subscriber.onComplete();
+            }
+        });
+    }
+}
@@ -16,13 +16,16 @@
 
 package com.moilioncircle.redis.replicator;
 
+import com.moilioncircle.redis.replicator.cmd.AofRangeParser;
 import com.moilioncircle.redis.replicator.cmd.Command;
 import com.moilioncircle.redis.replicator.cmd.CommandName;
 import com.moilioncircle.redis.replicator.cmd.CommandParser;
+import com.moilioncircle.redis.replicator.cmd.OffsetHandler;
 import com.moilioncircle.redis.replicator.cmd.RedisCodec;
 import com.moilioncircle.redis.replicator.cmd.ReplyParser;
 import com.moilioncircle.redis.replicator.event.PostCommandSyncEvent;
 import com.moilioncircle.redis.replicator.event.PreCommandSyncEvent;
+import com.moilioncircle.redis.replicator.io.ReadAheadInputStream;
 import com.moilioncircle.redis.replicator.io.RedisInputStream;
 import com.moilioncircle.redis.replicator.util.Strings;
 import org.slf4j.Logger;
@@ -35,11 +38,29 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import static com.moilioncircle.redis.replicator.Status.CONNECTED;
 import static com.moilioncircle.redis.replicator.Status.DISCONNECTED;
 import static com.moilioncircle.redis.replicator.util.Strings.format;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * @author Leon Chen
@@ -48,18 +69,26 @@ import static com.moilioncircle.redis.replicator.util.Strings.format;
 public class RedisAofReplicator extends AbstractReplicator {
     
     protected static final Logger logger = LoggerFactory.getLogger(RedisAofReplicator.class);
+    protected static final long FOLLOW_INTERVAL = 500;
     protected final ReplyParser replyParser;
+    protected File file;
+    protected WatchService watcher;
     
     public RedisAofReplicator(File file, Configuration configuration) throws FileNotFoundException {
         this(new FileInputStream(file), configuration);
+        this.file = file;
     }
     
     public RedisAofReplicator(InputStream in, Configuration configuration) {
         Objects.requireNonNull(in);
         Objects.requireNonNull(configuration);
         this.configuration = configuration;
+        if (configuration.getReadAheadDepth() > 0) {
+            in = new ReadAheadInputStream(in, configuration.getReadAheadDepth(), configuration.getReadAheadBlockSize());
+        }
         this.inputStream = new RedisInputStream(in, this.configuration.getBufferSize());
         this.inputStream.setRawByteListeners(this.rawByteListeners);
+        this.inputStream.setByteArrayFactory(this.configuration.getByteArrayFactory());
         this.replyParser = new ReplyParser(inputStream, new RedisCodec());
         builtInCommandParserRegister();
         if (configuration.isUseDefaultExceptionListener())
@@ -81,10 +110,43 @@ public class RedisAofReplicator extends AbstractReplicator {
     
     protected void doOpen() throws IOException {
         submitEvent(new PreCommandSyncEvent());
-        try {
-            while (getStatus() == CONNECTED) {
-                Object obj = replyParser.parse();
-            
+        // captured before the first read, a rewrite during the parallel scan is detected like one in the tail loop
+        Object key = follow() ? key(file) : null;
+        ReplyParser replyParser = this.replyParser;
+        long offset = configuration.getAofOffset();
+        boolean eof = false;
+        if (file != null && configuration.getAofParallelism() > 1 && rawByteListeners.isEmpty()) {
+            doParallelOpen();
+            if (getStatus() != CONNECTED) return;
+            eof = true;
+        } else if (offset > 0) {
+            try {
+                inputStream.skip(offset, false);
+            } catch (EOFException ignore) {
+                // shorter than the offset, the file was rewritten while the consumer was down
+                eof = true;
+            }
+        }
+        if (eof) {
+            if (!follow()) {
+                submitEvent(new PostCommandSyncEvent());
+                return;
+            }
+            key = await(key);
+            if (key == null) return;
+            replyParser = new ReplyParser(reopen(configuration.getAofOffset()), new RedisCodec());
+        }
+        final long[] len = new long[1];
+        OffsetHandler handler = new OffsetHandler() {
+            @Override
+            public void handle(long l) {
+                len[0] = l;
+            }
+        };
+        while (getStatus() == CONNECTED) {
+            try {
+                Object obj = replyParser.parse(handler);
+                
                 if (obj instanceof Object[]) {
                     if (verbose() && logger.isDebugEnabled())
                         logger.debug(format((Object[]) obj));
@@ -93,15 +155,159 @@ public class RedisAofReplicator extends AbstractReplicator {
                     final CommandParser<? extends Command> parser;
                     if ((parser = commands.get(name)) == null) {
                         logger.warn("command [{}] not register. raw command:{}", name, format(raw));
-                        continue;
+                    } else {
+                        submitEvent(parser.parse(raw));
                     }
-                    submitEvent(parser.parse(raw));
                 } else {
                     logger.info("unexpected redis reply:{}", obj);
                 }
+                configuration.addAofOffset(len[0]);
+                len[0] = 0L;
+            } catch (EOFException ignore) {
+                if (!follow()) {
+                    submitEvent(new PostCommandSyncEvent());
+                    return;
+                }
+                // a partial frame is parsed again from the last offset when the rest is written
+                key = await(key);
+                if (key == null) return;
+                replyParser = new ReplyParser(reopen(configuration.getAofOffset()), new RedisCodec());
             }
-        } catch (EOFException ignore) {
-            submitEvent(new PostCommandSyncEvent());
         }
     }
-}
\ No newline at end of file
+    
+    protected boolean follow() {
+        return file != null && configuration.isAofFollow();
+    }
+    
+    /*
+     * wait until the file grows, is truncated or replaced by a rewrite. the last two restart from 0.
+     * return the key of the file to read, or null if closed.
+     */
+    protected Object await(Object key) throws IOException {
+        Path path = file.getAbsoluteFile().toPath();
+        if (watcher == null) {
+            watcher = path.getFileSystem().newWatchService();
+            path.getParent().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+        }
+        while (getStatus() == CONNECTED) {
+            Object next = key(file);
+            long offset = configuration.getAofOffset();
+            if (next != null && (!next.equals(key) || file.length() < offset)) {
+                logger.info("aof file {} rewritten at offset {}, read from 0", file, offset);
+                configuration.setAofOffset(0);
+                return next;
+            } else if (next != null && file.length() > offset) {
+                return next;
+            }
+            try {
+                WatchKey watch = watcher.poll(FOLLOW_INTERVAL, MILLISECONDS);
+                if (watch == null) continue;
+                watch.pollEvents();
+                watch.reset();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ClosedWatchServiceException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+    
+    protected RedisInputStream reopen(long offset) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        in.getChannel().position(offset);
+        RedisInputStream prev = this.inputStream;
+        this.inputStream = new RedisInputStream(in, this.configuration.getBufferSize());
+        this.inputStream.setRawByteListeners(this.rawByteListeners);
+        this.inputStream.setByteArrayFactory(this.configuration.getByteArrayFactory());
+        prev.close();
+        return this.inputStream;
+    }
+    
+    /*
+     * inode on unix, null if the file doesn't exist or the fs has no such key.
+     */
+    private static Object key(File file) {
+        try {
+            Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            return key == null ? "" : key;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    @Override
+    protected void doClose() throws IOException {
+        try {
+            if (watcher != null) watcher.close();
+        } finally {
+            super.doClose();
+        }
+    }
+    
+    /*
+     * split the file into ranges of aofRangeSize, parse them on aofParallelism threads and
+     * submit the commands in file order. workers are stateless, SELECT is submitted in order
+     * like any other command, so the db context of listeners is the same as a serial parse.
+     * a range that doesn't start where the previous one ended was misaligned by a value
+     * that looks like a frame, or failed, it is parsed again on this thread.
+     */
+    protected void doParallelOpen() throws IOException {
+        final long length = file.length();
+        final long size = Math.max(configuration.getAofRangeSize(), 1);
+        final int parallelism = configuration.getAofParallelism();
+        final AofRangeParser parser = new AofRangeParser(file, configuration.getBufferSize(), commands);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "aof-range-parser");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            Deque<Future<AofRangeParser.Range>> ranges = new ArrayDeque<>();
+            long expected = configuration.getAofOffset(), next = expected;
+            for (long start = expected; start < length && getStatus() == CONNECTED; start += size) {
+                while (next < length && ranges.size() <= parallelism) {
+                    final long from = next, to = Math.min(next + size, length);
+                    ranges.add(executor.submit(new Callable<AofRangeParser.Range>() {
+                        @Override
+                        public AofRangeParser.Range call() throws Exception {
+                            long aligned = parser.align(from, to);
+                            return aligned < 0 ? null : parser.parse(aligned, to);
+                        }
+                    }));
+                    next = to;
+                }
+                AofRangeParser.Range range;
+                try {
+                    range = ranges.poll().get();
+                } catch (ExecutionException e) {
+                    range = null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+                long end = Math.min(start + size, length);
+                if (range == null || range.getStart() != expected) {
+                    if (range != null) logger.debug("misaligned aof range {}, expected {}", range.getStart(), expected);
+                    range = parser.parse(expected, end);
+                }
+                List<Command> commands = range.getCommands();
+                for (int i = 0; i < commands.size(); i++) {
+                    if (getStatus() != CONNECTED) return;
+                    submitEvent(commands.get(i));
+                    configuration.setAofOffset(range.getEnd(i));
+                }
+                configuration.setAofOffset(range.getEnd());
+                if (range.isEof()) break;
+                expected = range.getEnd();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,837 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.cmd.Command;
+import com.moilioncircle.redis.replicator.cmd.CommandName;
+import com.moilioncircle.redis.replicator.cmd.CommandParser;
+import com.moilioncircle.redis.replicator.cmd.IncrementalReplyParser;
+import com.moilioncircle.redis.replicator.cmd.RedisCodec;
+import com.moilioncircle.redis.replicator.cmd.ReplyHandler;
+import com.moilioncircle.redis.replicator.event.PreCommandSyncEvent;
+import com.moilioncircle.redis.replicator.io.RawByteListener;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.rdb.RdbParser;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+
+import static com.moilioncircle.redis.replicator.Constants.DOLLAR;
+import static com.moilioncircle.redis.replicator.Constants.STAR;
+import static com.moilioncircle.redis.replicator.Status.CONNECTED;
+import static com.moilioncircle.redis.replicator.Status.DISCONNECTED;
+import static com.moilioncircle.redis.replicator.util.Strings.format;
+import static com.moilioncircle.redis.replicator.util.Strings.isEquals;
+import static java.nio.channels.SelectionKey.OP_CONNECT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A source of {@link RedisReplicatorHub}, the same handshake, psync and retry semantics as
+ * {@link RedisSocketReplicator} on a non-blocking channel.
+ * <p>
+ * {@link #open()} returns immediately, the end of the replication is reported to the close listeners and a failure
+ * after the retries to the exception listeners. ssl, snapshot cache, rate limit, read ahead and async cached bytes are
+ * not supported.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class RedisHubReplicator extends AbstractReplicator {
+
+    protected static final Logger logger = LoggerFactory.getLogger(RedisHubReplicator.class);
+
+    private static final int CHUNKS = 16;
+
+    protected final int port;
+    protected final String host;
+    protected final RedisReplicatorHub hub;
+    protected final RedisReplicatorHub.Loop loop;
+    protected final RedisCodec codec = new RedisCodec();
+
+    /*
+     * connection state, only touched by the selector thread
+     */
+    protected SocketChannel channel;
+    protected SelectionKey key;
+    protected Phase phase;
+    protected SyncMode mode;
+    protected Pipe pipe;
+    protected Future<?> worker;
+    protected ScheduledFuture<?> tick;
+    protected ScheduledFuture<?> timeout;
+    protected Throwable cause;
+    protected boolean released = true;
+    protected boolean reading;
+    protected boolean suspended;
+    protected long lastRead;
+    protected int retries;
+    protected final Deque<ByteBuffer> writes = new ArrayDeque<>();
+
+    /*
+     * rdb of the current sync
+     */
+    protected String replId;
+    protected long replOffset;
+    protected long rdbLeft;
+    protected byte[] mark;
+    protected boolean discard;
+
+    /*
+     * buffered input and decoder state
+     */
+    protected byte[] buf;
+    protected int head;
+    protected int tail;
+    protected IncrementalReplyParser replyParser;
+    protected final ReplyHandler handler = new ReplyHandler() {
+        @Override
+        public boolean handle(Object reply, int len) {
+            notifyRawBytes(head, head + len);
+            head += len;
+            try {
+                if (phase != Phase.COMMAND) {
+                    handshake(reply);
+                    return false;
+                }
+                command(reply, len);
+                return !released && !suspended && getStatus() == CONNECTED;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+
+    protected RedisHubReplicator(RedisReplicatorHub hub, RedisReplicatorHub.Loop loop, String host, int port, Configuration configuration) {
+        Objects.requireNonNull(host);
+        if (port <= 0 || port > 65535) throw new IllegalArgumentException("illegal argument port: " + port);
+        Objects.requireNonNull(configuration);
+        this.hub = hub;
+        this.loop = loop;
+        this.host = host;
+        this.port = port;
+        this.configuration = configuration;
+        builtInCommandParserRegister();
+        if (configuration.isUseDefaultExceptionListener())
+            addExceptionListener(new DefaultExceptionListener());
+    }
+
+    public String getHost() {
+        return this.host;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * start the replication on the selector thread and return immediately.
+     *
+     * @throws IOException never
+     */
+    @Override
+    public void open() throws IOException {
+        if (hub.closed) throw new IllegalStateException("hub closed");
+        if (!connected.compareAndSet(DISCONNECTED, CONNECTED)) return;
+        hub.register(this);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                fail(null);
+            }
+        });
+    }
+
+    protected void connect() {
+        if (getStatus() != CONNECTED) {
+            finish();
+            return;
+        }
+        released = false;
+        phase = Phase.CONNECTING;
+        mode = SyncMode.PSYNC;
+        head = tail = 0;
+        replyParser = new IncrementalReplyParser(codec);
+        if (buf == null) buf = new byte[configuration.getBufferSize()];
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            if (configuration.getReceiveBufferSize() > 0)
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, configuration.getReceiveBufferSize());
+            if (configuration.getSendBufferSize() > 0)
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, configuration.getSendBufferSize());
+            final SocketChannel ch = channel;
+            key = channel.register(loop.selector, OP_CONNECT, this);
+            if (configuration.getConnectionTimeout() > 0) {
+                timeout = schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (channel == ch && phase == Phase.CONNECTING) fail(new SocketTimeoutException("connect timed out"));
+                    }
+                }, configuration.getConnectionTimeout());
+            }
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            if (address.isUnresolved()) throw new UnknownHostException(host);
+            if (channel.connect(address)) connected();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    protected void connected() throws IOException {
+        if (timeout != null) timeout.cancel(false);
+        logger.info("Connected to redis-server[{}:{}]", host, port);
+        retries = 0;
+        reading = true;
+        lastRead = System.currentTimeMillis();
+        key.interestOps(OP_READ);
+        final SocketChannel ch = channel;
+        tick = hub.timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (channel == ch && !released) tick();
+                    }
+                });
+            }
+        }, configuration.getHeartbeatPeriod(), configuration.getHeartbeatPeriod(), MILLISECONDS);
+        String password = configuration.getAuthPassword();
+        if (password != null) {
+            logger.info("AUTH {}", password);
+            phase = Phase.AUTH;
+            send("AUTH".getBytes(), password.getBytes());
+        } else {
+            ping();
+        }
+    }
+
+    /*
+     * read timeout and heartbeat
+     */
+    protected void tick() {
+        long now = System.currentTimeMillis();
+        if (reading && configuration.getReadTimeout() > 0 && now - lastRead > configuration.getReadTimeout()) {
+            fail(new SocketTimeoutException("Read timed out"));
+        } else if (phase == Phase.COMMAND && mode == SyncMode.PSYNC) {
+            ack();
+        }
+    }
+
+    /**
+     * selector event of the channel
+     *
+     * @param key selection key
+     */
+    protected void handle(SelectionKey key) {
+        try {
+            if (key.isConnectable() && channel.finishConnect()) connected();
+            if (key.isValid() && key.isWritable()) flush();
+            if (key.isValid() && key.isReadable()) read();
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    protected void read() throws IOException {
+        if (tail == buf.length) {
+            if (head > 0) {
+                System.arraycopy(buf, head, buf, 0, tail - head);
+                tail -= head;
+                head = 0;
+            } else {
+                buf = Arrays.copyOf(buf, buf.length << 1);
+            }
+        }
+        int len = channel.read(ByteBuffer.wrap(buf, tail, buf.length - tail));
+        if (len < 0) throw new IOException("Unexpected EOF");
+        tail += len;
+        lastRead = System.currentTimeMillis();
+        process();
+    }
+
+    protected void process() throws IOException {
+        while (!released && !suspended && getStatus() == CONNECTED && head < tail) {
+            if (phase == Phase.RDB) {
+                if (!rdb()) return;
+            } else if (phase == Phase.RDB_HEADER) {
+                if (!header()) return;
+            } else if (phase == Phase.RDB_WAIT) {
+                return;
+            } else if (replyParser.parse(ByteBuffer.wrap(buf, head, tail - head), handler) == 0) {
+                return;
+            }
+        }
+    }
+
+    protected void handshake(Object obj) throws IOException {
+        String reply = obj instanceof byte[] ? Strings.toString(obj) : String.valueOf(obj);
+        logger.info(reply);
+        switch (phase) {
+            case AUTH:
+                if (!"OK".equals(reply)) {
+                    String password = configuration.getAuthPassword();
+                    if (!reply.contains("no password")) throw new AssertionError("[AUTH " + password + "] failed. " + reply);
+                    logger.warn("[AUTH {}] failed. {}", password, reply);
+                }
+                ping();
+                break;
+            case PING:
+                if (!"PONG".equalsIgnoreCase(reply)) {
+                    if (reply.contains("NOAUTH")) throw new AssertionError(reply);
+                    if (reply.contains("operation not permitted")) throw new AssertionError("-NOAUTH Authentication required.");
+                    logger.warn("[PING] failed. {}", reply);
+                }
+                String port = String.valueOf(channel.socket().getLocalPort());
+                logger.info("REPLCONF listening-port {}", port);
+                phase = Phase.LISTENING_PORT;
+                send("REPLCONF".getBytes(), "listening-port".getBytes(), port.getBytes());
+                break;
+            case LISTENING_PORT:
+                if (!"OK".equals(reply)) logger.warn("[REPLCONF listening-port {}] failed. {}", channel.socket().getLocalPort(), reply);
+                String ip = channel.socket().getLocalAddress().getHostAddress();
+                logger.info("REPLCONF ip-address {}", ip);
+                phase = Phase.IP_ADDRESS;
+                send("REPLCONF".getBytes(), "ip-address".getBytes(), ip.getBytes());
+                break;
+            case IP_ADDRESS:
+                //redis 3.2+
+                if (!"OK".equals(reply)) logger.warn("[REPLCONF ip-address {}] failed. {}", channel.socket().getLocalAddress().getHostAddress(), reply);
+                logger.info("REPLCONF capa {}", "eof");
+                phase = Phase.CAPA_EOF;
+                send("REPLCONF".getBytes(), "capa".getBytes(), "eof".getBytes());
+                break;
+            case CAPA_EOF:
+                if (!"OK".equals(reply)) logger.warn("[REPLCONF capa {}] failed. {}", "eof", reply);
+                logger.info("REPLCONF capa {}", "psync2");
+                phase = Phase.CAPA_PSYNC2;
+                send("REPLCONF".getBytes(), "capa".getBytes(), "psync2".getBytes());
+                break;
+            case CAPA_PSYNC2:
+                if (!"OK".equals(reply)) logger.warn("[REPLCONF capa {}] failed. {}", "psync2", reply);
+                String offset = String.valueOf(configuration.getReplOffset());
+                logger.info("PSYNC {} {}", configuration.getReplId(), offset);
+                phase = Phase.PSYNC;
+                send("PSYNC".getBytes(), configuration.getReplId().getBytes(), offset.getBytes());
+                break;
+            case PSYNC:
+                if (reply.startsWith("FULLRESYNC")) {
+                    String[] ary = reply.split(" ");
+                    replId = ary[1];
+                    replOffset = Long.parseLong(ary[2]);
+                    phase = Phase.RDB_HEADER;
+                } else if (reply.startsWith("CONTINUE")) {
+                    String[] ary = reply.split(" ");
+                    // redis-4.0 compatible
+                    String id = configuration.getReplId();
+                    if (ary.length > 1 && id != null && !id.equals(ary[1])) configuration.setReplId(ary[1]);
+                    synced();
+                } else if (reply.startsWith("NOMASTERLINK") || reply.startsWith("LOADING")) {
+                    release();
+                    retries = 0;
+                    reconnect();
+                } else {
+                    logger.info("SYNC");
+                    mode = SyncMode.SYNC;
+                    replId = null;
+                    phase = Phase.RDB_HEADER;
+                    send("SYNC".getBytes());
+                }
+                break;
+            default:
+                throw new AssertionError(phase);
+        }
+    }
+
+    protected void command(Object obj, int len) {
+        if (obj instanceof Object[]) {
+            if (verbose() && logger.isDebugEnabled())
+                logger.debug(format((Object[]) obj));
+            Object[] raw = (Object[]) obj;
+            CommandName name = CommandName.name(Strings.toString(raw[0]));
+            final CommandParser<? extends Command> parser;
+            if ((parser = commands.get(name)) == null) {
+                logger.warn("command [{}] not register. raw command:{}", name, format(raw));
+            } else if (isEquals(Strings.toString(raw[0]), "PING")) {
+                // NOP
+            } else if (isEquals(Strings.toString(raw[0]), "REPLCONF") && isEquals(Strings.toString(raw[1]), "GETACK")) {
+                if (mode == SyncMode.PSYNC) ack();
+            } else {
+                submitEvent(parser.parse(raw));
+            }
+            if (parser == null) return;
+        } else {
+            logger.info("unexpected redis reply:{}", obj);
+        }
+        configuration.addOffset(len);
+    }
+
+    /*
+     * $<len>\r\n or $EOF:<40 bytes delimiter>\r\n, a newline before it keeps the connection alive
+     */
+    protected boolean header() throws IOException {
+        int p = head;
+        while (p < tail && buf[p] == '\n') p++;
+        if (p == tail) return false;
+        if (buf[p] != DOLLAR) {
+            final Object[] reply = new Object[1];
+            if (replyParser.parse(ByteBuffer.wrap(buf, head, tail - head), new ReplyHandler() {
+                @Override
+                public boolean handle(Object obj, int len) {
+                    reply[0] = obj;
+                    return false;
+                }
+            }) == 0) return false;
+            throw new IOException("SYNC failed. reason : [" + (reply[0] instanceof byte[] ? Strings.toString(reply[0]) : reply[0]) + "]");
+        }
+        int eol = eol(p + 1);
+        if (eol < 0) return false;
+        String payload = new String(buf, p + 1, eol - p - 1);
+        notifyRawBytes(head, eol + 2);
+        head = eol + 2;
+        if (payload.startsWith("EOF:")) {
+            logger.info("Disk-less replication.");
+            mark = payload.substring(4).getBytes();
+            rdbLeft = -1;
+        } else {
+            rdbLeft = Long.parseLong(payload);
+            logger.info("RDB dump file size:{}", rdbLeft);
+        }
+        discard = rdbLeft != -1 && configuration.isDiscardRdbEvent();
+        if (discard) {
+            logger.info("discard {} bytes", rdbLeft);
+        } else {
+            pipe = new Pipe();
+            final Pipe p0 = pipe;
+            worker = hub.rdbExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Throwable error = null;
+                    try {
+                        RedisInputStream in = new RedisInputStream(p0, configuration.getBufferSize());
+                        in.setRawByteListeners(rawByteListeners);
+                        in.setByteArrayFactory(configuration.getByteArrayFactory());
+                        new RdbParser(in, RedisHubReplicator.this).parse();
+                    } catch (Throwable e) {
+                        error = e;
+                    }
+                    final Throwable e = error;
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            parsed(e);
+                        }
+                    });
+                }
+            });
+        }
+        phase = Phase.RDB;
+        return true;
+    }
+
+    /*
+     * feed the rdb to the worker, reading stops while the pipe is full
+     */
+    protected boolean rdb() {
+        if (rdbLeft == 0) {
+            phase = Phase.RDB_WAIT;
+            pause();
+            if (discard) {
+                parsed(null);
+                return true;
+            }
+            pipe.end();
+            return false;
+        }
+        int n, end = -1;
+        if (rdbLeft > 0) {
+            n = (int) Math.min(rdbLeft, tail - head);
+        } else if ((end = indexOf(mark)) >= 0) {
+            n = end - head;
+        } else {
+            n = Math.max(0, tail - head - mark.length + 1);
+        }
+        if (n == 0 && end < 0) return false;
+        if (n > 0) {
+            if (discard) {
+                notifyRawBytes(head, head + n);
+            } else if (!pipe.offer(Arrays.copyOfRange(buf, head, head + n))) {
+                pause();
+                return false;
+            }
+            head += n;
+            if (rdbLeft > 0) rdbLeft -= n;
+        }
+        if (end >= 0) {
+            // skip 40 bytes delimiter when disk-less replication
+            head += mark.length;
+            rdbLeft = 0;
+        }
+        return true;
+    }
+
+    /*
+     * the rdb was parsed or discarded
+     */
+    protected void parsed(Throwable e) {
+        worker = null;
+        pipe = null;
+        if (released) {
+            next(cause);
+        } else if (e != null) {
+            fail(e);
+        } else if (getStatus() != CONNECTED) {
+            fail(null);
+        } else {
+            if (replId != null) {
+                configuration.setReplId(replId);
+                configuration.setReplOffset(replOffset);
+            }
+            synced();
+            resume();
+        }
+    }
+
+    protected void synced() {
+        if (mode == SyncMode.PSYNC) logger.info("heartbeat started.");
+        phase = Phase.COMMAND;
+        submitEvent(new PreCommandSyncEvent());
+    }
+
+    protected void pause() {
+        if (!reading) return;
+        reading = false;
+        key.interestOps(key.interestOps() & ~OP_READ);
+    }
+
+    protected void resume() {
+        if (released || reading || suspended || phase == Phase.RDB_WAIT) return;
+        reading = true;
+        lastRead = System.currentTimeMillis();
+        key.interestOps(key.interestOps() | OP_READ);
+        try {
+            process();
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * stops reading until {@link #unsuspend()}, the socket buffers fill up and the master keeps the rest in its
+     * output buffer. called from the selector thread, e.g. by an event listener, no further command is parsed.
+     * a reconnection clears the suspension.
+     */
+    public void suspend() {
+        if (loop.inLoop()) {
+            if (released) return;
+            suspended = true;
+            pause();
+        } else {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    suspend();
+                }
+            });
+        }
+    }
+
+    /**
+     * resumes reading, always on a later turn of the selector thread so that it is safe from an event listener.
+     */
+    public void unsuspend() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!suspended) return;
+                suspended = false;
+                resume();
+            }
+        });
+    }
+
+    protected void ping() throws IOException {
+        logger.info("PING");
+        phase = Phase.PING;
+        send("PING".getBytes());
+    }
+
+    protected void ack() {
+        try {
+            send("REPLCONF".getBytes(), "ACK".getBytes(), String.valueOf(ackOffset()).getBytes());
+        } catch (IOException e) {
+            // NOP
+        }
+    }
+
+    protected void send(byte[] command, final byte[]... args) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(STAR);
+        out.write(String.valueOf(args.length + 1).getBytes());
+        out.write('\r');
+        out.write('\n');
+        for (byte[] arg : concat(command, args)) {
+            out.write(DOLLAR);
+            out.write(String.valueOf(arg.length).getBytes());
+            out.write('\r');
+            out.write('\n');
+            out.write(arg);
+            out.write('\r');
+            out.write('\n');
+        }
+        writes.add(ByteBuffer.wrap(out.toByteArray()));
+        flush();
+    }
+
+    protected void flush() throws IOException {
+        while (!writes.isEmpty()) {
+            ByteBuffer buffer = writes.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                key.interestOps(key.interestOps() | OP_WRITE);
+                return;
+            }
+            writes.poll();
+        }
+        key.interestOps(key.interestOps() & ~OP_WRITE);
+    }
+
+    /*
+     * close the connection, then retry, report or finish once the rdb worker stopped.
+     * a null reason closes the replicator or retries a later sync.
+     */
+    protected void fail(Throwable reason) {
+        if (released) {
+            if (channel == null && getStatus() != CONNECTED && worker == null) finish();
+            return;
+        }
+        if (reason != null && getStatus() == CONNECTED)
+            logger.error("[redis-replicator] socket error. redis-server[{}:{}]", host, port, reason);
+        release();
+        if (worker == null) next(reason);
+        else cause = reason;
+    }
+
+    protected void release() {
+        released = true;
+        reading = false;
+        suspended = false;
+        if (timeout != null) timeout.cancel(false);
+        if (tick != null) {
+            tick.cancel(false);
+            if (phase == Phase.COMMAND && mode == SyncMode.PSYNC) logger.info("heartbeat canceled.");
+        }
+        if (pipe != null) pipe.abort();
+        writes.clear();
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            // NOP
+        }
+        if (channel != null) logger.info("socket closed. redis-server[{}:{}]", host, port);
+        channel = null;
+        key = null;
+        timeout = tick = null;
+    }
+
+    protected void next(Throwable reason) {
+        cause = null;
+        if (getStatus() != CONNECTED) {
+            finish();
+        } else if (reason != null && !(reason instanceof IOException) && !(reason instanceof UncheckedIOException)) {
+            doExceptionListener(this, reason, null);
+            finish();
+        } else if (reason != null && configuration.getRetries() > 0 && ++retries >= configuration.getRetries()) {
+            doExceptionListener(this, reason, null);
+            finish();
+        } else {
+            if (reason != null) logger.info("reconnecting to redis-server[{}:{}]. retry times:{}", host, port, retries);
+            reconnect();
+        }
+    }
+
+    protected void reconnect() {
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (released && channel == null && worker == null) connect();
+            }
+        }, configuration.getRetryTimeInterval());
+    }
+
+    protected void finish() {
+        if (getStatus() == DISCONNECTED) return;
+        connected.set(DISCONNECTED);
+        buf = null;
+        doCloseListener(this);
+        hub.unregister(this);
+    }
+
+    protected ScheduledFuture<?> schedule(final Runnable task, long delay) {
+        return hub.timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                loop.execute(task);
+            }
+        }, delay, MILLISECONDS);
+    }
+
+    protected void notifyRawBytes(int from, int to) {
+        if (rawByteListeners.isEmpty() || from == to) return;
+        byte[] bytes = Arrays.copyOfRange(buf, from, to);
+        for (RawByteListener listener : rawByteListeners) {
+            listener.handle(bytes);
+        }
+    }
+
+    private int eol(int from) {
+        for (int i = from; i + 1 < tail; i++) {
+            if (buf[i] == '\r' && buf[i + 1] == '\n') return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(byte[] bytes) {
+        outer:
+        for (int i = head; i + bytes.length <= tail; i++) {
+            for (int j = 0; j < bytes.length; j++) {
+                if (buf[i + j] != bytes[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[][] concat(byte[] command, byte[]... args) {
+        byte[][] ary = new byte[args.length + 1][];
+        ary[0] = command;
+        System.arraycopy(args, 0, ary, 1, args.length);
+        return ary;
+    }
+
+    protected enum Phase {CONNECTING, AUTH, PING, LISTENING_PORT, IP_ADDRESS, CAPA_EOF, CAPA_PSYNC2, PSYNC, RDB_HEADER, RDB, RDB_WAIT, COMMAND}
+
+    protected enum SyncMode {SYNC, PSYNC}
+
+    /**
+     * chunks of the rdb from the selector thread to the worker, a taken chunk resumes a paused reading.
+     */
+    protected class Pipe extends InputStream {
+        private final byte[] END = new byte[0];
+        private final byte[] ABORT = new byte[0];
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        private volatile boolean full;
+        private byte[] chunk;
+        private int index;
+
+        protected boolean offer(byte[] bytes) {
+            if (queue.size() >= CHUNKS) {
+                full = true;
+                if (queue.size() >= CHUNKS) return false;
+                full = false;
+            }
+            queue.add(bytes);
+            return true;
+        }
+
+        protected void end() {
+            queue.add(END);
+        }
+
+        protected void abort() {
+            queue.clear();
+            queue.add(ABORT);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (chunk == null || index == chunk.length) {
+                if (chunk == END) return -1;
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+                index = 0;
+                if (full) {
+                    full = false;
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            resume();
+                        }
+                    });
+                }
+                if (chunk == ABORT) {
+                    queue.add(ABORT);
+                    throw new IOException("replicator closed");
+                }
+                if (chunk == END) return -1;
+            }
+            int n = Math.min(len, chunk.length - index);
+            System.arraycopy(chunk, index, b, off, n);
+            index += n;
+            return n;
+        }
+    }
+}
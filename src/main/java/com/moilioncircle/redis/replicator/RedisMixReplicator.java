@@ -24,6 +24,7 @@ import com.moilioncircle.redis.replicator.cmd.ReplyParser;
 import com.moilioncircle.redis.replicator.event.PostCommandSyncEvent;
 import com.moilioncircle.redis.replicator.event.PreCommandSyncEvent;
 import com.moilioncircle.redis.replicator.io.PeekableInputStream;
+import com.moilioncircle.redis.replicator.io.ReadAheadInputStream;
 import com.moilioncircle.redis.replicator.io.RedisInputStream;
 import com.moilioncircle.redis.replicator.rdb.RdbParser;
 import com.moilioncircle.redis.replicator.util.Strings;
@@ -60,6 +61,9 @@ public class RedisMixReplicator extends AbstractReplicator {
         Objects.requireNonNull(in);
         Objects.requireNonNull(configuration);
         this.configuration = configuration;
+        if (configuration.getReadAheadDepth() > 0) {
+            in = new ReadAheadInputStream(in, configuration.getReadAheadDepth(), configuration.getReadAheadBlockSize());
+        }
         if (in instanceof PeekableInputStream) {
             this.peekable = (PeekableInputStream) in;
         } else {
@@ -67,6 +71,7 @@ public class RedisMixReplicator extends AbstractReplicator {
         }
         this.inputStream = new RedisInputStream(in, this.configuration.getBufferSize());
         this.inputStream.setRawByteListeners(this.rawByteListeners);
+        this.inputStream.setByteArrayFactory(this.configuration.getByteArrayFactory());
         this.replyParser = new ReplyParser(inputStream, new RedisCodec());
         builtInCommandParserRegister();
         if (configuration.isUseDefaultExceptionListener())
@@ -16,6 +16,7 @@
 
 package com.moilioncircle.redis.replicator;
 
+import com.moilioncircle.redis.replicator.io.ReadAheadInputStream;
 import com.moilioncircle.redis.replicator.io.RedisInputStream;
 import com.moilioncircle.redis.replicator.rdb.RdbParser;
 
@@ -45,8 +46,12 @@ public class RedisRdbReplicator extends AbstractReplicator {
         Objects.requireNonNull(in);
         Objects.requireNonNull(configuration);
         this.configuration = configuration;
+        if (configuration.getReadAheadDepth() > 0) {
+            in = new ReadAheadInputStream(in, configuration.getReadAheadDepth(), configuration.getReadAheadBlockSize());
+        }
         this.inputStream = new RedisInputStream(in, this.configuration.getBufferSize());
         this.inputStream.setRawByteListeners(this.rawByteListeners);
+        this.inputStream.setByteArrayFactory(this.configuration.getByteArrayFactory());
         if (configuration.isUseDefaultExceptionListener())
             addExceptionListener(new DefaultExceptionListener());
     }
@@ -22,6 +22,7 @@ import com.moilioncircle.redis.replicator.cmd.CommandParser;
 import com.moilioncircle.redis.replicator.event.EventListener;
 import com.moilioncircle.redis.replicator.io.PeekableInputStream;
 import com.moilioncircle.redis.replicator.io.RawByteListener;
+import com.moilioncircle.redis.replicator.io.ReadAheadInputStream;
 import com.moilioncircle.redis.replicator.rdb.RdbVisitor;
 import com.moilioncircle.redis.replicator.rdb.datatype.Module;
 import com.moilioncircle.redis.replicator.rdb.module.ModuleParser;
@@ -32,6 +33,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.util.Objects;
+import java.util.zip.GZIPInputStream;
 
 /**
  * @author Leon Chen
@@ -101,11 +103,16 @@ public class RedisReplicator implements Replicator {
         Objects.requireNonNull(uri);
         Configuration configuration = Configuration.valueOf(uri);
         if (uri.getFileType() != null) {
-            PeekableInputStream in = new PeekableInputStream(uri.toURL().openStream());
+            PeekableInputStream in = new PeekableInputStream(openStream(uri, configuration));
             switch (uri.getFileType()) {
                 case AOF:
                     if (in.peek() == 'R') {
                         this.replicator = new RedisMixReplicator(in, configuration);
+                    } else if (compression(uri) == null && (configuration.getAofParallelism() > 1
+                            || configuration.isAofFollow() || configuration.getAofOffset() > 0)) {
+                        // seek, follow and ranges need the file itself
+                        in.close();
+                        this.replicator = new RedisAofReplicator(new File(uri.getPath()), configuration);
                     } else {
                         this.replicator = new RedisAofReplicator(in, configuration);
                     }
@@ -124,6 +131,36 @@ public class RedisReplicator implements Replicator {
         }
     }
 
+    /*
+     * redis:///path/to/dump.rdb.gz or ?compression=gzip, inflate on a read ahead thread.
+     */
+    private static InputStream openStream(RedisURI uri, Configuration configuration) throws IOException {
+        InputStream in = uri.toURL().openStream();
+        String compression = compression(uri);
+        if (compression == null) return in;
+        if (!compression.equalsIgnoreCase("gzip")) {
+            in.close();
+            throw new UnsupportedOperationException("compression " + compression);
+        }
+        int depth = configuration.getReadAheadDepth() > 0 ? configuration.getReadAheadDepth() : 4;
+        try {
+            in = new ReadAheadInputStream(new GZIPInputStream(in, 64 * 1024), depth, configuration.getReadAheadBlockSize());
+        } catch (IOException | RuntimeException e) {
+            // e.g. a truncated gzip header
+            in.close();
+            throw e;
+        }
+        // already read ahead
+        configuration.setReadAheadDepth(0);
+        return in;
+    }
+
+    private static String compression(RedisURI uri) {
+        String compression = uri.parameters.get("compression");
+        if (compression == null && uri.getPath().toLowerCase().endsWith(".gz")) compression = "gzip";
+        return compression == null || compression.equalsIgnoreCase("none") ? null : compression;
+    }
+
     @SuppressWarnings("unchecked")
     public <T extends Replicator> T getReplicator() {
         return (T) this.replicator;
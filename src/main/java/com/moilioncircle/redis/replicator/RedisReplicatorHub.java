@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.moilioncircle.redis.replicator.util.Concurrents.terminateQuietly;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Drives many replication connections from a few selector threads instead of a socket, a reader thread and a
+ * heartbeat thread per {@link RedisSocketReplicator}.
+ * <pre>
+ * RedisReplicatorHub hub = new RedisReplicatorHub(2, 4);
+ * for (String[] master : masters) {
+ *     Replicator r = hub.replicator(master[0], Integer.parseInt(master[1]), Configuration.defaultSetting());
+ *     r.addEventListener(listener);
+ *     r.open();
+ * }
+ * </pre>
+ * Every source is a {@link Replicator} with its own listeners, command parsers and rdb visitor. Handshake, psync
+ * replies and the command stream are decoded incrementally on the selector thread of the source, the rdb of a full
+ * sync is parsed on one of {@code rdbThreads} workers, and heartbeats, timeouts and retries share one timer thread.
+ * So there are {@code selectors + rdbThreads + 1} threads however many sources are added, or only the selectors
+ * with a shared {@link ReplicatorRuntime}.
+ * <p>
+ * Listeners of the command stream run on a selector thread, a slow listener delays the other sources of that thread.
+ * Ssl is not supported.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class RedisReplicatorHub implements Closeable {
+
+    protected static final Logger logger = LoggerFactory.getLogger(RedisReplicatorHub.class);
+
+    protected final Loop[] loops;
+    protected final ExecutorService rdbExecutor;
+    protected final ScheduledExecutorService timer;
+    protected final ReplicatorRuntime runtime;
+    protected volatile boolean closed;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Set<RedisHubReplicator> sources = new HashSet<>();
+
+    public RedisReplicatorHub() throws IOException {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 4);
+    }
+
+    /**
+     * @param selectors  selector threads
+     * @param rdbThreads max full syncs parsed at the same time, the other full syncs wait with the socket paused
+     * @throws IOException if failed to open a selector
+     */
+    public RedisReplicatorHub(int selectors, int rdbThreads) throws IOException {
+        this(null, selectors, rdbThreads);
+    }
+
+    /**
+     * @param runtime   heartbeats, timeouts and retries run on the shared timer, full syncs are parsed on the io pool
+     * @param selectors selector threads
+     * @throws IOException if failed to open a selector
+     */
+    public RedisReplicatorHub(ReplicatorRuntime runtime, int selectors) throws IOException {
+        this(Objects.requireNonNull(runtime), selectors, 0);
+    }
+
+    protected RedisReplicatorHub(ReplicatorRuntime runtime, int selectors, int rdbThreads) throws IOException {
+        if (selectors <= 0) throw new IllegalArgumentException(String.valueOf(selectors));
+        if (runtime == null && rdbThreads <= 0) throw new IllegalArgumentException(String.valueOf(rdbThreads));
+        this.runtime = runtime;
+        if (runtime != null) {
+            this.timer = runtime.getTimer();
+            this.rdbExecutor = runtime.getExecutor();
+        } else {
+            this.timer = Executors.newSingleThreadScheduledExecutor(ReplicatorRuntime.factory("hub-timer"));
+            this.rdbExecutor = Executors.newFixedThreadPool(rdbThreads, ReplicatorRuntime.factory("hub-rdb"));
+        }
+        this.loops = new Loop[selectors];
+        for (int i = 0; i < selectors; i++) {
+            loops[i] = new Loop(Selector.open());
+        }
+        ThreadFactory tf = ReplicatorRuntime.factory("hub-selector");
+        for (Loop loop : loops) {
+            loop.thread = tf.newThread(loop);
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * @param host          master host
+     * @param port          master port
+     * @param configuration configuration of the source
+     * @return a replicator that connects on {@link Replicator#open()} and returns immediately
+     */
+    public Replicator replicator(String host, int port, Configuration configuration) {
+        if (closed) throw new IllegalStateException("closed");
+        if (configuration.isSsl()) throw new UnsupportedOperationException("ssl");
+        Loop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        return new RedisHubReplicator(this, loop, host, port, configuration);
+    }
+
+    /**
+     * stop all sources and threads.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        List<RedisHubReplicator> list;
+        synchronized (sources) {
+            list = new ArrayList<>(sources);
+        }
+        for (RedisHubReplicator source : list) {
+            source.close();
+        }
+        // wait for the close listeners of the sources
+        long deadline = System.currentTimeMillis() + 10000L;
+        synchronized (sources) {
+            for (long wait = 10000L; !sources.isEmpty() && wait > 0; wait = deadline - System.currentTimeMillis()) {
+                try {
+                    sources.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        for (final Loop loop : loops) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loop.closed = true;
+                }
+            });
+        }
+        for (Loop loop : loops) {
+            try {
+                loop.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (runtime != null) return;
+        rdbExecutor.shutdownNow();
+        terminateQuietly(timer, 0, MILLISECONDS);
+    }
+
+    protected void register(RedisHubReplicator source) {
+        synchronized (sources) {
+            sources.add(source);
+        }
+    }
+
+    protected void unregister(RedisHubReplicator source) {
+        synchronized (sources) {
+            sources.remove(source);
+            sources.notifyAll();
+        }
+    }
+
+    /**
+     * a selector thread, tasks of other threads are queued and run between selects.
+     */
+    protected static class Loop implements Runnable {
+        protected Thread thread;
+        protected volatile boolean closed;
+        protected final Selector selector;
+        protected final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        protected Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        protected void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) selector.wakeup();
+        }
+
+        protected boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    // tasks of the selector thread itself do not wake it up
+                    if (tasks.isEmpty()) selector.select();
+                    else selector.selectNow();
+                    for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+                        try {
+                            task.run();
+                        } catch (Throwable e) {
+                            logger.error("hub task failed", e);
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid()) ((RedisHubReplicator) key.attachment()).handle(key);
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("selector failed", e);
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException ignore) {
+                    // NOP
+                }
+            }
+        }
+    }
+}
@@ -27,17 +27,23 @@ import com.moilioncircle.redis.replicator.event.PostCommandSyncEvent;
 import com.moilioncircle.redis.replicator.event.PreCommandSyncEvent;
 import com.moilioncircle.redis.replicator.io.AsyncBufferedInputStream;
 import com.moilioncircle.redis.replicator.io.RateLimitInputStream;
+import com.moilioncircle.redis.replicator.io.ReadAheadInputStream;
 import com.moilioncircle.redis.replicator.io.RedisInputStream;
 import com.moilioncircle.redis.replicator.io.RedisOutputStream;
+import com.moilioncircle.redis.replicator.io.TeeInputStream;
 import com.moilioncircle.redis.replicator.net.RedisSocketFactory;
 import com.moilioncircle.redis.replicator.rdb.RdbParser;
 import com.moilioncircle.redis.replicator.util.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
+import java.nio.file.Files;
 import java.util.Objects;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -55,6 +61,9 @@ import static com.moilioncircle.redis.replicator.Status.DISCONNECTING;
 import static com.moilioncircle.redis.replicator.util.Concurrents.terminateQuietly;
 import static com.moilioncircle.redis.replicator.util.Strings.format;
 import static com.moilioncircle.redis.replicator.util.Strings.isEquals;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
@@ -65,14 +74,16 @@ public class RedisSocketReplicator extends AbstractReplicator {
     
     protected static final Logger logger = LoggerFactory.getLogger(RedisSocketReplicator.class);
     
-    protected final int port;
-    protected final String host;
+    protected volatile int port;
+    protected volatile String host;
     protected Socket socket;
     protected ReplyParser replyParser;
+    protected TeeInputStream tee;
     protected ScheduledFuture<?> heartbeat;
     protected RedisOutputStream outputStream;
     protected final RedisSocketFactory socketFactory;
-    protected ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    protected final FailoverConnector failover;
+    protected final ScheduledExecutorService executor;
     
     public RedisSocketReplicator(String host, int port, Configuration configuration) {
         Objects.requireNonNull(host);
@@ -82,11 +93,17 @@ public class RedisSocketReplicator extends AbstractReplicator {
         this.port = port;
         this.configuration = configuration;
         this.socketFactory = new RedisSocketFactory(configuration);
+        this.failover = FailoverConnector.isEnabled(configuration) ? new FailoverConnector(configuration) : null;
+        ReplicatorRuntime runtime = configuration.getRuntime();
+        this.executor = runtime != null ? runtime.getTimer() : Executors.newSingleThreadScheduledExecutor();
         builtInCommandParserRegister();
         if (configuration.isUseDefaultExceptionListener())
             addExceptionListener(new DefaultExceptionListener());
     }
 
+    /**
+     * @return host of the current master, it changes after a failover
+     */
     public String getHost() {
         return this.host;
     }
@@ -98,25 +115,72 @@ public class RedisSocketReplicator extends AbstractReplicator {
     /**
      * PSYNC
      * <p>
+     * with {@link Configuration#getSnapshotCache()}, the rdb of every full sync is copied to the cache file and
+     * {@code replId replOffset} of the sync to {@code <cache>.psync}. if the replId is not configured and the cache
+     * exists, the cached rdb is replayed first and the replicator continues with {@code PSYNC replId replOffset}.
+     * <p>
+     * with {@link Configuration#getFailoverCandidates()} or {@link Configuration#getSentinels()}, every reconnection
+     * goes to the current master found by {@link FailoverConnector} and continues with {@code PSYNC replId replOffset}.
      *
      * @throws IOException when read timeout or connect timeout
      */
     @Override
     public void open() throws IOException {
         try {
-            new RedisSocketReplicatorRetrier().retry(this);
+            if (replaySnapshot()) new RedisSocketReplicatorRetrier().retry(this);
         } finally {
             doClose();
             doCloseListener(this);
-            terminateQuietly(executor, configuration.getConnectionTimeout(), MILLISECONDS);
+            // a shared runtime outlives the replicator
+            if (configuration.getRuntime() == null) terminateQuietly(executor, configuration.getConnectionTimeout(), MILLISECONDS);
         }
     }
     
+    /**
+     * @return false if the replicator was closed during the replay
+     * @throws IOException if failed to read the cache
+     */
+    protected boolean replaySnapshot() throws IOException {
+        String path = configuration.getSnapshotCache();
+        if (path == null || !"?".equals(configuration.getReplId())) return true;
+        File file = new File(path), psync = new File(path + ".psync");
+        if (!file.exists() || !psync.exists()) return true;
+        String[] ary = new String(Files.readAllBytes(psync.toPath()), UTF_8).trim().split(" ");
+        if (ary.length != 2) {
+            logger.warn("ignore snapshot {}. illegal psync {}", path, format(ary));
+            return true;
+        }
+        logger.info("replay snapshot {}. replId {}, replOffset {}", path, ary[0], ary[1]);
+        if (!connected.compareAndSet(DISCONNECTED, CONNECTED)) return false;
+        boolean replayed = false;
+        InputStream in = new FileInputStream(file);
+        try {
+            if (configuration.getReadAheadDepth() > 0) {
+                in = new ReadAheadInputStream(in, configuration.getReadAheadDepth(), configuration.getReadAheadBlockSize());
+            }
+            RedisInputStream input = new RedisInputStream(in, configuration.getBufferSize());
+            input.setRawByteListeners(this.rawByteListeners);
+            input.setByteArrayFactory(configuration.getByteArrayFactory());
+            new RdbParser(input, this).parse();
+            replayed = true;
+        } catch (IOException e) {
+            // full sync
+            logger.warn("failed to replay snapshot {}. {}", path, e.getMessage());
+        } finally {
+            in.close();
+        }
+        if (!connected.compareAndSet(CONNECTED, DISCONNECTED)) return false;
+        if (!replayed) return true;
+        configuration.setReplId(ary[0]);
+        configuration.setReplOffset(Long.parseLong(ary[1]));
+        return true;
+    }
+
     protected SyncMode trySync(final String reply) throws IOException {
         logger.info(reply);
         if (reply.startsWith("FULLRESYNC")) {
-            parseDump(this);
             String[] ary = reply.split(" ");
+            parseDump(this, ary[1], Long.parseLong(ary[2]));
             configuration.setReplId(ary[1]);
             configuration.setReplOffset(Long.parseLong(ary[2]));
             return PSYNC;
@@ -137,6 +201,16 @@ public class RedisSocketReplicator extends AbstractReplicator {
     }
     
     protected void parseDump(final AbstractReplicator replicator) throws IOException {
+        parseDump(replicator, null, -1L);
+    }
+
+    /**
+     * @param replicator replicator
+     * @param replId     replId of FULLRESYNC, null if the rdb should not be cached
+     * @param replOffset replOffset of FULLRESYNC
+     * @throws IOException when read timeout
+     */
+    protected void parseDump(final AbstractReplicator replicator, final String replId, final long replOffset) throws IOException {
         byte[] rawReply = reply(new BulkReplyHandler() {
             @Override
             public byte[] handle(long len, RedisInputStream in) throws IOException {
@@ -145,13 +219,20 @@ public class RedisSocketReplicator extends AbstractReplicator {
                 } else {
                     logger.info("Disk-less replication.");
                 }
-                if (len != -1 && configuration.isDiscardRdbEvent()) {
-                    logger.info("discard {} bytes", len);
-                    in.skip(len);
-                } else {
-                    new RdbParser(in, replicator).parse();
+                Snapshot snapshot = replId != null && tee != null ? snapshot(in) : null;
+                try {
+                    if (len != -1 && configuration.isDiscardRdbEvent()) {
+                        logger.info("discard {} bytes", len);
+                        in.skip(len);
+                    } else {
+                        new RdbParser(in, replicator).parse();
+                    }
+                    if (snapshot != null) snapshot.commit(in, replId, replOffset);
+                    snapshot = null;
                     // skip 40 bytes delimiter when disk-less replication
                     if (len == -1) in.skip(40, false);
+                } finally {
+                    if (snapshot != null) snapshot.abort();
                 }
                 return "OK".getBytes();
             }
@@ -233,7 +314,7 @@ public class RedisSocketReplicator extends AbstractReplicator {
         heartbeat = executor.scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
-                sendQuietly("REPLCONF".getBytes(), "ACK".getBytes(), String.valueOf(configuration.getReplOffset()).getBytes());
+                sendQuietly("REPLCONF".getBytes(), "ACK".getBytes(), String.valueOf(ackOffset()).getBytes());
             }
         }, configuration.getHeartbeatPeriod(), configuration.getHeartbeatPeriod(), MILLISECONDS);
         logger.info("heartbeat started.");
@@ -283,17 +364,30 @@ public class RedisSocketReplicator extends AbstractReplicator {
     protected void connect() throws IOException {
         if (!connected.compareAndSet(DISCONNECTED, CONNECTING)) return;
         try {
-            socket = socketFactory.createSocket(host, port, configuration.getConnectionTimeout());
+            if (failover != null) {
+                FailoverConnector.Endpoint endpoint = failover.connect(host, port);
+                socket = endpoint.getSocket();
+                host = endpoint.getHost();
+                port = endpoint.getPort();
+            } else {
+                socket = socketFactory.createSocket(host, port, configuration.getConnectionTimeout());
+            }
             outputStream = new RedisOutputStream(socket.getOutputStream());
             InputStream inputStream = socket.getInputStream();
             if (configuration.getAsyncCachedBytes() > 0) {
-                inputStream = new AsyncBufferedInputStream(inputStream, configuration.getAsyncCachedBytes());
+                ReplicatorRuntime runtime = configuration.getRuntime();
+                if (runtime != null) inputStream = new AsyncBufferedInputStream(inputStream, configuration.getAsyncCachedBytes(), runtime.getExecutor());
+                else inputStream = new AsyncBufferedInputStream(inputStream, configuration.getAsyncCachedBytes());
             }
             if (configuration.getRateLimit() > 0) {
                 inputStream = new RateLimitInputStream(inputStream, configuration.getRateLimit());
             }
+            if (configuration.getSnapshotCache() != null) {
+                inputStream = tee = new TeeInputStream(inputStream);
+            }
             this.inputStream = new RedisInputStream(inputStream, configuration.getBufferSize());
             this.inputStream.setRawByteListeners(this.rawByteListeners);
+            this.inputStream.setByteArrayFactory(configuration.getByteArrayFactory());
             replyParser = new ReplyParser(this.inputStream, new RedisCodec());
             logger.info("Connected to redis-server[{}:{}]", host, port);
         } finally {
@@ -335,7 +429,79 @@ public class RedisSocketReplicator extends AbstractReplicator {
         }
     }
     
+    /*
+     * start copying the rdb payload, a failure of the cache never fails the sync
+     */
+    protected Snapshot snapshot(RedisInputStream in) {
+        try {
+            return new Snapshot(in);
+        } catch (IOException e) {
+            logger.warn("failed to cache snapshot {}. {}", configuration.getSnapshotCache(), e.getMessage());
+            return null;
+        }
+    }
+
     protected enum SyncMode {SYNC, PSYNC, SYNC_LATER}
+
+    /**
+     * the rdb is copied to {@code <cache>.tmp} and renamed after it was fully parsed, {@code <cache>.psync} is
+     * written last, so a cache without it is incomplete.
+     */
+    protected class Snapshot {
+        protected final File file;
+        protected final File tmp;
+        protected final long start;
+        protected final FileOutputStream out;
+
+        protected Snapshot(RedisInputStream in) throws IOException {
+            this.file = new File(configuration.getSnapshotCache());
+            this.tmp = new File(file.getPath() + ".tmp");
+            this.out = new FileOutputStream(tmp);
+            this.start = in.total() - in.tail() + in.head();
+            try {
+                // payload bytes already buffered
+                out.write(in.array(), in.head(), in.tail() - in.head());
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            tee.tee(out);
+        }
+
+        protected void commit(RedisInputStream in, String replId, long replOffset) {
+            tee.tee(null);
+            try {
+                if (tee.getError() != null) throw tee.getError();
+                // the bytes after the rdb are part of the command stream
+                out.getChannel().truncate(in.total() - in.tail() + in.head() - start);
+                out.getFD().sync();
+                out.close();
+                File psync = new File(file.getPath() + ".psync");
+                File psyncTmp = new File(psync.getPath() + ".tmp");
+                Files.deleteIfExists(psync.toPath());
+                Files.move(tmp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+                try (FileOutputStream meta = new FileOutputStream(psyncTmp)) {
+                    meta.write((replId + " " + replOffset + "\n").getBytes(UTF_8));
+                    meta.getFD().sync();
+                }
+                Files.move(psyncTmp.toPath(), psync.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+                logger.info("snapshot cached {}. replId {}, replOffset {}", file, replId, replOffset);
+            } catch (IOException e) {
+                logger.warn("failed to cache snapshot {}. {}", file, e.getMessage());
+                abort();
+            }
+        }
+
+        protected void abort() {
+            tee.tee(null);
+            try {
+                out.close();
+            } catch (IOException ignore) {
+                // NOP
+            }
+            if (tmp.exists() && !tmp.delete()) logger.warn("failed to delete {}", tmp);
+        }
+    }
     
     private class RedisSocketReplicatorRetrier extends AbstractReplicatorRetrier {
         
@@ -393,7 +559,7 @@ public class RedisSocketReplicator extends AbstractReplicator {
                         if (mode == PSYNC) executor.execute(new Runnable() {
                             @Override
                             public void run() {
-                                sendQuietly("REPLCONF".getBytes(), "ACK".getBytes(), String.valueOf(configuration.getReplOffset()).getBytes());
+                                sendQuietly("REPLCONF".getBytes(), "ACK".getBytes(), String.valueOf(ackOffset()).getBytes());
                             }
                         });
                     } else {
@@ -189,9 +189,12 @@ public final class RedisURI implements Comparable<RedisURI>, Serializable {
         this.fragment = this.uri.getFragment();
         this.authority = this.uri.getAuthority();
         if (this.path != null && this.userInfo == null) {
-            int idx = this.path.lastIndexOf('.');
+            String path = this.path;
+            // dump.rdb.gz
+            if (path.toLowerCase().endsWith(".gz")) path = path.substring(0, path.length() - 3);
+            int idx = path.lastIndexOf('.');
             if (idx >= 0) {
-                String type = this.path.substring(idx + 1);
+                String type = path.substring(idx + 1);
                 this.fileType = FileType.parse(type);
             }
         }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.util.HashedWheelTimer;
+
+import java.io.Closeable;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.moilioncircle.redis.replicator.util.Concurrents.terminateQuietly;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Threads shared by many replicators: a hashed wheel timer for heartbeats, timeouts and retries and an io pool
+ * for GETACK replies, async cached reads and the rdb parsing of a {@link RedisReplicatorHub}.
+ * <pre>
+ * ReplicatorRuntime runtime = new ReplicatorRuntime();
+ * Configuration configuration = Configuration.defaultSetting().setRuntime(runtime);
+ * // or
+ * RedisReplicatorHub hub = new RedisReplicatorHub(runtime, 2);
+ * </pre>
+ * A {@link RedisSocketReplicator} with a runtime has no thread of its own besides the one that calls
+ * {@link Replicator#open()}, the sources of a hub have none. Closing a replicator leaves the runtime running,
+ * close the runtime after its replicators.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class ReplicatorRuntime implements Closeable {
+
+    protected final boolean owned;
+    protected final ExecutorService executor;
+    protected final HashedWheelTimer timer;
+
+    /**
+     * a cached io pool, async cached reads hold a thread for the whole connection
+     */
+    public ReplicatorRuntime() {
+        this(Executors.newCachedThreadPool(factory("replicator-io")), true);
+    }
+
+    /**
+     * @param executor io pool, not shut down by {@link #close()}
+     */
+    public ReplicatorRuntime(ExecutorService executor) {
+        this(executor, false);
+    }
+
+    protected ReplicatorRuntime(ExecutorService executor, boolean owned) {
+        this.owned = owned;
+        this.executor = Objects.requireNonNull(executor);
+        this.timer = new HashedWheelTimer(executor, factory("replicator-timer"));
+    }
+
+    public ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void close() {
+        terminateQuietly(timer, 0, MILLISECONDS);
+        if (owned) executor.shutdownNow();
+    }
+
+    static ThreadFactory factory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.cmd;
+
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static com.moilioncircle.redis.replicator.Constants.DOLLAR;
+import static com.moilioncircle.redis.replicator.Constants.STAR;
+import static com.moilioncircle.redis.replicator.util.Strings.format;
+
+/**
+ * Parses byte ranges of an aof file independently, so that the ranges can be parsed on different threads.
+ * <p>
+ * A range starting in the middle of the file is aligned to the first {@code \n*<n>\r\n$} that is followed
+ * by well formed frames. A value may still contain a valid looking frame, callers must check that a range
+ * starts at the {@link Range#getEnd()} of the previous one and parse it again from there if not.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class AofRangeParser {
+
+    protected static final Logger logger = LoggerFactory.getLogger(AofRangeParser.class);
+
+    private static final int VERIFY_FRAMES = 4;
+
+    private final File file;
+    private final int bufferSize;
+    private final Map<CommandName, CommandParser<? extends Command>> commands;
+
+    public AofRangeParser(File file, int bufferSize, Map<CommandName, CommandParser<? extends Command>> commands) {
+        this.file = file;
+        this.bufferSize = bufferSize;
+        this.commands = commands;
+    }
+
+    /**
+     * @param position the first byte to look at
+     * @param limit    frames must start before limit
+     * @return the offset of the first verified frame in {@code [position, limit)}, -1 if none
+     * @throws IOException read error
+     */
+    public long align(long position, long limit) throws IOException {
+        if (position == 0) return 0;
+        try (RedisInputStream in = open(position - 1)) {
+            int prev = in.read();
+            for (long p = position; p < limit; p++) {
+                int c = in.read();
+                if (prev == '\n' && c == STAR && verify(p)) return p;
+                prev = c;
+            }
+        } catch (EOFException e) {
+        }
+        return -1;
+    }
+
+    /**
+     * @param start offset of the first frame
+     * @param end   parse frames starting before end
+     * @return the commands of the range
+     * @throws IOException read error or malformed frame
+     */
+    public Range parse(long start, long end) throws IOException {
+        Range range = new Range(start);
+        try (RedisInputStream in = open(start)) {
+            ReplyParser parser = new ReplyParser(in, new RedisCodec());
+            long position = start;
+            try {
+                while (position < end) {
+                    Object obj = parser.parse();
+                    position = start + in.total() - in.tail() + in.head();
+                    if (obj instanceof Object[]) {
+                        Object[] raw = (Object[]) obj;
+                        CommandName name = CommandName.name(Strings.toString(raw[0]));
+                        final CommandParser<? extends Command> p;
+                        if ((p = commands.get(name)) == null) {
+                            logger.warn("command [{}] not register. raw command:{}", name, format(raw));
+                            continue;
+                        }
+                        range.add(p.parse(raw), position);
+                    } else {
+                        logger.info("unexpected redis reply:{}", obj);
+                    }
+                }
+            } catch (EOFException e) {
+                range.eof = true;
+            }
+            range.end = position;
+        }
+        return range;
+    }
+
+    protected boolean verify(long position) throws IOException {
+        try (RedisInputStream in = open(position)) {
+            for (int i = 0; i < VERIFY_FRAMES; i++) {
+                int c;
+                try {
+                    c = in.read();
+                } catch (EOFException e) {
+                    // ends at a frame boundary
+                    return i > 0;
+                }
+                if (c != STAR) return false;
+                long len = number(in);
+                if (len <= 0) return false;
+                for (long j = 0; j < len; j++) {
+                    if (in.read() != DOLLAR) return false;
+                    long n = number(in);
+                    if (n < 0) return false;
+                    in.skip(n, false);
+                    if (in.read() != '\r' || in.read() != '\n') return false;
+                }
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private RedisInputStream open(long position) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(position);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new RedisInputStream(in, bufferSize);
+    }
+
+    /*
+     * <digits>\r\n, -1 if malformed
+     */
+    private static long number(RedisInputStream in) throws IOException {
+        long n = 0;
+        int digits = 0;
+        for (int c = in.read(); c != '\r'; c = in.read()) {
+            if (c < '0' || c > '9' || ++digits > 18) return -1;
+            n = n * 10 + (c - '0');
+        }
+        return digits > 0 && in.read() == '\n' ? n : -1;
+    }
+
+    public static class Range {
+        private final long start;
+        private long end;
+        private boolean eof;
+        private long[] ends = new long[16];
+        private final List<Command> commands = new ArrayList<>();
+
+        private Range(long start) {
+            this.start = start;
+            this.end = start;
+        }
+
+        private void add(Command command, long end) {
+            if (commands.size() == ends.length) ends = Arrays.copyOf(ends, ends.length << 1);
+            ends[commands.size()] = end;
+            commands.add(command);
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return offset after the last frame
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @param index index of the command
+         * @return offset after the frame of the command
+         */
+        public long getEnd(int index) {
+            if (index >= commands.size()) throw new IndexOutOfBoundsException(String.valueOf(index));
+            return ends[index];
+        }
+
+        /**
+         * @return true if the file ends in this range
+         */
+        public boolean isEof() {
+            return eof;
+        }
+
+        public List<Command> getCommands() {
+            return commands;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.cmd;
+
+import java.nio.ByteBuffer;
+
+import static com.moilioncircle.redis.replicator.Constants.COLON;
+import static com.moilioncircle.redis.replicator.Constants.DOLLAR;
+import static com.moilioncircle.redis.replicator.Constants.MINUS;
+import static com.moilioncircle.redis.replicator.Constants.PLUS;
+import static com.moilioncircle.redis.replicator.Constants.STAR;
+
+/**
+ * A push based {@link ReplyParser} for non-blocking io.
+ * <pre>
+ * IncrementalReplyParser parser = new IncrementalReplyParser(new RedisCodec());
+ * // on every read
+ * buffer.flip();
+ * parser.parse(buffer, handler);
+ * buffer.compact();
+ * </pre>
+ * Complete replies are consumed from the buffer, the bytes of an incomplete reply stay in it and must be passed
+ * again, followed by the new bytes, on the next call. The elements already decoded of an incomplete array and the
+ * length of an incomplete bulk string are kept, so a large reply is not scanned again on every call.
+ *
+ * @author Leon Chen
+ * @see <a href="http://redis.io/topics/protocol">protocol</a>
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class IncrementalReplyParser {
+
+    private static final Object INCOMPLETE = new Object();
+
+    private final RedisCodec codec;
+
+    private ByteBuffer buf;
+    private int pos;
+    private int limit;
+    private int need;
+    private int resume;
+    private int parsed;
+    private Object[] partial;
+
+    public IncrementalReplyParser() {
+        this(null);
+    }
+
+    public IncrementalReplyParser(RedisCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * @param buffer  bytes from the position to the limit, the position is moved past the parsed replies
+     * @param handler handler of every complete reply
+     * @return bytes consumed
+     */
+    public int parse(ByteBuffer buffer, ReplyHandler handler) {
+        int start = buffer.position();
+        try {
+            this.buf = buffer;
+            this.limit = buffer.limit();
+            while (buffer.remaining() > 0 && buffer.remaining() >= need) {
+                Object reply = frame(buffer.position());
+                if (reply == INCOMPLETE) break;
+                int len = pos - buffer.position();
+                buffer.position(pos);
+                need = 0;
+                if (!handler.handle(reply, len)) break;
+            }
+            return buffer.position() - start;
+        } finally {
+            this.buf = null;
+        }
+    }
+
+    /**
+     * drop the state of an incomplete reply
+     */
+    public void reset() {
+        need = resume = parsed = 0;
+        partial = null;
+    }
+
+    /*
+     * decode a reply from head, the elements of an incomplete array are kept between calls
+     */
+    private Object frame(int head) {
+        if (partial == null) {
+            pos = head;
+            while (pos < limit && buf.get(pos) == '\n') pos++;
+            if (pos < limit && buf.get(pos) != STAR) return incomplete(head, element(head));
+            int eol = pos < limit ? eol(pos + 1) : -1;
+            if (eol < 0) return incomplete(head, INCOMPLETE);
+            int len = (int) number(pos + 1, eol);
+            pos = eol + 2;
+            if (len == -1) return null;
+            partial = new Object[len];
+            parsed = 0;
+        } else {
+            pos = head + resume;
+        }
+        while (parsed < partial.length) {
+            int p = pos;
+            Object obj = element(head);
+            if (obj == INCOMPLETE) {
+                resume = p - head;
+                return incomplete(head, obj);
+            }
+            partial[parsed++] = obj;
+        }
+        Object[] ary = partial;
+        partial = null;
+        return ary;
+    }
+
+    private Object incomplete(int head, Object obj) {
+        if (obj == INCOMPLETE) need = Math.max(need, limit - head + 1);
+        return obj;
+    }
+
+    private Object element(int head) {
+        while (pos < limit && buf.get(pos) == '\n') pos++;
+        if (pos >= limit) return INCOMPLETE;
+        int c = buf.get(pos), eol = eol(pos + 1);
+        if (eol < 0) return INCOMPLETE;
+        switch (c) {
+            case DOLLAR:
+                int len = (int) number(pos + 1, eol);
+                if (len == -1) {
+                    pos = eol + 2;
+                    return null;
+                }
+                int end = eol + 2 + len;
+                if (end + 2 > limit) {
+                    need = end + 2 - head;
+                    return INCOMPLETE;
+                }
+                if (buf.get(end) != '\r') throw new AssertionError("expect '\\r' but :" + (char) buf.get(end));
+                if (buf.get(end + 1) != '\n') throw new AssertionError("expect '\\n' but :" + (char) buf.get(end + 1));
+                pos = end + 2;
+                return bytes(eol + 2, end);
+            case COLON:
+                long value = number(pos + 1, eol);
+                pos = eol + 2;
+                return value;
+            case STAR:
+                len = (int) number(pos + 1, eol);
+                pos = eol + 2;
+                if (len == -1) return null;
+                Object[] ary = new Object[len];
+                for (int i = 0; i < len; i++) {
+                    Object obj = element(head);
+                    if (obj == INCOMPLETE) return obj;
+                    ary[i] = obj;
+                }
+                return ary;
+            case PLUS:
+            case MINUS:
+                byte[] bytes = bytes(pos + 1, eol);
+                pos = eol + 2;
+                return bytes;
+            default:
+                throw new AssertionError("expect [$,:,*,+,-] but: " + (char) c);
+        }
+    }
+
+    private byte[] bytes(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        if (buf.hasArray()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + from, bytes, 0, bytes.length);
+        } else {
+            for (int i = 0; i < bytes.length; i++) bytes[i] = buf.get(from + i);
+        }
+        return codec == null ? bytes : codec.decode(bytes);
+    }
+
+    private long number(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = buf.get(from + i);
+        return Long.parseLong(new String(bytes));
+    }
+
+    private int eol(int from) {
+        for (int i = from; i + 1 < limit; i++) {
+            if (buf.get(i) == '\r' && buf.get(i + 1) == '\n') return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.cmd;
+
+/**
+ * @author Leon Chen
+ * @see IncrementalReplyParser
+ * @since 3.1.0
+ */
+@FunctionalInterface
+public interface ReplyHandler {
+    /**
+     * @param reply Object[] or byte[] or Long or null
+     * @param len   bytes of the reply
+     * @return false to stop parsing after this reply
+     */
+    boolean handle(Object reply, int len);
+}
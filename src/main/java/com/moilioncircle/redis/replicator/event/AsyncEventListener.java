@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.event;
+
+import com.moilioncircle.redis.replicator.Replicator;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * An event listener whose work completes later, see {@link com.moilioncircle.redis.replicator.AsyncEventWindow}.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+@FunctionalInterface
+public interface AsyncEventListener {
+
+    /**
+     * @param replicator the replicator
+     * @param event      the event
+     * @return completes when the event is handled. a sink that writes in batches may return the same stage for
+     * every event of a batch
+     */
+    CompletionStage<?> onEvent(Replicator replicator, Event event);
+}
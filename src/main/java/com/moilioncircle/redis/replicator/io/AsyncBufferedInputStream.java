@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -42,11 +43,9 @@ public final class AsyncBufferedInputStream extends InputStream implements Runna
     private static final int DEFAULT_CAPACITY = 2 * 1024 * 1024;
 
     //
-    private final Thread worker;
     private final InputStream is;
     private volatile IOException exception;
     private final ByteRingBuffer ringBuffer;
-    private final ThreadFactory threadFactory;
     private final ReentrantLock lock = new ReentrantLock(false);
     private final AtomicBoolean closed = new AtomicBoolean(false);
     private final Condition bufferNotFull = this.lock.newCondition();
@@ -67,12 +66,25 @@ public final class AsyncBufferedInputStream extends InputStream implements Runna
     public AsyncBufferedInputStream(InputStream is, int size, ThreadFactory tf) {
         //
         this.is = is;
-        this.threadFactory = tf;
         this.ringBuffer = new ByteRingBuffer(size);
 
         //
-        this.worker = this.threadFactory.newThread(this);
-        this.worker.start();
+        tf.newThread(this).start();
+    }
+
+    /**
+     * @param is       input stream
+     * @param size     capacity of the ring buffer
+     * @param executor a shared pool, the transfer holds one of its threads until the stream is closed
+     * @since 3.1.0
+     */
+    public AsyncBufferedInputStream(InputStream is, int size, Executor executor) {
+        //
+        this.is = is;
+        this.ringBuffer = new ByteRingBuffer(size);
+
+        //
+        executor.execute(this);
     }
 
     /*
@@ -141,10 +153,11 @@ public final class AsyncBufferedInputStream extends InputStream implements Runna
         this.lock.lock();
         try {
             //
+            // the bytes read before the end of the stream are still returned
             while (this.ringBuffer.isEmpty()) {
                 if (this.exception != null) throw this.exception;
-                this.bufferNotEmpty.awaitUninterruptibly();
                 if (this.closed.get()) throw new EOFException();
+                this.bufferNotEmpty.awaitUninterruptibly();
             }
 
             //
@@ -161,10 +174,11 @@ public final class AsyncBufferedInputStream extends InputStream implements Runna
         this.lock.lock();
         try {
             //
+            // the bytes read before the end of the stream are still returned
             while (this.ringBuffer.isEmpty()) {
                 if (this.exception != null) throw this.exception;
-                this.bufferNotEmpty.awaitUninterruptibly();
                 if (this.closed.get()) throw new EOFException();
+                this.bufferNotEmpty.awaitUninterruptibly();
             }
 
             //
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.io;
+
+/**
+ * Receives consumed raw bytes as a range of the stream's internal buffer instead of a copy.
+ * The range is only valid during the call.
+ *
+ * @author Leon Chen
+ * @see RedisInputStream#setSliceListener(RawByteSliceListener)
+ * @since 3.1.0
+ */
+@FunctionalInterface
+public interface RawByteSliceListener {
+    void handle(byte[] bytes, int offset, int length);
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads {@code blockSize} blocks of the underlying stream ahead on a background thread, so that
+ * io and parsing overlap. at most {@code depth} blocks are allocated and they are recycled.
+ * <p>
+ * intended for files, a block is handed over when it is full or the stream ends.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class ReadAheadInputStream extends InputStream implements Runnable {
+
+    private static final Block EOF = new Block(0);
+
+    private static final ThreadFactory DAEMON = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private static class Block {
+        private int length;
+        private final byte[] bytes;
+
+        private Block(int size) {
+            this.bytes = new byte[size];
+        }
+    }
+
+    private int pos;
+    private boolean started;
+    private Block current;
+    private int allocated;
+    private final int depth;
+    private final int blockSize;
+    private final Thread worker;
+    private final InputStream in;
+    private volatile IOException exception;
+    private final BlockingQueue<Block> free;
+    private final BlockingQueue<Block> filled;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public ReadAheadInputStream(InputStream in) {
+        this(in, 4, 4 * 1024 * 1024);
+    }
+
+    public ReadAheadInputStream(InputStream in, int depth, int blockSize) {
+        this(in, depth, blockSize, DAEMON);
+    }
+
+    /**
+     * @param in        the underlying stream
+     * @param depth     max blocks read ahead
+     * @param blockSize bytes of a block
+     * @param tf        creates the reading thread
+     */
+    public ReadAheadInputStream(InputStream in, int depth, int blockSize, ThreadFactory tf) {
+        if (depth <= 0) throw new IllegalArgumentException(String.valueOf(depth));
+        if (blockSize <= 0) throw new IllegalArgumentException(String.valueOf(blockSize));
+        this.in = in;
+        this.depth = depth;
+        this.blockSize = blockSize;
+        this.free = new ArrayBlockingQueue<>(depth);
+        // + EOF
+        this.filled = new ArrayBlockingQueue<>(depth + 1);
+        // started on the first read, a stream that is never read holds no thread
+        this.worker = tf.newThread(this);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed.get()) {
+                Block block;
+                if (allocated < depth) {
+                    block = new Block(blockSize);
+                    allocated++;
+                } else {
+                    block = free.take();
+                }
+                int len = 0;
+                boolean eof = false;
+                try {
+                    while (len < block.bytes.length) {
+                        int r = in.read(block.bytes, len, block.bytes.length - len);
+                        if (r < 0) {
+                            eof = true;
+                            break;
+                        }
+                        len += r;
+                    }
+                } catch (IOException e) {
+                    // hand over the bytes read before the exception
+                    this.exception = e;
+                    eof = true;
+                }
+                block.length = len;
+                if (len > 0) filled.put(block);
+                if (eof) break;
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            filled.offer(EOF);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensure()) return -1;
+        return current.bytes[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!ensure()) return -1;
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current.bytes, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current == null ? 0 : current.length - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) return;
+        try {
+            in.close();
+        } finally {
+            worker.interrupt();
+        }
+    }
+
+    private boolean ensure() throws IOException {
+        while (current == null || pos >= current.length) {
+            if (current == EOF) {
+                if (exception != null) throw exception;
+                return false;
+            }
+            if (current != null) free.offer(current);
+            if (!started) {
+                started = true;
+                worker.start();
+            }
+            try {
+                current = filled.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            pos = 0;
+        }
+        return true;
+    }
+}
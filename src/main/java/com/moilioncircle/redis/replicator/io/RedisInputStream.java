@@ -17,11 +17,14 @@
 package com.moilioncircle.redis.replicator.io;
 
 import com.moilioncircle.redis.replicator.util.ByteArray;
+import com.moilioncircle.redis.replicator.util.ByteArrayFactory;
 import com.moilioncircle.redis.replicator.util.Strings;
 
 import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.List;
@@ -39,6 +42,8 @@ public class RedisInputStream extends InputStream {
     protected boolean mark = false;
     protected final InputStream in;
     protected List<RawByteListener> rawByteListeners;
+    protected RawByteSliceListener sliceListener;
+    protected ByteArrayFactory byteArrayFactory = ByteArrayFactory.HEAP;
 
     public RedisInputStream(ByteArray array) {
         this(new ByteArrayInputStream(array));
@@ -61,6 +66,32 @@ public class RedisInputStream extends InputStream {
         this.rawByteListeners = rawByteListeners;
     }
 
+    /**
+     * capture consumed bytes without copying them, see {@link RawByteSliceListener}.
+     *
+     * @param sliceListener slice listener, null to stop capturing
+     * @since 3.1.0
+     */
+    public void setSliceListener(RawByteSliceListener sliceListener) {
+        this.sliceListener = sliceListener;
+    }
+
+    /**
+     * @param byteArrayFactory allocates the arrays returned by {@link #readBytes(long)}
+     * @since 3.1.0
+     */
+    public void setByteArrayFactory(ByteArrayFactory byteArrayFactory) {
+        this.byteArrayFactory = byteArrayFactory;
+    }
+
+    /**
+     * @return byte array factory
+     * @since 3.1.0
+     */
+    public ByteArrayFactory getByteArrayFactory() {
+        return byteArrayFactory;
+    }
+
     protected void notify(byte... bytes) {
         if (rawByteListeners == null || rawByteListeners.isEmpty()) return;
         for (RawByteListener listener : rawByteListeners) {
@@ -80,6 +111,41 @@ public class RedisInputStream extends InputStream {
         return buf.length;
     }
 
+    /**
+     * @return the input buffer, see {@link #peek(int)}
+     * @since 3.1.0
+     */
+    public byte[] array() {
+        return buf;
+    }
+
+    /**
+     * buffer at least {@code len} bytes without consuming them. on success the bytes are
+     * {@code array()[head()]} to {@code array()[head() + len - 1]} until the next read or skip.
+     * peeked bytes are not reported to listeners until they are consumed.
+     *
+     * @param len bytes to buffer
+     * @return false if {@code len} is larger than the buffer
+     * @throws IOException if the stream ends before {@code len} bytes
+     * @since 3.1.0
+     */
+    public boolean peek(int len) throws IOException {
+        if (tail - head >= len) return true;
+        if (len > buf.length) return false;
+        if (head > 0) {
+            System.arraycopy(buf, head, buf, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        while (tail < len) {
+            int r = in.read(buf, tail, buf.length - tail);
+            if (r == -1) throw new EOFException("end of file or end of stream.");
+            total += r;
+            tail += r;
+        }
+        return true;
+    }
+
     public void mark() {
         if (!mark) {
             mark = true;
@@ -103,12 +169,35 @@ public class RedisInputStream extends InputStream {
     }
 
     public ByteArray readBytes(long len) throws IOException {
-        ByteArray bytes = new ByteArray(len);
+        ByteArray bytes = byteArrayFactory.allocate(len);
         this.read(bytes, 0, len);
         if (mark) markLen += len;
         return bytes;
     }
 
+    /**
+     * consume {@code len} bytes and hand them to {@code listener} as ranges of the internal buffer,
+     * without copying them to an intermediate array.
+     *
+     * @param len      length
+     * @param listener receives the consumed ranges, a range is only valid during the call
+     * @throws IOException when read timeout
+     * @since 3.1.0
+     */
+    public void readBytes(long len, RawByteSliceListener listener) throws IOException {
+        long total = len;
+        while (total > 0) {
+            if (head >= tail) fill();
+            int n = (int) Math.min(total, tail - head);
+            listener.handle(buf, head, n);
+            if (sliceListener != null) sliceListener.handle(buf, head, n);
+            if (rawByteListeners != null && !rawByteListeners.isEmpty()) notify(Arrays.copyOfRange(buf, head, head + n));
+            head += n;
+            total -= n;
+        }
+        if (mark) markLen += len;
+    }
+
     public int readInt(int len) throws IOException {
         return readInt(len, true);
     }
@@ -184,6 +273,7 @@ public class RedisInputStream extends InputStream {
         if (head >= tail) fill();
         if (mark) markLen += 1;
         byte b = buf[head++];
+        if (sliceListener != null) sliceListener.handle(buf, head - 1, 1);
         notify(b);
         return b & 0xff;
     }
@@ -195,15 +285,18 @@ public class RedisInputStream extends InputStream {
             int available = tail - head;
             if (available >= total) {
                 ByteArray.arraycopy(new ByteArray(buf), head, bytes, index, total);
+                if (sliceListener != null) sliceListener.handle(buf, head, (int) total);
                 head += total;
                 break;
             } else {
                 ByteArray.arraycopy(new ByteArray(buf), head, bytes, index, available);
+                if (sliceListener != null) sliceListener.handle(buf, head, available);
                 index += available;
                 total -= available;
                 fill();
             }
         }
+        if (rawByteListeners == null || rawByteListeners.isEmpty()) return len;
         for (byte[] b : bytes) {
             notify(b);
         }
@@ -217,7 +310,27 @@ public class RedisInputStream extends InputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        return (int) read(new ByteArray(b), off, len);
+        int total = len;
+        int index = off;
+        while (total > 0) {
+            int available = tail - head;
+            if (available >= total) {
+                System.arraycopy(buf, head, b, index, total);
+                if (sliceListener != null) sliceListener.handle(buf, head, total);
+                head += total;
+                break;
+            } else {
+                System.arraycopy(buf, head, b, index, available);
+                if (sliceListener != null) sliceListener.handle(buf, head, available);
+                index += available;
+                total -= available;
+                fill();
+            }
+        }
+        if (rawByteListeners != null && !rawByteListeners.isEmpty()) {
+            notify(off == 0 && len == b.length ? b : Arrays.copyOfRange(b, off, off + len));
+        }
+        return len;
     }
 
     @Override
@@ -230,18 +343,46 @@ public class RedisInputStream extends InputStream {
         while (total > 0) {
             int available = tail - head;
             if (available >= total) {
-                if (notify) notify(Arrays.copyOfRange(buf, head, head + (int) total));
+                if (notify && sliceListener != null) sliceListener.handle(buf, head, (int) total);
+                if (notify && rawByteListeners != null && !rawByteListeners.isEmpty()) notify(Arrays.copyOfRange(buf, head, head + (int) total));
                 head += total;
                 break;
             } else {
-                if (notify) notify(Arrays.copyOfRange(buf, head, tail));
+                if (notify && sliceListener != null) sliceListener.handle(buf, head, available);
+                if (notify && rawByteListeners != null && !rawByteListeners.isEmpty()) notify(Arrays.copyOfRange(buf, head, tail));
                 total -= available;
+                head = tail;
+                // the rest is beyond the buffer, nobody needs these bytes if they are not notified
+                boolean listened = sliceListener != null || (rawByteListeners != null && !rawByteListeners.isEmpty());
+                if ((!notify || !listened) && seek(total)) {
+                    this.total += total;
+                    head = tail = 0;
+                    break;
+                }
                 fill();
             }
         }
         return len;
     }
 
+    /**
+     * reposition the underlying stream {@code len} bytes forward without reading them.
+     * only {@link FileInputStream} is seekable by default.
+     *
+     * @param len bytes to skip, the internal buffer is already consumed
+     * @return false if the underlying stream can't seek
+     * @throws IOException if skip beyond the end of the file
+     * @since 3.1.0
+     */
+    protected boolean seek(long len) throws IOException {
+        if (!(in instanceof FileInputStream)) return false;
+        FileChannel channel = ((FileInputStream) in).getChannel();
+        long position = channel.position() + len;
+        if (position > channel.size()) throw new EOFException("end of file or end of stream.");
+        channel.position(position);
+        return true;
+    }
+
     @Override
     public long skip(long len) throws IOException {
         return skip(len, true);
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies the bytes read from {@code in} to an output stream while the copy is switched on. A failure of the
+ * output stream stops the copy and is kept in {@link #getError()}, it never fails the reader.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class TeeInputStream extends InputStream {
+    private static final Logger logger = LoggerFactory.getLogger(TeeInputStream.class);
+
+    private final InputStream in;
+    private OutputStream out;
+    private IOException error;
+
+    public TeeInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * @param out copy of the following reads, null to stop copying
+     */
+    public void tee(OutputStream out) {
+        this.out = out;
+        this.error = null;
+    }
+
+    /**
+     * @return the error of the output stream since the last {@link #tee(OutputStream)}
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1 && out != null) {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int r = in.read(b, off, len);
+        if (r > 0 && out != null) {
+            try {
+                out.write(b, off, r);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        return r;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (out == null) return in.skip(n);
+        byte[] b = new byte[(int) Math.min(n, 8192)];
+        int r = read(b, 0, b.length);
+        return r < 0 ? 0 : r;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void fail(IOException e) {
+        logger.warn("stop copying. {}", e.getMessage());
+        this.error = e;
+        this.out = null;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb;
+
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueList;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueSet;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.util.ArenaByteArrayList;
+import com.moilioncircle.redis.replicator.util.ArenaByteArraySet;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT16;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT32;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT8;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_LZF;
+import static com.moilioncircle.redis.replicator.Constants.RDB_LOAD_ENC;
+import static com.moilioncircle.redis.replicator.Constants.RDB_LOAD_NONE;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET_INTSET;
+import static com.moilioncircle.redis.replicator.Constants.ZIP_INT_16B;
+import static com.moilioncircle.redis.replicator.Constants.ZIP_INT_24B;
+import static com.moilioncircle.redis.replicator.Constants.ZIP_INT_32B;
+import static com.moilioncircle.redis.replicator.Constants.ZIP_INT_64B;
+import static com.moilioncircle.redis.replicator.Constants.ZIP_INT_8B;
+
+/**
+ * Same events as {@link DefaultRdbVisitor}, but list and set values are {@link ArenaByteArrayList}
+ * and {@link ArenaByteArraySet}. Raw string elements are read from the input stream straight into the arena.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class ArenaRdbVisitor extends DefaultRdbVisitor {
+
+    public ArenaRdbVisitor(Replicator replicator) {
+        super(replicator);
+    }
+
+    @Override
+    public Event applyList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        /*
+         * |    <len>     |       <content>       |
+         * | 1 or 5 bytes |    string contents    |
+         */
+        BaseRdbParser parser = new BaseRdbParser(in);
+        KeyValuePair<byte[], List<byte[]>> o1 = new KeyStringValueList();
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long len = parser.rdbLoadLen().len;
+        ArenaByteArrayList list = new ArenaByteArrayList(capacity(len));
+        while (len > 0) {
+            rdbLoadEncodedStringObject(parser, in, list, null);
+            len--;
+        }
+        o1.setValueRdbType(RDB_TYPE_LIST);
+        o1.setValue(list);
+        o1.setKey(key);
+        return context.valueOf(o1);
+    }
+
+    @Override
+    public Event applySet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        /*
+         * |    <len>     |       <content>       |
+         * | 1 or 5 bytes |    string contents    |
+         */
+        BaseRdbParser parser = new BaseRdbParser(in);
+        KeyValuePair<byte[], Set<byte[]>> o2 = new KeyStringValueSet();
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long len = parser.rdbLoadLen().len;
+        ArenaByteArraySet set = new ArenaByteArraySet(capacity(len));
+        while (len > 0) {
+            rdbLoadEncodedStringObject(parser, in, null, set);
+            len--;
+        }
+        o2.setValueRdbType(RDB_TYPE_SET);
+        o2.setValue(set);
+        o2.setKey(key);
+        return context.valueOf(o2);
+    }
+
+    @Override
+    public Event applyListZipList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        /*
+         * |<zlbytes>| <zltail>| <zllen>| <entry> ...<entry> | <zlend>|
+         * | 4 bytes | 4 bytes | 2bytes | zipListEntry ...   | 1byte  |
+         */
+        BaseRdbParser parser = new BaseRdbParser(in);
+        KeyValuePair<byte[], List<byte[]>> o10 = new KeyStringValueList();
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        RedisInputStream stream = new RedisInputStream(parser.rdbLoadPlainStringObject());
+
+        BaseRdbParser.LenHelper.zlbytes(stream); // zlbytes
+        BaseRdbParser.LenHelper.zltail(stream); // zltail
+        int zllen = BaseRdbParser.LenHelper.zllen(stream);
+        ArenaByteArrayList list = new ArenaByteArrayList(zllen);
+        for (int i = 0; i < zllen; i++) {
+            zipListEntry(stream, list);
+        }
+        int zlend = BaseRdbParser.LenHelper.zlend(stream);
+        if (zlend != 255) {
+            throw new AssertionError("zlend expect 255 but " + zlend);
+        }
+        o10.setValueRdbType(RDB_TYPE_LIST_ZIPLIST);
+        o10.setValue(list);
+        o10.setKey(key);
+        return context.valueOf(o10);
+    }
+
+    @Override
+    public Event applySetIntSet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        /*
+         * |<encoding>| <length-of-contents>|              <contents>                            |
+         * | 4 bytes  |            4 bytes  | 2 bytes element| 4 bytes element | 8 bytes element |
+         */
+        BaseRdbParser parser = new BaseRdbParser(in);
+        KeyValuePair<byte[], Set<byte[]>> o11 = new KeyStringValueSet();
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        RedisInputStream stream = new RedisInputStream(parser.rdbLoadPlainStringObject());
+
+        int encoding = BaseRdbParser.LenHelper.encoding(stream);
+        long lenOfContent = BaseRdbParser.LenHelper.lenOfContent(stream);
+        ArenaByteArraySet set = new ArenaByteArraySet(capacity(lenOfContent));
+        for (long i = 0; i < lenOfContent; i++) {
+            switch (encoding) {
+                case 2:
+                    set.add(String.valueOf(stream.readInt(2)).getBytes());
+                    break;
+                case 4:
+                    set.add(String.valueOf(stream.readInt(4)).getBytes());
+                    break;
+                case 8:
+                    set.add(String.valueOf(stream.readLong(8)).getBytes());
+                    break;
+                default:
+                    throw new AssertionError("expect encoding [2,4,8] but:" + encoding);
+            }
+        }
+        o11.setValueRdbType(RDB_TYPE_SET_INTSET);
+        o11.setValue(set);
+        o11.setKey(key);
+        return context.valueOf(o11);
+    }
+
+    @Override
+    public Event applyListQuickList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        KeyValuePair<byte[], List<byte[]>> o14 = new KeyStringValueList();
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long len = parser.rdbLoadLen().len;
+        ArenaByteArrayList list = new ArenaByteArrayList();
+        for (long i = 0; i < len; i++) {
+            RedisInputStream stream = new RedisInputStream(parser.rdbGenericLoadStringObject(RDB_LOAD_NONE));
+
+            BaseRdbParser.LenHelper.zlbytes(stream); // zlbytes
+            BaseRdbParser.LenHelper.zltail(stream); // zltail
+            int zllen = BaseRdbParser.LenHelper.zllen(stream);
+            for (int j = 0; j < zllen; j++) {
+                zipListEntry(stream, list);
+            }
+            int zlend = BaseRdbParser.LenHelper.zlend(stream);
+            if (zlend != 255) {
+                throw new AssertionError("zlend expect 255 but " + zlend);
+            }
+        }
+        o14.setValueRdbType(RDB_TYPE_LIST_QUICKLIST);
+        o14.setValue(list);
+        o14.setKey(key);
+        return context.valueOf(o14);
+    }
+
+    /**
+     * same as {@link BaseRdbParser#rdbLoadEncodedStringObject()}, but a raw string is read straight into the arena.
+     * exactly one of list and set is not null.
+     */
+    protected void rdbLoadEncodedStringObject(BaseRdbParser parser, RedisInputStream in, ArenaByteArrayList list, ArenaByteArraySet set) throws IOException {
+        BaseRdbParser.Len lenObj = parser.rdbLoadLen();
+        long len = lenObj.len;
+        if (lenObj.encoded) {
+            byte[] bytes;
+            switch ((int) len) {
+                case RDB_ENC_INT8:
+                case RDB_ENC_INT16:
+                case RDB_ENC_INT32:
+                    bytes = parser.rdbLoadIntegerObject((int) len, RDB_LOAD_ENC).first();
+                    break;
+                case RDB_ENC_LZF:
+                    bytes = parser.rdbLoadLzfStringObject(RDB_LOAD_ENC).first();
+                    break;
+                default:
+                    throw new AssertionError("unknown RdbParser encoding type:" + len);
+            }
+            if (list != null) list.add(bytes);
+            else set.add(bytes);
+            return;
+        }
+        if (list != null) list.add(in, (int) len);
+        else set.add(in, (int) len);
+    }
+
+    /**
+     * same as {@link BaseRdbParser.StringHelper#zipListEntry(RedisInputStream)}, but a string entry is read straight into the arena.
+     */
+    protected void zipListEntry(RedisInputStream in, ArenaByteArrayList list) throws IOException {
+        int prevlen = in.read();
+        if (prevlen >= 254) {
+            in.readInt(4);
+        }
+        int special = in.read();
+        switch (special >> 6) {
+            case 0:
+                list.add(in, special & 0x3F);
+                return;
+            case 1:
+                list.add(in, ((special & 0x3F) << 8) | in.read());
+                return;
+            case 2:
+                //bigEndian
+                list.add(in, in.readInt(4, false));
+                return;
+            default:
+                break;
+        }
+        switch (special) {
+            case ZIP_INT_8B:
+                list.add(String.valueOf(in.readInt(1)).getBytes());
+                break;
+            case ZIP_INT_16B:
+                list.add(String.valueOf(in.readInt(2)).getBytes());
+                break;
+            case ZIP_INT_24B:
+                list.add(String.valueOf(in.readInt(3)).getBytes());
+                break;
+            case ZIP_INT_32B:
+                list.add(String.valueOf(in.readInt(4)).getBytes());
+                break;
+            case ZIP_INT_64B:
+                list.add(String.valueOf(in.readLong(8)).getBytes());
+                break;
+            default:
+                //6BIT
+                list.add(String.valueOf(special - 0xF1).getBytes());
+                break;
+        }
+    }
+
+    private static int capacity(long len) {
+        return (int) Math.min(len, 1 << 20);
+    }
+}
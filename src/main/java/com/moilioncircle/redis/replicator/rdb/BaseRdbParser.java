@@ -171,12 +171,17 @@ public class BaseRdbParser {
         // } else {
         //     return createObject(OBJ_STRING,val);
         // }
-        if (plain) {
-            return Lzf.decode(in.readBytes(clen), len);
-        } else if (encode) {
-            return Lzf.decode(in.readBytes(clen), len);
-        } else {
-            return Lzf.decode(in.readBytes(clen), len);
+        ByteArray bytes = in.readBytes(clen);
+        try {
+            if (plain) {
+                return Lzf.decode(bytes, len, in.getByteArrayFactory());
+            } else if (encode) {
+                return Lzf.decode(bytes, len, in.getByteArrayFactory());
+            } else {
+                return Lzf.decode(bytes, len, in.getByteArrayFactory());
+            }
+        } finally {
+            bytes.release();
         }
     }
     
@@ -405,7 +410,7 @@ public class BaseRdbParser {
                 skip = 2 + len;
                 value = bytes(in, len);
             } else if ((special & 0xFF) == 0xf0) {
-                int len = in.readInt(4, false);
+                int len = in.readInt(4);
                 skip = 5 + len;
                 value = bytes(in, len);
             } else {
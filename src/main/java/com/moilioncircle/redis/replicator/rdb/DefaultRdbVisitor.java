@@ -24,6 +24,7 @@ import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
 import com.moilioncircle.redis.replicator.rdb.datatype.DB;
 import com.moilioncircle.redis.replicator.rdb.datatype.EvictType;
 import com.moilioncircle.redis.replicator.rdb.datatype.ExpiredType;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueByteArray;
 import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueHash;
 import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueList;
 import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueModule;
@@ -37,9 +38,11 @@ import com.moilioncircle.redis.replicator.rdb.datatype.Stream;
 import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
 import com.moilioncircle.redis.replicator.rdb.module.ModuleParser;
 import com.moilioncircle.redis.replicator.rdb.skip.SkipRdbParser;
+import com.moilioncircle.redis.replicator.util.ByteArray;
 import com.moilioncircle.redis.replicator.util.ByteArrayList;
 import com.moilioncircle.redis.replicator.util.ByteArrayMap;
 import com.moilioncircle.redis.replicator.util.ByteArraySet;
+import com.moilioncircle.redis.replicator.util.DirectByteArray;
 import com.moilioncircle.redis.replicator.util.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -266,9 +269,18 @@ public class DefaultRdbVisitor extends RdbVisitor {
          * |    string contents    |
          */
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o0 = new KeyStringValueString();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        byte[] val = parser.rdbLoadEncodedStringObject().first();
+        ByteArray bytes = parser.rdbLoadEncodedStringObject();
+        // keep values of an off heap factory off heap, first() would also drop all but the first segment
+        if (bytes instanceof DirectByteArray || bytes.length() > Integer.MAX_VALUE) {
+            KeyValuePair<byte[], ByteArray> o0 = new KeyStringValueByteArray();
+            o0.setValueRdbType(RDB_TYPE_STRING);
+            o0.setValue(bytes);
+            o0.setKey(key);
+            return context.valueOf(o0);
+        }
+        KeyValuePair<byte[], byte[]> o0 = new KeyStringValueString();
+        byte[] val = bytes.first();
         o0.setValueRdbType(RDB_TYPE_STRING);
         o0.setValue(val);
         o0.setKey(key);
@@ -711,8 +723,8 @@ public class DefaultRdbVisitor extends RdbVisitor {
                      * |num-fields|field-1|value-1|...|field-N|value-N|lp-count|
                      * +----------+-------+-------+-/-+-------+-------+--------+
                      */
-                    numFields = Integer.parseInt(Strings.toString(listPackEntry(listPack)));
-                    for (int i = 0; i < numFields; i++) {
+                    int entryFields = Integer.parseInt(Strings.toString(listPackEntry(listPack)));
+                    for (int i = 0; i < entryFields; i++) {
                         byte[] field = listPackEntry(listPack);
                         byte[] value = listPackEntry(listPack);
                         fields.put(field, value);
@@ -731,6 +743,27 @@ public class DefaultRdbVisitor extends RdbVisitor {
         Stream.ID lastId = new Stream.ID(parser.rdbLoadLen().len, parser.rdbLoadLen().len);
 
         // Group
+        List<Stream.Group> groups = rdbLoadStreamGroups(parser, in);
+
+        stream.setLastId(lastId);
+        stream.setEntries(entries);
+        stream.setLength(length);
+        stream.setGroups(groups);
+
+        o15.setValueRdbType(RDB_TYPE_STREAM_LISTPACKS);
+        o15.setValue(stream);
+        o15.setKey(key);
+        return context.valueOf(o15);
+    }
+
+    /**
+     * @param parser parser
+     * @param in     input stream
+     * @return consumer groups of a stream, with group and consumer PELs
+     * @throws IOException read error
+     * @since 3.1.0
+     */
+    protected List<Stream.Group> rdbLoadStreamGroups(BaseRdbParser parser, RedisInputStream in) throws IOException {
         List<Stream.Group> groups = new ArrayList<>();
         long groupCount = parser.rdbLoadLen().len;
         while (groupCount-- > 0) {
@@ -778,16 +811,7 @@ public class DefaultRdbVisitor extends RdbVisitor {
             group.setConsumers(consumers);
             groups.add(group);
         }
-
-        stream.setLastId(lastId);
-        stream.setEntries(entries);
-        stream.setLength(length);
-        stream.setGroups(groups);
-
-        o15.setValueRdbType(RDB_TYPE_STREAM_LISTPACKS);
-        o15.setValue(stream);
-        o15.setKey(key);
-        return context.valueOf(o15);
+        return groups;
     }
 
     protected KeyValuePair<?, ?> rdbLoadObject(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.rdb;
+
+import com.moilioncircle.redis.replicator.AbstractReplicator;
+import com.moilioncircle.redis.replicator.event.PreRdbSyncEvent;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_14BITLEN;
+import static com.moilioncircle.redis.replicator.Constants.RDB_32BITLEN;
+import static com.moilioncircle.redis.replicator.Constants.RDB_64BITLEN;
+import static com.moilioncircle.redis.replicator.Constants.RDB_6BITLEN;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENCVAL;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT16;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT32;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT8;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_LZF;
+import static com.moilioncircle.redis.replicator.Constants.RDB_MODULE_OPCODE_DOUBLE;
+import static com.moilioncircle.redis.replicator.Constants.RDB_MODULE_OPCODE_EOF;
+import static com.moilioncircle.redis.replicator.Constants.RDB_MODULE_OPCODE_FLOAT;
+import static com.moilioncircle.redis.replicator.Constants.RDB_MODULE_OPCODE_SINT;
+import static com.moilioncircle.redis.replicator.Constants.RDB_MODULE_OPCODE_STRING;
+import static com.moilioncircle.redis.replicator.Constants.RDB_MODULE_OPCODE_UINT;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_AUX;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_EOF;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_EXPIRETIME;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_EXPIRETIME_MS;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_FREQ;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_IDLE;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_MODULE_AUX;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_RESIZEDB;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_SELECTDB;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPMAP;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_MODULE;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_MODULE_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET_INTSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STREAM_LISTPACKS;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STRING;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_ZIPLIST;
+
+/**
+ * A push based {@link RdbParser} for non-blocking io.
+ * <pre>
+ * IncrementalRdbParser parser = new IncrementalRdbParser(replicator);
+ * // on every read
+ * buffer.flip();
+ * parser.parse(buffer);
+ * buffer.compact();
+ * </pre>
+ * The end of a record is found by walking the length prefixes of the rdb without decoding, the walk resumes where
+ * the previous call stopped. A complete record is consumed from the buffer and decoded by the rdb visitor of the
+ * replicator, so lzf strings, ziplists, intsets, quicklists and listpacks are decoded as {@link RdbParser} does,
+ * and events are submitted to the replicator the same way. The bytes of an incomplete record stay in the buffer and
+ * must be passed again, followed by the new bytes, on the next call, so the buffer must hold the largest record.
+ * <p>
+ * The layout of a {@link com.moilioncircle.redis.replicator.Constants#RDB_TYPE_MODULE} value is only known to its
+ * module parser, such a record is decoded again on every call until it is complete.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class IncrementalRdbParser {
+
+    private static final int TYPE = 0;
+    private static final int STRING = 1;
+    private static final int LENGTH = 2;
+    private static final int SKIP = 3;
+    private static final int DOUBLE = 4;
+    private static final int COUNT = 5;
+    private static final int REPEAT = 6;
+    private static final int MODULE = 7;
+
+    /*
+     * elements of the counted parts of values, {op, count, arg}
+     */
+    private static final int[][][] TEMPLATES = {
+            /* 0 string     */ {{STRING, 1, 0}},
+            /* 1 field      */ {{STRING, 2, 0}},
+            /* 2 zset       */ {{STRING, 1, 0}, {DOUBLE, 1, 0}},
+            /* 3 zset2      */ {{STRING, 1, 0}, {SKIP, 8, 0}},
+            /* 4 group pel  */ {{SKIP, 24, 0}, {LENGTH, 1, 0}},
+            /* 5 pel        */ {{SKIP, 16, 0}},
+            /* 6 consumer   */ {{STRING, 1, 0}, {SKIP, 8, 0}, {COUNT, 1, 5}},
+            /* 7 group      */ {{STRING, 1, 0}, {LENGTH, 2, 0}, {COUNT, 1, 4}, {COUNT, 1, 6}},
+    };
+
+    protected final RdbParser parser;
+    protected final AbstractReplicator replicator;
+
+    private boolean header;
+    private boolean opaque;
+    private boolean done;
+    private int opaqueTried;
+
+    /*
+     * state of the walk, offsets are relative to the position of the buffer
+     */
+    private long scan;
+    private long value;
+    private int sp;
+    private int[] ops = new int[16];
+    private int[] args = new int[16];
+    private long[] counts = new long[16];
+
+    /**
+     * @param replicator replicator, the rdb visitor must be set before
+     */
+    public IncrementalRdbParser(AbstractReplicator replicator) {
+        this.replicator = replicator;
+        this.parser = new RdbParser(null, replicator);
+    }
+
+    /**
+     * @return true after the eof of the rdb
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @param buffer bytes from the position to the limit, the position is moved past the parsed records
+     * @return bytes consumed
+     * @throws IOException if a record is illegal
+     */
+    public int parse(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        while (!done) {
+            int head = buffer.position();
+            if (!header) {
+                /*
+                 * 52 45 44 49 53              # Magic String "REDIS"
+                 * 30 30 30 33                 # RDB Version Number
+                 */
+                if (buffer.remaining() < 9) break;
+                RedisInputStream in = stream(buffer, head, 9);
+                replicator.submitEvent(new PreRdbSyncEvent());
+                parser.rdbVisitor.applyMagic(in);
+                parser.version = parser.rdbVisitor.applyVersion(in);
+                buffer.position(head + 9);
+                header = true;
+            } else if (opaque) {
+                if (buffer.remaining() <= opaqueTried) break;
+                RedisInputStream in = stream(buffer, head, buffer.remaining());
+                try {
+                    done = !parser.parseRecord(in);
+                } catch (EOFException e) {
+                    opaqueTried = buffer.remaining();
+                    break;
+                }
+                buffer.position(head + (int) (in.total() - in.tail() + in.head()));
+                opaque = false;
+                opaqueTried = 0;
+            } else {
+                if (sp == 0 && scan == 0) push(TYPE, 1, 0);
+                if (!walk(buffer)) break;
+                if (opaque) continue;
+                int len = (int) scan;
+                RedisInputStream in = stream(buffer, head, len);
+                done = !parser.parseRecord(in);
+                long parsed = in.total() - in.tail() + in.head();
+                if (parsed != len) throw new AssertionError("rdb record of " + len + " bytes but " + parsed + " bytes parsed");
+                buffer.position(head + len);
+                scan = 0;
+            }
+        }
+        return buffer.position() - start;
+    }
+
+    protected RedisInputStream stream(ByteBuffer buffer, int offset, int len) {
+        byte[] bytes;
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            offset += buffer.arrayOffset();
+        } else {
+            bytes = new byte[len];
+            for (int i = 0; i < len; i++) bytes[i] = buffer.get(offset + i);
+            offset = 0;
+        }
+        int size = Math.max(1, Math.min(len, replicator.getConfiguration().getBufferSize()));
+        RedisInputStream in = new RedisInputStream(new ByteArrayInputStream(bytes, offset, len), size);
+        in.setByteArrayFactory(replicator.getConfiguration().getByteArrayFactory());
+        return in;
+    }
+
+    /*
+     * walk the length prefixes until the stack is empty
+     */
+    private boolean walk(ByteBuffer buffer) {
+        final int base = buffer.position();
+        final long limit = buffer.remaining();
+        long p = scan;
+        try {
+            while (sp > 0 && p <= limit) {
+                int top = sp - 1;
+                long next;
+                switch (ops[top]) {
+                    case TYPE:
+                        if (p + 1 > limit) return false;
+                        int type = buffer.get(base + (int) p) & 0xFF;
+                        sp--;
+                        if (type == RDB_TYPE_MODULE) {
+                            // only the module parser knows the layout
+                            sp = 0;
+                            p = 0;
+                            opaque = true;
+                            return true;
+                        }
+                        program(type);
+                        next = p + 1;
+                        break;
+                    case STRING:
+                        if ((next = string(buffer, base, p, limit)) < 0) return false;
+                        if (--counts[top] == 0) sp--;
+                        break;
+                    case LENGTH:
+                        if ((next = length(buffer, base, p, limit)) < 0) return false;
+                        if (--counts[top] == 0) sp--;
+                        break;
+                    case SKIP:
+                        next = p + counts[top];
+                        sp--;
+                        break;
+                    case DOUBLE:
+                        if (p + 1 > limit) return false;
+                        int len = buffer.get(base + (int) p) & 0xFF;
+                        next = p + 1 + (len >= 253 ? 0 : len);
+                        if (--counts[top] == 0) sp--;
+                        break;
+                    case COUNT:
+                        if ((next = length(buffer, base, p, limit)) < 0) return false;
+                        sp--;
+                        int[][] template = TEMPLATES[args[top]];
+                        if (value == 0) break;
+                        if (template.length == 1 && template[0][0] != COUNT) {
+                            push(template[0][0], value * template[0][1], template[0][2]);
+                        } else {
+                            push(REPEAT, value, args[top]);
+                        }
+                        break;
+                    case REPEAT:
+                        next = p;
+                        if (counts[top]-- == 0) {
+                            sp--;
+                        } else {
+                            push(TEMPLATES[args[top]]);
+                        }
+                        break;
+                    case MODULE:
+                        if ((next = length(buffer, base, p, limit)) < 0) return false;
+                        if (value == RDB_MODULE_OPCODE_EOF) {
+                            sp--;
+                        } else if (value == RDB_MODULE_OPCODE_SINT || value == RDB_MODULE_OPCODE_UINT) {
+                            push(LENGTH, 1, 0);
+                        } else if (value == RDB_MODULE_OPCODE_FLOAT) {
+                            push(SKIP, 4, 0);
+                        } else if (value == RDB_MODULE_OPCODE_DOUBLE) {
+                            push(SKIP, 8, 0);
+                        } else if (value == RDB_MODULE_OPCODE_STRING) {
+                            push(STRING, 1, 0);
+                        }
+                        break;
+                    default:
+                        throw new AssertionError(ops[top]);
+                }
+                p = next;
+            }
+            return sp == 0 && p <= limit;
+        } finally {
+            scan = p;
+        }
+    }
+
+    /*
+     * the parts of a record after its type
+     */
+    private void program(int type) {
+        switch (type) {
+            case RDB_OPCODE_EXPIRETIME:
+                push(TYPE, 1, 0);
+                push(SKIP, 4, 0);
+                break;
+            case RDB_OPCODE_EXPIRETIME_MS:
+                push(TYPE, 1, 0);
+                push(SKIP, 8, 0);
+                break;
+            case RDB_OPCODE_FREQ:
+                push(TYPE, 1, 0);
+                push(SKIP, 1, 0);
+                break;
+            case RDB_OPCODE_IDLE:
+                push(TYPE, 1, 0);
+                push(LENGTH, 1, 0);
+                break;
+            case RDB_OPCODE_AUX:
+                push(STRING, 2, 0);
+                break;
+            case RDB_OPCODE_MODULE_AUX:
+                push(MODULE, 1, 0);
+                push(LENGTH, 1, 0);
+                break;
+            case RDB_OPCODE_RESIZEDB:
+                push(LENGTH, 2, 0);
+                break;
+            case RDB_OPCODE_SELECTDB:
+                push(LENGTH, 1, 0);
+                break;
+            case RDB_OPCODE_EOF:
+                if (parser.version >= 5) push(SKIP, 8, 0);
+                break;
+            case RDB_TYPE_STRING:
+            case RDB_TYPE_HASH_ZIPMAP:
+            case RDB_TYPE_LIST_ZIPLIST:
+            case RDB_TYPE_SET_INTSET:
+            case RDB_TYPE_ZSET_ZIPLIST:
+            case RDB_TYPE_HASH_ZIPLIST:
+                push(STRING, 2, 0);
+                break;
+            case RDB_TYPE_LIST:
+            case RDB_TYPE_SET:
+            case RDB_TYPE_LIST_QUICKLIST:
+                push(COUNT, 1, 0);
+                push(STRING, 1, 0);
+                break;
+            case RDB_TYPE_HASH:
+                push(COUNT, 1, 1);
+                push(STRING, 1, 0);
+                break;
+            case RDB_TYPE_ZSET:
+                push(COUNT, 1, 2);
+                push(STRING, 1, 0);
+                break;
+            case RDB_TYPE_ZSET_2:
+                push(COUNT, 1, 3);
+                push(STRING, 1, 0);
+                break;
+            case RDB_TYPE_MODULE_2:
+                push(MODULE, 1, 0);
+                push(LENGTH, 1, 0);
+                push(STRING, 1, 0);
+                break;
+            case RDB_TYPE_STREAM_LISTPACKS:
+                // key, listpacks, length, last id, groups
+                push(COUNT, 1, 7);
+                push(LENGTH, 3, 0);
+                push(COUNT, 1, 1);
+                push(STRING, 1, 0);
+                break;
+            default:
+                throw new AssertionError("unexpected value type:" + type + ", check your ModuleParser or ValueIterableRdbVisitor.");
+        }
+    }
+
+    /*
+     * @return the position after the string, -1 if incomplete
+     */
+    private long string(ByteBuffer buffer, int base, long p, long limit) {
+        if (p + 1 > limit) return -1;
+        int b = buffer.get(base + (int) p) & 0xFF;
+        if ((b & 0xC0) >> 6 != RDB_ENCVAL) {
+            long next = length(buffer, base, p, limit);
+            return next < 0 ? -1 : next + value;
+        }
+        switch (b & 0x3F) {
+            case RDB_ENC_INT8:
+                return p + 2;
+            case RDB_ENC_INT16:
+                return p + 3;
+            case RDB_ENC_INT32:
+                return p + 5;
+            case RDB_ENC_LZF:
+                long next = length(buffer, base, p + 1, limit);
+                if (next < 0) return -1;
+                long clen = value;
+                next = length(buffer, base, next, limit);
+                return next < 0 ? -1 : next + clen;
+            default:
+                throw new AssertionError("unknown RdbParser encoding type:" + (b & 0x3F));
+        }
+    }
+
+    /*
+     * @return the position after the length and the length in value, -1 if incomplete
+     */
+    private long length(ByteBuffer buffer, int base, long p, long limit) {
+        if (p + 1 > limit) return -1;
+        int b = buffer.get(base + (int) p) & 0xFF;
+        int type = (b & 0xC0) >> 6;
+        if (type == RDB_ENCVAL || type == RDB_6BITLEN) {
+            value = b & 0x3F;
+            return p + 1;
+        } else if (type == RDB_14BITLEN) {
+            if (p + 2 > limit) return -1;
+            value = ((b & 0x3F) << 8) | (buffer.get(base + (int) p + 1) & 0xFF);
+            return p + 2;
+        } else if (b == RDB_32BITLEN || b == RDB_64BITLEN) {
+            int n = b == RDB_32BITLEN ? 4 : 8;
+            if (p + 1 + n > limit) return -1;
+            long v = 0;
+            for (int i = 1; i <= n; i++) v = (v << 8) | (buffer.get(base + (int) p + i) & 0xFF);
+            value = v;
+            return p + 1 + n;
+        } else {
+            throw new AssertionError("unexpected len-type:" + type);
+        }
+    }
+
+    private void push(int[][] template) {
+        for (int i = template.length - 1; i >= 0; i--) push(template[i][0], template[i][1], template[i][2]);
+    }
+
+    private void push(int op, long count, int arg) {
+        if (sp == ops.length) {
+            ops = Arrays.copyOf(ops, sp << 1);
+            args = Arrays.copyOf(args, sp << 1);
+            counts = Arrays.copyOf(counts, sp << 1);
+        }
+        ops[sp] = op;
+        args[sp] = arg;
+        counts[sp] = count;
+        sp++;
+    }
+}
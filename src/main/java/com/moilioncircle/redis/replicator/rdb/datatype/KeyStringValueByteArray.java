@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.rdb.datatype;
+
+import com.moilioncircle.redis.replicator.util.ByteArray;
+
+/**
+ * A string value that is not copied to a {@code byte[]}: a value allocated off heap by the
+ * {@link com.moilioncircle.redis.replicator.util.ByteArrayFactory} of the configuration, or longer than a java array.
+ * <p>
+ * read it with {@link ByteArray#get(long, byte[], int, int)}, the value may be freed by {@link ByteArray#release()}
+ * when it is consumed, otherwise it is freed by gc.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class KeyStringValueByteArray extends KeyValuePair<byte[], ByteArray> {
+    private static final long serialVersionUID = 1L;
+}
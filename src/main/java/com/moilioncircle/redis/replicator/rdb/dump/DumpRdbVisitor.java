@@ -16,21 +16,27 @@
 
 package com.moilioncircle.redis.replicator.rdb.dump;
 
+import com.moilioncircle.redis.replicator.AbstractReplicator;
+import com.moilioncircle.redis.replicator.RedisReplicator;
 import com.moilioncircle.redis.replicator.Replicator;
 import com.moilioncircle.redis.replicator.event.Event;
-import com.moilioncircle.redis.replicator.io.RawByteListener;
+import com.moilioncircle.redis.replicator.io.RawByteSliceListener;
 import com.moilioncircle.redis.replicator.io.RedisInputStream;
 import com.moilioncircle.redis.replicator.rdb.BaseRdbParser;
 import com.moilioncircle.redis.replicator.rdb.DefaultRdbVisitor;
 import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
 import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
 import com.moilioncircle.redis.replicator.rdb.datatype.Module;
+import com.moilioncircle.redis.replicator.rdb.dump.datatype.ChunkedDumpKeyValuePair;
 import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
 import com.moilioncircle.redis.replicator.rdb.module.ModuleParser;
+import com.moilioncircle.redis.replicator.rdb.sink.ValueSink;
+import com.moilioncircle.redis.replicator.rdb.sink.datatype.SinkKeyValuePair;
 import com.moilioncircle.redis.replicator.rdb.skip.SkipRdbParser;
-import com.moilioncircle.redis.replicator.util.ByteBuilder;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 import static com.moilioncircle.redis.replicator.Constants.MODULE_SET;
@@ -59,36 +65,108 @@ import static com.moilioncircle.redis.replicator.util.CRC64.longToByteArray;
  */
 public class DumpRdbVisitor extends DefaultRdbVisitor {
     
-    private class DefaultRawByteListener implements RawByteListener {
+    private class DumpRawByteListener implements RawByteSliceListener {
+        private long crc;
+        private int batch;
+        private int length;
+        private byte[] bytes;
+        private final byte[] key;
         private final int version;
-        private final ByteBuilder builder;
+        private final int rdbType;
+        private final RedisInputStream in;
+        private final ContextKeyValuePair context;
+        private SinkKeyValuePair sunk;
         
-        private DefaultRawByteListener(byte type, int version) {
-            this.builder = ByteBuilder.allocate(DumpRdbVisitor.this.size);
-            this.builder.put(type);
+        private DumpRawByteListener(RedisInputStream in, byte type, int version, byte[] key, ContextKeyValuePair context) {
+            this.in = in;
+            this.key = key;
+            this.rdbType = type;
+            this.context = context;
             int ver = DumpRdbVisitor.this.version;
             this.version = ver == -1 ? version : ver;
+            if (sink != null) {
+                this.sunk = new SinkKeyValuePair();
+                sunk.setValueRdbType(rdbType);
+                sunk.setKey(key);
+                context.valueOf(sunk);
+                sink.begin(sunk, -1);
+            } else {
+                this.bytes = new byte[DumpRdbVisitor.this.size];
+            }
+            put(new byte[]{type}, 0, 1);
+            in.setSliceListener(this);
         }
         
         @Override
-        public void handle(byte... rawBytes) {
-            for (byte b : rawBytes) this.builder.put(b);
+        public void handle(byte[] rawBytes, int offset, int length) {
+            put(rawBytes, offset, length);
         }
         
-        public byte[] getBytes() {
-            this.builder.put((byte) version);
-            this.builder.put((byte) 0x00);
-            byte[] bytes = this.builder.array();
-            byte[] crc = longToByteArray(crc64(bytes));
-            for (byte b : crc) {
-                this.builder.put(b);
+        private void put(byte[] rawBytes, int offset, int length) {
+            crc = crc64(rawBytes, offset, length, crc);
+            if (sunk != null) {
+                sunk.setLength(sunk.getLength() + length);
+                sink.write(ByteBuffer.wrap(rawBytes, offset, length));
+                return;
+            }
+            while (length > 0) {
+                if (this.length == bytes.length) {
+                    if (chunkSize > 0 && this.length >= chunkSize) {
+                        submitEvent(chunk(bytes, false));
+                        this.bytes = new byte[chunkSize];
+                        this.length = 0;
+                    } else {
+                        int cap = Math.max(bytes.length << 1, 16);
+                        if (chunkSize > 0) cap = Math.min(cap, chunkSize);
+                        this.bytes = Arrays.copyOf(bytes, cap);
+                    }
+                }
+                int n = Math.min(length, bytes.length - this.length);
+                System.arraycopy(rawBytes, offset, bytes, this.length, n);
+                this.length += n;
+                offset += n;
+                length -= n;
             }
-            return this.builder.array();
+        }
+        
+        /*
+         * payload + rdb version + 0x00 + crc64 of all previous bytes.
+         */
+        private Event end() {
+            in.setSliceListener(null);
+            put(new byte[]{(byte) version, 0x00}, 0, 2);
+            byte[] crc = longToByteArray(this.crc);
+            if (sunk != null) {
+                sunk.setLength(sunk.getLength() + crc.length);
+                sink.write(ByteBuffer.wrap(crc));
+                sink.end();
+                return sunk;
+            }
+            byte[] value = Arrays.copyOf(bytes, length + crc.length);
+            System.arraycopy(crc, 0, value, length, crc.length);
+            if (batch > 0) return chunk(value, true);
+            KeyValuePair<byte[], byte[]> kv = new DumpKeyValuePair();
+            kv.setValueRdbType(rdbType);
+            kv.setValue(value);
+            kv.setKey(key);
+            return context.valueOf(kv);
+        }
+        
+        private Event chunk(byte[] value, boolean last) {
+            ChunkedDumpKeyValuePair kv = new ChunkedDumpKeyValuePair();
+            kv.setValueRdbType(rdbType);
+            kv.setValue(value);
+            kv.setKey(key);
+            kv.setBatch(batch++);
+            kv.setLast(last);
+            return context.valueOf(kv);
         }
     }
     
     private final int size;
     private final int version;
+    private final int chunkSize;
+    private final ValueSink sink;
     
     public DumpRdbVisitor(Replicator replicator) {
         this(replicator, -1);
@@ -104,73 +182,93 @@ public class DumpRdbVisitor extends DefaultRdbVisitor {
     }
     
     public DumpRdbVisitor(Replicator replicator, int version, int size) {
+        this(replicator, version, size, -1);
+    }
+    
+    /**
+     * @param replicator the replicator
+     * @param version    dumped version : redis 2.8.x = 6, redis 3.x = 7, redis 4.0.x = 8, -1 means dumped version = rdb version
+     * @param size       initial buffer size of a dumped value
+     * @param chunkSize  values larger than chunkSize are emitted as a sequence of {@link ChunkedDumpKeyValuePair}, -1 means never chunk
+     * @since 3.1.0
+     */
+    public DumpRdbVisitor(Replicator replicator, int version, int size, int chunkSize) {
+        this(replicator, version, size, chunkSize, null);
+    }
+    
+    /**
+     * write dumped values to {@code sink} straight from the input buffer instead of emitting
+     * {@link DumpKeyValuePair}, a {@link SinkKeyValuePair} is emitted per key.
+     *
+     * @param replicator the replicator
+     * @param version    dumped version : redis 2.8.x = 6, redis 3.x = 7, redis 4.0.x = 8, -1 means dumped version = rdb version
+     * @param sink       receives the dumped values, see {@link ValueSink}
+     * @since 3.1.0
+     */
+    public DumpRdbVisitor(Replicator replicator, int version, ValueSink sink) {
+        this(replicator, version, 1, -1, sink);
+    }
+    
+    private DumpRdbVisitor(Replicator replicator, int version, int size, int chunkSize, ValueSink sink) {
         super(replicator);
+        if (size <= 0) throw new IllegalArgumentException(String.valueOf(size));
         this.version = version;
-        this.size = size;
+        this.size = chunkSize > 0 ? Math.min(size, chunkSize) : size;
+        this.chunkSize = chunkSize;
+        this.sink = sink;
+    }
+    
+    protected void submitEvent(Event event) {
+        Replicator r = replicator;
+        if (r instanceof RedisReplicator) r = ((RedisReplicator) r).getReplicator();
+        if (!(r instanceof AbstractReplicator)) {
+            throw new UnsupportedOperationException("chunked dump requires " + AbstractReplicator.class.getSimpleName());
+        }
+        ((AbstractReplicator) r).submitEvent(event);
     }
     
     @Override
     public Event applyString(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o0 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_STRING, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_STRING, version, key, context);
         new SkipRdbParser(in).rdbLoadEncodedStringObject();
-        replicator.removeRawByteListener(listener);
-        o0.setValueRdbType(RDB_TYPE_STRING);
-        o0.setValue(listener.getBytes());
-        o0.setKey(key);
-        return context.valueOf(o0);
+        return listener.end();
     }
     
     @Override
     public Event applyList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o1 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_LIST, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_LIST, version, key, context);
         SkipRdbParser skipParser = new SkipRdbParser(in);
         long len = skipParser.rdbLoadLen().len;
         while (len > 0) {
             skipParser.rdbLoadEncodedStringObject();
             len--;
         }
-        replicator.removeRawByteListener(listener);
-        o1.setValueRdbType(RDB_TYPE_LIST);
-        o1.setValue(listener.getBytes());
-        o1.setKey(key);
-        return context.valueOf(o1);
+        return listener.end();
     }
     
     @Override
     public Event applySet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o2 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_SET, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_SET, version, key, context);
         SkipRdbParser skipParser = new SkipRdbParser(in);
         long len = skipParser.rdbLoadLen().len;
         while (len > 0) {
             skipParser.rdbLoadEncodedStringObject();
             len--;
         }
-        replicator.removeRawByteListener(listener);
-        o2.setValueRdbType(RDB_TYPE_SET);
-        o2.setValue(listener.getBytes());
-        o2.setKey(key);
-        return context.valueOf(o2);
+        return listener.end();
     }
     
     @Override
     public Event applyZSet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o3 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_ZSET, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_ZSET, version, key, context);
         SkipRdbParser skipParser = new SkipRdbParser(in);
         long len = skipParser.rdbLoadLen().len;
         while (len > 0) {
@@ -178,20 +276,14 @@ public class DumpRdbVisitor extends DefaultRdbVisitor {
             skipParser.rdbLoadDoubleValue();
             len--;
         }
-        replicator.removeRawByteListener(listener);
-        o3.setValueRdbType(RDB_TYPE_ZSET);
-        o3.setValue(listener.getBytes());
-        o3.setKey(key);
-        return context.valueOf(o3);
+        return listener.end();
     }
     
     @Override
     public Event applyZSet2(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o5 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_ZSET_2, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_ZSET_2, version, key, context);
         SkipRdbParser skipParser = new SkipRdbParser(in);
         long len = skipParser.rdbLoadLen().len;
         while (len > 0) {
@@ -199,20 +291,14 @@ public class DumpRdbVisitor extends DefaultRdbVisitor {
             skipParser.rdbLoadBinaryDoubleValue();
             len--;
         }
-        replicator.removeRawByteListener(listener);
-        o5.setValueRdbType(RDB_TYPE_ZSET_2);
-        o5.setValue(listener.getBytes());
-        o5.setKey(key);
-        return context.valueOf(o5);
+        return listener.end();
     }
     
     @Override
     public Event applyHash(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o4 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_HASH, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_HASH, version, key, context);
         SkipRdbParser skipParser = new SkipRdbParser(in);
         long len = skipParser.rdbLoadLen().len;
         while (len > 0) {
@@ -220,114 +306,72 @@ public class DumpRdbVisitor extends DefaultRdbVisitor {
             skipParser.rdbLoadEncodedStringObject();
             len--;
         }
-        replicator.removeRawByteListener(listener);
-        o4.setValueRdbType(RDB_TYPE_HASH);
-        o4.setValue(listener.getBytes());
-        o4.setKey(key);
-        return context.valueOf(o4);
+        return listener.end();
     }
     
     @Override
     public Event applyHashZipMap(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o9 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_HASH_ZIPMAP, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_HASH_ZIPMAP, version, key, context);
         new SkipRdbParser(in).rdbLoadPlainStringObject();
-        replicator.removeRawByteListener(listener);
-        o9.setValueRdbType(RDB_TYPE_HASH_ZIPMAP);
-        o9.setValue(listener.getBytes());
-        o9.setKey(key);
-        return context.valueOf(o9);
+        return listener.end();
     }
     
     @Override
     public Event applyListZipList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o10 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_LIST_ZIPLIST, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_LIST_ZIPLIST, version, key, context);
         new SkipRdbParser(in).rdbLoadPlainStringObject();
-        replicator.removeRawByteListener(listener);
-        o10.setValueRdbType(RDB_TYPE_LIST_ZIPLIST);
-        o10.setValue(listener.getBytes());
-        o10.setKey(key);
-        return context.valueOf(o10);
+        return listener.end();
     }
     
     @Override
     public Event applySetIntSet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o11 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_SET_INTSET, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_SET_INTSET, version, key, context);
         new SkipRdbParser(in).rdbLoadPlainStringObject();
-        replicator.removeRawByteListener(listener);
-        o11.setValueRdbType(RDB_TYPE_SET_INTSET);
-        o11.setValue(listener.getBytes());
-        o11.setKey(key);
-        return context.valueOf(o11);
+        return listener.end();
     }
     
     @Override
     public Event applyZSetZipList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o12 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_ZSET_ZIPLIST, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_ZSET_ZIPLIST, version, key, context);
         new SkipRdbParser(in).rdbLoadPlainStringObject();
-        replicator.removeRawByteListener(listener);
-        o12.setValueRdbType(RDB_TYPE_ZSET_ZIPLIST);
-        o12.setValue(listener.getBytes());
-        o12.setKey(key);
-        return context.valueOf(o12);
+        return listener.end();
     }
     
     @Override
     public Event applyHashZipList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o13 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_HASH_ZIPLIST, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_HASH_ZIPLIST, version, key, context);
         new SkipRdbParser(in).rdbLoadPlainStringObject();
-        replicator.removeRawByteListener(listener);
-        o13.setValueRdbType(RDB_TYPE_HASH_ZIPLIST);
-        o13.setValue(listener.getBytes());
-        o13.setKey(key);
-        return context.valueOf(o13);
+        return listener.end();
     }
     
     @Override
     public Event applyListQuickList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o14 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_LIST_QUICKLIST, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_LIST_QUICKLIST, version, key, context);
         SkipRdbParser skipParser = new SkipRdbParser(in);
         long len = skipParser.rdbLoadLen().len;
         for (long i = 0; i < len; i++) {
             skipParser.rdbGenericLoadStringObject();
         }
-        replicator.removeRawByteListener(listener);
-        o14.setValueRdbType(RDB_TYPE_LIST_QUICKLIST);
-        o14.setValue(listener.getBytes());
-        o14.setKey(key);
-        return context.valueOf(o14);
+        return listener.end();
     }
     
     @Override
     public Event applyModule(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o6 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_MODULE, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_MODULE, version, key, context);
         SkipRdbParser skipParser = new SkipRdbParser(in);
         char[] c = new char[9];
         long moduleid = skipParser.rdbLoadLen().len;
@@ -341,20 +385,14 @@ public class DumpRdbVisitor extends DefaultRdbVisitor {
             throw new NoSuchElementException("module parser[" + moduleName + ", " + moduleVersion + "] not register. rdb type: [RDB_TYPE_MODULE]");
         }
         moduleParser.parse(in, 1);
-        replicator.removeRawByteListener(listener);
-        o6.setValueRdbType(RDB_TYPE_MODULE);
-        o6.setValue(listener.getBytes());
-        o6.setKey(key);
-        return context.valueOf(o6);
+        return listener.end();
     }
     
     @Override
     public Event applyModule2(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o7 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_MODULE_2, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_MODULE_2, version, key, context);
         SkipRdbParser skipParser = new SkipRdbParser(in);
         char[] c = new char[9];
         long moduleid = skipParser.rdbLoadLen().len;
@@ -374,20 +412,14 @@ public class DumpRdbVisitor extends DefaultRdbVisitor {
                 throw new UnsupportedOperationException("The RDB file contains module data for the module '" + moduleName + "' that is not terminated by the proper module value EOF marker");
             }
         }
-        replicator.removeRawByteListener(listener);
-        o7.setValueRdbType(RDB_TYPE_MODULE_2);
-        o7.setValue(listener.getBytes());
-        o7.setKey(key);
-        return context.valueOf(o7);
+        return listener.end();
     }
     
     @Override
     public Event applyStreamListPacks(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
         BaseRdbParser parser = new BaseRdbParser(in);
-        KeyValuePair<byte[], byte[]> o15 = new DumpKeyValuePair();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
-        DefaultRawByteListener listener = new DefaultRawByteListener((byte) RDB_TYPE_STREAM_LISTPACKS, version);
-        replicator.addRawByteListener(listener);
+        DumpRawByteListener listener = new DumpRawByteListener(in, (byte) RDB_TYPE_STREAM_LISTPACKS, version, key, context);
         SkipRdbParser skipParser = new SkipRdbParser(in);
         long listPacks = skipParser.rdbLoadLen().len;
         while (listPacks-- > 0) {
@@ -418,10 +450,6 @@ public class DumpRdbVisitor extends DefaultRdbVisitor {
                 }
             }
         }
-        replicator.removeRawByteListener(listener);
-        o15.setValueRdbType(RDB_TYPE_STREAM_LISTPACKS);
-        o15.setValue(listener.getBytes());
-        o15.setKey(key);
-        return context.valueOf(o15);
+        return listener.end();
     }
 }
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.filter;
+
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.rdb.BaseRdbParser;
+import com.moilioncircle.redis.replicator.rdb.DefaultRdbVisitor;
+import com.moilioncircle.redis.replicator.rdb.RdbVisitor;
+import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.DB;
+import com.moilioncircle.redis.replicator.rdb.datatype.EvictType;
+import com.moilioncircle.redis.replicator.rdb.datatype.ExpiredType;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.skip.SkipRdbVisitor;
+import com.moilioncircle.redis.replicator.util.Lzf;
+
+import java.io.IOException;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_14BITLEN;
+import static com.moilioncircle.redis.replicator.Constants.RDB_32BITLEN;
+import static com.moilioncircle.redis.replicator.Constants.RDB_64BITLEN;
+import static com.moilioncircle.redis.replicator.Constants.RDB_6BITLEN;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENCVAL;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT16;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT32;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT8;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_LZF;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_FREQ;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_IDLE;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPMAP;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_MODULE;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_MODULE_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET_INTSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STREAM_LISTPACKS;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STRING;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_ZIPLIST;
+
+/**
+ * Evaluates a {@link RdbFilter} as soon as the key and its context (db, type, expiry) are known and
+ * only hands accepted values to the wrapped visitor. Rejected values are skipped by {@link SkipRdbVisitor}
+ * without being decoded, so extracting a few keys from a huge rdb costs little more than reading it.
+ * <pre>
+ * Replicator r = new RedisReplicator(file, FileType.RDB, Configuration.defaultSetting());
+ * r.setRdbVisitor(new FilterRdbVisitor(r, new RdbFilter().dbs(0).keys("user:*")));
+ * </pre>
+ * The key is peeked in the input buffer of {@link RedisInputStream} without being consumed, so the wrapped
+ * visitor reads the entry from the beginning and raw byte listeners see every byte exactly once.
+ * A key that does not fit in the input buffer (see {@code Configuration.setBufferSize}) is decoded
+ * with its value and filtered afterwards.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class FilterRdbVisitor extends RdbVisitor {
+
+    protected final RdbFilter filter;
+    protected final RdbVisitor visitor;
+    protected final RdbVisitor skip;
+
+    /*
+     * peeked key, points to the input buffer or to ints/lzf.
+     */
+    private byte[] key;
+    private int keyOff;
+    private int keyLen;
+    private int lenSize;
+    private boolean encoded;
+    private final byte[] ints = new byte[20];
+    private byte[] lzf = new byte[64];
+
+    public FilterRdbVisitor(Replicator replicator, RdbFilter filter) {
+        this(replicator, new DefaultRdbVisitor(replicator), filter);
+    }
+
+    /**
+     * @param replicator the replicator
+     * @param visitor    visitor of accepted values
+     * @param filter     the filter
+     */
+    public FilterRdbVisitor(Replicator replicator, RdbVisitor visitor, RdbFilter filter) {
+        this.filter = filter;
+        this.visitor = visitor;
+        this.skip = new SkipRdbVisitor(replicator);
+    }
+
+    @Override
+    public String applyMagic(RedisInputStream in) throws IOException {
+        return visitor.applyMagic(in);
+    }
+
+    @Override
+    public int applyVersion(RedisInputStream in) throws IOException {
+        return visitor.applyVersion(in);
+    }
+
+    @Override
+    public int applyType(RedisInputStream in) throws IOException {
+        return visitor.applyType(in);
+    }
+
+    @Override
+    public DB applySelectDB(RedisInputStream in, int version) throws IOException {
+        return visitor.applySelectDB(in, version);
+    }
+
+    @Override
+    public DB applyResizeDB(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return visitor.applyResizeDB(in, version, context);
+    }
+
+    @Override
+    public long applyEof(RedisInputStream in, int version) throws IOException {
+        return visitor.applyEof(in, version);
+    }
+
+    @Override
+    public Event applyAux(RedisInputStream in, int version) throws IOException {
+        return visitor.applyAux(in, version);
+    }
+
+    @Override
+    public Event applyModuleAux(RedisInputStream in, int version) throws IOException {
+        return visitor.applyModuleAux(in, version);
+    }
+
+    /*
+     * expire and evict opcodes are handled here instead of in the wrapped visitor,
+     * so that the value type is known before the value is dispatched.
+     */
+    @Override
+    public Event applyExpireTime(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        context.setExpiredType(ExpiredType.SECOND);
+        long expiredSec = parser.rdbLoadTime();
+        context.setExpiredValue(expiredSec);
+        return apply(in, version, context, applyType(in));
+    }
+
+    @Override
+    public Event applyExpireTimeMs(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        context.setExpiredType(ExpiredType.MS);
+        long expiredMs = parser.rdbLoadMillisecondTime();
+        context.setExpiredValue(expiredMs);
+        return apply(in, version, context, applyType(in));
+    }
+
+    @Override
+    public Event applyFreq(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long lfuFreq = in.read();
+        context.setEvictType(EvictType.LFU);
+        context.setEvictValue(lfuFreq);
+        return apply(in, version, context, applyType(in));
+    }
+
+    @Override
+    public Event applyIdle(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        long lruIdle = parser.rdbLoadLen().len;
+        context.setEvictType(EvictType.LRU);
+        context.setEvictValue(lruIdle);
+        return apply(in, version, context, applyType(in));
+    }
+
+    @Override
+    public Event applyString(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_STRING);
+    }
+
+    @Override
+    public Event applyList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_LIST);
+    }
+
+    @Override
+    public Event applySet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_SET);
+    }
+
+    @Override
+    public Event applyZSet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_ZSET);
+    }
+
+    @Override
+    public Event applyZSet2(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_ZSET_2);
+    }
+
+    @Override
+    public Event applyHash(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_HASH);
+    }
+
+    @Override
+    public Event applyHashZipMap(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_HASH_ZIPMAP);
+    }
+
+    @Override
+    public Event applyListZipList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_LIST_ZIPLIST);
+    }
+
+    @Override
+    public Event applySetIntSet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_SET_INTSET);
+    }
+
+    @Override
+    public Event applyZSetZipList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_ZSET_ZIPLIST);
+    }
+
+    @Override
+    public Event applyHashZipList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_HASH_ZIPLIST);
+    }
+
+    @Override
+    public Event applyListQuickList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_LIST_QUICKLIST);
+    }
+
+    @Override
+    public Event applyModule(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_MODULE);
+    }
+
+    @Override
+    public Event applyModule2(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_MODULE_2);
+    }
+
+    @Override
+    public Event applyStreamListPacks(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return apply(in, version, context, RDB_TYPE_STREAM_LISTPACKS);
+    }
+
+    protected Event apply(RedisInputStream in, int version, ContextKeyValuePair context, int type) throws IOException {
+        if (type == RDB_OPCODE_FREQ) return applyFreq(in, version, context);
+        if (type == RDB_OPCODE_IDLE) return applyIdle(in, version, context);
+        context.setValueRdbType(type);
+        long db = context.getDb() == null ? 0 : context.getDb().getDbNumber();
+        if (!filter.test(db, type, context.getExpiredType(), context.getExpiredValue())) {
+            dispatch(skip, in, version, context, type);
+            return null;
+        }
+        if (!filter.hasKeyPredicate()) {
+            return dispatch(visitor, in, version, context, type);
+        }
+        if (peekKey(in)) {
+            if (filter.test(key, keyOff, keyLen)) return dispatch(visitor, in, version, context, type);
+            dispatch(skip, in, version, context, type);
+            return null;
+        }
+        Event event = dispatch(visitor, in, version, context, type);
+        if (event instanceof KeyValuePair<?, ?> && !filter.test((KeyValuePair<?, ?>) event)) return null;
+        return event;
+    }
+
+    protected Event dispatch(RdbVisitor visitor, RedisInputStream in, int version, ContextKeyValuePair context, int type) throws IOException {
+        switch (type) {
+            case RDB_TYPE_STRING:
+                return visitor.applyString(in, version, context);
+            case RDB_TYPE_LIST:
+                return visitor.applyList(in, version, context);
+            case RDB_TYPE_SET:
+                return visitor.applySet(in, version, context);
+            case RDB_TYPE_ZSET:
+                return visitor.applyZSet(in, version, context);
+            case RDB_TYPE_ZSET_2:
+                return visitor.applyZSet2(in, version, context);
+            case RDB_TYPE_HASH:
+                return visitor.applyHash(in, version, context);
+            case RDB_TYPE_HASH_ZIPMAP:
+                return visitor.applyHashZipMap(in, version, context);
+            case RDB_TYPE_LIST_ZIPLIST:
+                return visitor.applyListZipList(in, version, context);
+            case RDB_TYPE_SET_INTSET:
+                return visitor.applySetIntSet(in, version, context);
+            case RDB_TYPE_ZSET_ZIPLIST:
+                return visitor.applyZSetZipList(in, version, context);
+            case RDB_TYPE_HASH_ZIPLIST:
+                return visitor.applyHashZipList(in, version, context);
+            case RDB_TYPE_LIST_QUICKLIST:
+                return visitor.applyListQuickList(in, version, context);
+            case RDB_TYPE_MODULE:
+                return visitor.applyModule(in, version, context);
+            case RDB_TYPE_MODULE_2:
+                return visitor.applyModule2(in, version, context);
+            case RDB_TYPE_STREAM_LISTPACKS:
+                return visitor.applyStreamListPacks(in, version, context);
+            default:
+                throw new AssertionError("unexpected value type:" + type);
+        }
+    }
+
+    /*
+     * same as rdbGenericLoadStringObject but on the input buffer without consuming it.
+     */
+    private boolean peekKey(RedisInputStream in) throws IOException {
+        long len = peekLen(in, 0);
+        if (len < 0) return false;
+        int offset = lenSize;
+        if (!encoded) {
+            if (len > Integer.MAX_VALUE - offset || !in.peek(offset + (int) len)) return false;
+            key = in.array();
+            keyOff = in.head() + offset;
+            keyLen = (int) len;
+            return true;
+        }
+        switch ((int) len) {
+            case RDB_ENC_INT8:
+                if (!in.peek(offset + 1)) return false;
+                return toString(in.array()[in.head() + offset]);
+            case RDB_ENC_INT16:
+                if (!in.peek(offset + 2)) return false;
+                return toString((short) readLE(in.array(), in.head() + offset, 2));
+            case RDB_ENC_INT32:
+                if (!in.peek(offset + 4)) return false;
+                return toString(readLE(in.array(), in.head() + offset, 4));
+            case RDB_ENC_LZF:
+                long clen = peekLen(in, offset);
+                if (clen < 0) return false;
+                offset += lenSize;
+                long rawLen = peekLen(in, offset);
+                if (rawLen < 0) return false;
+                offset += lenSize;
+                if (clen > Integer.MAX_VALUE - offset || !in.peek(offset + (int) clen)) return false;
+                if (rawLen > lzf.length) {
+                    if (rawLen > in.bufSize()) return false;
+                    lzf = new byte[(int) rawLen];
+                }
+                Lzf.decode(in.array(), in.head() + offset, lzf, (int) rawLen);
+                key = lzf;
+                keyOff = 0;
+                keyLen = (int) rawLen;
+                return true;
+            default:
+                throw new AssertionError("unknown RdbParser encoding type:" + len);
+        }
+    }
+
+    /*
+     * same as rdbLoadLen at head() + offset, -1 if it does not fit in the buffer.
+     */
+    private long peekLen(RedisInputStream in, int offset) throws IOException {
+        encoded = false;
+        if (!in.peek(offset + 1)) return -1;
+        int rawByte = in.array()[in.head() + offset] & 0xFF;
+        int type = (rawByte & 0xC0) >> 6;
+        if (type == RDB_ENCVAL) {
+            encoded = true;
+            lenSize = 1;
+            return rawByte & 0x3F;
+        } else if (type == RDB_6BITLEN) {
+            lenSize = 1;
+            return rawByte & 0x3F;
+        } else if (type == RDB_14BITLEN) {
+            if (!in.peek(offset + 2)) return -1;
+            lenSize = 2;
+            return ((rawByte & 0x3F) << 8) | (in.array()[in.head() + offset + 1] & 0xFF);
+        } else if (rawByte == RDB_32BITLEN) {
+            if (!in.peek(offset + 5)) return -1;
+            lenSize = 5;
+            return readBE(in.array(), in.head() + offset + 1, 4);
+        } else if (rawByte == RDB_64BITLEN) {
+            if (!in.peek(offset + 9)) return -1;
+            lenSize = 9;
+            long len = readBE(in.array(), in.head() + offset + 1, 8);
+            return len < 0 ? Long.MAX_VALUE : len;
+        } else {
+            throw new AssertionError("unexpected len-type:" + type);
+        }
+    }
+
+    /*
+     * integer encoded key as decimal ascii in ints.
+     */
+    private boolean toString(int value) {
+        long v = value;
+        boolean negative = v < 0;
+        if (negative) v = -v;
+        int i = ints.length;
+        do {
+            ints[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        if (negative) ints[--i] = '-';
+        key = ints;
+        keyOff = i;
+        keyLen = ints.length - i;
+        return true;
+    }
+
+    private static int readLE(byte[] bytes, int offset, int len) {
+        int r = 0;
+        for (int i = 0; i < len; i++) r |= (bytes[offset + i] & 0xFF) << (i << 3);
+        return r;
+    }
+
+    private static long readBE(byte[] bytes, int offset, int len) {
+        long r = 0;
+        for (int i = 0; i < len; i++) r = (r << 8) | (bytes[offset + i] & 0xFF);
+        return r;
+    }
+}
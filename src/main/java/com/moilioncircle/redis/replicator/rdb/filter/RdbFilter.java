@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.filter;
+
+import com.moilioncircle.redis.replicator.rdb.datatype.ExpiredType;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+
+import java.util.BitSet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Predicate on a key and its context that {@link FilterRdbVisitor} evaluates before the value is decoded.
+ * All conditions must match, a condition that is not set matches everything.
+ * <pre>
+ * RdbFilter filter = new RdbFilter().dbs(0).types(RDB_TYPE_HASH, RDB_TYPE_HASH_ZIPLIST).keys("user:*").skipExpired().sample(1000);
+ * </pre>
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class RdbFilter {
+
+    private BitSet dbs;
+    private BitSet types;
+    private byte[][] patterns;
+    private int sample = 1;
+    private long now = Long.MIN_VALUE;
+
+    /**
+     * @param dbs accepted db numbers
+     * @return this
+     */
+    public RdbFilter dbs(int... dbs) {
+        this.dbs = bits(dbs);
+        return this;
+    }
+
+    /**
+     * @param types accepted rdb types, e.g. {@code RDB_TYPE_LIST}, {@code RDB_TYPE_LIST_ZIPLIST} and {@code RDB_TYPE_LIST_QUICKLIST} for lists
+     * @return this
+     */
+    public RdbFilter types(int... types) {
+        this.types = bits(types);
+        return this;
+    }
+
+    /**
+     * @param patterns redis glob style patterns like {@code KEYS}, a key is accepted if any of them matches
+     * @return this
+     */
+    public RdbFilter keys(String... patterns) {
+        byte[][] bytes = new byte[patterns.length][];
+        for (int i = 0; i < patterns.length; i++) bytes[i] = patterns[i].getBytes(UTF_8);
+        return keys(bytes);
+    }
+
+    public RdbFilter keys(byte[]... patterns) {
+        this.patterns = patterns.clone();
+        return this;
+    }
+
+    /**
+     * reject keys that expired before now.
+     *
+     * @return this
+     */
+    public RdbFilter skipExpired() {
+        return skipExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * @param now unix time in milliseconds, keys expired before it are rejected
+     * @return this
+     */
+    public RdbFilter skipExpired(long now) {
+        this.now = now;
+        return this;
+    }
+
+    /**
+     * accept 1 in {@code n} keys by key hash, the same keys are sampled in every run.
+     *
+     * @param n sample rate
+     * @return this
+     */
+    public RdbFilter sample(int n) {
+        if (n <= 0) throw new IllegalArgumentException(String.valueOf(n));
+        this.sample = n;
+        return this;
+    }
+
+    /**
+     * @return true if {@link #test(byte[], int, int)} needs the key
+     */
+    public boolean hasKeyPredicate() {
+        return patterns != null || sample > 1;
+    }
+
+    /**
+     * @param db          db number
+     * @param type        rdb type
+     * @param expiredType expired type
+     * @param expiredValue expired value
+     * @return false if the key must be rejected whatever it is
+     */
+    public boolean test(long db, int type, ExpiredType expiredType, Long expiredValue) {
+        if (dbs != null && (db < 0 || db > Integer.MAX_VALUE || !dbs.get((int) db))) return false;
+        if (types != null && (type < 0 || !types.get(type))) return false;
+        if (now != Long.MIN_VALUE && expiredValue != null) {
+            if (expiredType == ExpiredType.MS && expiredValue < now) return false;
+            if (expiredType == ExpiredType.SECOND && expiredValue * 1000L < now) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param key key
+     * @param off offset of the key
+     * @param len length of the key
+     * @return true if the key is accepted by key patterns and sampling
+     */
+    public boolean test(byte[] key, int off, int len) {
+        if (sample > 1 && hash(key, off, len) % sample != 0) return false;
+        if (patterns == null) return true;
+        for (byte[] pattern : patterns) {
+            if (match(pattern, 0, pattern.length, key, off, off + len)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * same predicate on a decoded key value pair, e.g. in an event listener.
+     *
+     * @param kv key value pair with a {@code byte[]} key
+     * @return true if accepted
+     */
+    public boolean test(KeyValuePair<?, ?> kv) {
+        long db = kv.getDb() == null ? 0 : kv.getDb().getDbNumber();
+        if (!test(db, kv.getValueRdbType(), kv.getExpiredType(), kv.getExpiredValue())) return false;
+        byte[] key = (byte[]) kv.getKey();
+        return !hasKeyPredicate() || test(key, 0, key.length);
+    }
+
+    /**
+     * redis {@code stringmatchlen} without nocase.
+     *
+     * @param pattern pattern
+     * @param key     key
+     * @return true if matches
+     */
+    public static boolean match(byte[] pattern, byte[] key) {
+        return match(pattern, 0, pattern.length, key, 0, key.length);
+    }
+
+    private static boolean match(byte[] p, int pi, int pe, byte[] s, int si, int se) {
+        while (pi < pe && si < se) {
+            switch (p[pi]) {
+                case '*':
+                    while (pi + 1 < pe && p[pi + 1] == '*') pi++;
+                    if (pi + 1 == pe) return true;
+                    for (; si < se; si++) {
+                        if (match(p, pi + 1, pe, s, si, se)) return true;
+                    }
+                    return false;
+                case '?':
+                    si++;
+                    break;
+                case '[': {
+                    pi++;
+                    boolean not = pi < pe && p[pi] == '^';
+                    if (not) pi++;
+                    boolean hit = false;
+                    int c = s[si] & 0xFF;
+                    while (true) {
+                        if (pi >= pe) {
+                            pi--;
+                            break;
+                        } else if (p[pi] == '\\' && pe - pi >= 2) {
+                            pi++;
+                            if (p[pi] == s[si]) hit = true;
+                        } else if (p[pi] == ']') {
+                            break;
+                        } else if (pe - pi >= 3 && p[pi + 1] == '-') {
+                            int start = p[pi] & 0xFF, end = p[pi + 2] & 0xFF;
+                            if (start > end) {
+                                int t = start;
+                                start = end;
+                                end = t;
+                            }
+                            pi += 2;
+                            if (c >= start && c <= end) hit = true;
+                        } else if (p[pi] == s[si]) {
+                            hit = true;
+                        }
+                        pi++;
+                    }
+                    if (not) hit = !hit;
+                    if (!hit) return false;
+                    si++;
+                    break;
+                }
+                case '\\':
+                    // an escaped char matches itself
+                    if (pe - pi >= 2) pi++;
+                    if (p[pi] != s[si]) return false;
+                    si++;
+                    break;
+                default:
+                    if (p[pi] != s[si]) return false;
+                    si++;
+                    break;
+            }
+            pi++;
+            if (si == se) {
+                while (pi < pe && p[pi] == '*') pi++;
+                break;
+            }
+        }
+        return pi == pe && si == se;
+    }
+
+    private static int hash(byte[] key, int off, int len) {
+        int h = 1;
+        for (int i = off; i < off + len; i++) h = 31 * h + key[i];
+        // murmur3 fmix32, spreads similar keys over all buckets
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & 0x7FFFFFFF;
+    }
+
+    private static BitSet bits(int... values) {
+        BitSet bits = new BitSet();
+        for (int v : values) {
+            if (v < 0) throw new IllegalArgumentException(String.valueOf(v));
+            bits.set(v);
+        }
+        return bits;
+    }
+}
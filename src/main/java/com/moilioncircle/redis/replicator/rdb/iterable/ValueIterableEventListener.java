@@ -35,7 +35,9 @@ import com.moilioncircle.redis.replicator.rdb.iterable.datatype.BatchedKeyString
 import com.moilioncircle.redis.replicator.rdb.iterable.datatype.BatchedKeyStringValueZSet;
 import com.moilioncircle.redis.replicator.rdb.iterable.datatype.KeyStringValueByteArrayIterator;
 import com.moilioncircle.redis.replicator.rdb.iterable.datatype.KeyStringValueMapEntryIterator;
+import com.moilioncircle.redis.replicator.rdb.iterable.datatype.KeyStringValueStreamEntryIterator;
 import com.moilioncircle.redis.replicator.rdb.iterable.datatype.KeyStringValueZSetEntryIterator;
+import com.moilioncircle.redis.replicator.rdb.iterable.datatype.StreamEntryIterator;
 import com.moilioncircle.redis.replicator.util.ByteArrayList;
 import com.moilioncircle.redis.replicator.util.ByteArrayMap;
 import com.moilioncircle.redis.replicator.util.ByteArraySet;
@@ -45,7 +47,9 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET;
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET_INTSET;
@@ -165,6 +169,28 @@ public class ValueIterableEventListener implements EventListener {
             listener.onEvent(replicator, module((KeyStringValueModule) kv, (Module) kv.getValue(), batch, true));
         } else if (kv instanceof KeyStringValueStream) {
             listener.onEvent(replicator, stream((KeyStringValueStream) kv, (Stream) kv.getValue(), batch, true));
+        } else if (kv instanceof KeyStringValueStreamEntryIterator) {
+            // Only the last batch carries lastId, length and groups of the stream.
+            KeyStringValueStreamEntryIterator xkv = (KeyStringValueStreamEntryIterator) kv;
+            StreamEntryIterator it = xkv.getValue();
+            NavigableMap<Stream.ID, Stream.Entry> prev = null, next = new TreeMap<>(Stream.ID.COMPARATOR);
+            while (it.hasNext()) {
+                Stream.Entry entry = it.next();
+                next.put(entry.getId(), entry);
+                if (next.size() == batchSize) {
+                    if (prev != null)
+                        listener.onEvent(replicator, stream(xkv, new Stream(null, prev, 0, null), batch++, false));
+                    prev = next;
+                    next = new TreeMap<>(Stream.ID.COMPARATOR);
+                }
+            }
+            final boolean last = next.isEmpty();
+            if (prev == null && last) prev = next; // empty stream
+            if (prev != null) {
+                Stream value = last ? new Stream(it.getLastId(), prev, it.getLength(), it.getGroups()) : new Stream(null, prev, 0, null);
+                listener.onEvent(replicator, stream(xkv, value, batch++, last));
+            }
+            if (!last) listener.onEvent(replicator, stream(xkv, new Stream(it.getLastId(), next, it.getLength(), it.getGroups()), batch++, true));
         }
     }
     
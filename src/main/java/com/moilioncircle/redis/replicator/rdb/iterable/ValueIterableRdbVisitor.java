@@ -23,18 +23,33 @@ import com.moilioncircle.redis.replicator.rdb.BaseRdbParser;
 import com.moilioncircle.redis.replicator.rdb.DefaultRdbVisitor;
 import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
 import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.Stream;
 import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
 import com.moilioncircle.redis.replicator.rdb.iterable.datatype.KeyStringValueByteArrayIterator;
 import com.moilioncircle.redis.replicator.rdb.iterable.datatype.KeyStringValueMapEntryIterator;
+import com.moilioncircle.redis.replicator.rdb.iterable.datatype.KeyStringValueStreamEntryIterator;
 import com.moilioncircle.redis.replicator.rdb.iterable.datatype.KeyStringValueZSetEntryIterator;
+import com.moilioncircle.redis.replicator.rdb.iterable.datatype.StreamEntryIterator;
+import com.moilioncircle.redis.replicator.util.ByteArray;
+import com.moilioncircle.redis.replicator.util.ByteArrayFieldMap;
+import com.moilioncircle.redis.replicator.util.ByteArrayMap;
+import com.moilioncircle.redis.replicator.util.Lzf;
 import com.moilioncircle.redis.replicator.util.Strings;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_LZF;
 import static com.moilioncircle.redis.replicator.Constants.RDB_LOAD_NONE;
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPLIST;
@@ -44,9 +59,13 @@ import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLI
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_ZIPLIST;
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET;
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET_INTSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STREAM_LISTPACKS;
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET;
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_2;
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.STREAM_ITEM_FLAG_DELETED;
+import static com.moilioncircle.redis.replicator.Constants.STREAM_ITEM_FLAG_SAMEFIELDS;
+import static com.moilioncircle.redis.replicator.rdb.BaseRdbParser.StringHelper.listPackEntry;
 
 /**
  * @author Leon Chen
@@ -54,8 +73,38 @@ import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_ZIPLIST
  */
 public class ValueIterableRdbVisitor extends DefaultRdbVisitor {
 
+    protected final int readAhead;
+    protected final ForkJoinPool pool;
+
     public ValueIterableRdbVisitor(Replicator replicator) {
+        this(replicator, 0, null);
+    }
+
+    /**
+     * @param replicator the replicator
+     * @param readAhead  max quicklist nodes read ahead of the iterator, 0 to decode nodes on the parser thread
+     * @since 3.1.0
+     */
+    public ValueIterableRdbVisitor(Replicator replicator, int readAhead) {
+        this(replicator, readAhead, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * read ahead quicklist nodes and decompress them on {@code pool}. elements are still
+     * yielded in order and at most {@code readAhead} decoded nodes are held in memory.
+     *
+     * @param replicator the replicator
+     * @param readAhead  max quicklist nodes read ahead of the iterator, 0 to decode nodes on the parser thread
+     * @param pool       the pool that decompresses and decodes quicklist nodes
+     * @since 3.1.0
+     */
+    public ValueIterableRdbVisitor(Replicator replicator, int readAhead, ForkJoinPool pool) {
         super(replicator);
+        if (readAhead < 0 || (readAhead > 0 && pool == null)) {
+            throw new IllegalArgumentException(String.valueOf(readAhead));
+        }
+        this.readAhead = readAhead;
+        this.pool = pool;
     }
 
     @Override
@@ -432,12 +481,28 @@ public class ValueIterableRdbVisitor extends DefaultRdbVisitor {
         KeyValuePair<byte[], Iterator<byte[]>> o14 = new KeyStringValueByteArrayIterator();
         byte[] key = parser.rdbLoadEncodedStringObject().first();
         long len = parser.rdbLoadLen().len;
-        o14.setValue(new QuickListIter(len, parser));
+        if (readAhead > 0) {
+            o14.setValue(new ReadAheadQuickListIter(len, parser, in, readAhead, pool));
+        } else {
+            o14.setValue(new QuickListIter(len, parser));
+        }
         o14.setValueRdbType(RDB_TYPE_LIST_QUICKLIST);
         o14.setKey(key);
         return context.valueOf(o14);
     }
 
+    @Override
+    public Event applyStreamListPacks(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        KeyValuePair<byte[], StreamEntryIterator> o15 = new KeyStringValueStreamEntryIterator();
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long listPacks = parser.rdbLoadLen().len;
+        o15.setValue(new StreamIter(listPacks, parser, in));
+        o15.setValueRdbType(RDB_TYPE_STREAM_LISTPACKS);
+        o15.setKey(key);
+        return context.valueOf(o15);
+    }
+
     private static abstract class Iter<T> implements Iterator<T> {
 
         protected long condition;
@@ -541,4 +606,239 @@ public class ValueIterableRdbVisitor extends DefaultRdbVisitor {
             }
         }
     }
+
+    private static class ReadAheadQuickListIter extends Iter<byte[]> {
+
+        protected int index;
+        protected byte[][] node;
+        protected final int readAhead;
+        protected final ForkJoinPool pool;
+        protected final RedisInputStream in;
+        protected final Deque<ForkJoinTask<byte[][]>> nodes = new ArrayDeque<>();
+
+        private ReadAheadQuickListIter(long condition, BaseRdbParser parser, RedisInputStream in, int readAhead, ForkJoinPool pool) {
+            super(condition, parser);
+            this.in = in;
+            this.pool = pool;
+            this.readAhead = readAhead;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (node == null || index >= node.length) {
+                    node = null;
+                    if (nodes.isEmpty() && condition == 0) return false;
+                    // the stream is only read on this thread, nodes are decoded on the pool.
+                    while (nodes.size() < readAhead && condition > 0) {
+                        nodes.addLast(pool.submit(decode(parser, in)));
+                        condition--;
+                    }
+                    node = nodes.removeFirst().join();
+                    index = 0;
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public byte[] next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            byte[] e = node[index];
+            node[index++] = null;
+            return e;
+        }
+
+        private static Callable<byte[][]> decode(BaseRdbParser parser, RedisInputStream in) throws IOException {
+            BaseRdbParser.Len lenObj = parser.rdbLoadLen();
+            final ByteArray bytes;
+            final long len;
+            if (!lenObj.encoded) {
+                len = -1L;
+                bytes = in.readBytes(lenObj.len);
+            } else if (lenObj.len == RDB_ENC_LZF) {
+                long clen = parser.rdbLoadLen().len;
+                len = parser.rdbLoadLen().len;
+                bytes = in.readBytes(clen);
+            } else {
+                throw new AssertionError("unknown RdbParser encoding type:" + lenObj.len);
+            }
+            return new Callable<byte[][]>() {
+                @Override
+                public byte[][] call() throws Exception {
+                    RedisInputStream stream = new RedisInputStream(len == -1L ? bytes : Lzf.decode(bytes, len));
+                    BaseRdbParser.LenHelper.zlbytes(stream); // zlbytes
+                    BaseRdbParser.LenHelper.zltail(stream); // zltail
+                    int zllen = BaseRdbParser.LenHelper.zllen(stream);
+                    byte[][] node = new byte[zllen][];
+                    for (int i = 0; i < zllen; i++) {
+                        node[i] = BaseRdbParser.StringHelper.zipListEntry(stream);
+                    }
+                    int zlend = BaseRdbParser.LenHelper.zlend(stream);
+                    if (zlend != 255) {
+                        throw new AssertionError("zlend expect 255 but " + zlend);
+                    }
+                    return node;
+                }
+            };
+        }
+    }
+
+    private class StreamIter extends Iter<Stream.Entry> implements StreamEntryIterator {
+
+        protected long total;
+        protected Stream.ID baseId;
+        protected byte[][] masterFields;
+        protected boolean masterDistinct;
+        protected RedisInputStream listPack;
+        protected final RedisInputStream in;
+
+        protected long length;
+        protected Stream.ID lastId;
+        protected List<Stream.Group> groups;
+
+        private StreamIter(long condition, BaseRdbParser parser, RedisInputStream in) {
+            super(condition, parser);
+            this.in = in;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (total == 0) {
+                    if (listPack != null) {
+                        int lpend = listPack.read(); // lp-end
+                        if (lpend != 255) {
+                            throw new AssertionError("listpack expect 255 but " + lpend);
+                        }
+                        listPack = null;
+                    }
+                    if (condition > 0) {
+                        nextListPack();
+                        condition--;
+                    } else {
+                        if (groups == null) {
+                            this.length = parser.rdbLoadLen().len;
+                            this.lastId = new Stream.ID(parser.rdbLoadLen().len, parser.rdbLoadLen().len);
+                            this.groups = rdbLoadStreamGroups(parser, in);
+                        }
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Stream.Entry next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            try {
+                /*
+                 * FLAG
+                 * +-----+--------+
+                 * |flags|entry-id|
+                 * +-----+--------+
+                 */
+                int flag = Integer.parseInt(Strings.toString(listPackEntry(listPack)));
+                long ms = Long.parseLong(Strings.toString(listPackEntry(listPack)));
+                long seq = Long.parseLong(Strings.toString(listPackEntry(listPack)));
+                Stream.ID id = baseId.delta(ms, seq);
+                boolean delete = (flag & STREAM_ITEM_FLAG_DELETED) != 0;
+                byte[][] fields, values;
+                boolean distinct;
+                if ((flag & STREAM_ITEM_FLAG_SAMEFIELDS) != 0) {
+                    /*
+                     * SAMEFIELD
+                     * +-------+-/-+-------+--------+
+                     * |value-1|...|value-N|lp-count|
+                     * +-------+-/-+-------+--------+
+                     */
+                    fields = masterFields;
+                    distinct = masterDistinct;
+                    values = new byte[fields.length][];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = listPackEntry(listPack);
+                    }
+                } else {
+                    /*
+                     * NONEFIELD
+                     * +----------+-------+-------+-/-+-------+-------+--------+
+                     * |num-fields|field-1|value-1|...|field-N|value-N|lp-count|
+                     * +----------+-------+-------+-/-+-------+-------+--------+
+                     */
+                    int numFields = Integer.parseInt(Strings.toString(listPackEntry(listPack)));
+                    fields = new byte[numFields][];
+                    values = new byte[numFields][];
+                    for (int i = 0; i < numFields; i++) {
+                        fields[i] = listPackEntry(listPack);
+                        values[i] = listPackEntry(listPack);
+                    }
+                    distinct = ByteArrayFieldMap.distinct(fields);
+                }
+                listPackEntry(listPack); // lp-count
+                total--;
+                return new Stream.Entry(id, delete, fields(fields, values, distinct));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Stream.ID getLastId() {
+            if (groups == null) throw new IllegalStateException("entries not consumed");
+            return lastId;
+        }
+
+        @Override
+        public long getLength() {
+            if (groups == null) throw new IllegalStateException("entries not consumed");
+            return length;
+        }
+
+        @Override
+        public List<Stream.Group> getGroups() {
+            if (groups == null) throw new IllegalStateException("entries not consumed");
+            return groups;
+        }
+
+        private void nextListPack() throws IOException {
+            RedisInputStream rawId = new RedisInputStream(parser.rdbLoadPlainStringObject());
+            this.baseId = new Stream.ID(rawId.readLong(8, false), rawId.readLong(8, false));
+            this.listPack = new RedisInputStream(parser.rdbLoadPlainStringObject());
+            listPack.skip(4); // total-bytes
+            listPack.skip(2); // num-elements
+            /*
+             * Master entry
+             * +-------+---------+------------+---------+--/--+---------+---------+-+
+             * | count | deleted | num-fields | field_1 | field_2 | ... | field_N |0|
+             * +-------+---------+------------+---------+--/--+---------+---------+-+
+             */
+            long count = Long.parseLong(Strings.toString(listPackEntry(listPack))); // count
+            long deleted = Long.parseLong(Strings.toString(listPackEntry(listPack))); // deleted
+            int numFields = Integer.parseInt(Strings.toString(listPackEntry(listPack))); // num-fields
+            this.masterFields = new byte[numFields][];
+            for (int i = 0; i < numFields; i++) {
+                masterFields[i] = listPackEntry(listPack);
+            }
+            listPackEntry(listPack); // 0
+            this.masterDistinct = ByteArrayFieldMap.distinct(masterFields);
+            this.total = count + deleted;
+        }
+
+        /*
+         * duplicate field names are legal in a stream entry, they collapse like DefaultRdbVisitor does.
+         */
+        private Map<byte[], byte[]> fields(byte[][] fields, byte[][] values, boolean distinct) {
+            if (distinct) return new ByteArrayFieldMap(fields, values);
+            Map<byte[], byte[]> map = new ByteArrayMap();
+            for (int i = 0; i < fields.length; i++) {
+                map.put(fields[i], values[i]);
+            }
+            return map;
+        }
+    }
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.iterable.datatype;
+
+import com.moilioncircle.redis.replicator.rdb.datatype.Stream;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Stream entries in listpack order. Entries that use the master fields of a listpack share one field array.
+ * <p>
+ * The stream trailer and consumer groups are stored after all entries, so {@link #getLastId()},
+ * {@link #getLength()} and {@link #getGroups()} are only available after {@link #hasNext()} returned false.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public interface StreamEntryIterator extends Iterator<Stream.Entry> {
+
+    /**
+     * @return last id of the stream
+     * @throws IllegalStateException if entries are not fully consumed
+     */
+    Stream.ID getLastId();
+
+    /**
+     * @return length of the stream
+     * @throws IllegalStateException if entries are not fully consumed
+     */
+    long getLength();
+
+    /**
+     * @return consumer groups of the stream
+     * @throws IllegalStateException if entries are not fully consumed
+     */
+    List<Stream.Group> getGroups();
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.memory;
+
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.rdb.BaseRdbParser;
+import com.moilioncircle.redis.replicator.rdb.DefaultRdbVisitor;
+import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.ExpiredType;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.memory.datatype.MemoryKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.skip.SkipRdbParser;
+
+import java.io.IOException;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT16;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT32;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT8;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_LZF;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPMAP;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET_INTSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STREAM_LISTPACKS;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STRING;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_ZIPLIST;
+
+/**
+ * Emits a {@link MemoryKeyValuePair} per key with the encoded size and the estimated memory of the key
+ * in a 64 bit redis with jemalloc, like redis-rdb-tools. Only keys are decoded, elements are skipped and
+ * compact encodings (ziplist, intset, listpack, zipmap) are sized from their headers, so it runs in
+ * constant memory. Aggregate the events with {@link MemoryReport}:
+ * <pre>
+ * Replicator r = new RedisReplicator(file, FileType.RDB, Configuration.defaultSetting());
+ * MemoryReport report = new MemoryReport();
+ * r.setRdbVisitor(new MemoryRdbVisitor(r));
+ * r.addEventListener(report);
+ * r.open();
+ * System.out.println(report);
+ * </pre>
+ * Module values are decoded by their module parser and sized by their encoded size.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class MemoryRdbVisitor extends DefaultRdbVisitor {
+
+    protected static final long ROBJ = 16;
+    protected static final long DICT_ENTRY = 24;
+    protected static final long QUICKLIST = 40;
+    protected static final long QUICKLIST_NODE = 32;
+    protected static final long ZIPLIST_HEADER = 11;
+    protected static final int QUICKLIST_FILL = 8192;
+    protected static final int EMBSTR_LIMIT = 44;
+
+    /*
+     * header of the last skipped blob, see skipBlob.
+     */
+    private final byte[] header = new byte[10];
+    private int headerLen;
+    private boolean intEncoded;
+
+    public MemoryRdbVisitor(Replicator replicator) {
+        super(replicator);
+    }
+
+    @Override
+    public Event applyString(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long start = position(in);
+        BaseRdbParser parser = new BaseRdbParser(in);
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long len = skipString(in, parser);
+        if (intEncoded) {
+            return valueOf(in, start, key, RDB_TYPE_STRING, "int", malloc(ROBJ), len, len, context);
+        } else if (len <= EMBSTR_LIMIT) {
+            return valueOf(in, start, key, RDB_TYPE_STRING, "embstr", malloc(ROBJ + 3 + len + 1), len, len, context);
+        } else {
+            return valueOf(in, start, key, RDB_TYPE_STRING, "raw", malloc(ROBJ) + sds(len), len, len, context);
+        }
+    }
+
+    @Override
+    public Event applyList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long start = position(in);
+        BaseRdbParser parser = new BaseRdbParser(in);
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long len = parser.rdbLoadLen().len;
+        // loaded as a quicklist of ziplists
+        long memory = malloc(ROBJ) + malloc(QUICKLIST), largest = 0, zl = ZIPLIST_HEADER;
+        for (long i = 0; i < len; i++) {
+            long e = skipString(in, parser);
+            largest = Math.max(largest, e);
+            e = intEncoded ? 6 : e + (e <= 0x3F ? 2 : e <= 0x3FFF ? 3 : 6);
+            if (zl + e > QUICKLIST_FILL && zl > ZIPLIST_HEADER) {
+                memory += malloc(QUICKLIST_NODE) + malloc(zl);
+                zl = ZIPLIST_HEADER;
+            }
+            zl += e;
+        }
+        if (len > 0) memory += malloc(QUICKLIST_NODE) + malloc(zl);
+        return valueOf(in, start, key, RDB_TYPE_LIST, "linkedlist", memory, len, largest, context);
+    }
+
+    @Override
+    public Event applySet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long start = position(in);
+        BaseRdbParser parser = new BaseRdbParser(in);
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long len = parser.rdbLoadLen().len;
+        long memory = malloc(ROBJ) + dict(len), largest = 0;
+        for (long i = 0; i < len; i++) {
+            long e = skipString(in, parser);
+            largest = Math.max(largest, e);
+            memory += malloc(DICT_ENTRY) + sds(e);
+        }
+        return valueOf(in, start, key, RDB_TYPE_SET, "hashtable", memory, len, largest, context);
+    }
+
+    @Override
+    public Event applyZSet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return applyZSet(in, context, RDB_TYPE_ZSET);
+    }
+
+    @Override
+    public Event applyZSet2(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return applyZSet(in, context, RDB_TYPE_ZSET_2);
+    }
+
+    @Override
+    public Event applyHash(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long start = position(in);
+        BaseRdbParser parser = new BaseRdbParser(in);
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long len = parser.rdbLoadLen().len;
+        long memory = malloc(ROBJ) + dict(len), largest = 0;
+        for (long i = 0; i < len; i++) {
+            long field = skipString(in, parser);
+            long value = skipString(in, parser);
+            largest = Math.max(largest, Math.max(field, value));
+            memory += malloc(DICT_ENTRY) + sds(field) + sds(value);
+        }
+        return valueOf(in, start, key, RDB_TYPE_HASH, "hashtable", memory, len, largest, context);
+    }
+
+    @Override
+    public Event applyHashZipMap(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long start = position(in);
+        BaseRdbParser parser = new BaseRdbParser(in);
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long len = skipBlob(in, parser);
+        long count = headerLen >= 1 && (header[0] & 0xFF) < 254 ? header[0] & 0xFF : -1;
+        return valueOf(in, start, key, RDB_TYPE_HASH_ZIPMAP, "zipmap", malloc(ROBJ) + malloc(len), count, -1, context);
+    }
+
+    @Override
+    public Event applyListZipList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long start = position(in);
+        BaseRdbParser parser = new BaseRdbParser(in);
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long len = skipBlob(in, parser);
+        long memory = malloc(ROBJ) + malloc(QUICKLIST) + malloc(QUICKLIST_NODE) + malloc(len);
+        return valueOf(in, start, key, RDB_TYPE_LIST_ZIPLIST, "ziplist", memory, zipListLen(), -1, context);
+    }
+
+    @Override
+    public Event applySetIntSet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long start = position(in);
+        BaseRdbParser parser = new BaseRdbParser(in);
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long len = skipBlob(in, parser);
+        long count = headerLen >= 8 ? readLE(header, 4, 4) & 0xFFFFFFFFL : -1;
+        return valueOf(in, start, key, RDB_TYPE_SET_INTSET, "intset", malloc(ROBJ) + malloc(len), count, -1, context);
+    }
+
+    @Override
+    public Event applyZSetZipList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long start = position(in);
+        BaseRdbParser parser = new BaseRdbParser(in);
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long len = skipBlob(in, parser);
+        long count = zipListLen();
+        return valueOf(in, start, key, RDB_TYPE_ZSET_ZIPLIST, "ziplist", malloc(ROBJ) + malloc(len), count < 0 ? -1 : count / 2, -1, context);
+    }
+
+    @Override
+    public Event applyHashZipList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long start = position(in);
+        BaseRdbParser parser = new BaseRdbParser(in);
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long len = skipBlob(in, parser);
+        long count = zipListLen();
+        return valueOf(in, start, key, RDB_TYPE_HASH_ZIPLIST, "ziplist", malloc(ROBJ) + malloc(len), count < 0 ? -1 : count / 2, -1, context);
+    }
+
+    @Override
+    public Event applyListQuickList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long start = position(in);
+        BaseRdbParser parser = new BaseRdbParser(in);
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long nodes = parser.rdbLoadLen().len;
+        long memory = malloc(ROBJ) + malloc(QUICKLIST), count = 0;
+        for (long i = 0; i < nodes; i++) {
+            memory += malloc(QUICKLIST_NODE) + malloc(skipBlob(in, parser));
+            long n = zipListLen();
+            count = n < 0 || count < 0 ? -1 : count + n;
+        }
+        return valueOf(in, start, key, RDB_TYPE_LIST_QUICKLIST, "quicklist", memory, count, -1, context);
+    }
+
+    @Override
+    public Event applyModule(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long start = position(in);
+        KeyValuePair<?, ?> kv = (KeyValuePair<?, ?>) super.applyModule(in, version, context);
+        long size = position(in) - start;
+        return valueOf(in, start, (byte[]) kv.getKey(), kv.getValueRdbType(), "module", malloc(ROBJ) + size, -1, -1, context);
+    }
+
+    @Override
+    public Event applyModule2(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long start = position(in);
+        KeyValuePair<?, ?> kv = (KeyValuePair<?, ?>) super.applyModule2(in, version, context);
+        long size = position(in) - start;
+        return valueOf(in, start, (byte[]) kv.getKey(), kv.getValueRdbType(), "module", malloc(ROBJ) + size, -1, -1, context);
+    }
+
+    @Override
+    public Event applyStreamListPacks(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        long start = position(in);
+        BaseRdbParser parser = new BaseRdbParser(in);
+        SkipRdbParser skip = new SkipRdbParser(in);
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        // stream + rax
+        long memory = malloc(ROBJ) + malloc(48) + malloc(24);
+        long listPacks = parser.rdbLoadLen().len;
+        while (listPacks-- > 0) {
+            // rax node with a 16 bytes stream id + listpack
+            skip.rdbLoadPlainStringObject();
+            memory += malloc(48) + malloc(skipBlob(in, parser));
+        }
+        long length = parser.rdbLoadLen().len;
+        parser.rdbLoadLen();
+        parser.rdbLoadLen();
+        long groupCount = parser.rdbLoadLen().len;
+        while (groupCount-- > 0) {
+            memory += malloc(48) + sds(skipString(in, parser));
+            parser.rdbLoadLen();
+            parser.rdbLoadLen();
+            long groupPel = parser.rdbLoadLen().len;
+            while (groupPel-- > 0) {
+                in.skip(16);
+                skip.rdbLoadMillisecondTime();
+                parser.rdbLoadLen();
+                memory += malloc(40) + malloc(48);
+            }
+            long consumerCount = parser.rdbLoadLen().len;
+            while (consumerCount-- > 0) {
+                memory += malloc(48) + sds(skipString(in, parser));
+                skip.rdbLoadMillisecondTime();
+                long consumerPel = parser.rdbLoadLen().len;
+                in.skip(consumerPel * 16);
+                memory += consumerPel * malloc(48);
+            }
+        }
+        return valueOf(in, start, key, RDB_TYPE_STREAM_LISTPACKS, "listpacks", memory, length, -1, context);
+    }
+
+    protected Event applyZSet(RedisInputStream in, ContextKeyValuePair context, int type) throws IOException {
+        long start = position(in);
+        BaseRdbParser parser = new BaseRdbParser(in);
+        SkipRdbParser skip = new SkipRdbParser(in);
+        byte[] key = parser.rdbLoadEncodedStringObject().first();
+        long len = parser.rdbLoadLen().len;
+        // zset + dict + skiplist with its 32 levels header
+        long memory = malloc(ROBJ) + malloc(16) + dict(len) + malloc(32) + malloc(24 + 16 * 32), largest = 0;
+        for (long i = 0; i < len; i++) {
+            long e = skipString(in, parser);
+            if (type == RDB_TYPE_ZSET_2) skip.rdbLoadBinaryDoubleValue();
+            else skip.rdbLoadDoubleValue();
+            largest = Math.max(largest, e);
+            memory += malloc(DICT_ENTRY) + malloc(24 + 16) + sds(e);
+        }
+        return valueOf(in, start, key, type, "skiplist", memory, len, largest, context);
+    }
+
+    protected Event valueOf(RedisInputStream in, long start, byte[] key, int type, String encoding, long memory, long length, long largest, ContextKeyValuePair context) {
+        MemoryKeyValuePair kv = new MemoryKeyValuePair();
+        kv.setKey(key);
+        kv.setValueRdbType(type);
+        kv.setEncoding(encoding);
+        kv.setEncodedSize(position(in) - start);
+        // dict entry + key + bucket, and the same in the expires dict
+        long overhead = malloc(DICT_ENTRY) + sds(key.length) + 8;
+        if (context.getExpiredType() != ExpiredType.NONE) overhead += malloc(DICT_ENTRY) + 8;
+        kv.setMemory(overhead + memory);
+        kv.setLength(length);
+        kv.setLargestElement(largest);
+        return context.valueOf(kv);
+    }
+
+    /**
+     * jemalloc size class of an allocation.
+     *
+     * @param size requested bytes
+     * @return allocated bytes
+     */
+    protected long malloc(long size) {
+        if (size <= 0) return 0;
+        if (size <= 8) return 8;
+        if (size <= 128) return (size + 15) & ~15L;
+        long spacing = Long.highestOneBit(size - 1) >>> 2;
+        return (size + spacing - 1) & ~(spacing - 1);
+    }
+
+    protected long sds(long len) {
+        long header = len < 1 << 5 ? 1 : len < 1 << 8 ? 3 : len < 1 << 16 ? 5 : len < 1L << 32 ? 9 : 17;
+        return malloc(header + len + 1);
+    }
+
+    protected long dict(long size) {
+        if (size == 0) return malloc(96);
+        long buckets = Long.highestOneBit(size);
+        if (buckets < size) buckets <<= 1;
+        return malloc(96) + malloc(8 * buckets);
+    }
+
+    /*
+     * bytes consumed so far.
+     */
+    private static long position(RedisInputStream in) {
+        return in.total() - in.tail() + in.head();
+    }
+
+    /*
+     * skip a string object and return its length, integers are counted as decimal strings.
+     */
+    private long skipString(RedisInputStream in, BaseRdbParser parser) throws IOException {
+        intEncoded = false;
+        BaseRdbParser.Len len = parser.rdbLoadLen();
+        if (!len.encoded) {
+            in.skip(len.len);
+            return len.len;
+        }
+        switch ((int) len.len) {
+            case RDB_ENC_INT8:
+                intEncoded = true;
+                return digits(in.readInt(1));
+            case RDB_ENC_INT16:
+                intEncoded = true;
+                return digits(in.readInt(2));
+            case RDB_ENC_INT32:
+                intEncoded = true;
+                return digits(in.readInt(4));
+            case RDB_ENC_LZF:
+                long clen = parser.rdbLoadLen().len;
+                long rawLen = parser.rdbLoadLen().len;
+                in.skip(clen);
+                return rawLen;
+            default:
+                throw new AssertionError("unknown RdbParser encoding type:" + len.len);
+        }
+    }
+
+    /*
+     * skip a ziplist, listpack, intset or zipmap and return its length. its first bytes are kept in header,
+     * they are read from the first literal run of lzf compressed blobs.
+     */
+    private long skipBlob(RedisInputStream in, BaseRdbParser parser) throws IOException {
+        headerLen = 0;
+        BaseRdbParser.Len len = parser.rdbLoadLen();
+        if (!len.encoded) {
+            int n = (int) Math.min(len.len, header.length);
+            if (in.peek(n)) {
+                System.arraycopy(in.array(), in.head(), header, 0, n);
+                headerLen = n;
+            }
+            in.skip(len.len);
+            return len.len;
+        }
+        if (len.len != RDB_ENC_LZF) return skipString(in, parser);
+        long clen = parser.rdbLoadLen().len;
+        long rawLen = parser.rdbLoadLen().len;
+        int n = (int) Math.min(clen, header.length + 1);
+        if (n > 0 && in.peek(n)) {
+            int ctrl = in.array()[in.head()] & 0xFF;
+            if (ctrl < 1 << 5) {
+                headerLen = Math.min(ctrl + 1, n - 1);
+                System.arraycopy(in.array(), in.head() + 1, header, 0, headerLen);
+            }
+        }
+        in.skip(clen);
+        return rawLen;
+    }
+
+    /*
+     * zllen of the last ziplist, -1 if unknown.
+     */
+    private long zipListLen() {
+        if (headerLen < 10) return -1;
+        int zllen = readLE(header, 8, 2) & 0xFFFF;
+        return zllen == 0xFFFF ? -1 : zllen;
+    }
+
+    private static int readLE(byte[] bytes, int offset, int len) {
+        int r = 0;
+        for (int i = 0; i < len; i++) r |= (bytes[offset + i] & 0xFF) << (i << 3);
+        return r;
+    }
+
+    private static long digits(int value) {
+        long v = value;
+        int n = v < 0 ? 2 : 1;
+        for (v = Math.abs(v); v >= 10; v /= 10) n++;
+        return n;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.memory;
+
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.ExpiredType;
+import com.moilioncircle.redis.replicator.rdb.memory.datatype.MemoryKeyValuePair;
+import com.moilioncircle.redis.replicator.util.Strings;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPMAP;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_MODULE;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_MODULE_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET_INTSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STREAM_LISTPACKS;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STRING;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_ZIPLIST;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Aggregates {@link MemoryKeyValuePair} events of {@link MemoryRdbVisitor} in bounded memory:
+ * the top K biggest keys, counts and memory per type and per encoding, a ttl histogram and memory per key prefix.
+ * At most {@code maxPrefixes} prefixes are tracked, keys of later prefixes are counted as {@code (other)}.
+ * <p>
+ * {@link #toString()} renders a compact text summary, one record per line.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class MemoryReport implements EventListener {
+
+    private static final String OTHER = "(other)";
+    private static final String NONE = "(none)";
+
+    private static final String[] TYPES = {"string", "list", "set", "zset", "hash", "module", "stream"};
+    private static final String[] TTLS = {"none", "expired", "<1m", "<1h", "<1d", "<7d", "<30d", ">=30d"};
+    private static final long[] TTL_LIMITS = {60_000L, 3600_000L, 86400_000L, 7 * 86400_000L, 30 * 86400_000L};
+
+    private static final Comparator<MemoryKeyValuePair> BY_MEMORY = new Comparator<MemoryKeyValuePair>() {
+        @Override
+        public int compare(MemoryKeyValuePair o1, MemoryKeyValuePair o2) {
+            return Long.compare(o1.getMemory(), o2.getMemory());
+        }
+    };
+
+    private final int topK;
+    private final int maxPrefixes;
+    private final byte delimiter;
+    private final long now;
+
+    private long keys;
+    private long encodedSize;
+    private long memory;
+    private final long[][] types = new long[TYPES.length][3];
+    private final long[] ttls = new long[TTLS.length];
+    private final Map<String, long[]> encodings = new TreeMap<>();
+    private final Map<String, long[]> prefixes = new HashMap<>();
+    private final PriorityQueue<MemoryKeyValuePair> top;
+
+    public MemoryReport() {
+        this(100, 1000, (byte) ':', System.currentTimeMillis());
+    }
+
+    /**
+     * @param topK        number of biggest keys to keep
+     * @param maxPrefixes max number of tracked key prefixes
+     * @param delimiter   a key prefix is the key up to the first delimiter
+     * @param now         unix time in milliseconds that ttls are relative to
+     */
+    public MemoryReport(int topK, int maxPrefixes, byte delimiter, long now) {
+        if (topK < 0) throw new IllegalArgumentException(String.valueOf(topK));
+        if (maxPrefixes < 0) throw new IllegalArgumentException(String.valueOf(maxPrefixes));
+        this.topK = topK;
+        this.maxPrefixes = maxPrefixes;
+        this.delimiter = delimiter;
+        this.now = now;
+        this.top = new PriorityQueue<>(Math.max(topK, 1), BY_MEMORY);
+    }
+
+    @Override
+    public void onEvent(Replicator replicator, Event event) {
+        if (event instanceof MemoryKeyValuePair) add((MemoryKeyValuePair) event);
+    }
+
+    public void add(MemoryKeyValuePair kv) {
+        keys++;
+        encodedSize += kv.getEncodedSize();
+        memory += kv.getMemory();
+
+        long[] type = types[type(kv.getValueRdbType())];
+        type[0]++;
+        type[1] += kv.getMemory();
+        if (kv.getLength() > 0) type[2] += kv.getLength();
+
+        long[] encoding = encodings.get(kv.getEncoding());
+        if (encoding == null) encodings.put(kv.getEncoding(), encoding = new long[2]);
+        encoding[0]++;
+        encoding[1] += kv.getMemory();
+
+        ttls[ttl(kv.getExpiredType(), kv.getExpiredValue())]++;
+
+        String prefix = prefix(kv.getKey());
+        long[] p = prefixes.get(prefix);
+        if (p == null) {
+            if (prefixes.size() >= maxPrefixes) prefix = OTHER;
+            p = prefixes.get(prefix);
+            if (p == null) prefixes.put(prefix, p = new long[2]);
+        }
+        p[0]++;
+        p[1] += kv.getMemory();
+
+        if (topK == 0) return;
+        if (top.size() < topK) {
+            top.add(kv);
+        } else if (top.peek().getMemory() < kv.getMemory()) {
+            top.poll();
+            top.add(kv);
+        }
+    }
+
+    public long getKeys() {
+        return keys;
+    }
+
+    public long getEncodedSize() {
+        return encodedSize;
+    }
+
+    public long getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return biggest keys in descending order of memory
+     */
+    public List<MemoryKeyValuePair> getTop() {
+        List<MemoryKeyValuePair> list = new ArrayList<>(top);
+        Collections.sort(list, Collections.reverseOrder(BY_MEMORY));
+        return list;
+    }
+
+    /**
+     * @return type name to {count, memory, elements}
+     */
+    public Map<String, long[]> getTypes() {
+        Map<String, long[]> map = new TreeMap<>();
+        for (int i = 0; i < TYPES.length; i++) {
+            if (types[i][0] > 0) map.put(TYPES[i], types[i].clone());
+        }
+        return map;
+    }
+
+    /**
+     * @return encoding to {count, memory}
+     */
+    public Map<String, long[]> getEncodings() {
+        Map<String, long[]> map = new TreeMap<>();
+        for (Map.Entry<String, long[]> entry : encodings.entrySet()) map.put(entry.getKey(), entry.getValue().clone());
+        return map;
+    }
+
+    /**
+     * @return ttl bucket to count, buckets are none, expired, &lt;1m, &lt;1h, &lt;1d, &lt;7d, &lt;30d and &gt;=30d
+     */
+    public Map<String, Long> getTtls() {
+        Map<String, Long> map = new TreeMap<>();
+        for (int i = 0; i < TTLS.length; i++) map.put(TTLS[i], ttls[i]);
+        return map;
+    }
+
+    /**
+     * @return key prefix to {count, memory}
+     */
+    public Map<String, long[]> getPrefixes() {
+        Map<String, long[]> map = new TreeMap<>();
+        for (Map.Entry<String, long[]> entry : prefixes.entrySet()) map.put(entry.getKey(), entry.getValue().clone());
+        return map;
+    }
+
+    public void write(Appendable out) throws IOException {
+        out.append("keys ").append(String.valueOf(keys))
+                .append(" encoded ").append(String.valueOf(encodedSize))
+                .append(" memory ").append(String.valueOf(memory)).append('\n');
+        for (int i = 0; i < TYPES.length; i++) {
+            if (types[i][0] == 0) continue;
+            out.append("type ").append(TYPES[i])
+                    .append(" count ").append(String.valueOf(types[i][0]))
+                    .append(" memory ").append(String.valueOf(types[i][1]))
+                    .append(" elements ").append(String.valueOf(types[i][2])).append('\n');
+        }
+        for (Map.Entry<String, long[]> entry : encodings.entrySet()) {
+            out.append("encoding ").append(entry.getKey())
+                    .append(" count ").append(String.valueOf(entry.getValue()[0]))
+                    .append(" memory ").append(String.valueOf(entry.getValue()[1])).append('\n');
+        }
+        for (int i = 0; i < TTLS.length; i++) {
+            if (ttls[i] == 0) continue;
+            out.append("ttl ").append(TTLS[i]).append(" count ").append(String.valueOf(ttls[i])).append('\n');
+        }
+        List<Map.Entry<String, long[]>> list = new ArrayList<>(prefixes.entrySet());
+        Collections.sort(list, new Comparator<Map.Entry<String, long[]>>() {
+            @Override
+            public int compare(Map.Entry<String, long[]> o1, Map.Entry<String, long[]> o2) {
+                return Long.compare(o2.getValue()[1], o1.getValue()[1]);
+            }
+        });
+        for (Map.Entry<String, long[]> entry : list) {
+            out.append("prefix ").append(entry.getKey())
+                    .append(" count ").append(String.valueOf(entry.getValue()[0]))
+                    .append(" memory ").append(String.valueOf(entry.getValue()[1])).append('\n');
+        }
+        for (MemoryKeyValuePair kv : getTop()) {
+            out.append("top db ").append(kv.getDb() == null ? "0" : String.valueOf(kv.getDb().getDbNumber()))
+                    .append(" type ").append(TYPES[type(kv.getValueRdbType())])
+                    .append(" encoding ").append(kv.getEncoding())
+                    .append(" memory ").append(String.valueOf(kv.getMemory()))
+                    .append(" encoded ").append(String.valueOf(kv.getEncodedSize()))
+                    .append(" length ").append(String.valueOf(kv.getLength()))
+                    .append(" key ").append(Strings.toString(kv.getKey())).append('\n');
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            write(builder);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return builder.toString();
+    }
+
+    private String prefix(byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] == delimiter) return new String(key, 0, i, UTF_8);
+        }
+        return NONE;
+    }
+
+    private int ttl(ExpiredType type, Long value) {
+        if (type == null || type == ExpiredType.NONE || value == null) return 0;
+        long ms = type == ExpiredType.SECOND ? value * 1000L : value;
+        long ttl = ms - now;
+        if (ttl <= 0) return 1;
+        for (int i = 0; i < TTL_LIMITS.length; i++) {
+            if (ttl < TTL_LIMITS[i]) return i + 2;
+        }
+        return TTLS.length - 1;
+    }
+
+    private static int type(int rdbType) {
+        switch (rdbType) {
+            case RDB_TYPE_STRING:
+                return 0;
+            case RDB_TYPE_LIST:
+            case RDB_TYPE_LIST_ZIPLIST:
+            case RDB_TYPE_LIST_QUICKLIST:
+                return 1;
+            case RDB_TYPE_SET:
+            case RDB_TYPE_SET_INTSET:
+                return 2;
+            case RDB_TYPE_ZSET:
+            case RDB_TYPE_ZSET_2:
+            case RDB_TYPE_ZSET_ZIPLIST:
+                return 3;
+            case RDB_TYPE_HASH:
+            case RDB_TYPE_HASH_ZIPMAP:
+            case RDB_TYPE_HASH_ZIPLIST:
+                return 4;
+            case RDB_TYPE_MODULE:
+            case RDB_TYPE_MODULE_2:
+                return 5;
+            case RDB_TYPE_STREAM_LISTPACKS:
+                return 6;
+            default:
+                throw new AssertionError("unexpected value type:" + rdbType);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.memory.datatype;
+
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+
+/**
+ * Size of a key without its value.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class MemoryKeyValuePair extends KeyValuePair<byte[], Void> {
+    private static final long serialVersionUID = 1L;
+
+    private String encoding;
+    private long encodedSize;
+    private long memory;
+    private long length = -1;
+    private long largestElement = -1;
+
+    /**
+     * @return encoding in rdb, e.g. {@code ziplist}, {@code hashtable}
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * @return bytes of the key and the value in rdb
+     */
+    public long getEncodedSize() {
+        return encodedSize;
+    }
+
+    public void setEncodedSize(long encodedSize) {
+        this.encodedSize = encodedSize;
+    }
+
+    /**
+     * @return estimated bytes the key takes in redis
+     */
+    public long getMemory() {
+        return memory;
+    }
+
+    public void setMemory(long memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * @return string length or number of elements, -1 if unknown
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    /**
+     * @return length of the largest element, -1 if unknown
+     */
+    public long getLargestElement() {
+        return largestElement;
+    }
+
+    public void setLargestElement(long largestElement) {
+        this.largestElement = largestElement;
+    }
+}
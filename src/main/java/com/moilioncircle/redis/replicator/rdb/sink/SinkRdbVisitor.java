@@ -0,0 +1,353 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.sink;
+
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.io.RawByteSliceListener;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.rdb.BaseRdbParser;
+import com.moilioncircle.redis.replicator.rdb.DefaultRdbVisitor;
+import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.sink.datatype.SinkKeyValuePair;
+import com.moilioncircle.redis.replicator.util.ByteArray;
+import com.moilioncircle.redis.replicator.util.Strings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT16;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT32;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT8;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_LZF;
+import static com.moilioncircle.redis.replicator.Constants.RDB_LOAD_ENC;
+import static com.moilioncircle.redis.replicator.Constants.RDB_LOAD_NONE;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPMAP;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET_INTSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STRING;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_ZIPLIST;
+
+/**
+ * Writes values to a {@link ValueSink} instead of decoding them to {@code byte[]}, and emits a
+ * {@link SinkKeyValuePair} per key.
+ * <p>
+ * raw strings and the elements of linked encodings are written straight from the input buffer.
+ * int encoded and lzf compressed strings are decoded first, elements of ziplists, intsets and zipmaps
+ * are decoded from the loaded blob. streams and modules are not sunk and emitted as {@link DefaultRdbVisitor} does.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class SinkRdbVisitor extends DefaultRdbVisitor {
+
+    protected final ValueSink sink;
+    protected long length;
+
+    protected final RawByteSliceListener writer = new RawByteSliceListener() {
+        @Override
+        public void handle(byte[] bytes, int offset, int length) {
+            write(bytes, offset, length);
+        }
+    };
+
+    public SinkRdbVisitor(Replicator replicator, ValueSink sink) {
+        super(replicator);
+        this.sink = sink;
+    }
+
+    @Override
+    public Event applyString(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        SinkKeyValuePair kv = kv(parser, RDB_TYPE_STRING, context);
+        string(in, parser, kv);
+        return end(kv);
+    }
+
+    @Override
+    public Event applyList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return applyCollection(in, RDB_TYPE_LIST, context);
+    }
+
+    @Override
+    public Event applySet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return applyCollection(in, RDB_TYPE_SET, context);
+    }
+
+    @Override
+    public Event applyZSet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        SinkKeyValuePair kv = kv(parser, RDB_TYPE_ZSET, context);
+        long len = parser.rdbLoadLen().len;
+        sink.begin(kv, len);
+        while (len > 0) {
+            string(in, parser, null);
+            sink.score(parser.rdbLoadDoubleValue());
+            len--;
+        }
+        return end(kv);
+    }
+
+    @Override
+    public Event applyZSet2(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        SinkKeyValuePair kv = kv(parser, RDB_TYPE_ZSET_2, context);
+        long len = parser.rdbLoadLen().len;
+        sink.begin(kv, len);
+        while (len > 0) {
+            string(in, parser, null);
+            sink.score(parser.rdbLoadBinaryDoubleValue());
+            len--;
+        }
+        return end(kv);
+    }
+
+    @Override
+    public Event applyHash(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        SinkKeyValuePair kv = kv(parser, RDB_TYPE_HASH, context);
+        long len = parser.rdbLoadLen().len;
+        sink.begin(kv, len);
+        while (len > 0) {
+            string(in, parser, null);
+            string(in, parser, null);
+            len--;
+        }
+        return end(kv);
+    }
+
+    @Override
+    public Event applyHashZipMap(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        SinkKeyValuePair kv = kv(parser, RDB_TYPE_HASH_ZIPMAP, context);
+        RedisInputStream stream = new RedisInputStream(parser.rdbLoadPlainStringObject());
+        int zmlen = BaseRdbParser.LenHelper.zmlen(stream);
+        sink.begin(kv, zmlen < 254 ? zmlen : -1);
+        while (true) {
+            int zmEleLen = BaseRdbParser.LenHelper.zmElementLen(stream);
+            if (zmEleLen == 255) break;
+            sink.element(zmEleLen);
+            stream.readBytes(zmEleLen, writer);
+            zmEleLen = BaseRdbParser.LenHelper.zmElementLen(stream);
+            if (zmEleLen == 255) {
+                // value is null
+                sink.element(0);
+                break;
+            }
+            int free = BaseRdbParser.LenHelper.free(stream);
+            sink.element(zmEleLen);
+            stream.readBytes(zmEleLen, writer);
+            BaseRdbParser.StringHelper.skip(stream, free);
+        }
+        return end(kv);
+    }
+
+    @Override
+    public Event applyListZipList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        return applyZipList(in, RDB_TYPE_LIST_ZIPLIST, context);
+    }
+
+    @Override
+    public Event applySetIntSet(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        SinkKeyValuePair kv = kv(parser, RDB_TYPE_SET_INTSET, context);
+        RedisInputStream stream = new RedisInputStream(parser.rdbLoadPlainStringObject());
+        int encoding = BaseRdbParser.LenHelper.encoding(stream);
+        long lenOfContent = BaseRdbParser.LenHelper.lenOfContent(stream);
+        sink.begin(kv, lenOfContent);
+        for (long i = 0; i < lenOfContent; i++) {
+            switch (encoding) {
+                case 2:
+                    element(String.valueOf(stream.readInt(2)).getBytes());
+                    break;
+                case 4:
+                    element(String.valueOf(stream.readInt(4)).getBytes());
+                    break;
+                case 8:
+                    element(String.valueOf(stream.readLong(8)).getBytes());
+                    break;
+                default:
+                    throw new AssertionError("expect encoding [2,4,8] but:" + encoding);
+            }
+        }
+        return end(kv);
+    }
+
+    @Override
+    public Event applyZSetZipList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        SinkKeyValuePair kv = kv(parser, RDB_TYPE_ZSET_ZIPLIST, context);
+        RedisInputStream stream = new RedisInputStream(parser.rdbLoadPlainStringObject());
+        BaseRdbParser.LenHelper.zlbytes(stream); // zlbytes
+        BaseRdbParser.LenHelper.zltail(stream); // zltail
+        int zllen = BaseRdbParser.LenHelper.zllen(stream);
+        sink.begin(kv, zllen / 2);
+        while (zllen > 0) {
+            element(BaseRdbParser.StringHelper.zipListEntry(stream));
+            zllen--;
+            sink.score(Double.valueOf(Strings.toString(BaseRdbParser.StringHelper.zipListEntry(stream))));
+            zllen--;
+        }
+        zlend(stream);
+        return end(kv);
+    }
+
+    @Override
+    public Event applyHashZipList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        SinkKeyValuePair kv = kv(parser, RDB_TYPE_HASH_ZIPLIST, context);
+        RedisInputStream stream = new RedisInputStream(parser.rdbLoadPlainStringObject());
+        BaseRdbParser.LenHelper.zlbytes(stream); // zlbytes
+        BaseRdbParser.LenHelper.zltail(stream); // zltail
+        int zllen = BaseRdbParser.LenHelper.zllen(stream);
+        sink.begin(kv, zllen / 2);
+        while (zllen > 0) {
+            element(BaseRdbParser.StringHelper.zipListEntry(stream));
+            zllen--;
+        }
+        zlend(stream);
+        return end(kv);
+    }
+
+    @Override
+    public Event applyListQuickList(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        SinkKeyValuePair kv = kv(parser, RDB_TYPE_LIST_QUICKLIST, context);
+        long len = parser.rdbLoadLen().len;
+        sink.begin(kv, -1);
+        for (long i = 0; i < len; i++) {
+            RedisInputStream stream = new RedisInputStream(parser.rdbGenericLoadStringObject(RDB_LOAD_NONE));
+            BaseRdbParser.LenHelper.zlbytes(stream); // zlbytes
+            BaseRdbParser.LenHelper.zltail(stream); // zltail
+            int zllen = BaseRdbParser.LenHelper.zllen(stream);
+            for (int j = 0; j < zllen; j++) {
+                element(BaseRdbParser.StringHelper.zipListEntry(stream));
+            }
+            zlend(stream);
+        }
+        return end(kv);
+    }
+
+    protected Event applyCollection(RedisInputStream in, int type, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        SinkKeyValuePair kv = kv(parser, type, context);
+        long len = parser.rdbLoadLen().len;
+        sink.begin(kv, len);
+        while (len > 0) {
+            string(in, parser, null);
+            len--;
+        }
+        return end(kv);
+    }
+
+    protected Event applyZipList(RedisInputStream in, int type, ContextKeyValuePair context) throws IOException {
+        BaseRdbParser parser = new BaseRdbParser(in);
+        SinkKeyValuePair kv = kv(parser, type, context);
+        RedisInputStream stream = new RedisInputStream(parser.rdbLoadPlainStringObject());
+        BaseRdbParser.LenHelper.zlbytes(stream); // zlbytes
+        BaseRdbParser.LenHelper.zltail(stream); // zltail
+        int zllen = BaseRdbParser.LenHelper.zllen(stream);
+        sink.begin(kv, zllen);
+        for (int i = 0; i < zllen; i++) {
+            element(BaseRdbParser.StringHelper.zipListEntry(stream));
+        }
+        zlend(stream);
+        return end(kv);
+    }
+
+    /**
+     * write a string, raw strings are written straight from the input buffer.
+     *
+     * @param in     input stream
+     * @param parser parser of {@code in}
+     * @param kv     begin the value of {@code kv} with the string, null to write the string as an element
+     * @throws IOException when read timeout
+     */
+    protected void string(RedisInputStream in, BaseRdbParser parser, SinkKeyValuePair kv) throws IOException {
+        BaseRdbParser.Len lenObj = parser.rdbLoadLen();
+        long len = lenObj.len;
+        if (!lenObj.encoded) {
+            begin(kv, len);
+            in.readBytes(len, writer);
+            return;
+        }
+        ByteArray bytes;
+        switch ((int) len) {
+            case RDB_ENC_INT8:
+            case RDB_ENC_INT16:
+            case RDB_ENC_INT32:
+                bytes = parser.rdbLoadIntegerObject((int) len, RDB_LOAD_ENC);
+                break;
+            case RDB_ENC_LZF:
+                bytes = parser.rdbLoadLzfStringObject(RDB_LOAD_NONE);
+                break;
+            default:
+                throw new AssertionError("unknown RdbParser encoding type:" + len);
+        }
+        try {
+            begin(kv, bytes.length());
+            for (byte[] b : bytes) write(b, 0, b.length);
+        } finally {
+            bytes.release();
+        }
+    }
+
+    protected void element(byte[] element) {
+        sink.element(element.length);
+        write(element, 0, element.length);
+    }
+
+    protected void write(byte[] bytes, int offset, int length) {
+        this.length += length;
+        sink.write(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    private void begin(SinkKeyValuePair kv, long len) {
+        if (kv == null) sink.element(len);
+        else sink.begin(kv, len);
+    }
+
+    private SinkKeyValuePair kv(BaseRdbParser parser, int type, ContextKeyValuePair context) throws IOException {
+        SinkKeyValuePair kv = new SinkKeyValuePair();
+        kv.setKey(parser.rdbLoadEncodedStringObject().first());
+        kv.setValueRdbType(type);
+        this.length = 0;
+        context.valueOf(kv);
+        return kv;
+    }
+
+    private Event end(SinkKeyValuePair kv) {
+        kv.setLength(length);
+        sink.end();
+        return kv;
+    }
+
+    private static void zlend(RedisInputStream stream) throws IOException {
+        int zlend = BaseRdbParser.LenHelper.zlend(stream);
+        if (zlend != 255) {
+            throw new AssertionError("zlend expect 255 but " + zlend);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.sink;
+
+import com.moilioncircle.redis.replicator.rdb.sink.datatype.SinkKeyValuePair;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Caller supplied destination of value bytes, see {@link SinkRdbVisitor} and
+ * {@link com.moilioncircle.redis.replicator.rdb.dump.DumpRdbVisitor#DumpRdbVisitor(com.moilioncircle.redis.replicator.Replicator, int, ValueSink)}.
+ * <p>
+ * a value is delivered as {@code begin}, then {@code write}s of a string value or a dump payload, or
+ * {@code element}s each followed by its {@code write}s, then {@code end}.
+ * <p>
+ * buffers passed to {@link #write(ByteBuffer)} usually wrap the replicator's input buffer, they must not
+ * be kept after the call.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public interface ValueSink {
+
+    /**
+     * @param kv   key, rdb type, db, expiry and eviction info of the value, also emitted as event after {@link #end()}
+     * @param size bytes of a string, elements of a collection (hash fields and zset members), -1 if unknown
+     */
+    void begin(SinkKeyValuePair kv, long size);
+
+    /**
+     * start the next element of a collection. a hash field and its value are two elements.
+     *
+     * @param length bytes of the element
+     */
+    void element(long length);
+
+    /**
+     * @param score score of the zset member written just before
+     */
+    void score(double score);
+
+    /**
+     * @param buffer part of the current string, element or dump payload
+     */
+    void write(ByteBuffer buffer);
+
+    void end();
+}
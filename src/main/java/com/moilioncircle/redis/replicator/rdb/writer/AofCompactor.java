@@ -0,0 +1,670 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.rdb.writer;
+
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.cmd.Command;
+import com.moilioncircle.redis.replicator.cmd.impl.AggregateType;
+import com.moilioncircle.redis.replicator.cmd.impl.AppendCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.BRPopLPushCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.DecrByCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.DecrCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.DelCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ExecCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ExistType;
+import com.moilioncircle.redis.replicator.cmd.impl.ExpireAtCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ExpireCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.FlushAllCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.FlushDBCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.GetSetCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.HDelCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.HIncrByCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.HMSetCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.HSetCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.HSetNxCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.IncrByCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.IncrCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LInsertCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LPopCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LPushCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LPushXCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LRemCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LSetCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LTrimCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.MSetCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.MSetNxCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.MoveCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.MultiCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PExpireAtCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PExpireCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PFCountCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PSetExCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PersistCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PingCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PublishCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RPopCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RPopLPushCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RPushCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RPushXCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RenameCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RenameNxCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ReplConfCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RestoreCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SAddCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SDiffStoreCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SInterStoreCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SMoveCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SRemCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SUnionStoreCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ScriptCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SelectCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SetBitCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SetCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SetExCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SetNxCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SetRangeCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SwapDBCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.UnLinkCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZAddCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZIncrByCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZInterStoreCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZPopMaxCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZPopMinCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZRemCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZRemRangeByLexCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZRemRangeByRankCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZRemRangeByScoreCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZUnionStoreCommand;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.event.PostCommandSyncEvent;
+import com.moilioncircle.redis.replicator.rdb.datatype.DB;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.writer.CompactStore.Key;
+import com.moilioncircle.redis.replicator.rdb.writer.CompactStore.Value;
+import com.moilioncircle.redis.replicator.rdb.writer.RdbSplitter.Partitioner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+
+import static com.moilioncircle.redis.replicator.rdb.writer.CompactStore.HASH;
+import static com.moilioncircle.redis.replicator.rdb.writer.CompactStore.LIST;
+import static com.moilioncircle.redis.replicator.rdb.writer.CompactStore.SET;
+import static com.moilioncircle.redis.replicator.rdb.writer.CompactStore.STRING;
+import static com.moilioncircle.redis.replicator.rdb.writer.CompactStore.ZSET;
+
+/**
+ * Folds the commands of an aof, or the key value pairs and commands of a mixed aof, into the final state
+ * of every key and writes that state as one rdb, which loads much faster than replaying the aof.
+ * <pre>
+ * Replicator r = new RedisReplicator(new File("appendonly.aof"), FileType.AOF, Configuration.defaultSetting());
+ * r.addEventListener(new AofCompactor(new FileOutputStream("dump.rdb")));
+ * r.open();
+ * </pre>
+ * Keys are partitioned over shard threads like {@link RdbSplitter}, each shard applies its commands to its own
+ * {@link CompactStore} which spills values to disk when over {@code budget / shards} estimated bytes.
+ * Commands of keys in different shards, e.g. {@code RENAME} or {@code SUNIONSTORE}, wait for all shards and are
+ * applied on the parser thread. Commands that can't be folded, e.g. scripts, streams and hyperloglogs, throw
+ * {@link UnsupportedOperationException}.
+ * <p>
+ * The rdb is written and {@code out} is closed on {@link PostCommandSyncEvent} or {@link #close()}.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class AofCompactor implements EventListener, Closeable {
+
+    protected static final Logger logger = LoggerFactory.getLogger(AofCompactor.class);
+
+    private static final List<Object> END = Collections.emptyList();
+
+    private static final ThreadFactory DAEMON = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "aof-compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    protected final int version;
+    protected final int batchSize;
+    protected final OutputStream out;
+    protected final Partitioner partitioner;
+    protected final Shard[] shards;
+    protected int db;
+    private Barrier barrier;
+    private boolean closed;
+
+    public AofCompactor(OutputStream out) {
+        this(out, Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 2, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    public AofCompactor(OutputStream out, int shards, long budget, File dir) {
+        this(out, RdbWriter.DEFAULT_VERSION, shards, budget, dir, 16, 256, DAEMON);
+    }
+
+    /**
+     * @param out       rdb output, closed after the rdb is written
+     * @param version   rdb version
+     * @param shards    number of shard threads
+     * @param budget    estimated bytes of values kept in memory by all shards
+     * @param dir       directory of spill files
+     * @param queueSize max batches queued per shard before the parser thread blocks
+     * @param batchSize events per batch
+     * @param tf        thread factory of shard threads
+     */
+    public AofCompactor(OutputStream out, int version, int shards, long budget, File dir, int queueSize, int batchSize, ThreadFactory tf) {
+        if (shards <= 0) throw new IllegalArgumentException(String.valueOf(shards));
+        if (batchSize <= 0) throw new IllegalArgumentException(String.valueOf(batchSize));
+        this.out = out;
+        this.version = version;
+        this.batchSize = batchSize;
+        this.partitioner = RdbSplitter.slot(shards);
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard(new CompactStore(budget / shards, dir), queueSize, batchSize);
+        }
+        for (Shard shard : this.shards) {
+            shard.thread = tf.newThread(shard);
+            shard.thread.start();
+        }
+    }
+
+    @Override
+    public void onEvent(Replicator replicator, Event event) {
+        try {
+            if (event instanceof KeyValuePair<?, ?>) {
+                shard((byte[]) ((KeyValuePair<?, ?>) event).getKey()).add(event);
+            } else if (event instanceof Command) {
+                apply((Command) event);
+            } else if (event instanceof PostCommandSyncEvent) {
+                close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * route a command to the shard of its key, commands of keys in different shards are applied after all
+     * shards applied the commands before them.
+     *
+     * @param command command
+     * @throws IOException                   if a shard failed
+     * @throws UnsupportedOperationException if the command can't be folded
+     */
+    public void apply(Command command) throws IOException {
+        if (command instanceof SelectCommand) {
+            db = ((SelectCommand) command).getIndex();
+            broadcast(command);
+        } else if (command instanceof FlushAllCommand || command instanceof FlushDBCommand || command instanceof SwapDBCommand) {
+            broadcast(command);
+        } else if (command instanceof MSetCommand) {
+            for (Map.Entry<byte[], byte[]> e : ((MSetCommand) command).getKv().entrySet()) {
+                shard(e.getKey()).add(new SetCommand(e.getKey(), e.getValue(), null, null, ExistType.NONE));
+            }
+        } else if (command instanceof DelCommand || command instanceof UnLinkCommand) {
+            byte[][] keys = command instanceof DelCommand ? ((DelCommand) command).getKeys() : ((UnLinkCommand) command).getKeys();
+            for (byte[] key : keys) shard(key).add(new DelCommand(new byte[][]{key}));
+        } else if (command instanceof PingCommand || command instanceof PublishCommand || command instanceof ScriptCommand
+                || command instanceof MultiCommand || command instanceof ExecCommand || command instanceof ReplConfCommand
+                || command instanceof PFCountCommand) {
+            // no effect on data
+        } else {
+            byte[] key = key(command);
+            if (key != null) {
+                shard(key).add(command);
+                return;
+            }
+            byte[][] keys = keys(command);
+            if (keys == null) throw new UnsupportedOperationException(command.getClass().getSimpleName());
+            Shard shard = shard(keys[0]);
+            for (int i = 1; i < keys.length && shard != null; i++) if (shard(keys[i]) != shard) shard = null;
+            if (shard != null) {
+                shard.add(command);
+                return;
+            }
+            pause();
+            try {
+                applyMulti(db, command, System.currentTimeMillis());
+                for (Shard s : shards) s.store.evict();
+            } finally {
+                resume();
+            }
+        }
+    }
+
+    /**
+     * wait for the shard threads, write the rdb and close {@code out}.
+     *
+     * @throws IOException the first error of shards or rdb io error
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            IOException error = null;
+            for (Shard shard : shards) {
+                try {
+                    shard.flush();
+                    shard.put(END);
+                } catch (IOException e) {
+                    if (error == null) error = e;
+                }
+            }
+            for (Shard shard : shards) {
+                try {
+                    shard.thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (error == null) error = new InterruptedIOException();
+                }
+                if (error == null && shard.error != null) error = shard.error();
+            }
+            if (error != null) throw error;
+            write(System.currentTimeMillis());
+        } finally {
+            for (Shard shard : shards) {
+                try {
+                    shard.store.close();
+                } catch (IOException e) {
+                    logger.error("failed to close store", e);
+                }
+            }
+        }
+    }
+
+    protected void write(long now) throws IOException {
+        Set<Integer> dbs = new TreeSet<>();
+        for (Shard shard : shards) dbs.addAll(shard.store.dbs());
+        try (RdbWriter writer = new RdbWriter(out, version)) {
+            writer.writeHeader();
+            for (int db : dbs) {
+                long size = 0, expires = 0;
+                for (Shard shard : shards) {
+                    long[] count = shard.store.count(db, now);
+                    size += count[0];
+                    expires += count[1];
+                }
+                if (size == 0) continue;
+                writer.writeDB(new DB(db, size, expires));
+                for (Shard shard : shards) {
+                    for (Iterator<KeyValuePair<?, ?>> it = shard.store.iterator(db, now); it.hasNext(); ) {
+                        writer.writeKeyValuePair(it.next());
+                    }
+                }
+            }
+            writer.writeEof();
+        }
+    }
+
+    /*
+     * commands of more than one key, the caller owns the stores of the keys
+     */
+    protected void applyMulti(int db, Command command, long now) throws IOException {
+        if (command instanceof RenameCommand) {
+            RenameCommand c = (RenameCommand) command;
+            rename(db, c.getKey(), c.getNewKey());
+        } else if (command instanceof RenameNxCommand) {
+            RenameNxCommand c = (RenameNxCommand) command;
+            if (store(c.getNewKey()).get(db, c.getNewKey()) == null) rename(db, c.getKey(), c.getNewKey());
+        } else if (command instanceof MSetNxCommand) {
+            Map<byte[], byte[]> kv = ((MSetNxCommand) command).getKv();
+            for (byte[] key : kv.keySet()) if (store(key).get(db, key) != null) return;
+            for (Map.Entry<byte[], byte[]> e : kv.entrySet()) store(e.getKey()).put(db, e.getKey(), CompactStore.string(e.getValue()));
+        } else if (command instanceof SMoveCommand) {
+            SMoveCommand c = (SMoveCommand) command;
+            CompactStore source = store(c.getSource());
+            Value v = source.existing(db, c.getSource(), SET);
+            if (v == null || !CompactStore.set(v).remove(c.getMember())) return;
+            source.resize(v, -(32 + c.getMember().length));
+            if (CompactStore.set(v).isEmpty()) source.remove(db, c.getSource());
+            CompactStore destination = store(c.getDestination());
+            Value d = destination.value(db, c.getDestination(), SET);
+            if (CompactStore.set(d).add(c.getMember())) destination.resize(d, 32 + c.getMember().length);
+        } else if (command instanceof RPopLPushCommand || command instanceof BRPopLPushCommand) {
+            byte[] src = command instanceof RPopLPushCommand ? ((RPopLPushCommand) command).getSource() : ((BRPopLPushCommand) command).getSource();
+            byte[] dst = command instanceof RPopLPushCommand ? ((RPopLPushCommand) command).getDestination() : ((BRPopLPushCommand) command).getDestination();
+            CompactStore source = store(src);
+            Value v = source.existing(db, src, LIST);
+            if (v == null) return;
+            byte[] e = CompactStore.list(v).pollLast();
+            source.resize(v, -(32 + e.length));
+            if (CompactStore.list(v).isEmpty()) source.remove(db, src);
+            CompactStore destination = store(dst);
+            destination.push(destination.value(db, dst, LIST), new byte[][]{e}, true);
+        } else if (command instanceof SInterStoreCommand || command instanceof SUnionStoreCommand || command instanceof SDiffStoreCommand) {
+            byte[][] keys = keys(command);
+            Value result = new Value(SET, CompactStore.empty(SET), 48 + keys[0].length);
+            for (int i = 1; i < keys.length; i++) {
+                Value v = store(keys[i]).existing(db, keys[i], SET);
+                Set<byte[]> set = v == null ? Collections.<byte[]>emptySet() : CompactStore.set(v);
+                if (i == 1 || command instanceof SUnionStoreCommand) {
+                    CompactStore.set(result).addAll(set);
+                } else if (command instanceof SInterStoreCommand) {
+                    CompactStore.set(result).retainAll(set);
+                } else {
+                    CompactStore.set(result).removeAll(set);
+                }
+            }
+            for (byte[] e : CompactStore.set(result)) result.memory += 32 + e.length;
+            store(keys[0], result, db);
+        } else if (command instanceof ZUnionStoreCommand || command instanceof ZInterStoreCommand) {
+            boolean union = command instanceof ZUnionStoreCommand;
+            byte[][] keys = keys(command);
+            double[] weights = union ? ((ZUnionStoreCommand) command).getWeights() : ((ZInterStoreCommand) command).getWeights();
+            AggregateType aggregate = union ? ((ZUnionStoreCommand) command).getAggregateType() : ((ZInterStoreCommand) command).getAggregateType();
+            Value result = new Value(ZSET, CompactStore.empty(ZSET), 48 + keys[0].length);
+            Map<Key, Double> zset = CompactStore.zset(result);
+            for (int i = 1; i < keys.length; i++) {
+                double weight = weights == null ? 1 : weights[i - 1];
+                Map<Key, Double> source = scores(db, keys[i]);
+                if (!union) {
+                    if (i == 1) {
+                        for (Map.Entry<Key, Double> e : source.entrySet()) zset.put(e.getKey(), weight(e.getValue(), weight));
+                    } else {
+                        zset.keySet().retainAll(source.keySet());
+                        for (Map.Entry<Key, Double> e : zset.entrySet()) e.setValue(aggregate(aggregate, e.getValue(), weight(source.get(e.getKey()), weight)));
+                    }
+                } else {
+                    for (Map.Entry<Key, Double> e : source.entrySet()) {
+                        Double prev = zset.get(e.getKey());
+                        double score = weight(e.getValue(), weight);
+                        zset.put(e.getKey(), prev == null ? score : aggregate(aggregate, prev, score));
+                    }
+                }
+            }
+            for (Key e : zset.keySet()) result.memory += 32 + e.bytes.length;
+            store(keys[0], result, db);
+        } else if (!store(key(command)).apply(db, command, now)) {
+            throw new UnsupportedOperationException(command.getClass().getSimpleName());
+        }
+    }
+
+    protected void rename(int db, byte[] key, byte[] newKey) throws IOException {
+        Value v = store(key).remove(db, key);
+        if (v != null) store(newKey).put(db, newKey, v);
+    }
+
+    protected void store(byte[] key, Value result, int db) throws IOException {
+        CompactStore store = store(key);
+        store.remove(db, key);
+        boolean empty = result.type == SET ? CompactStore.set(result).isEmpty() : CompactStore.zset(result).isEmpty();
+        if (!empty) store.put(db, key, result);
+    }
+
+    /*
+     * members of a zset, or of a set with score 1
+     */
+    protected Map<Key, Double> scores(int db, byte[] key) throws IOException {
+        Value v = store(key).get(db, key);
+        if (v == null) return Collections.emptyMap();
+        if (v.type == ZSET) return CompactStore.zset(v);
+        if (v.type != SET) throw new AssertionError("WRONGTYPE " + new String(key));
+        Map<Key, Double> scores = new HashMap<>();
+        for (byte[] member : CompactStore.set(v)) scores.put(new Key(0, member), 1d);
+        return scores;
+    }
+
+    private static double weight(double score, double weight) {
+        double r = score * weight;
+        // inf * 0 in redis
+        return Double.isNaN(r) ? 0 : r;
+    }
+
+    private static double aggregate(AggregateType type, double d1, double d2) {
+        if (type == AggregateType.MIN) return Math.min(d1, d2);
+        if (type == AggregateType.MAX) return Math.max(d1, d2);
+        double r = d1 + d2;
+        return Double.isNaN(r) ? 0 : r;
+    }
+
+    /*
+     * stop all shards after the commands queued so far
+     */
+    protected void pause() throws IOException {
+        Barrier barrier = new Barrier(shards.length);
+        for (Shard shard : shards) {
+            shard.add(barrier);
+            shard.flush();
+        }
+        try {
+            barrier.arrived.await();
+        } catch (InterruptedException e) {
+            barrier.released.countDown();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        for (Shard shard : shards) {
+            if (shard.error != null) {
+                barrier.released.countDown();
+                throw shard.error();
+            }
+        }
+        this.barrier = barrier;
+    }
+
+    protected void resume() {
+        if (barrier != null) barrier.released.countDown();
+        barrier = null;
+    }
+
+    protected void broadcast(Command command) throws IOException {
+        for (Shard shard : shards) shard.add(command);
+    }
+
+    protected Shard shard(byte[] key) {
+        int index = partitioner.partition(key);
+        if (index < 0 || index >= shards.length) throw new IllegalArgumentException(String.valueOf(index));
+        return shards[index];
+    }
+
+    protected CompactStore store(byte[] key) {
+        return shard(key).store;
+    }
+
+    /*
+     * key of single key commands
+     */
+    protected static byte[] key(Command c) {
+        if (c instanceof SetCommand) return ((SetCommand) c).getKey();
+        if (c instanceof SetExCommand) return ((SetExCommand) c).getKey();
+        if (c instanceof PSetExCommand) return ((PSetExCommand) c).getKey();
+        if (c instanceof SetNxCommand) return ((SetNxCommand) c).getKey();
+        if (c instanceof GetSetCommand) return ((GetSetCommand) c).getKey();
+        if (c instanceof AppendCommand) return ((AppendCommand) c).getKey();
+        if (c instanceof IncrCommand) return ((IncrCommand) c).getKey();
+        if (c instanceof DecrCommand) return ((DecrCommand) c).getKey();
+        if (c instanceof IncrByCommand) return ((IncrByCommand) c).getKey();
+        if (c instanceof DecrByCommand) return ((DecrByCommand) c).getKey();
+        if (c instanceof SetRangeCommand) return ((SetRangeCommand) c).getKey();
+        if (c instanceof SetBitCommand) return ((SetBitCommand) c).getKey();
+        if (c instanceof ExpireCommand) return ((ExpireCommand) c).getKey();
+        if (c instanceof PExpireCommand) return ((PExpireCommand) c).getKey();
+        if (c instanceof ExpireAtCommand) return ((ExpireAtCommand) c).getKey();
+        if (c instanceof PExpireAtCommand) return ((PExpireAtCommand) c).getKey();
+        if (c instanceof PersistCommand) return ((PersistCommand) c).getKey();
+        if (c instanceof MoveCommand) return ((MoveCommand) c).getKey();
+        if (c instanceof RestoreCommand) return ((RestoreCommand) c).getKey();
+        if (c instanceof HSetCommand) return ((HSetCommand) c).getKey();
+        if (c instanceof HMSetCommand) return ((HMSetCommand) c).getKey();
+        if (c instanceof HSetNxCommand) return ((HSetNxCommand) c).getKey();
+        if (c instanceof HDelCommand) return ((HDelCommand) c).getKey();
+        if (c instanceof HIncrByCommand) return ((HIncrByCommand) c).getKey();
+        if (c instanceof LPushCommand) return ((LPushCommand) c).getKey();
+        if (c instanceof RPushCommand) return ((RPushCommand) c).getKey();
+        if (c instanceof LPushXCommand) return ((LPushXCommand) c).getKey();
+        if (c instanceof RPushXCommand) return ((RPushXCommand) c).getKey();
+        if (c instanceof LPopCommand) return ((LPopCommand) c).getKey();
+        if (c instanceof RPopCommand) return ((RPopCommand) c).getKey();
+        if (c instanceof LSetCommand) return ((LSetCommand) c).getKey();
+        if (c instanceof LTrimCommand) return ((LTrimCommand) c).getKey();
+        if (c instanceof LRemCommand) return ((LRemCommand) c).getKey();
+        if (c instanceof LInsertCommand) return ((LInsertCommand) c).getKey();
+        if (c instanceof SAddCommand) return ((SAddCommand) c).getKey();
+        if (c instanceof SRemCommand) return ((SRemCommand) c).getKey();
+        if (c instanceof ZAddCommand) return ((ZAddCommand) c).getKey();
+        if (c instanceof ZIncrByCommand) return ((ZIncrByCommand) c).getKey();
+        if (c instanceof ZRemCommand) return ((ZRemCommand) c).getKey();
+        if (c instanceof ZPopMinCommand) return ((ZPopMinCommand) c).getKey();
+        if (c instanceof ZPopMaxCommand) return ((ZPopMaxCommand) c).getKey();
+        if (c instanceof ZRemRangeByRankCommand) return ((ZRemRangeByRankCommand) c).getKey();
+        if (c instanceof ZRemRangeByScoreCommand) return ((ZRemRangeByScoreCommand) c).getKey();
+        if (c instanceof ZRemRangeByLexCommand) return ((ZRemRangeByLexCommand) c).getKey();
+        return null;
+    }
+
+    /*
+     * keys of multi key commands, the destination first
+     */
+    protected static byte[][] keys(Command c) {
+        if (c instanceof RenameCommand) return new byte[][]{((RenameCommand) c).getNewKey(), ((RenameCommand) c).getKey()};
+        if (c instanceof RenameNxCommand) return new byte[][]{((RenameNxCommand) c).getNewKey(), ((RenameNxCommand) c).getKey()};
+        if (c instanceof SMoveCommand) return new byte[][]{((SMoveCommand) c).getDestination(), ((SMoveCommand) c).getSource()};
+        if (c instanceof RPopLPushCommand) return new byte[][]{((RPopLPushCommand) c).getDestination(), ((RPopLPushCommand) c).getSource()};
+        if (c instanceof BRPopLPushCommand) return new byte[][]{((BRPopLPushCommand) c).getDestination(), ((BRPopLPushCommand) c).getSource()};
+        if (c instanceof SInterStoreCommand) return prepend(((SInterStoreCommand) c).getDestination(), ((SInterStoreCommand) c).getKeys());
+        if (c instanceof SUnionStoreCommand) return prepend(((SUnionStoreCommand) c).getDestination(), ((SUnionStoreCommand) c).getKeys());
+        if (c instanceof SDiffStoreCommand) return prepend(((SDiffStoreCommand) c).getDestination(), ((SDiffStoreCommand) c).getKeys());
+        if (c instanceof ZUnionStoreCommand) return prepend(((ZUnionStoreCommand) c).getDestination(), ((ZUnionStoreCommand) c).getKeys());
+        if (c instanceof ZInterStoreCommand) return prepend(((ZInterStoreCommand) c).getDestination(), ((ZInterStoreCommand) c).getKeys());
+        if (c instanceof MSetNxCommand) return ((MSetNxCommand) c).getKv().keySet().toArray(new byte[0][]);
+        return null;
+    }
+
+    private static byte[][] prepend(byte[] key, byte[][] keys) {
+        byte[][] r = new byte[keys.length + 1][];
+        r[0] = key;
+        System.arraycopy(keys, 0, r, 1, keys.length);
+        return r;
+    }
+
+    protected static class Barrier {
+        protected final CountDownLatch arrived;
+        protected final CountDownLatch released = new CountDownLatch(1);
+
+        protected Barrier(int shards) {
+            this.arrived = new CountDownLatch(shards);
+        }
+    }
+
+    protected class Shard implements Runnable {
+        protected Thread thread;
+        protected volatile Throwable error;
+        protected final CompactStore store;
+        protected final int batchSize;
+        protected final BlockingQueue<List<Object>> queue;
+        protected List<Object> batch;
+        protected int db;
+
+        protected Shard(CompactStore store, int queueSize, int batchSize) {
+            this.store = store;
+            this.batchSize = batchSize;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        protected void add(Object event) throws IOException {
+            if (error != null) throw error();
+            batch.add(event);
+            if (batch.size() >= batchSize) flush();
+        }
+
+        protected void flush() throws IOException {
+            if (batch.isEmpty()) return;
+            put(batch);
+            batch = new ArrayList<>(batchSize);
+        }
+
+        protected void put(List<Object> batch) throws IOException {
+            try {
+                queue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        protected IOException error() {
+            return error instanceof IOException ? (IOException) error : new IOException(error);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (List<Object> events = queue.take(); events != END; events = queue.take()) {
+                    long now = System.currentTimeMillis();
+                    for (Object event : events) apply(event, now);
+                }
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException();
+            } catch (Throwable e) {
+                error = e;
+                // keep draining so that the parser thread never blocks on a dead shard
+                try {
+                    for (List<Object> events = queue.take(); events != END; events = queue.take()) {
+                        for (Object event : events) if (event instanceof Barrier) ((Barrier) event).arrived.countDown();
+                    }
+                } catch (InterruptedException ignore) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        protected void apply(Object event, long now) throws IOException, InterruptedException {
+            if (event instanceof Barrier) {
+                ((Barrier) event).arrived.countDown();
+                ((Barrier) event).released.await();
+            } else if (event instanceof KeyValuePair<?, ?>) {
+                store.put((KeyValuePair<?, ?>) event);
+            } else if (event instanceof SelectCommand) {
+                db = ((SelectCommand) event).getIndex();
+            } else if (event instanceof FlushAllCommand) {
+                store.flushAll();
+            } else if (event instanceof FlushDBCommand) {
+                store.flush(db);
+            } else if (event instanceof SwapDBCommand) {
+                store.swap(((SwapDBCommand) event).getSource(), ((SwapDBCommand) event).getTarget());
+            } else if (!store.apply(db, (Command) event, now)) {
+                // all keys are in this store
+                applyMulti(db, (Command) event, now);
+                store.evict();
+            }
+        }
+    }
+}
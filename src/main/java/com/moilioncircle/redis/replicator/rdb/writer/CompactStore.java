@@ -0,0 +1,1167 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.rdb.writer;
+
+import com.moilioncircle.redis.replicator.cmd.Command;
+import com.moilioncircle.redis.replicator.cmd.impl.AppendCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.DecrByCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.DecrCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.DelCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ExistType;
+import com.moilioncircle.redis.replicator.cmd.impl.ExpireAtCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ExpireCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.GetSetCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.HDelCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.HIncrByCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.HMSetCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.HSetCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.HSetNxCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.IncrByCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.IncrCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LInsertCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LInsertType;
+import com.moilioncircle.redis.replicator.cmd.impl.LPopCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LPushCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LPushXCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LRemCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LSetCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LTrimCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.MoveCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PExpireAtCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PExpireCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PSetExCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PersistCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RPopCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RPushCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RPushXCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RestoreCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SAddCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SRemCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SetBitCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SetCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SetExCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SetNxCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SetRangeCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.UnLinkCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZAddCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZIncrByCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZPopMaxCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZPopMinCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZRemCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZRemRangeByLexCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZRemRangeByRankCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZRemRangeByScoreCommand;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.rdb.DefaultRdbVisitor;
+import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.DB;
+import com.moilioncircle.redis.replicator.rdb.datatype.ExpiredType;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueHash;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueList;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueSet;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueString;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueZSet;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
+import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
+import com.moilioncircle.redis.replicator.util.ByteArray;
+import com.moilioncircle.redis.replicator.util.ByteArrayList;
+import com.moilioncircle.redis.replicator.util.ByteArrayMap;
+import com.moilioncircle.redis.replicator.util.ByteArraySet;
+import com.moilioncircle.redis.replicator.util.Strings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPMAP;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET_INTSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STRING;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_ZIPLIST;
+
+/**
+ * Key space of one {@link AofCompactor} shard: the state that results from applying commands, one value per key.
+ * <p>
+ * Values are kept in least recently used order with an estimated memory size. When the estimate goes over
+ * the budget, the least recently used values are encoded with {@link RdbWriter} into a spill file and only their
+ * offsets stay in memory. A spilled value is decoded with {@link DefaultRdbVisitor} the next time it is used.
+ * The region of a value that is loaded, overwritten or flushed is dead, the live values are copied into a new
+ * spill file once dead regions are the larger part of it, so the file stays within about twice the spilled data.
+ * <p>
+ * Expired keys are kept while applying, redis writes an explicit {@code DEL} to the aof when a key expires.
+ * Relative ttls, e.g. {@code EXPIRE} or {@code SET EX}, are relative to the time the command is applied.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class CompactStore implements Closeable {
+
+    protected static final int STRING = 0;
+    protected static final int LIST = 1;
+    protected static final int SET = 2;
+    protected static final int ZSET = 3;
+    protected static final int HASH = 4;
+    protected static final int RAW = 5;
+
+    private static final int ENTRY = 48;
+    private static final int ELEMENT = 32;
+    private static final long COMPACT = 1024 * 1024;
+
+    private static final DefaultRdbVisitor VISITOR = new DefaultRdbVisitor(null);
+
+    protected final File dir;
+    protected final long budget;
+    protected final Map<Key, Value> map = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected long memory;
+    protected long spilled;
+    protected long dead;
+    private File file;
+    private RdbWriter spill;
+    private RandomAccessFile reader;
+
+    /**
+     * @param budget estimated bytes of values kept in memory, {@code Long.MAX_VALUE} to never spill
+     * @param dir    directory of the spill file
+     */
+    public CompactStore(long budget, File dir) {
+        this.dir = dir;
+        this.budget = budget;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * @return estimated bytes of values in memory
+     */
+    public long getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return values written to the spill file so far
+     */
+    public long getSpilled() {
+        return spilled;
+    }
+
+    /**
+     * @return bytes of the spill file, including dead regions
+     */
+    public long getSpillLength() {
+        return spill == null ? 0 : spill.length();
+    }
+
+    /**
+     * apply a command that only touches keys of this store.
+     *
+     * @param db      current db
+     * @param command command
+     * @param now     time of relative ttls
+     * @return false if the command is not a single key command
+     * @throws IOException spill file error
+     */
+    public boolean apply(int db, Command command, long now) throws IOException {
+        /*
+         * strings
+         */
+        if (command instanceof SetCommand) {
+            SetCommand c = (SetCommand) command;
+            boolean exists = get(db, c.getKey()) != null;
+            if (c.getExistType() == ExistType.NX && exists) return true;
+            if (c.getExistType() == ExistType.XX && !exists) return true;
+            long expire = -1;
+            if (c.getExpiredType() == ExpiredType.SECOND) expire = now + c.getExpiredValue() * 1000L;
+            else if (c.getExpiredType() == ExpiredType.MS) expire = now + c.getExpiredValue();
+            put(db, c.getKey(), string(c.getValue())).expire = expire;
+        } else if (command instanceof SetExCommand) {
+            SetExCommand c = (SetExCommand) command;
+            put(db, c.getKey(), string(c.getValue())).expire = now + c.getEx() * 1000L;
+        } else if (command instanceof PSetExCommand) {
+            PSetExCommand c = (PSetExCommand) command;
+            put(db, c.getKey(), string(c.getValue())).expire = now + c.getEx();
+        } else if (command instanceof SetNxCommand) {
+            SetNxCommand c = (SetNxCommand) command;
+            if (get(db, c.getKey()) == null) put(db, c.getKey(), string(c.getValue()));
+        } else if (command instanceof GetSetCommand) {
+            GetSetCommand c = (GetSetCommand) command;
+            put(db, c.getKey(), string(c.getValue()));
+        } else if (command instanceof AppendCommand) {
+            AppendCommand c = (AppendCommand) command;
+            Value v = value(db, c.getKey(), STRING);
+            byte[] prev = (byte[]) v.data;
+            byte[] next = Arrays.copyOf(prev, prev.length + c.getValue().length);
+            System.arraycopy(c.getValue(), 0, next, prev.length, c.getValue().length);
+            update(v, next);
+        } else if (command instanceof IncrCommand) {
+            incr(db, ((IncrCommand) command).getKey(), 1);
+        } else if (command instanceof DecrCommand) {
+            incr(db, ((DecrCommand) command).getKey(), -1);
+        } else if (command instanceof IncrByCommand) {
+            incr(db, ((IncrByCommand) command).getKey(), ((IncrByCommand) command).getValue());
+        } else if (command instanceof DecrByCommand) {
+            incr(db, ((DecrByCommand) command).getKey(), -((DecrByCommand) command).getValue());
+        } else if (command instanceof SetRangeCommand) {
+            SetRangeCommand c = (SetRangeCommand) command;
+            if (c.getValue().length == 0) return true;
+            Value v = value(db, c.getKey(), STRING);
+            byte[] prev = (byte[]) v.data;
+            int offset = (int) c.getIndex();
+            byte[] next = Arrays.copyOf(prev, Math.max(prev.length, offset + c.getValue().length));
+            System.arraycopy(c.getValue(), 0, next, offset, c.getValue().length);
+            update(v, next);
+        } else if (command instanceof SetBitCommand) {
+            SetBitCommand c = (SetBitCommand) command;
+            Value v = value(db, c.getKey(), STRING);
+            byte[] prev = (byte[]) v.data;
+            int index = (int) (c.getOffset() >> 3);
+            byte[] next = prev.length > index ? prev : Arrays.copyOf(prev, index + 1);
+            int bit = 1 << (7 - (int) (c.getOffset() & 7));
+            if (c.getValue() != 0) next[index] |= bit;
+            else next[index] &= ~bit;
+            update(v, next);
+            /*
+             * keys
+             */
+        } else if (command instanceof DelCommand) {
+            for (byte[] key : ((DelCommand) command).getKeys()) remove(db, key);
+        } else if (command instanceof UnLinkCommand) {
+            for (byte[] key : ((UnLinkCommand) command).getKeys()) remove(db, key);
+        } else if (command instanceof ExpireCommand) {
+            expire(db, ((ExpireCommand) command).getKey(), now + ((ExpireCommand) command).getEx() * 1000L);
+        } else if (command instanceof PExpireCommand) {
+            expire(db, ((PExpireCommand) command).getKey(), now + ((PExpireCommand) command).getEx());
+        } else if (command instanceof ExpireAtCommand) {
+            expire(db, ((ExpireAtCommand) command).getKey(), ((ExpireAtCommand) command).getEx() * 1000L);
+        } else if (command instanceof PExpireAtCommand) {
+            expire(db, ((PExpireAtCommand) command).getKey(), ((PExpireAtCommand) command).getEx());
+        } else if (command instanceof PersistCommand) {
+            expire(db, ((PersistCommand) command).getKey(), -1);
+        } else if (command instanceof MoveCommand) {
+            MoveCommand c = (MoveCommand) command;
+            if (c.getDb() == db || get(c.getDb(), c.getKey()) != null) return true;
+            Value v = remove(db, c.getKey());
+            if (v != null) put(c.getDb(), c.getKey(), v);
+        } else if (command instanceof RestoreCommand) {
+            RestoreCommand c = (RestoreCommand) command;
+            if (!c.isReplace() && get(db, c.getKey()) != null) return true;
+            Value v = restore(c.getKey(), c.getSerializedValue());
+            if (c.getTtl() > 0) v.expire = c.isAbsTtl() ? c.getTtl() : now + c.getTtl();
+            put(db, c.getKey(), v);
+            /*
+             * hashes
+             */
+        } else if (command instanceof HSetCommand) {
+            HSetCommand c = (HSetCommand) command;
+            hset(value(db, c.getKey(), HASH), c.getField(), c.getValue());
+        } else if (command instanceof HMSetCommand) {
+            HMSetCommand c = (HMSetCommand) command;
+            Value v = value(db, c.getKey(), HASH);
+            for (Map.Entry<byte[], byte[]> e : c.getFields().entrySet()) hset(v, e.getKey(), e.getValue());
+        } else if (command instanceof HSetNxCommand) {
+            HSetNxCommand c = (HSetNxCommand) command;
+            Value v = value(db, c.getKey(), HASH);
+            if (!hash(v).containsKey(c.getField())) hset(v, c.getField(), c.getValue());
+        } else if (command instanceof HDelCommand) {
+            HDelCommand c = (HDelCommand) command;
+            Value v = existing(db, c.getKey(), HASH);
+            if (v == null) return true;
+            for (byte[] field : c.getFields()) {
+                byte[] prev = hash(v).remove(field);
+                if (prev != null) resize(v, -(ELEMENT + field.length + prev.length));
+            }
+            if (hash(v).isEmpty()) remove(db, c.getKey());
+        } else if (command instanceof HIncrByCommand) {
+            HIncrByCommand c = (HIncrByCommand) command;
+            Value v = value(db, c.getKey(), HASH);
+            byte[] prev = hash(v).get(c.getField());
+            long n = prev == null ? 0 : Long.parseLong(Strings.toString(prev));
+            hset(v, c.getField(), String.valueOf(n + c.getIncrement()).getBytes());
+            /*
+             * lists
+             */
+        } else if (command instanceof LPushCommand) {
+            LPushCommand c = (LPushCommand) command;
+            push(value(db, c.getKey(), LIST), c.getValues(), true);
+        } else if (command instanceof RPushCommand) {
+            RPushCommand c = (RPushCommand) command;
+            push(value(db, c.getKey(), LIST), c.getValues(), false);
+        } else if (command instanceof LPushXCommand) {
+            LPushXCommand c = (LPushXCommand) command;
+            Value v = existing(db, c.getKey(), LIST);
+            if (v != null) push(v, c.getValues(), true);
+        } else if (command instanceof RPushXCommand) {
+            RPushXCommand c = (RPushXCommand) command;
+            Value v = existing(db, c.getKey(), LIST);
+            if (v != null) push(v, c.getValues(), false);
+        } else if (command instanceof LPopCommand) {
+            pop(db, ((LPopCommand) command).getKey(), true);
+        } else if (command instanceof RPopCommand) {
+            pop(db, ((RPopCommand) command).getKey(), false);
+        } else if (command instanceof LSetCommand) {
+            LSetCommand c = (LSetCommand) command;
+            Value v = existing(db, c.getKey(), LIST);
+            if (v == null) return true;
+            List<byte[]> list = list(v);
+            int index = (int) (c.getIndex() < 0 ? list.size() + c.getIndex() : c.getIndex());
+            if (index < 0 || index >= list.size()) return true;
+            byte[] prev = list.set(index, c.getValue());
+            resize(v, c.getValue().length - prev.length);
+        } else if (command instanceof LTrimCommand) {
+            LTrimCommand c = (LTrimCommand) command;
+            Value v = existing(db, c.getKey(), LIST);
+            if (v == null) return true;
+            List<byte[]> list = list(v);
+            long[] range = range(c.getStart(), c.getStop(), list.size());
+            int i = 0;
+            for (Iterator<byte[]> it = list.iterator(); it.hasNext(); i++) {
+                byte[] e = it.next();
+                if (i < range[0] || i > range[1]) {
+                    it.remove();
+                    resize(v, -(ELEMENT + e.length));
+                }
+            }
+            if (list.isEmpty()) remove(db, c.getKey());
+        } else if (command instanceof LRemCommand) {
+            LRemCommand c = (LRemCommand) command;
+            Value v = existing(db, c.getKey(), LIST);
+            if (v == null) return true;
+            LinkedList<byte[]> list = list(v);
+            long count = c.getIndex();
+            Iterator<byte[]> it = count < 0 ? list.descendingIterator() : list.iterator();
+            long limit = count == 0 ? Long.MAX_VALUE : Math.abs(count);
+            while (it.hasNext() && limit > 0) {
+                byte[] e = it.next();
+                if (Arrays.equals(e, c.getValue())) {
+                    it.remove();
+                    resize(v, -(ELEMENT + e.length));
+                    limit--;
+                }
+            }
+            if (list.isEmpty()) remove(db, c.getKey());
+        } else if (command instanceof LInsertCommand) {
+            LInsertCommand c = (LInsertCommand) command;
+            Value v = existing(db, c.getKey(), LIST);
+            if (v == null) return true;
+            for (ListIterator<byte[]> it = list(v).listIterator(); it.hasNext(); ) {
+                if (!Arrays.equals(it.next(), c.getPivot())) continue;
+                if (c.getlInsertType() == LInsertType.BEFORE) it.previous();
+                it.add(c.getValue());
+                resize(v, ELEMENT + c.getValue().length);
+                break;
+            }
+            /*
+             * sets
+             */
+        } else if (command instanceof SAddCommand) {
+            SAddCommand c = (SAddCommand) command;
+            Value v = value(db, c.getKey(), SET);
+            for (byte[] member : c.getMembers()) if (set(v).add(member)) resize(v, ELEMENT + member.length);
+        } else if (command instanceof SRemCommand) {
+            SRemCommand c = (SRemCommand) command;
+            Value v = existing(db, c.getKey(), SET);
+            if (v == null) return true;
+            for (byte[] member : c.getMembers()) if (set(v).remove(member)) resize(v, -(ELEMENT + member.length));
+            if (set(v).isEmpty()) remove(db, c.getKey());
+            /*
+             * sorted sets
+             */
+        } else if (command instanceof ZAddCommand) {
+            ZAddCommand c = (ZAddCommand) command;
+            Value v = value(db, c.getKey(), ZSET);
+            for (ZSetEntry e : c.getZSetEntries()) {
+                Double prev = zset(v).get(new Key(0, e.getElement()));
+                if (c.getExistType() == ExistType.NX && prev != null) continue;
+                if (c.getExistType() == ExistType.XX && prev == null) continue;
+                double score = c.isIncr() && prev != null ? prev + e.getScore() : e.getScore();
+                zadd(v, e.getElement(), score);
+            }
+            if (zset(v).isEmpty()) remove(db, c.getKey());
+        } else if (command instanceof ZIncrByCommand) {
+            ZIncrByCommand c = (ZIncrByCommand) command;
+            Value v = value(db, c.getKey(), ZSET);
+            Double prev = zset(v).get(new Key(0, c.getMember()));
+            zadd(v, c.getMember(), prev == null ? c.getIncrement() : prev + c.getIncrement());
+        } else if (command instanceof ZRemCommand) {
+            ZRemCommand c = (ZRemCommand) command;
+            Value v = existing(db, c.getKey(), ZSET);
+            if (v == null) return true;
+            for (byte[] member : c.getMembers()) zrem(v, member);
+            if (zset(v).isEmpty()) remove(db, c.getKey());
+        } else if (command instanceof ZPopMinCommand) {
+            ZPopMinCommand c = (ZPopMinCommand) command;
+            zpop(db, c.getKey(), c.getCount(), false);
+        } else if (command instanceof ZPopMaxCommand) {
+            ZPopMaxCommand c = (ZPopMaxCommand) command;
+            zpop(db, c.getKey(), c.getCount(), true);
+        } else if (command instanceof ZRemRangeByRankCommand) {
+            ZRemRangeByRankCommand c = (ZRemRangeByRankCommand) command;
+            Value v = existing(db, c.getKey(), ZSET);
+            if (v == null) return true;
+            List<ZSetEntry> sorted = sorted(v);
+            long[] range = range(c.getStart(), c.getStop(), sorted.size());
+            for (long i = range[0]; i <= range[1]; i++) zrem(v, sorted.get((int) i).getElement());
+            if (zset(v).isEmpty()) remove(db, c.getKey());
+        } else if (command instanceof ZRemRangeByScoreCommand) {
+            ZRemRangeByScoreCommand c = (ZRemRangeByScoreCommand) command;
+            Value v = existing(db, c.getKey(), ZSET);
+            if (v == null) return true;
+            for (ZSetEntry e : sorted(v)) {
+                if (score(c.getMin(), e.getScore(), true) && score(c.getMax(), e.getScore(), false)) zrem(v, e.getElement());
+            }
+            if (zset(v).isEmpty()) remove(db, c.getKey());
+        } else if (command instanceof ZRemRangeByLexCommand) {
+            ZRemRangeByLexCommand c = (ZRemRangeByLexCommand) command;
+            Value v = existing(db, c.getKey(), ZSET);
+            if (v == null) return true;
+            for (ZSetEntry e : sorted(v)) {
+                if (lex(c.getMin(), e.getElement(), true) && lex(c.getMax(), e.getElement(), false)) zrem(v, e.getElement());
+            }
+            if (zset(v).isEmpty()) remove(db, c.getKey());
+        } else {
+            return false;
+        }
+        evict();
+        return true;
+    }
+
+    /**
+     * @param kv a key value pair of a rdb, e.g. the rdb preamble of a mixed aof
+     * @throws IOException spill file error
+     */
+    public void put(KeyValuePair<?, ?> kv) throws IOException {
+        Value v = valueOf(kv);
+        put(kv.getDb() == null ? 0 : (int) kv.getDb().getDbNumber(), (byte[]) kv.getKey(), v);
+        evict();
+    }
+
+    /*
+     * key space, the value of a spilled key is loaded on access
+     */
+
+    public Value get(int db, byte[] key) throws IOException {
+        Value v = map.get(new Key(db, key));
+        if (v != null && v.data == null) load(key, v);
+        return v;
+    }
+
+    public Value remove(int db, byte[] key) throws IOException {
+        Value v = map.remove(new Key(db, key));
+        if (v == null) return null;
+        if (v.data == null) load(key, v);
+        memory -= v.memory;
+        return v;
+    }
+
+    public Value put(int db, byte[] key, Value v) {
+        Value prev = map.put(new Key(db, key), v);
+        if (prev != null && prev.data != null) memory -= prev.memory;
+        if (prev != null && prev.data == null) dead += prev.length;
+        memory += v.memory;
+        return v;
+    }
+
+    public void flush(int db) {
+        for (Iterator<Map.Entry<Key, Value>> it = map.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Key, Value> e = it.next();
+            if (e.getKey().db != db) continue;
+            if (e.getValue().data != null) memory -= e.getValue().memory;
+            else dead += e.getValue().length;
+            it.remove();
+        }
+    }
+
+    public void flushAll() {
+        map.clear();
+        memory = 0;
+        dead = getSpillLength();
+    }
+
+    public void swap(int db1, int db2) {
+        if (db1 == db2) return;
+        List<Map.Entry<Key, Value>> swapped = new ArrayList<>();
+        for (Iterator<Map.Entry<Key, Value>> it = map.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Key, Value> e = it.next();
+            if (e.getKey().db != db1 && e.getKey().db != db2) continue;
+            swapped.add(e);
+            it.remove();
+        }
+        for (Map.Entry<Key, Value> e : swapped) {
+            Key key = e.getKey();
+            map.put(new Key(key.db == db1 ? db2 : db1, key.bytes), e.getValue());
+        }
+    }
+
+    /**
+     * @return dbs of this store in ascending order
+     */
+    public Set<Integer> dbs() {
+        Set<Integer> dbs = new TreeSet<>();
+        for (Key key : map.keySet()) dbs.add(key.db);
+        return dbs;
+    }
+
+    /**
+     * @param db  db
+     * @param now time of expiration
+     * @return keys and keys with a ttl of a db that are not expired before {@code now}
+     */
+    public long[] count(int db, long now) {
+        long[] count = new long[2];
+        for (Map.Entry<Key, Value> e : map.entrySet()) {
+            Value v = e.getValue();
+            if (e.getKey().db != db || (v.expire >= 0 && v.expire <= now)) continue;
+            count[0]++;
+            if (v.expire >= 0) count[1]++;
+        }
+        return count;
+    }
+
+    /**
+     * key value pairs of a db in no particular order, keys expired before {@code now} are skipped.
+     *
+     * @param db  db
+     * @param now time of expiration
+     * @return key value pairs, values are decoded lazily if spilled
+     */
+    public Iterator<KeyValuePair<?, ?>> iterator(final int db, final long now) {
+        final Iterator<Map.Entry<Key, Value>> it = new ArrayList<>(map.entrySet()).iterator();
+        return new Iterator<KeyValuePair<?, ?>>() {
+            private KeyValuePair<?, ?> next = advance();
+
+            private KeyValuePair<?, ?> advance() {
+                while (it.hasNext()) {
+                    Map.Entry<Key, Value> e = it.next();
+                    Value v = e.getValue();
+                    if (e.getKey().db != db || (v.expire >= 0 && v.expire <= now)) continue;
+                    try {
+                        if (v.data == null) load(e.getKey().bytes, v);
+                        KeyValuePair<?, ?> kv = toKeyValuePair(e.getKey().bytes, v);
+                        kv.setDb(new DB(db));
+                        // values are read in map order, drop them again so that the budget holds
+                        if (v.memory > 0 && memory > budget) spill(e.getKey().bytes, v);
+                        return kv;
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public KeyValuePair<?, ?> next() {
+                if (next == null) throw new NoSuchElementException();
+                KeyValuePair<?, ?> kv = next;
+                next = advance();
+                return kv;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        map.clear();
+        memory = 0;
+        try {
+            if (spill != null) spill.close();
+        } finally {
+            try {
+                if (reader != null) reader.close();
+            } finally {
+                if (file != null && !file.delete()) file.deleteOnExit();
+            }
+        }
+    }
+
+    /*
+     * values
+     */
+
+    protected Value value(int db, byte[] key, int type) throws IOException {
+        Value v = existing(db, key, type);
+        if (v != null) return v;
+        v = new Value(type, empty(type), ENTRY + key.length);
+        return put(db, key, v);
+    }
+
+    protected Value existing(int db, byte[] key, int type) throws IOException {
+        Value v = get(db, key);
+        if (v != null && v.type != type) throw new AssertionError("WRONGTYPE " + Strings.toString(key));
+        return v;
+    }
+
+    protected void resize(Value v, long delta) {
+        v.memory += delta;
+        memory += delta;
+    }
+
+    protected void update(Value v, byte[] value) {
+        resize(v, value.length - ((byte[]) v.data).length);
+        v.data = value;
+    }
+
+    protected void expire(int db, byte[] key, long expire) throws IOException {
+        Value v = get(db, key);
+        if (v != null) v.expire = expire;
+    }
+
+    protected void incr(int db, byte[] key, long delta) throws IOException {
+        Value v = existing(db, key, STRING);
+        long n = v == null ? 0 : Long.parseLong(Strings.toString(v.data));
+        byte[] next = String.valueOf(n + delta).getBytes();
+        if (v == null) put(db, key, string(next));
+        else update(v, next);
+    }
+
+    protected void hset(Value v, byte[] field, byte[] value) {
+        byte[] prev = hash(v).put(field, value);
+        resize(v, prev == null ? ELEMENT + field.length + value.length : value.length - prev.length);
+    }
+
+    protected void push(Value v, byte[][] values, boolean head) {
+        LinkedList<byte[]> list = list(v);
+        for (byte[] value : values) {
+            if (head) list.addFirst(value);
+            else list.addLast(value);
+            resize(v, ELEMENT + value.length);
+        }
+    }
+
+    protected void pop(int db, byte[] key, boolean head) throws IOException {
+        Value v = existing(db, key, LIST);
+        if (v == null) return;
+        byte[] e = head ? list(v).pollFirst() : list(v).pollLast();
+        if (e != null) resize(v, -(ELEMENT + e.length));
+        if (list(v).isEmpty()) remove(db, key);
+    }
+
+    protected void zadd(Value v, byte[] member, double score) {
+        if (zset(v).put(new Key(0, member), score) == null) resize(v, ELEMENT + member.length);
+    }
+
+    protected void zrem(Value v, byte[] member) {
+        if (zset(v).remove(new Key(0, member)) != null) resize(v, -(ELEMENT + member.length));
+    }
+
+    protected void zpop(int db, byte[] key, int count, boolean max) throws IOException {
+        Value v = existing(db, key, ZSET);
+        if (v == null) return;
+        List<ZSetEntry> sorted = sorted(v);
+        if (max) Collections.reverse(sorted);
+        for (int i = 0; i < count && i < sorted.size(); i++) zrem(v, sorted.get(i).getElement());
+        if (zset(v).isEmpty()) remove(db, key);
+    }
+
+    protected List<ZSetEntry> sorted(Value v) {
+        List<ZSetEntry> list = new ArrayList<>(zset(v).size());
+        for (Map.Entry<Key, Double> e : zset(v).entrySet()) list.add(new ZSetEntry(e.getKey().bytes, e.getValue()));
+        Collections.sort(list, new Comparator<ZSetEntry>() {
+            @Override
+            public int compare(ZSetEntry o1, ZSetEntry o2) {
+                int r = Double.compare(o1.getScore(), o2.getScore());
+                return r != 0 ? r : compareBytes(o1.getElement(), o2.getElement());
+            }
+        });
+        return list;
+    }
+
+    /*
+     * copy a value, the copy is owned by the caller
+     */
+    @SuppressWarnings("unchecked")
+    protected Value copy(Value v) {
+        Object data;
+        switch (v.type) {
+            case LIST:
+                data = new LinkedList<>((LinkedList<byte[]>) v.data);
+                break;
+            case SET:
+                data = new ByteArraySet((Set<byte[]>) v.data);
+                break;
+            case ZSET:
+                data = new HashMap<>((Map<Key, Double>) v.data);
+                break;
+            case HASH:
+                data = new ByteArrayMap((Map<byte[], byte[]>) v.data);
+                break;
+            default:
+                data = v.data;
+                break;
+        }
+        Value copy = new Value(v.type, data, v.memory);
+        copy.expire = v.expire;
+        return copy;
+    }
+
+    protected static Value string(byte[] value) {
+        return new Value(STRING, value, ENTRY + value.length);
+    }
+
+    protected static Object empty(int type) {
+        switch (type) {
+            case STRING:
+                return new byte[0];
+            case LIST:
+                return new LinkedList<byte[]>();
+            case SET:
+                return new ByteArraySet();
+            case ZSET:
+                return new HashMap<Key, Double>();
+            case HASH:
+                return new ByteArrayMap();
+            default:
+                throw new AssertionError(type);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static LinkedList<byte[]> list(Value v) {
+        return (LinkedList<byte[]>) v.data;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static Set<byte[]> set(Value v) {
+        return (Set<byte[]>) v.data;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static Map<Key, Double> zset(Value v) {
+        return (Map<Key, Double>) v.data;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static Map<byte[], byte[]> hash(Value v) {
+        return (Map<byte[], byte[]>) v.data;
+    }
+
+    /*
+     * conversions from and to the key value pairs of rdb
+     */
+
+    @SuppressWarnings("unchecked")
+    protected static Value valueOf(KeyValuePair<?, ?> kv) {
+        byte[] key = (byte[]) kv.getKey();
+        Value v;
+        if (kv instanceof KeyStringValueString) {
+            v = string(((KeyStringValueString) kv).getValue());
+        } else if (kv instanceof KeyStringValueList) {
+            v = new Value(LIST, new LinkedList<>(((KeyStringValueList) kv).getValue()), ENTRY + key.length);
+            for (byte[] e : list(v)) v.memory += ELEMENT + e.length;
+        } else if (kv instanceof KeyStringValueSet) {
+            v = new Value(SET, new ByteArraySet(((KeyStringValueSet) kv).getValue()), ENTRY + key.length);
+            for (byte[] e : set(v)) v.memory += ELEMENT + e.length;
+        } else if (kv instanceof KeyStringValueZSet) {
+            v = new Value(ZSET, new HashMap<Key, Double>(), ENTRY + key.length);
+            for (ZSetEntry e : ((KeyStringValueZSet) kv).getValue()) {
+                zset(v).put(new Key(0, e.getElement()), e.getScore());
+                v.memory += ELEMENT + e.getElement().length;
+            }
+        } else if (kv instanceof KeyStringValueHash) {
+            v = new Value(HASH, new ByteArrayMap(((KeyStringValueHash) kv).getValue()), ENTRY + key.length);
+            for (Map.Entry<byte[], byte[]> e : hash(v).entrySet()) v.memory += ELEMENT + e.getKey().length + e.getValue().length;
+        } else {
+            // streams, modules and dumped values are written back as is
+            long size = kv instanceof DumpKeyValuePair ? ((DumpKeyValuePair) kv).getValue().length : 0;
+            v = new Value(RAW, kv, ENTRY + key.length + size);
+        }
+        if (kv.getExpiredType() == ExpiredType.SECOND) v.expire = kv.getExpiredValue() * 1000L;
+        else if (kv.getExpiredType() == ExpiredType.MS) v.expire = kv.getExpiredValue();
+        return v;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static KeyValuePair<?, ?> toKeyValuePair(byte[] key, Value v) {
+        KeyValuePair<?, ?> kv;
+        switch (v.type) {
+            case STRING:
+                KeyStringValueString string = new KeyStringValueString();
+                string.setValue((byte[]) v.data);
+                kv = string;
+                break;
+            case LIST:
+                KeyStringValueList list = new KeyStringValueList();
+                list.setValue(new ByteArrayList(list(v)));
+                kv = list;
+                break;
+            case SET:
+                KeyStringValueSet set = new KeyStringValueSet();
+                set.setValue(set(v));
+                kv = set;
+                break;
+            case ZSET:
+                KeyStringValueZSet zset = new KeyStringValueZSet();
+                Set<ZSetEntry> entries = new LinkedHashSet<>();
+                for (Map.Entry<Key, Double> e : zset(v).entrySet()) entries.add(new ZSetEntry(e.getKey().bytes, e.getValue()));
+                zset.setValue(entries);
+                kv = zset;
+                break;
+            case HASH:
+                KeyStringValueHash hash = new KeyStringValueHash();
+                hash.setValue(hash(v));
+                kv = hash;
+                break;
+            default:
+                kv = (KeyValuePair<?, ?>) v.data;
+                break;
+        }
+        ((KeyValuePair<byte[], ?>) kv).setKey(key);
+        if (v.expire >= 0) {
+            kv.setExpiredType(ExpiredType.MS);
+            kv.setExpiredValue(v.expire);
+        } else {
+            kv.setExpiredType(ExpiredType.NONE);
+            kv.setExpiredValue(null);
+        }
+        return kv;
+    }
+
+    /*
+     * the payload of RESTORE is decoded if this version of rdb is known, otherwise it's written back as is
+     */
+    protected static Value restore(byte[] key, byte[] payload) throws IOException {
+        // <type><value><rdb version:2><crc64:8>
+        int version = payload.length >= 10 ? (payload[payload.length - 10] & 0xFF) | (payload[payload.length - 9] & 0xFF) << 8 : -1;
+        if (version >= 0 && version <= RdbWriter.DEFAULT_VERSION) {
+            KeyValuePair<?, ?> kv = decode(key, payload, 0, payload.length - 10);
+            if (kv != null) return valueOf(kv);
+        }
+        DumpKeyValuePair dump = new DumpKeyValuePair();
+        dump.setKey(key);
+        dump.setValue(payload);
+        dump.setValueRdbType(payload[0] & 0xFF);
+        return valueOf(dump);
+    }
+
+    /*
+     * <type><value> with the key inserted after the type, the way a key value pair is stored in rdb
+     */
+    protected static KeyValuePair<?, ?> decode(byte[] key, byte[] value, int offset, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + key.length + 5);
+        try (RdbWriter writer = new RdbWriter(out)) {
+            writer.writeString(key);
+        }
+        byte[] prefix = out.toByteArray();
+        byte[] bytes = new byte[1 + prefix.length + length - 1];
+        bytes[0] = value[offset];
+        System.arraycopy(prefix, 0, bytes, 1, prefix.length);
+        System.arraycopy(value, offset + 1, bytes, 1 + prefix.length, length - 1);
+        return decode(bytes);
+    }
+
+    protected static KeyValuePair<?, ?> decode(byte[] bytes) throws IOException {
+        RedisInputStream in = new RedisInputStream(new ByteArray(bytes));
+        int type = in.read();
+        ContextKeyValuePair context = new ContextKeyValuePair();
+        int version = RdbWriter.DEFAULT_VERSION;
+        Event event;
+        switch (type) {
+            case RDB_TYPE_STRING:
+                event = VISITOR.applyString(in, version, context);
+                break;
+            case RDB_TYPE_LIST:
+                event = VISITOR.applyList(in, version, context);
+                break;
+            case RDB_TYPE_SET:
+                event = VISITOR.applySet(in, version, context);
+                break;
+            case RDB_TYPE_ZSET:
+                event = VISITOR.applyZSet(in, version, context);
+                break;
+            case RDB_TYPE_ZSET_2:
+                event = VISITOR.applyZSet2(in, version, context);
+                break;
+            case RDB_TYPE_HASH:
+                event = VISITOR.applyHash(in, version, context);
+                break;
+            case RDB_TYPE_HASH_ZIPMAP:
+                event = VISITOR.applyHashZipMap(in, version, context);
+                break;
+            case RDB_TYPE_LIST_ZIPLIST:
+                event = VISITOR.applyListZipList(in, version, context);
+                break;
+            case RDB_TYPE_SET_INTSET:
+                event = VISITOR.applySetIntSet(in, version, context);
+                break;
+            case RDB_TYPE_ZSET_ZIPLIST:
+                event = VISITOR.applyZSetZipList(in, version, context);
+                break;
+            case RDB_TYPE_HASH_ZIPLIST:
+                event = VISITOR.applyHashZipList(in, version, context);
+                break;
+            case RDB_TYPE_LIST_QUICKLIST:
+                event = VISITOR.applyListQuickList(in, version, context);
+                break;
+            default:
+                return null;
+        }
+        return (KeyValuePair<?, ?>) event;
+    }
+
+    /*
+     * spill
+     */
+
+    protected void evict() throws IOException {
+        if (memory <= budget) return;
+        long target = budget - budget / 4;
+        for (Map.Entry<Key, Value> e : map.entrySet()) {
+            if (memory <= target) break;
+            Value v = e.getValue();
+            if (v.data != null) spill(e.getKey().bytes, v);
+        }
+    }
+
+    protected void spill(byte[] key, Value v) throws IOException {
+        if (spill == null) {
+            file = File.createTempFile("compact", ".spill", dir);
+            spill = new RdbWriter(new FileOutputStream(file));
+        } else if (dead >= COMPACT && dead * 2 > spill.length()) {
+            compact();
+        }
+        KeyValuePair<?, ?> kv = toKeyValuePair(key, v);
+        kv.setExpiredType(ExpiredType.NONE);
+        kv.setDb(null);
+        long offset = spill.length();
+        spill.writeKeyValuePair(kv);
+        v.offset = offset;
+        v.length = (int) (spill.length() - offset);
+        v.data = null;
+        memory -= v.memory;
+        spilled++;
+    }
+
+    protected void load(byte[] key, Value v) throws IOException {
+        spill.flush();
+        if (reader == null) reader = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[v.length];
+        reader.seek(v.offset);
+        reader.readFully(bytes);
+        KeyValuePair<?, ?> kv = v.type == RAW ? null : decode(bytes);
+        if (kv == null) {
+            // raw values are spilled as dump payloads or streams
+            DumpKeyValuePair dump = new DumpKeyValuePair();
+            dump.setKey(key);
+            dump.setValue(payload(bytes, key));
+            dump.setValueRdbType(bytes[0] & 0xFF);
+            kv = dump;
+        }
+        Value loaded = valueOf(kv);
+        v.data = loaded.type == v.type ? loaded.data : kv;
+        v.offset = -1;
+        memory += v.memory;
+        dead += v.length;
+    }
+
+    /*
+     * copy the live regions in file order to a new spill file, offsets are only updated once all are copied
+     */
+    protected void compact() throws IOException {
+        spill.flush();
+        if (reader == null) reader = new RandomAccessFile(file, "r");
+        List<Value> live = new ArrayList<>();
+        for (Value v : map.values()) if (v.data == null) live.add(v);
+        Collections.sort(live, new Comparator<Value>() {
+            @Override
+            public int compare(Value o1, Value o2) {
+                return Long.compare(o1.offset, o2.offset);
+            }
+        });
+        long[] offsets = new long[live.size()];
+        File next = File.createTempFile("compact", ".spill", dir);
+        RdbWriter writer = new RdbWriter(new FileOutputStream(next));
+        try {
+            for (int i = 0; i < offsets.length; i++) {
+                Value v = live.get(i);
+                byte[] bytes = new byte[v.length];
+                reader.seek(v.offset);
+                reader.readFully(bytes);
+                offsets[i] = writer.length();
+                writer.writeBytes(bytes, 0, bytes.length);
+            }
+        } catch (IOException e) {
+            writer.close();
+            if (!next.delete()) next.deleteOnExit();
+            throw e;
+        }
+        for (int i = 0; i < offsets.length; i++) live.get(i).offset = offsets[i];
+        try {
+            spill.close();
+        } finally {
+            try {
+                reader.close();
+            } finally {
+                if (!file.delete()) file.deleteOnExit();
+            }
+        }
+        file = next;
+        spill = writer;
+        reader = null;
+        dead = 0;
+    }
+
+    /*
+     * <type><key><value> to a dump payload <type><value><version><crc>, the crc is not checked by RdbWriter
+     */
+    private static byte[] payload(byte[] bytes, byte[] key) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(key.length + 5);
+        try (RdbWriter writer = new RdbWriter(out)) {
+            writer.writeString(key);
+        }
+        int skip = 1 + out.toByteArray().length;
+        byte[] payload = new byte[bytes.length - skip + 1 + 10];
+        payload[0] = bytes[0];
+        System.arraycopy(bytes, skip, payload, 1, bytes.length - skip);
+        payload[payload.length - 10] = (byte) RdbWriter.DEFAULT_VERSION;
+        return payload;
+    }
+
+    /*
+     * helpers
+     */
+
+    protected static long[] range(long start, long stop, int size) {
+        if (start < 0) start = size + start;
+        if (stop < 0) stop = size + stop;
+        if (start < 0) start = 0;
+        if (stop >= size) stop = size - 1;
+        return new long[]{start, stop};
+    }
+
+    /*
+     * min or max of ZREMRANGEBYSCORE: (1.5, 1.5, -inf, +inf
+     */
+    protected static boolean score(byte[] bound, double score, boolean min) {
+        String s = Strings.toString(bound);
+        boolean exclusive = s.startsWith("(");
+        if (exclusive) s = s.substring(1);
+        double d = s.equalsIgnoreCase("-inf") ? Double.NEGATIVE_INFINITY
+                : s.equalsIgnoreCase("+inf") || s.equalsIgnoreCase("inf") ? Double.POSITIVE_INFINITY : Double.parseDouble(s);
+        if (min) return exclusive ? score > d : score >= d;
+        return exclusive ? score < d : score <= d;
+    }
+
+    /*
+     * min or max of ZREMRANGEBYLEX: [a, (a, -, +
+     */
+    protected static boolean lex(byte[] bound, byte[] member, boolean min) {
+        if (bound.length == 1 && bound[0] == '-') return min;
+        if (bound.length == 1 && bound[0] == '+') return !min;
+        int r = compareBytes(member, Arrays.copyOfRange(bound, 1, bound.length));
+        boolean exclusive = bound[0] == '(';
+        if (min) return exclusive ? r > 0 : r >= 0;
+        return exclusive ? r < 0 : r <= 0;
+    }
+
+    protected static int compareBytes(byte[] b1, byte[] b2) {
+        int len = Math.min(b1.length, b2.length);
+        for (int i = 0; i < len; i++) {
+            int r = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+            if (r != 0) return r;
+        }
+        return b1.length - b2.length;
+    }
+
+    public static final class Key {
+        protected final int db;
+        protected final byte[] bytes;
+        private final int hash;
+
+        public Key(int db, byte[] bytes) {
+            this.db = db;
+            this.bytes = bytes;
+            this.hash = 31 * db + Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return db == key.db && Arrays.equals(bytes, key.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    public static final class Value {
+        protected final int type;
+        protected Object data;
+        protected long expire = -1;
+        protected long memory;
+        protected long offset = -1;
+        protected int length;
+
+        protected Value(int type, Object data, long memory) {
+            this.type = type;
+            this.data = data;
+            this.memory = memory;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public long getExpire() {
+            return expire;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.writer;
+
+import java.util.Arrays;
+
+/**
+ * growable byte buffer that is reused between values.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+class EncodingBuffer {
+
+    protected byte[] buf;
+    protected int size;
+
+    EncodingBuffer(int initialCapacity) {
+        this.buf = new byte[initialCapacity];
+    }
+
+    byte[] array() {
+        return buf;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    void write(int b) {
+        ensure(1);
+        buf[size++] = (byte) b;
+    }
+
+    void write(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, buf, size, len);
+        size += len;
+    }
+
+    /**
+     * @param v   value
+     * @param len 1 to 8 bytes, little endian
+     */
+    void writeLE(long v, int len) {
+        ensure(len);
+        setLE(size, v, len);
+        size += len;
+    }
+
+    void setLE(int pos, long v, int len) {
+        for (int i = 0; i < len; i++) {
+            buf[pos + i] = (byte) (v >>> (i << 3));
+        }
+    }
+
+    private void ensure(int len) {
+        if (size + len > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(size + len, buf.length << 1));
+        }
+    }
+
+    /**
+     * same rule as redis {@code string2ll}: no sign prefix '+', no leading zero, no spaces, fits in a long.
+     *
+     * @param b   bytes
+     * @param off offset
+     * @param len length
+     * @return true if bytes is the canonical decimal form of a long
+     */
+    static boolean isLong(byte[] b, int off, int len) {
+        if (len == 0 || len > 20) return false;
+        int i = off, end = off + len;
+        boolean negative = b[i] == '-';
+        if (negative && ++i == end) return false;
+        if (b[i] == '0') return !negative && len == 1;
+        long v = 0;
+        for (; i < end; i++) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9) return false;
+            if (v < (Long.MIN_VALUE + d) / 10) return false;
+            v = v * 10 - d;
+        }
+        return negative || v != Long.MIN_VALUE;
+    }
+
+    /**
+     * @param b   bytes that passed {@link #isLong(byte[], int, int)}
+     * @param off offset
+     * @param len length
+     * @return value
+     */
+    static long toLong(byte[] b, int off, int len) {
+        int i = off, end = off + len;
+        boolean negative = b[i] == '-';
+        if (negative) i++;
+        long v = 0;
+        for (; i < end; i++) {
+            v = v * 10 - (b[i] - '0');
+        }
+        return negative ? v : -v;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.writer;
+
+/**
+ * <pre>
+ * |<total-bytes>|<num-elements>|<element> ... <element>|<end>|
+ * |   4 bytes   |   2 bytes    | encoding data backlen |1byte|
+ * </pre>
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+class ListPackBuilder extends EncodingBuffer {
+
+    static final int HEADER_SIZE = 6;
+
+    private int count;
+
+    ListPackBuilder() {
+        super(1024);
+        clear();
+    }
+
+    @Override
+    void clear() {
+        size = HEADER_SIZE;
+        count = 0;
+    }
+
+    void add(byte[] e) {
+        if (e.length <= 20 && isLong(e, 0, e.length)) {
+            add(toLong(e, 0, e.length));
+            return;
+        }
+        int start = size, len = e.length;
+        if (len < 64) {
+            write(0x80 | len);
+        } else if (len < 4096) {
+            write(0xE0 | (len >>> 8));
+            write(len);
+        } else {
+            write(0xF0);
+            writeLE(len, 4);
+        }
+        write(e, 0, len);
+        backlen(size - start);
+    }
+
+    void add(long v) {
+        int start = size;
+        if (v >= 0 && v <= 127) {
+            write((int) v);
+        } else if (v >= -4096 && v <= 4095) {
+            int u = (int) v & 0x1FFF;
+            write(0xC0 | (u >>> 8));
+            write(u);
+        } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+            write(0xF1);
+            writeLE(v, 2);
+        } else if (v >= -(1 << 23) && v <= (1 << 23) - 1) {
+            write(0xF2);
+            writeLE(v, 3);
+        } else if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+            write(0xF3);
+            writeLE(v, 4);
+        } else {
+            write(0xF4);
+            writeLE(v, 8);
+        }
+        backlen(size - start);
+    }
+
+    /**
+     * append end and fill the header.
+     *
+     * @return this
+     */
+    ListPackBuilder finish() {
+        write(0xFF);
+        setLE(0, size, 4);
+        setLE(4, Math.min(count, 0xFFFF), 2);
+        return this;
+    }
+
+    /*
+     * same as redis lpEncodeBacklen, the most significant 7-bit group comes first.
+     */
+    private void backlen(int l) {
+        if (l <= 127) {
+            write(l);
+        } else if (l < 16383) {
+            write(l >>> 7);
+            write((l & 127) | 128);
+        } else if (l < 2097151) {
+            write(l >>> 14);
+            write(((l >>> 7) & 127) | 128);
+            write((l & 127) | 128);
+        } else if (l < 268435455) {
+            write(l >>> 21);
+            write(((l >>> 14) & 127) | 128);
+            write(((l >>> 7) & 127) | 128);
+            write((l & 127) | 128);
+        } else {
+            write(l >>> 28);
+            write(((l >>> 21) & 127) | 128);
+            write(((l >>> 14) & 127) | 128);
+            write(((l >>> 7) & 127) | 128);
+            write((l & 127) | 128);
+        }
+        count++;
+    }
+}
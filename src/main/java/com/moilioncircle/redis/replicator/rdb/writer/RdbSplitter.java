@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.writer;
+
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.event.PostRdbSyncEvent;
+import com.moilioncircle.redis.replicator.rdb.datatype.AuxField;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.util.CRC16;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits one rdb into N rdb files by key. Each shard has its own writer thread, {@link RdbWriter} and
+ * bounded queue, so crc64, encoding and file io of different shards run in parallel while the parser
+ * thread only routes events.
+ * <p>
+ * Use it with {@code DumpRdbVisitor} to copy raw values without decoding them:
+ * <pre>
+ * Replicator r = new RedisReplicator(file, FileType.RDB, Configuration.defaultSetting());
+ * r.setRdbVisitor(new DumpRdbVisitor(r));
+ * r.addEventListener(new RdbSplitter(outs, RdbSplitter.slot(outs.length)));
+ * r.open();
+ * </pre>
+ * Every shard gets the aux fields, a {@code SELECTDB} before the first key of each db and the EOF with crc64.
+ * The {@code RESIZEDB} hint of a db is divided by the number of shards, redis preallocates its tables from it.
+ * The splitter closes itself on {@link PostRdbSyncEvent}, the output streams are closed by the shard threads.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class RdbSplitter implements EventListener, Closeable {
+
+    protected static final Logger logger = LoggerFactory.getLogger(RdbSplitter.class);
+
+    private static final List<Object> END = Collections.emptyList();
+
+    private static final ThreadFactory DAEMON = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "rdb-splitter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    protected final int batchSize;
+    protected final Partitioner partitioner;
+    protected final Shard[] shards;
+    private boolean closed;
+
+    public RdbSplitter(OutputStream[] outs, Partitioner partitioner) {
+        this(outs, partitioner, RdbWriter.DEFAULT_VERSION, 16, 64, DAEMON);
+    }
+
+    /**
+     * @param outs        one output stream per shard
+     * @param partitioner key to shard index
+     * @param version     rdb version of the shards
+     * @param queueSize   max batches queued per shard before the parser thread blocks
+     * @param batchSize   events per batch
+     * @param tf          thread factory of shard threads
+     */
+    public RdbSplitter(OutputStream[] outs, Partitioner partitioner, int version, int queueSize, int batchSize, ThreadFactory tf) {
+        if (outs.length == 0) throw new IllegalArgumentException(String.valueOf(outs.length));
+        if (batchSize <= 0) throw new IllegalArgumentException(String.valueOf(batchSize));
+        this.batchSize = batchSize;
+        this.partitioner = partitioner;
+        this.shards = new Shard[outs.length];
+        final int n = outs.length;
+        for (int i = 0; i < outs.length; i++) {
+            RdbWriter writer = new RdbWriter(outs[i], version) {
+                @Override
+                public void writeResizeDB(long dbsize, long expires) throws IOException {
+                    super.writeResizeDB((dbsize + n - 1) / n, (expires + n - 1) / n);
+                }
+            };
+            shards[i] = new Shard(writer, queueSize, batchSize);
+        }
+        for (Shard shard : shards) {
+            shard.thread = tf.newThread(shard);
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * even split of the 16384 hash slots, same as a new redis cluster with {@code shards} masters.
+     *
+     * @param shards number of shards
+     * @return partitioner
+     */
+    public static Partitioner slot(final int shards) {
+        return new Partitioner() {
+            @Override
+            public int partition(byte[] key) {
+                return CRC16.slot(key) * shards / CRC16.SLOTS;
+            }
+        };
+    }
+
+    /**
+     * @param slots shard index of every hash slot, e.g. built from {@code CLUSTER SLOTS}
+     * @return partitioner
+     */
+    public static Partitioner slot(final int[] slots) {
+        if (slots.length != CRC16.SLOTS) throw new IllegalArgumentException(String.valueOf(slots.length));
+        return new Partitioner() {
+            @Override
+            public int partition(byte[] key) {
+                return slots[CRC16.slot(key)];
+            }
+        };
+    }
+
+    @Override
+    public void onEvent(Replicator replicator, Event event) {
+        try {
+            if (event instanceof KeyValuePair<?, ?>) {
+                split((KeyValuePair<?, ?>) event);
+            } else if (event instanceof AuxField) {
+                for (Shard shard : shards) shard.add(event);
+            } else if (event instanceof PostRdbSyncEvent) {
+                close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * route a key value pair to its shard, blocks if the shard queue is full.
+     * all chunks of a {@code ChunkedDumpKeyValuePair} go to the same shard because they have the same key.
+     *
+     * @param kv key value pair with a {@code byte[]} key
+     * @throws IOException if a shard failed
+     */
+    public void split(KeyValuePair<?, ?> kv) throws IOException {
+        int index = partitioner.partition((byte[]) kv.getKey());
+        if (index < 0 || index >= shards.length) throw new IllegalArgumentException(String.valueOf(index));
+        shards[index].add(kv);
+    }
+
+    /**
+     * flush pending batches, write EOF of every shard and wait for the shard threads.
+     *
+     * @throws IOException the first error of shards
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        IOException error = null;
+        for (Shard shard : shards) {
+            try {
+                shard.flush();
+                shard.put(END);
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (error == null) error = new InterruptedIOException();
+            }
+            if (error == null && shard.error != null) error = shard.error();
+        }
+        if (error != null) throw error;
+    }
+
+    public interface Partitioner {
+        /**
+         * @param key key
+         * @return shard index in [0, shards)
+         */
+        int partition(byte[] key);
+    }
+
+    protected static class Shard implements Runnable {
+        protected Thread thread;
+        protected volatile Throwable error;
+        protected final RdbWriter writer;
+        protected final int batchSize;
+        protected final BlockingQueue<List<Object>> queue;
+        protected List<Object> batch;
+
+        protected Shard(RdbWriter writer, int queueSize, int batchSize) {
+            this.writer = writer;
+            this.batchSize = batchSize;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        protected void add(Object event) throws IOException {
+            if (error != null) throw error();
+            batch.add(event);
+            if (batch.size() >= batchSize) flush();
+        }
+
+        protected void flush() throws IOException {
+            if (batch.isEmpty()) return;
+            put(batch);
+            batch = new ArrayList<>(batchSize);
+        }
+
+        protected void put(List<Object> batch) throws IOException {
+            try {
+                queue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        protected IOException error() {
+            return error instanceof IOException ? (IOException) error : new IOException(error);
+        }
+
+        @Override
+        public void run() {
+            boolean end = false;
+            try {
+                writer.writeHeader();
+                for (List<Object> events = queue.take(); events != END; events = queue.take()) {
+                    for (Object event : events) {
+                        if (event instanceof AuxField) writer.writeAux((AuxField) event);
+                        else writer.writeKeyValuePair((KeyValuePair<?, ?>) event);
+                    }
+                }
+                end = true;
+                writer.writeEof();
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException();
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    if (error == null) error = e;
+                    else logger.error("failed to close shard", e);
+                }
+                // keep draining until END so that the parser thread never blocks on a dead shard
+                if (!end) drain();
+            }
+        }
+
+        protected void drain() {
+            try {
+                while (queue.take() != END) ;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,817 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.writer;
+
+import com.moilioncircle.redis.replicator.io.CRCOutputStream;
+import com.moilioncircle.redis.replicator.rdb.datatype.AuxField;
+import com.moilioncircle.redis.replicator.rdb.datatype.DB;
+import com.moilioncircle.redis.replicator.rdb.datatype.EvictType;
+import com.moilioncircle.redis.replicator.rdb.datatype.ExpiredType;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueByteArray;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueHash;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueList;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueSet;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueStream;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueString;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueZSet;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.Stream;
+import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
+import com.moilioncircle.redis.replicator.rdb.dump.datatype.ChunkedDumpKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
+import com.moilioncircle.redis.replicator.util.ByteArray;
+import com.moilioncircle.redis.replicator.util.Lzf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT16;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT32;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT8;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_LZF;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENCVAL;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_AUX;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_EOF;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_EXPIRETIME;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_EXPIRETIME_MS;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_FREQ;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_IDLE;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_RESIZEDB;
+import static com.moilioncircle.redis.replicator.Constants.RDB_OPCODE_SELECTDB;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET_INTSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STREAM_LISTPACKS;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STRING;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.STREAM_ITEM_FLAG_DELETED;
+import static com.moilioncircle.redis.replicator.Constants.STREAM_ITEM_FLAG_NONE;
+import static com.moilioncircle.redis.replicator.Constants.STREAM_ITEM_FLAG_SAMEFIELDS;
+import static com.moilioncircle.redis.replicator.rdb.writer.EncodingBuffer.isLong;
+import static com.moilioncircle.redis.replicator.rdb.writer.EncodingBuffer.toLong;
+
+/**
+ * Serializes parsed events back into a rdb stream that redis and {@code RdbParser} can load.
+ * <p>
+ * Values are written with the same compact encodings redis chooses under default config:
+ * integer encoded and lzf compressed strings, intsets, ziplists, quicklists and stream listpacks.
+ * {@link DumpKeyValuePair} payloads are copied as is, modules are only supported as dump payloads.
+ * <p>
+ * Output is buffered internally and the crc64 is computed per buffer block, so there is no need to
+ * wrap {@code out} with a {@code BufferedOutputStream}.
+ * <pre>
+ * try (RdbWriter writer = new RdbWriter(out)) {
+ *     writer.writeHeader();
+ *     writer.writeAux("redis-ver", "5.0.0");
+ *     for (KeyValuePair&lt;?, ?&gt; kv : kvs) writer.writeKeyValuePair(kv);
+ *     writer.writeEof();
+ * }
+ * </pre>
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class RdbWriter implements Closeable {
+
+    public static final int DEFAULT_VERSION = 9;
+
+    protected static final int LIST_MAX_ZIPLIST_SIZE = 8 * 1024;
+    protected static final int LIST_MAX_ZIPLIST_ENTRIES = 128;
+    protected static final int LIST_MAX_ZIPLIST_VALUE = 64;
+    protected static final int HASH_MAX_ZIPLIST_ENTRIES = 128;
+    protected static final int HASH_MAX_ZIPLIST_VALUE = 64;
+    protected static final int ZSET_MAX_ZIPLIST_ENTRIES = 128;
+    protected static final int ZSET_MAX_ZIPLIST_VALUE = 64;
+    protected static final int SET_MAX_INTSET_ENTRIES = 512;
+    protected static final int STREAM_NODE_MAX_ENTRIES = 100;
+
+    private static final int CRC_LENGTH = 10;
+
+    protected final int version;
+    protected final CRCOutputStream out;
+
+    protected boolean compress = true;
+    protected long db = -1;
+
+    private final byte[] buf;
+    private int count;
+    private long length;
+
+    private int[] table;
+    private byte[] lzf = new byte[0];
+    private final byte[] pending = new byte[CRC_LENGTH];
+    private int pendingLength;
+    private EncodingBuffer intSet;
+    private ZipListBuilder zipList;
+    private ListPackBuilder listPack;
+
+    public RdbWriter(OutputStream out) {
+        this(out, DEFAULT_VERSION);
+    }
+
+    public RdbWriter(OutputStream out, int version) {
+        this(out, version, 64 * 1024);
+    }
+
+    public RdbWriter(OutputStream out, int version, int bufferSize) {
+        if (version < 1 || version > DEFAULT_VERSION) throw new IllegalArgumentException(String.valueOf(version));
+        if (bufferSize <= 0) throw new IllegalArgumentException(String.valueOf(bufferSize));
+        this.out = new CRCOutputStream(out);
+        this.version = version;
+        this.buf = new byte[bufferSize];
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * @param compress same as redis config {@code rdbcompression}, default true
+     * @return this
+     */
+    public RdbWriter setCompress(boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    /**
+     * @return bytes written so far, including buffered bytes
+     */
+    public long length() {
+        return length + count;
+    }
+
+    /*
+     * opcodes
+     */
+
+    public void writeHeader() throws IOException {
+        byte[] magic = String.format("REDIS%04d", version).getBytes();
+        writeBytes(magic, 0, magic.length);
+    }
+
+    public void writeAux(AuxField aux) throws IOException {
+        writeAux(aux.getAuxKey(), aux.getAuxValue());
+    }
+
+    /**
+     * aux fields are ignored if rdb version less than 7.
+     *
+     * @param key   aux key
+     * @param value aux value
+     * @throws IOException io exception
+     */
+    public void writeAux(String key, String value) throws IOException {
+        if (version < 7) return;
+        writeByte(RDB_OPCODE_AUX);
+        writeString(key.getBytes());
+        writeString(value.getBytes());
+    }
+
+    public void writeSelectDB(long db) throws IOException {
+        writeByte(RDB_OPCODE_SELECTDB);
+        writeLen(db);
+        this.db = db;
+    }
+
+    /**
+     * resize db hints are ignored if rdb version less than 7.
+     *
+     * @param dbsize  db size
+     * @param expires expires size
+     * @throws IOException io exception
+     */
+    public void writeResizeDB(long dbsize, long expires) throws IOException {
+        if (version < 7) return;
+        writeByte(RDB_OPCODE_RESIZEDB);
+        writeLen(dbsize);
+        writeLen(expires);
+    }
+
+    public void writeDB(DB db) throws IOException {
+        writeSelectDB(db.getDbNumber());
+        if (db.getDbsize() != null && db.getExpires() != null) {
+            writeResizeDB(db.getDbsize(), db.getExpires());
+        }
+    }
+
+    /**
+     * write a key value pair, a {@code SELECTDB} is written first if {@code kv.getDb()} differs from current db.
+     * <p>
+     * chunks of a {@link ChunkedDumpKeyValuePair} must be written in order and without other key value pairs in between.
+     *
+     * @param kv key value pair
+     * @throws IOException                   io exception
+     * @throws UnsupportedOperationException if the value type can't be serialized, e.g. module values
+     *                                       that were not parsed by {@code DumpRdbVisitor}
+     */
+    public void writeKeyValuePair(KeyValuePair<?, ?> kv) throws IOException {
+        if (kv instanceof ChunkedDumpKeyValuePair) {
+            writeChunk((ChunkedDumpKeyValuePair) kv);
+            return;
+        }
+        writeKeyPrefix(kv);
+        if (kv instanceof DumpKeyValuePair) {
+            byte[] payload = ((DumpKeyValuePair) kv).getValue();
+            if (payload.length <= CRC_LENGTH) throw new IllegalArgumentException(String.valueOf(payload.length));
+            writeByte(payload[0]);
+            writeString(((DumpKeyValuePair) kv).getKey());
+            writeBytes(payload, 1, payload.length - 1 - CRC_LENGTH);
+        } else if (kv instanceof KeyStringValueString) {
+            writeByte(RDB_TYPE_STRING);
+            writeString(((KeyStringValueString) kv).getKey());
+            writeString(((KeyStringValueString) kv).getValue());
+        } else if (kv instanceof KeyStringValueByteArray) {
+            writeByte(RDB_TYPE_STRING);
+            writeString(((KeyStringValueByteArray) kv).getKey());
+            writeString(((KeyStringValueByteArray) kv).getValue());
+        } else if (kv instanceof KeyStringValueList) {
+            writeList(((KeyStringValueList) kv).getKey(), ((KeyStringValueList) kv).getValue());
+        } else if (kv instanceof KeyStringValueSet) {
+            writeSet(((KeyStringValueSet) kv).getKey(), ((KeyStringValueSet) kv).getValue());
+        } else if (kv instanceof KeyStringValueZSet) {
+            writeZSet(((KeyStringValueZSet) kv).getKey(), ((KeyStringValueZSet) kv).getValue());
+        } else if (kv instanceof KeyStringValueHash) {
+            writeHash(((KeyStringValueHash) kv).getKey(), ((KeyStringValueHash) kv).getValue());
+        } else if (kv instanceof KeyStringValueStream) {
+            writeStream(((KeyStringValueStream) kv).getKey(), ((KeyStringValueStream) kv).getValue());
+        } else {
+            throw new UnsupportedOperationException(kv.getClass().getName() + ", use DumpRdbVisitor to copy this value");
+        }
+    }
+
+    public void writeEof() throws IOException {
+        writeByte(RDB_OPCODE_EOF);
+        flushBuffer();
+        if (version >= 5) out.write(out.getCRC64());
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    /*
+     * values
+     */
+
+    protected void writeKeyPrefix(KeyValuePair<?, ?> kv) throws IOException {
+        DB db = kv.getDb();
+        if (db != null && db.getDbNumber() != this.db) writeDB(db);
+        if (kv.getExpiredType() == ExpiredType.MS) {
+            writeByte(RDB_OPCODE_EXPIRETIME_MS);
+            writeLE(kv.getExpiredValue(), 8);
+        } else if (kv.getExpiredType() == ExpiredType.SECOND) {
+            writeByte(RDB_OPCODE_EXPIRETIME);
+            writeLE(kv.getExpiredValue(), 4);
+        }
+        if (version < 9) return;
+        if (kv.getEvictType() == EvictType.LRU) {
+            writeByte(RDB_OPCODE_IDLE);
+            writeLen(kv.getEvictValue());
+        } else if (kv.getEvictType() == EvictType.LFU) {
+            writeByte(RDB_OPCODE_FREQ);
+            writeByte(kv.getEvictValue().intValue());
+        }
+    }
+
+    /*
+     * the payload is |type|value|version(2 bytes)|crc(8 bytes)|, the last 10 bytes may
+     * span chunks, so they are held back until the next chunk arrives.
+     */
+    protected void writeChunk(ChunkedDumpKeyValuePair kv) throws IOException {
+        byte[] bytes = kv.getValue();
+        int off = 0;
+        if (kv.getBatch() == 0) {
+            writeKeyPrefix(kv);
+            writeByte(bytes[0]);
+            writeString(kv.getKey());
+            pendingLength = 0;
+            off = 1;
+        }
+        int len = bytes.length - off;
+        int keep = Math.min(CRC_LENGTH, pendingLength + len);
+        int emit = pendingLength + len - keep;
+        int fromPending = Math.min(emit, pendingLength);
+        writeBytes(pending, 0, fromPending);
+        writeBytes(bytes, off, emit - fromPending);
+        int rest = pendingLength - fromPending;
+        System.arraycopy(pending, fromPending, pending, 0, rest);
+        System.arraycopy(bytes, off + emit - fromPending, pending, rest, keep - rest);
+        pendingLength = kv.isLast() ? 0 : keep;
+    }
+
+    protected void writeList(byte[] key, List<byte[]> list) throws IOException {
+        if (version >= 7) {
+            writeByte(RDB_TYPE_LIST_QUICKLIST);
+            writeString(key);
+            writeLen(quickListNodes(list));
+            ZipListBuilder zl = zipList();
+            for (byte[] e : list) {
+                if (zl.count() > 0 && !fits(zl.size(), zl.sizeOf(e), zl.count())) {
+                    zl.finish();
+                    writeString(zl.array(), 0, zl.size());
+                    zl.clear();
+                }
+                zl.add(e);
+            }
+            if (zl.count() > 0) {
+                zl.finish();
+                writeString(zl.array(), 0, zl.size());
+            }
+        } else if (version >= 6 && listZipList(list)) {
+            writeByte(RDB_TYPE_LIST_ZIPLIST);
+            writeString(key);
+            ZipListBuilder zl = zipList();
+            for (byte[] e : list) zl.add(e);
+            zl.finish();
+            writeString(zl.array(), 0, zl.size());
+        } else {
+            writeByte(RDB_TYPE_LIST);
+            writeString(key);
+            writeLen(list.size());
+            for (byte[] e : list) writeString(e);
+        }
+    }
+
+    protected void writeSet(byte[] key, Set<byte[]> set) throws IOException {
+        long[] values = version >= 6 ? intset(set) : null;
+        if (values != null) {
+            long min = values.length == 0 ? 0 : values[0], max = values.length == 0 ? 0 : values[values.length - 1];
+            int encoding = 8;
+            if (min >= Short.MIN_VALUE && max <= Short.MAX_VALUE) encoding = 2;
+            else if (min >= Integer.MIN_VALUE && max <= Integer.MAX_VALUE) encoding = 4;
+            /*
+             * |<encoding>| <length-of-contents>|              <contents>                            |
+             * | 4 bytes  |            4 bytes  | 2 bytes element| 4 bytes element | 8 bytes element |
+             */
+            EncodingBuffer is = intSet();
+            is.writeLE(encoding, 4);
+            is.writeLE(values.length, 4);
+            for (long v : values) is.writeLE(v, encoding);
+            writeByte(RDB_TYPE_SET_INTSET);
+            writeString(key);
+            writeString(is.array(), 0, is.size());
+        } else {
+            writeByte(RDB_TYPE_SET);
+            writeString(key);
+            writeLen(set.size());
+            for (byte[] e : set) writeString(e);
+        }
+    }
+
+    protected void writeZSet(byte[] key, Set<ZSetEntry> zset) throws IOException {
+        if (version >= 6 && zsetZipList(zset)) {
+            ZSetEntry[] entries = zset.toArray(new ZSetEntry[zset.size()]);
+            Arrays.sort(entries, ZSET_ORDER);
+            ZipListBuilder zl = zipList();
+            for (ZSetEntry e : entries) {
+                zl.add(e.getElement());
+                zl.add(score(e.getScore()));
+            }
+            zl.finish();
+            writeByte(RDB_TYPE_ZSET_ZIPLIST);
+            writeString(key);
+            writeString(zl.array(), 0, zl.size());
+        } else if (version >= 8) {
+            writeByte(RDB_TYPE_ZSET_2);
+            writeString(key);
+            writeLen(zset.size());
+            for (ZSetEntry e : zset) {
+                writeString(e.getElement());
+                writeLE(Double.doubleToLongBits(e.getScore()), 8);
+            }
+        } else {
+            writeByte(RDB_TYPE_ZSET);
+            writeString(key);
+            writeLen(zset.size());
+            for (ZSetEntry e : zset) {
+                writeString(e.getElement());
+                writeDouble(e.getScore());
+            }
+        }
+    }
+
+    protected void writeHash(byte[] key, Map<byte[], byte[]> hash) throws IOException {
+        if (version >= 6 && hashZipList(hash)) {
+            ZipListBuilder zl = zipList();
+            for (Map.Entry<byte[], byte[]> e : hash.entrySet()) {
+                zl.add(e.getKey());
+                zl.add(e.getValue());
+            }
+            zl.finish();
+            writeByte(RDB_TYPE_HASH_ZIPLIST);
+            writeString(key);
+            writeString(zl.array(), 0, zl.size());
+        } else {
+            writeByte(RDB_TYPE_HASH);
+            writeString(key);
+            writeLen(hash.size());
+            for (Map.Entry<byte[], byte[]> e : hash.entrySet()) {
+                writeString(e.getKey());
+                writeString(e.getValue());
+            }
+        }
+    }
+
+    protected void writeStream(byte[] key, Stream stream) throws IOException {
+        if (version < 9) throw new UnsupportedOperationException("stream requires rdb version 9 but " + version);
+        writeByte(RDB_TYPE_STREAM_LISTPACKS);
+        writeString(key);
+        NavigableMap<Stream.ID, Stream.Entry> entries = stream.getEntries();
+        writeLen((entries.size() + STREAM_NODE_MAX_ENTRIES - 1) / STREAM_NODE_MAX_ENTRIES);
+        Iterator<Stream.Entry> it = entries.values().iterator();
+        Stream.Entry[] node = new Stream.Entry[STREAM_NODE_MAX_ENTRIES];
+        while (it.hasNext()) {
+            int n = 0;
+            while (n < node.length && it.hasNext()) node[n++] = it.next();
+            writeStreamNode(node, n);
+        }
+        Arrays.fill(node, null);
+
+        Stream.ID lastId = stream.getLastId();
+        if (lastId == null) lastId = entries.isEmpty() ? new Stream.ID(0L, 0L) : entries.lastKey();
+        writeLen(stream.getLength());
+        writeLen(lastId.getMs());
+        writeLen(lastId.getSeq());
+
+        List<Stream.Group> groups = stream.getGroups();
+        writeLen(groups == null ? 0 : groups.size());
+        if (groups == null) return;
+        for (Stream.Group group : groups) {
+            writeString(group.getName());
+            writeLen(group.getLastId().getMs());
+            writeLen(group.getLastId().getSeq());
+            NavigableMap<Stream.ID, Stream.Nack> pel = group.getPendingEntries();
+            writeLen(pel == null ? 0 : pel.size());
+            if (pel != null) {
+                for (Stream.Nack nack : pel.values()) {
+                    writeRawId(nack.getId());
+                    writeLE(nack.getDeliveryTime(), 8);
+                    writeLen(nack.getDeliveryCount());
+                }
+            }
+            List<Stream.Consumer> consumers = group.getConsumers();
+            writeLen(consumers == null ? 0 : consumers.size());
+            if (consumers == null) continue;
+            for (Stream.Consumer consumer : consumers) {
+                writeString(consumer.getName());
+                writeLE(consumer.getSeenTime(), 8);
+                NavigableMap<Stream.ID, Stream.Nack> cpel = consumer.getPendingEntries();
+                writeLen(cpel == null ? 0 : cpel.size());
+                if (cpel == null) continue;
+                for (Stream.ID id : cpel.keySet()) writeRawId(id);
+            }
+        }
+    }
+
+    /*
+     * Master entry
+     * +-------+---------+------------+---------+--/--+---------+---------+-+
+     * | count | deleted | num-fields | field_1 | field_2 | ... | field_N |0|
+     * +-------+---------+------------+---------+--/--+---------+---------+-+
+     * Entry
+     * +-----+--------+-------+-/-+-------+--------+
+     * |flags|entry-id|value-1|...|value-N|lp-count|  SAMEFIELDS
+     * +-----+--------+-------+-/-+-------+--------+
+     * +-----+--------+----------+-------+-------+-/-+-------+-------+--------+
+     * |flags|entry-id|num-fields|field-1|value-1|...|field-N|value-N|lp-count|
+     * +-----+--------+----------+-------+-------+-/-+-------+-------+--------+
+     */
+    private void writeStreamNode(Stream.Entry[] node, int n) throws IOException {
+        Stream.ID master = node[0].getId();
+        Map<byte[], byte[]> first = node[0].getFields();
+        byte[][] fields = first.keySet().toArray(new byte[first.size()][]);
+        int deleted = 0;
+        for (int i = 0; i < n; i++) if (node[i].isDeleted()) deleted++;
+
+        ListPackBuilder lp = listPack();
+        lp.add(n - deleted);
+        lp.add(deleted);
+        lp.add(fields.length);
+        for (byte[] field : fields) lp.add(field);
+        lp.add(0);
+        for (int i = 0; i < n; i++) {
+            Stream.Entry entry = node[i];
+            Map<byte[], byte[]> map = entry.getFields();
+            boolean same = sameFields(map, fields);
+            int flag = entry.isDeleted() ? STREAM_ITEM_FLAG_DELETED : STREAM_ITEM_FLAG_NONE;
+            if (same) flag |= STREAM_ITEM_FLAG_SAMEFIELDS;
+            lp.add(flag);
+            lp.add(entry.getId().getMs() - master.getMs());
+            lp.add(entry.getId().getSeq() - master.getSeq());
+            if (same) {
+                for (byte[] value : map.values()) lp.add(value);
+                lp.add(3 + fields.length);
+            } else {
+                lp.add(map.size());
+                for (Map.Entry<byte[], byte[]> e : map.entrySet()) {
+                    lp.add(e.getKey());
+                    lp.add(e.getValue());
+                }
+                lp.add(4 + 2 * map.size());
+            }
+        }
+        lp.finish();
+        byte[] rawId = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            rawId[i] = (byte) (master.getMs() >>> (56 - (i << 3)));
+            rawId[8 + i] = (byte) (master.getSeq() >>> (56 - (i << 3)));
+        }
+        writeString(rawId);
+        writeString(lp.array(), 0, lp.size());
+        lp.clear();
+    }
+
+    /*
+     * primitives
+     */
+
+    protected void writeLen(long len) throws IOException {
+        if (len < 0) throw new IllegalArgumentException(String.valueOf(len));
+        if (len < (1 << 6)) {
+            writeByte((int) len);
+        } else if (len < (1 << 14)) {
+            writeByte(0x40 | (int) (len >>> 8));
+            writeByte((int) len);
+        } else if (len <= 0xFFFFFFFFL) {
+            writeByte(0x80);
+            writeBE(len, 4);
+        } else {
+            writeByte(0x81);
+            writeBE(len, 8);
+        }
+    }
+
+    protected void writeString(byte[] s) throws IOException {
+        writeString(s, 0, s.length);
+    }
+
+    /*
+     * values up to 1 MB are encoded like a byte[], larger ones are copied through the buffer without lzf
+     * so that an off heap value is never copied to heap as a whole.
+     */
+    protected void writeString(ByteArray s) throws IOException {
+        if (s.length() <= 1024 * 1024) {
+            writeString(s.first());
+            return;
+        }
+        writeLen(s.length());
+        flushBuffer();
+        for (long off = 0; off < s.length(); ) {
+            int len = (int) Math.min(buf.length, s.length() - off);
+            s.get(off, buf, 0, len);
+            out.write(buf, 0, len);
+            length += len;
+            off += len;
+        }
+    }
+
+    /*
+     * same as redis rdbSaveRawString: integer encoding first, then lzf if it saves at least 4 bytes.
+     */
+    protected void writeString(byte[] s, int off, int len) throws IOException {
+        if (len <= 11 && isLong(s, off, len)) {
+            long v = toLong(s, off, len);
+            if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+                writeByte((RDB_ENCVAL << 6) | RDB_ENC_INT8);
+                writeLE(v, 1);
+                return;
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                writeByte((RDB_ENCVAL << 6) | RDB_ENC_INT16);
+                writeLE(v, 2);
+                return;
+            } else if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+                writeByte((RDB_ENCVAL << 6) | RDB_ENC_INT32);
+                writeLE(v, 4);
+                return;
+            }
+        }
+        if (compress && len > 20) {
+            if (table == null) table = new int[Lzf.HASH_SIZE];
+            if (lzf.length < len) lzf = new byte[Math.max(len, lzf.length << 1)];
+            int clen = Lzf.encode(s, off, len, lzf, 0, len - 4, table);
+            if (clen > 0) {
+                writeByte((RDB_ENCVAL << 6) | RDB_ENC_LZF);
+                writeLen(clen);
+                writeLen(len);
+                writeBytes(lzf, 0, clen);
+                return;
+            }
+        }
+        writeLen(len);
+        writeBytes(s, off, len);
+    }
+
+    /*
+     * same as redis rdbSaveDoubleValue.
+     */
+    protected void writeDouble(double d) throws IOException {
+        if (Double.isNaN(d)) {
+            writeByte(253);
+        } else if (d == Double.POSITIVE_INFINITY) {
+            writeByte(254);
+        } else if (d == Double.NEGATIVE_INFINITY) {
+            writeByte(255);
+        } else {
+            byte[] bytes = Double.toString(d).getBytes();
+            writeByte(bytes.length);
+            writeBytes(bytes, 0, bytes.length);
+        }
+    }
+
+    protected void writeRawId(Stream.ID id) throws IOException {
+        writeBE(id.getMs(), 8);
+        writeBE(id.getSeq(), 8);
+    }
+
+    protected void writeLE(long v, int len) throws IOException {
+        for (int i = 0; i < len; i++) writeByte((int) (v >>> (i << 3)));
+    }
+
+    protected void writeBE(long v, int len) throws IOException {
+        for (int i = len - 1; i >= 0; i--) writeByte((int) (v >>> (i << 3)));
+    }
+
+    protected void writeByte(int b) throws IOException {
+        if (count == buf.length) flushBuffer();
+        buf[count++] = (byte) b;
+    }
+
+    protected void writeBytes(byte[] b, int off, int len) throws IOException {
+        if (len >= buf.length) {
+            flushBuffer();
+            out.write(b, off, len);
+            length += len;
+            return;
+        }
+        if (len > buf.length - count) flushBuffer();
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count == 0) return;
+        out.write(buf, 0, count);
+        length += count;
+        count = 0;
+    }
+
+    /*
+     * encoding helpers
+     */
+
+    private ZipListBuilder zipList() {
+        if (zipList == null) zipList = new ZipListBuilder();
+        zipList.clear();
+        return zipList;
+    }
+
+    private EncodingBuffer intSet() {
+        if (intSet == null) intSet = new EncodingBuffer(256);
+        intSet.clear();
+        return intSet;
+    }
+
+    private ListPackBuilder listPack() {
+        if (listPack == null) listPack = new ListPackBuilder();
+        listPack.clear();
+        return listPack;
+    }
+
+    private static boolean fits(int size, int entrySize, int entries) {
+        return size + entrySize + 1 <= LIST_MAX_ZIPLIST_SIZE && entries < 0xFFFF;
+    }
+
+    /*
+     * must split nodes exactly the same way as writeList does.
+     */
+    private static long quickListNodes(List<byte[]> list) {
+        long nodes = 0;
+        int size = ZipListBuilder.HEADER_SIZE, prevlen = 0, entries = 0;
+        for (byte[] e : list) {
+            int entrySize = ZipListBuilder.entrySize(e, prevlen);
+            if (entries > 0 && !fits(size, entrySize, entries)) {
+                nodes++;
+                size = ZipListBuilder.HEADER_SIZE;
+                entries = 0;
+                entrySize = ZipListBuilder.entrySize(e, 0);
+            }
+            size += entrySize;
+            prevlen = entrySize;
+            entries++;
+        }
+        return entries > 0 ? nodes + 1 : nodes;
+    }
+
+    private static boolean listZipList(List<byte[]> list) {
+        if (list.size() > LIST_MAX_ZIPLIST_ENTRIES) return false;
+        for (byte[] e : list) if (e.length > LIST_MAX_ZIPLIST_VALUE) return false;
+        return true;
+    }
+
+    private static boolean hashZipList(Map<byte[], byte[]> hash) {
+        if (hash.size() > HASH_MAX_ZIPLIST_ENTRIES) return false;
+        for (Map.Entry<byte[], byte[]> e : hash.entrySet()) {
+            if (e.getKey().length > HASH_MAX_ZIPLIST_VALUE || e.getValue().length > HASH_MAX_ZIPLIST_VALUE) return false;
+        }
+        return true;
+    }
+
+    private static boolean zsetZipList(Set<ZSetEntry> zset) {
+        if (zset.size() > ZSET_MAX_ZIPLIST_ENTRIES) return false;
+        for (ZSetEntry e : zset) {
+            if (e.getElement().length > ZSET_MAX_ZIPLIST_VALUE) return false;
+            // RdbParser reads ziplist scores with Double.valueOf that does not accept redis "inf"
+            if (Double.isNaN(e.getScore()) || Double.isInfinite(e.getScore())) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return sorted values, null if not all members are integers
+     */
+    private static long[] intset(Set<byte[]> set) {
+        if (set.size() > SET_MAX_INTSET_ENTRIES) return null;
+        long[] values = new long[set.size()];
+        int i = 0;
+        for (byte[] e : set) {
+            if (!isLong(e, 0, e.length)) return null;
+            values[i++] = toLong(e, 0, e.length);
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    private static boolean sameFields(Map<byte[], byte[]> map, byte[][] fields) {
+        if (map.size() != fields.length) return false;
+        int i = 0;
+        for (byte[] field : map.keySet()) {
+            if (!Arrays.equals(field, fields[i++])) return false;
+        }
+        return true;
+    }
+
+    private static byte[] score(double score) {
+        if (score == Math.rint(score) && Math.abs(score) < 1e17 && (score != 0 || 1 / score > 0)) {
+            return String.valueOf((long) score).getBytes();
+        }
+        return Double.toString(score).getBytes();
+    }
+
+    private static final Comparator<ZSetEntry> ZSET_ORDER = new Comparator<ZSetEntry>() {
+        @Override
+        public int compare(ZSetEntry o1, ZSetEntry o2) {
+            int r = Double.compare(o1.getScore(), o2.getScore());
+            if (r != 0) return r;
+            byte[] b1 = o1.getElement(), b2 = o2.getElement();
+            for (int i = 0, n = Math.min(b1.length, b2.length); i < n; i++) {
+                int c = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+                if (c != 0) return c;
+            }
+            return b1.length - b2.length;
+        }
+    };
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.rdb.writer;
+
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.event.PostRdbSyncEvent;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.Stream;
+import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
+import com.moilioncircle.redis.replicator.rdb.iterable.datatype.BatchedKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.iterable.datatype.StreamEntryIterator;
+import com.moilioncircle.redis.replicator.util.ByteArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPMAP;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET_INTSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STREAM_LISTPACKS;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STRING;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_ZIPLIST;
+
+/**
+ * Converts the key value pairs of an rdb to plain RESP commands, for targets that don't accept {@code RESTORE}.
+ * The output has the same layout as an aof, so it can be replayed with {@code redis-cli --pipe} or loaded as an aof.
+ * <pre>
+ * Replicator r = new RedisReplicator(file, FileType.RDB, Configuration.defaultSetting());
+ * r.setRdbVisitor(new ValueIterableRdbVisitor(r));
+ * r.addEventListener(new RespConverter(new File("appendonly.aof")));
+ * r.open();
+ * </pre>
+ * Works with the key value pairs of {@code DefaultRdbVisitor}, {@code ValueIterableRdbVisitor} and the batches of
+ * {@code ValueIterableEventListener}. Every key is written as {@code SET}, {@code RPUSH}, {@code SADD}, {@code HMSET},
+ * {@code ZADD} or {@code XADD} commands of at most {@code items} elements and about {@code bytes} bytes, strings
+ * larger than {@code bytes} are written as {@code SET} and {@code APPEND}s, followed by {@code PEXPIREAT} if the key
+ * has a ttl. Streams get their last id and consumer groups, but not the pending entries of groups. Module values
+ * and dumped values throw {@link UnsupportedOperationException}.
+ * <p>
+ * The parser thread only collects commands, the RESP encoding runs on {@code threads} workers into a pool of reused
+ * buffers, and the buffers are written to {@code out} in order by the parser thread. The converter flushes and
+ * closes {@code out} on {@link PostRdbSyncEvent} or {@link #close()}.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class RespConverter implements EventListener, Closeable {
+
+    protected static final Logger logger = LoggerFactory.getLogger(RespConverter.class);
+
+    private static final byte[] SELECT = "SELECT".getBytes();
+    private static final byte[] SET = "SET".getBytes();
+    private static final byte[] APPEND = "APPEND".getBytes();
+    private static final byte[] RPUSH = "RPUSH".getBytes();
+    private static final byte[] SADD = "SADD".getBytes();
+    private static final byte[] HMSET = "HMSET".getBytes();
+    private static final byte[] ZADD = "ZADD".getBytes();
+    private static final byte[] XADD = "XADD".getBytes();
+    private static final byte[] XSETID = "XSETID".getBytes();
+    private static final byte[] XGROUP = "XGROUP".getBytes();
+    private static final byte[] CREATE = "CREATE".getBytes();
+    private static final byte[] MAXLEN = "MAXLEN".getBytes();
+    private static final byte[] PEXPIREAT = "PEXPIREAT".getBytes();
+
+    protected final int items;
+    protected final int bytes;
+    protected final OutputStream out;
+    protected final ExecutorService executor;
+    protected final BlockingQueue<EncodingBuffer> buffers;
+    protected final ArrayDeque<Future<Batch>> pending = new ArrayDeque<>();
+    protected Batch batch;
+    protected long db = -1;
+    protected long entries;
+    private boolean closed;
+
+    public RespConverter(File file) throws IOException {
+        this(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+    }
+
+    public RespConverter(OutputStream out) {
+        this(out, Runtime.getRuntime().availableProcessors(), 64, 1024 * 1024, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * @param out     output, closed by the converter
+     * @param threads encoding threads, 0 to encode on the parser thread
+     * @param items   max elements per command, e.g. members of {@code SADD} or field value pairs of {@code HMSET}
+     * @param bytes   max bytes of elements per command, also the size of a batch encoded by one worker
+     * @param tf      thread factory of encoding threads
+     */
+    public RespConverter(OutputStream out, int threads, int items, int bytes, ThreadFactory tf) {
+        if (threads < 0) throw new IllegalArgumentException(String.valueOf(threads));
+        if (items <= 0) throw new IllegalArgumentException(String.valueOf(items));
+        if (bytes <= 0) throw new IllegalArgumentException(String.valueOf(bytes));
+        this.out = out;
+        this.items = items;
+        this.bytes = bytes;
+        this.executor = threads == 0 ? null : Executors.newFixedThreadPool(threads, tf);
+        // 2 buffers per worker, one being encoded and one waiting to be written
+        int size = Math.max(1, threads * 2);
+        this.buffers = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) buffers.add(new EncodingBuffer(Math.min(bytes, 64 * 1024)));
+        this.batch = new Batch();
+    }
+
+    @Override
+    public void onEvent(Replicator replicator, Event event) {
+        try {
+            if (event instanceof KeyValuePair<?, ?>) {
+                convert((KeyValuePair<?, ?>) event);
+            } else if (event instanceof PostRdbSyncEvent) {
+                close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param kv key value pair
+     * @throws IOException                   if failed to write {@code out}
+     * @throws UnsupportedOperationException if the value has no command form
+     */
+    @SuppressWarnings("unchecked")
+    public void convert(KeyValuePair<?, ?> kv) throws IOException {
+        if (!(kv.getKey() instanceof byte[])) throw new UnsupportedOperationException(kv.getClass().getSimpleName());
+        byte[] key = (byte[]) kv.getKey();
+        boolean last = !(kv instanceof BatchedKeyValuePair) || ((BatchedKeyValuePair<?, ?>) kv).isLast();
+        long db = kv.getDb().getDbNumber();
+        if (this.db != db) {
+            add(new byte[][]{SELECT, String.valueOf(db).getBytes()}, 0);
+            this.db = db;
+        }
+        Object value = kv.getValue();
+        // the first batch of ValueIterableEventListener may be empty
+        if (value == null) return;
+        switch (kv.getValueRdbType()) {
+            case RDB_TYPE_STRING:
+                if (value instanceof ByteArray) string(key, (ByteArray) value);
+                else string(key, (byte[]) value);
+                break;
+            case RDB_TYPE_LIST:
+            case RDB_TYPE_LIST_ZIPLIST:
+            case RDB_TYPE_LIST_QUICKLIST:
+                elements(RPUSH, key, value instanceof Iterator ? (Iterator<byte[]>) value : ((Collection<byte[]>) value).iterator());
+                break;
+            case RDB_TYPE_SET:
+            case RDB_TYPE_SET_INTSET:
+                elements(SADD, key, value instanceof Iterator ? (Iterator<byte[]>) value : ((Collection<byte[]>) value).iterator());
+                break;
+            case RDB_TYPE_ZSET:
+            case RDB_TYPE_ZSET_2:
+            case RDB_TYPE_ZSET_ZIPLIST:
+                zset(key, value instanceof Iterator ? (Iterator<ZSetEntry>) value : ((Collection<ZSetEntry>) value).iterator());
+                break;
+            case RDB_TYPE_HASH:
+            case RDB_TYPE_HASH_ZIPMAP:
+            case RDB_TYPE_HASH_ZIPLIST:
+                hash(key, value instanceof Iterator ? (Iterator<Map.Entry<byte[], byte[]>>) value : ((Map<byte[], byte[]>) value).entrySet().iterator());
+                break;
+            case RDB_TYPE_STREAM_LISTPACKS:
+                if (!(kv instanceof BatchedKeyValuePair) || ((BatchedKeyValuePair<?, ?>) kv).getBatch() == 0) entries = 0;
+                if (value instanceof StreamEntryIterator) {
+                    StreamEntryIterator it = (StreamEntryIterator) value;
+                    while (it.hasNext()) entry(key, it.next());
+                    stream(key, it.getLastId(), it.getGroups());
+                } else {
+                    Stream stream = (Stream) value;
+                    for (Stream.Entry entry : stream.getEntries().values()) entry(key, entry);
+                    if (last) stream(key, stream.getLastId(), stream.getGroups());
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException(kv.getClass().getSimpleName() + ":" + kv.getValueRdbType());
+        }
+        if (last && kv.getExpiredMs() != null) {
+            add(new byte[][]{PEXPIREAT, key, String.valueOf(kv.getExpiredMs()).getBytes()}, 0);
+        }
+    }
+
+    /**
+     * write the commands collected so far and wait for them.
+     *
+     * @throws IOException if failed to write {@code out}
+     */
+    public void flush() throws IOException {
+        submit();
+        while (!pending.isEmpty()) write(pending.poll());
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            flush();
+        } finally {
+            if (executor != null) executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    protected void string(byte[] key, byte[] value) throws IOException {
+        if (value.length <= bytes) {
+            add(new byte[][]{SET, key, value}, value.length);
+            return;
+        }
+        for (int off = 0; off < value.length; off += bytes) {
+            int len = Math.min(bytes, value.length - off);
+            byte[] chunk = new byte[len];
+            System.arraycopy(value, off, chunk, 0, len);
+            add(new byte[][]{off == 0 ? SET : APPEND, key, chunk}, len);
+        }
+    }
+
+    protected void string(byte[] key, ByteArray value) throws IOException {
+        for (long off = 0; off < value.length() || off == 0; off += bytes) {
+            int len = (int) Math.min(bytes, value.length() - off);
+            byte[] chunk = new byte[len];
+            value.get(off, chunk, 0, len);
+            add(new byte[][]{off == 0 ? SET : APPEND, key, chunk}, len);
+        }
+    }
+
+    protected void elements(byte[] command, byte[] key, Iterator<byte[]> it) throws IOException {
+        Args args = new Args(command, key, 1);
+        while (it.hasNext()) {
+            byte[] e;
+            try {
+                e = it.next();
+            } catch (IllegalStateException ignore) {
+                // see ValueIterableRdbVisitor.QuickListIter.next().
+                continue;
+            }
+            args.add(e);
+        }
+        args.end();
+    }
+
+    protected void zset(byte[] key, Iterator<ZSetEntry> it) throws IOException {
+        Args args = new Args(ZADD, key, 2);
+        while (it.hasNext()) {
+            ZSetEntry e = it.next();
+            args.add(score(e.getScore()), e.getElement());
+        }
+        args.end();
+    }
+
+    protected void hash(byte[] key, Iterator<Map.Entry<byte[], byte[]>> it) throws IOException {
+        Args args = new Args(HMSET, key, 2);
+        while (it.hasNext()) {
+            Map.Entry<byte[], byte[]> e = it.next();
+            args.add(e.getKey(), e.getValue());
+        }
+        args.end();
+    }
+
+    protected void entry(byte[] key, Stream.Entry entry) throws IOException {
+        if (entry.isDeleted()) return;
+        entries++;
+        Map<byte[], byte[]> fields = entry.getFields();
+        byte[][] args = new byte[3 + fields.size() * 2][];
+        args[0] = XADD;
+        args[1] = key;
+        args[2] = entry.getId().toString().getBytes();
+        int i = 3, size = 0;
+        for (Map.Entry<byte[], byte[]> e : fields.entrySet()) {
+            args[i++] = e.getKey();
+            args[i++] = e.getValue();
+            size += e.getKey().length + e.getValue().length;
+        }
+        add(args, size);
+    }
+
+    /*
+     * same as rewriteStreamObject of redis, an empty stream is created by a trimmed XADD.
+     */
+    protected void stream(byte[] key, Stream.ID lastId, List<Stream.Group> groups) throws IOException {
+        byte[] id = lastId.toString().getBytes();
+        if (entries == 0) add(new byte[][]{XADD, key, MAXLEN, "0".getBytes(), id, "x".getBytes(), "y".getBytes()}, 0);
+        add(new byte[][]{XSETID, key, id}, 0);
+        if (groups == null) return;
+        for (Stream.Group group : groups) {
+            add(new byte[][]{XGROUP, CREATE, key, group.getName(), group.getLastId().toString().getBytes()}, 0);
+        }
+    }
+
+    /*
+     * collect one command
+     */
+    protected void add(byte[][] args, int size) throws IOException {
+        batch.commands.add(args);
+        batch.size += size;
+        if (batch.size >= bytes || batch.commands.size() >= 1024) submit();
+    }
+
+    protected void submit() throws IOException {
+        if (batch.commands.isEmpty()) return;
+        Batch batch = this.batch;
+        this.batch = new Batch();
+        EncodingBuffer buffer = buffers.poll();
+        // every buffer is held by a pending batch
+        while (buffer == null) {
+            write(pending.poll());
+            buffer = buffers.poll();
+        }
+        batch.buffer = buffer;
+        if (executor == null) {
+            write(batch.call());
+            return;
+        }
+        pending.add(executor.submit(batch));
+        while (!pending.isEmpty() && pending.peek().isDone()) write(pending.poll());
+    }
+
+    protected void write(Future<Batch> future) throws IOException {
+        try {
+            write(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    protected void write(Batch batch) throws IOException {
+        EncodingBuffer buffer = batch.buffer;
+        out.write(buffer.array(), 0, buffer.size());
+        buffer.clear();
+        buffers.add(buffer);
+    }
+
+    /*
+     * same form as the score of a zset in an aof, java "Infinity" is not a valid redis double
+     */
+    protected static byte[] score(double score) {
+        if (score == Double.POSITIVE_INFINITY) return "inf".getBytes();
+        if (score == Double.NEGATIVE_INFINITY) return "-inf".getBytes();
+        if (score == (long) score && Math.abs(score) < 1e17) return String.valueOf((long) score).getBytes();
+        return String.valueOf(score).getBytes();
+    }
+
+    /**
+     * commands of one key with at most {@code items} elements and about {@code bytes} bytes each.
+     */
+    protected class Args {
+        protected final byte[] command;
+        protected final byte[] key;
+        protected final int width;
+        protected List<byte[]> args;
+        protected int size;
+
+        protected Args(byte[] command, byte[] key, int width) {
+            this.command = command;
+            this.key = key;
+            this.width = width;
+        }
+
+        protected void add(byte[]... element) throws IOException {
+            if (args == null) {
+                args = new ArrayList<>(2 + Math.min(items, 64) * width);
+                args.add(command);
+                args.add(key);
+            }
+            for (byte[] e : element) {
+                args.add(e);
+                size += e.length;
+            }
+            if ((args.size() - 2) / width >= items || size >= bytes) end();
+        }
+
+        protected void end() throws IOException {
+            if (args == null) return;
+            RespConverter.this.add(args.toArray(new byte[args.size()][]), size);
+            args = null;
+            size = 0;
+        }
+    }
+
+    protected static class Batch implements Callable<Batch> {
+        protected final List<byte[][]> commands = new ArrayList<>();
+        protected EncodingBuffer buffer;
+        protected int size;
+
+        @Override
+        public Batch call() {
+            EncodingBuffer buffer = this.buffer;
+            for (byte[][] args : commands) {
+                buffer.write('*');
+                decimal(buffer, args.length);
+                for (byte[] arg : args) {
+                    buffer.write('$');
+                    decimal(buffer, arg.length);
+                    buffer.write(arg, 0, arg.length);
+                    buffer.write('\r');
+                    buffer.write('\n');
+                }
+            }
+            return this;
+        }
+
+        private static void decimal(EncodingBuffer buffer, int v) {
+            if (v >= 10) {
+                int div = 10;
+                while (v / div >= 10) div *= 10;
+                for (; div > 0; div /= 10) buffer.write('0' + v / div % 10);
+            } else {
+                buffer.write('0' + v);
+            }
+            buffer.write('\r');
+            buffer.write('\n');
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.writer;
+
+import static com.moilioncircle.redis.replicator.Constants.ZIP_INT_16B;
+import static com.moilioncircle.redis.replicator.Constants.ZIP_INT_24B;
+import static com.moilioncircle.redis.replicator.Constants.ZIP_INT_32B;
+import static com.moilioncircle.redis.replicator.Constants.ZIP_INT_64B;
+import static com.moilioncircle.redis.replicator.Constants.ZIP_INT_8B;
+
+/**
+ * <pre>
+ * |<zlbytes>| <zltail>| <zllen>| <entry> ...<entry> | <zlend>|
+ * | 4 bytes | 4 bytes | 2bytes | zipListEntry ...   | 1byte  |
+ * </pre>
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+class ZipListBuilder extends EncodingBuffer {
+
+    static final int HEADER_SIZE = 10;
+
+    private int tail;
+    private int count;
+    private int prevlen;
+
+    ZipListBuilder() {
+        super(256);
+        clear();
+    }
+
+    @Override
+    void clear() {
+        size = HEADER_SIZE;
+        tail = HEADER_SIZE;
+        count = 0;
+        prevlen = 0;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * @param e entry
+     * @return bytes the entry takes if it is appended now
+     */
+    int sizeOf(byte[] e) {
+        return entrySize(e, prevlen);
+    }
+
+    static int entrySize(byte[] e, int prevlen) {
+        return (prevlen < 254 ? 1 : 5) + encodedSize(e);
+    }
+
+    void add(byte[] e) {
+        int start = size;
+        if (prevlen < 254) {
+            write(prevlen);
+        } else {
+            write(254);
+            writeLE(prevlen, 4);
+        }
+        if (e.length <= 32 && isLong(e, 0, e.length)) {
+            long v = toLong(e, 0, e.length);
+            if (v >= 0 && v <= 12) {
+                write(0xF1 + (int) v);
+            } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+                write(ZIP_INT_8B);
+                writeLE(v, 1);
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                write(ZIP_INT_16B);
+                writeLE(v, 2);
+            } else if (v >= -(1 << 23) && v <= (1 << 23) - 1) {
+                write(ZIP_INT_24B);
+                writeLE(v, 3);
+            } else if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+                write(ZIP_INT_32B);
+                writeLE(v, 4);
+            } else {
+                write(ZIP_INT_64B);
+                writeLE(v, 8);
+            }
+        } else {
+            int len = e.length;
+            if (len <= 0x3F) {
+                write(len);
+            } else if (len <= 0x3FFF) {
+                write(0x40 | (len >>> 8));
+                write(len);
+            } else {
+                //bigEndian
+                write(0x80);
+                write(len >>> 24);
+                write(len >>> 16);
+                write(len >>> 8);
+                write(len);
+            }
+            write(e, 0, len);
+        }
+        tail = start;
+        prevlen = size - start;
+        count++;
+    }
+
+    /**
+     * append zlend and fill the header.
+     *
+     * @return this
+     */
+    ZipListBuilder finish() {
+        write(0xFF);
+        setLE(0, size, 4);
+        setLE(4, tail, 4);
+        setLE(8, Math.min(count, 0xFFFF), 2);
+        return this;
+    }
+
+    private static int encodedSize(byte[] e) {
+        int len = e.length;
+        if (len <= 32 && isLong(e, 0, len)) {
+            long v = toLong(e, 0, len);
+            if (v >= 0 && v <= 12) return 1;
+            if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) return 2;
+            if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) return 3;
+            if (v >= -(1 << 23) && v <= (1 << 23) - 1) return 4;
+            if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) return 5;
+            return 9;
+        }
+        if (len <= 0x3F) return 1 + len;
+        if (len <= 0x3FFF) return 2 + len;
+        return 5 + len;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
+
+/**
+ * A {@code List<byte[]>} that appends element bytes into large shared {@code byte[]} slabs
+ * and keeps an offset/length index instead of one {@code byte[]} object per element.
+ * <p>
+ * {@link #get(int)} returns a copy of the element, {@link #buffer(int)} and {@link #forEachBuffer(Consumer)}
+ * expose read-only zero-copy views of the slabs. Bytes of removed or replaced elements are not reclaimed.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class ArenaByteArrayList extends AbstractList<byte[]> implements RandomAccess, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    protected static final int MIN_SLAB_SIZE = 256;
+    protected static final int MAX_SLAB_SIZE = 1024 * 1024;
+
+    protected int size;
+    protected int slabCount;
+    protected int slabOffset;
+    protected byte[][] slabs;
+    protected long[] offsets;
+    protected int[] lengths;
+    protected final int maxSlabSize;
+
+    public ArenaByteArrayList() {
+        this(16);
+    }
+
+    public ArenaByteArrayList(int initialCapacity) {
+        this(initialCapacity, MAX_SLAB_SIZE);
+    }
+
+    public ArenaByteArrayList(int initialCapacity, int maxSlabSize) {
+        if (initialCapacity < 0) throw new IllegalArgumentException(String.valueOf(initialCapacity));
+        if (maxSlabSize <= 0) throw new IllegalArgumentException(String.valueOf(maxSlabSize));
+        this.maxSlabSize = maxSlabSize;
+        this.slabs = new byte[4][];
+        this.offsets = new long[initialCapacity];
+        this.lengths = new int[initialCapacity];
+    }
+
+    public ArenaByteArrayList(Collection<? extends byte[]> c) {
+        this(c == null ? 0 : c.size());
+        if (c != null) addAll(c);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public byte[] get(int index) {
+        rangeCheck(index);
+        int len = lengths[index];
+        if (len < 0) return null;
+        long offset = offsets[index];
+        byte[] bytes = new byte[len];
+        System.arraycopy(slabs[slab(offset)], position(offset), bytes, 0, len);
+        return bytes;
+    }
+
+    /**
+     * @param index element index
+     * @return element length, -1 if the element is null
+     */
+    public int length(int index) {
+        rangeCheck(index);
+        return lengths[index];
+    }
+
+    /**
+     * @param index element index
+     * @return read-only view of the element, null if the element is null
+     */
+    public ByteBuffer buffer(int index) {
+        rangeCheck(index);
+        int len = lengths[index];
+        if (len < 0) return null;
+        long offset = offsets[index];
+        return ByteBuffer.wrap(slabs[slab(offset)], position(offset), len).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * visit every element as a read-only view without copying element bytes.
+     * the buffer passed to action is only valid during the call.
+     *
+     * @param action action, receives null for null elements
+     */
+    public void forEachBuffer(Consumer<? super ByteBuffer> action) {
+        for (int i = 0; i < size; i++) {
+            action.accept(buffer(i));
+        }
+    }
+
+    @Override
+    public boolean add(byte[] bytes) {
+        if (bytes == null) return addNull();
+        return add(bytes, 0, bytes.length);
+    }
+
+    public boolean add(byte[] bytes, int off, int len) {
+        long offset = allocate(len);
+        System.arraycopy(bytes, off, slabs[slab(offset)], position(offset), len);
+        append(offset, len);
+        return true;
+    }
+
+    /**
+     * read {@code len} bytes from input stream straight into the arena.
+     *
+     * @param in  input stream
+     * @param len element length
+     * @return true
+     * @throws IOException if EOF or read error
+     */
+    public boolean add(InputStream in, int len) throws IOException {
+        long offset = allocate(len);
+        byte[] slab = slabs[slab(offset)];
+        int position = position(offset), remaining = len;
+        while (remaining > 0) {
+            int r = in.read(slab, position, remaining);
+            if (r < 0) throw new EOFException("end of file or end of stream.");
+            position += r;
+            remaining -= r;
+        }
+        append(offset, len);
+        return true;
+    }
+
+    @Override
+    public byte[] set(int index, byte[] bytes) {
+        byte[] prev = get(index);
+        if (bytes == null) {
+            lengths[index] = -1;
+            offsets[index] = 0L;
+        } else {
+            long offset = allocate(bytes.length);
+            System.arraycopy(bytes, 0, slabs[slab(offset)], position(offset), bytes.length);
+            offsets[index] = offset;
+            lengths[index] = bytes.length;
+        }
+        return prev;
+    }
+
+    @Override
+    public void add(int index, byte[] bytes) {
+        if (index < 0 || index > size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        add(bytes);
+        if (index == size - 1) return;
+        long offset = offsets[size - 1];
+        int len = lengths[size - 1];
+        System.arraycopy(offsets, index, offsets, index + 1, size - 1 - index);
+        System.arraycopy(lengths, index, lengths, index + 1, size - 1 - index);
+        offsets[index] = offset;
+        lengths[index] = len;
+    }
+
+    @Override
+    public byte[] remove(int index) {
+        byte[] prev = get(index);
+        int moved = size - 1 - index;
+        if (moved > 0) {
+            System.arraycopy(offsets, index + 1, offsets, index, moved);
+            System.arraycopy(lengths, index + 1, lengths, index, moved);
+        }
+        size--;
+        modCount++;
+        return prev;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        slabCount = 0;
+        slabOffset = 0;
+        slabs = new byte[4][];
+        modCount++;
+    }
+
+    /**
+     * @param index element index
+     * @return same value as {@code Arrays.hashCode(get(index))}
+     */
+    public int elementHashCode(int index) {
+        rangeCheck(index);
+        int len = lengths[index];
+        if (len < 0) return 0;
+        long offset = offsets[index];
+        byte[] slab = slabs[slab(offset)];
+        int h = 1;
+        for (int i = position(offset), end = i + len; i < end; i++) {
+            h = 31 * h + slab[i];
+        }
+        return h;
+    }
+
+    /**
+     * @param index element index
+     * @param bytes bytes to compare
+     * @return same value as {@code Arrays.equals(get(index), bytes)}
+     */
+    public boolean elementEquals(int index, byte[] bytes) {
+        rangeCheck(index);
+        int len = lengths[index];
+        if (len < 0 || bytes == null) return len < 0 && bytes == null;
+        if (len != bytes.length) return false;
+        long offset = offsets[index];
+        byte[] slab = slabs[slab(offset)];
+        for (int i = 0, j = position(offset); i < len; i++, j++) {
+            if (slab[j] != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (o != null && !(o instanceof byte[])) return -1;
+        for (int i = 0; i < size; i++) {
+            if (elementEquals(i, (byte[]) o)) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        if (o != null && !(o instanceof byte[])) return -1;
+        for (int i = size - 1; i >= 0; i--) {
+            if (elementEquals(i, (byte[]) o)) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof java.util.List)) return false;
+        java.util.List<?> that = (java.util.List<?>) o;
+        if (that.size() != size) return false;
+        int i = 0;
+        for (Object e : that) {
+            if (e != null && !(e instanceof byte[])) return false;
+            if (!elementEquals(i++, (byte[]) e)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 1;
+        for (int i = 0; i < size; i++) {
+            h = 31 * h + elementHashCode(i);
+        }
+        return h;
+    }
+
+    private boolean addNull() {
+        append(0L, -1);
+        return true;
+    }
+
+    private void append(long offset, int len) {
+        if (size == offsets.length) {
+            int cap = Math.max(16, size + (size >> 1));
+            offsets = Arrays.copyOf(offsets, cap);
+            lengths = Arrays.copyOf(lengths, cap);
+        }
+        offsets[size] = offset;
+        lengths[size] = len;
+        size++;
+        modCount++;
+    }
+
+    /*
+     * an element never spans two slabs. elements larger than maxSlabSize get a slab of their own.
+     */
+    private long allocate(int len) {
+        if (len < 0) throw new IllegalArgumentException(String.valueOf(len));
+        if (slabCount == 0 || slabs[slabCount - 1].length - slabOffset < len) {
+            int next = slabCount == 0 ? MIN_SLAB_SIZE : slabs[slabCount - 1].length << 1;
+            next = Math.max(Math.min(next, maxSlabSize), len);
+            if (slabCount == slabs.length) slabs = Arrays.copyOf(slabs, slabCount << 1);
+            slabs[slabCount++] = new byte[next];
+            slabOffset = 0;
+        }
+        long offset = ((long) (slabCount - 1) << 32) | slabOffset;
+        slabOffset += len;
+        return offset;
+    }
+
+    private void rangeCheck(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    private static int slab(long offset) {
+        return (int) (offset >>> 32);
+    }
+
+    private static int position(long offset) {
+        return (int) offset;
+    }
+}
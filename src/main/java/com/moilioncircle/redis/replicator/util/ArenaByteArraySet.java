@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * An insertion ordered {@code Set<byte[]>} whose elements live in an {@link ArenaByteArrayList}
+ * and are indexed by an open addressing {@code int[]} table.
+ * <p>
+ * Removal is O(n) because the index table is rebuilt, rdb values are normally filled once and only read.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class ArenaByteArraySet extends AbstractSet<byte[]> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    protected int[] table;
+    protected final ArenaByteArrayList list;
+
+    public ArenaByteArraySet() {
+        this(16);
+    }
+
+    public ArenaByteArraySet(int initialCapacity) {
+        this.list = new ArenaByteArrayList(initialCapacity);
+        this.table = new int[tableSize(initialCapacity)];
+    }
+
+    @Override
+    public int size() {
+        return list.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o != null && !(o instanceof byte[])) return false;
+        byte[] bytes = (byte[]) o;
+        return find(bytes, hash(bytes)) >= 0;
+    }
+
+    @Override
+    public boolean add(byte[] bytes) {
+        int h = hash(bytes);
+        int slot = find(bytes, h);
+        if (slot >= 0) return false;
+        list.add(bytes);
+        insert(-slot - 1, list.size());
+        return true;
+    }
+
+    /**
+     * read {@code len} bytes from input stream straight into the arena.
+     * the element is dropped again if it is already present.
+     *
+     * @param in  input stream
+     * @param len element length
+     * @return true if the set did not already contain the element
+     * @throws IOException if EOF or read error
+     */
+    public boolean add(InputStream in, int len) throws IOException {
+        list.add(in, len);
+        int index = list.size() - 1;
+        int h = list.elementHashCode(index);
+        int mask = table.length - 1;
+        for (int i = mix(h) & mask; ; i = (i + 1) & mask) {
+            int v = table[i];
+            if (v == 0) {
+                insert(i, index + 1);
+                return true;
+            }
+            if (list.elementHashCode(v - 1) != h) continue;
+            ByteBuffer prev = list.buffer(v - 1);
+            if (prev != null && prev.equals(list.buffer(index))) {
+                list.remove(index);
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o != null && !(o instanceof byte[])) return false;
+        byte[] bytes = (byte[]) o;
+        int slot = find(bytes, hash(bytes));
+        if (slot < 0) return false;
+        list.remove(table[slot] - 1);
+        rehash(table.length);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        list.clear();
+        Arrays.fill(table, 0);
+    }
+
+    @Override
+    public Iterator<byte[]> iterator() {
+        return new Iter();
+    }
+
+    /**
+     * @param action action, receives read-only zero-copy views of the elements
+     * @see ArenaByteArrayList#forEachBuffer(Consumer)
+     */
+    public void forEachBuffer(Consumer<? super ByteBuffer> action) {
+        list.forEachBuffer(action);
+    }
+
+    /**
+     * @return the backing list in insertion order
+     */
+    public ArenaByteArrayList elements() {
+        return list;
+    }
+
+    private int find(byte[] bytes, int h) {
+        int mask = table.length - 1;
+        for (int i = mix(h) & mask; ; i = (i + 1) & mask) {
+            int v = table[i];
+            if (v == 0) return -i - 1;
+            if (list.elementHashCode(v - 1) == h && list.elementEquals(v - 1, bytes)) return i;
+        }
+    }
+
+    private void insert(int slot, int value) {
+        table[slot] = value;
+        if (list.size() << 1 > table.length) rehash(table.length << 1);
+    }
+
+    private void rehash(int cap) {
+        int[] next = new int[cap];
+        int mask = cap - 1;
+        for (int index = 0; index < list.size(); index++) {
+            int i = mix(list.elementHashCode(index)) & mask;
+            while (next[i] != 0) i = (i + 1) & mask;
+            next[i] = index + 1;
+        }
+        this.table = next;
+    }
+
+    private static int hash(byte[] bytes) {
+        return Arrays.hashCode(bytes);
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSize(int capacity) {
+        int n = 16;
+        while (n < capacity << 1 && n < (1 << 30)) n <<= 1;
+        return n;
+    }
+
+    private final class Iter implements Iterator<byte[]> {
+
+        private int next = 0;
+        private int last = -1;
+        private int expected = list.size();
+
+        @Override
+        public boolean hasNext() {
+            return next < list.size();
+        }
+
+        @Override
+        public byte[] next() {
+            if (expected != list.size()) throw new ConcurrentModificationException();
+            if (next >= list.size()) throw new NoSuchElementException();
+            last = next++;
+            return list.get(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) throw new IllegalStateException();
+            if (expected != list.size()) throw new ConcurrentModificationException();
+            list.remove(last);
+            rehash(table.length);
+            next = last;
+            last = -1;
+            expected = list.size();
+        }
+    }
+}
@@ -52,10 +52,22 @@ public class ByteArray implements Iterable<byte[]> {
     }
 
     public ByteArray(long length, int cap) {
+        this(length, cap, true);
+    }
+
+    /**
+     * @param length   length
+     * @param cap      max length of a single heap array, -1 if bytes are not kept on heap
+     * @param allocate false if the subclass allocates its own storage
+     * @since 3.1.0
+     */
+    protected ByteArray(long length, int cap, boolean allocate) {
         this.cap = cap;
         this.length = length;
         if (length > MAX_VALUE || length < 0) {
             throw new IllegalArgumentException(String.valueOf(length));
+        } else if (!allocate) {
+            return;
         } else if (length <= cap) {
             this.smallBytes = new byte[(int) length];
         } else {
@@ -86,10 +98,57 @@ public class ByteArray implements Iterable<byte[]> {
         return largeBytes[x][y];
     }
 
+    /**
+     * bulk read, copy {@code len} bytes start at {@code idx} to {@code b}
+     *
+     * @param idx start index
+     * @param b   dest bytes
+     * @param off dest offset
+     * @param len length
+     * @since 3.1.0
+     */
+    public void get(long idx, byte[] b, int off, int len) {
+        while (len > 0) {
+            int n = chunk(idx, len);
+            System.arraycopy(chunk(idx), offset(idx), b, off, n);
+            idx += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * bulk write, copy {@code len} bytes of {@code b} to this array start at {@code idx}
+     *
+     * @param idx start index
+     * @param b   src bytes
+     * @param off src offset
+     * @param len length
+     * @since 3.1.0
+     */
+    public void set(long idx, byte[] b, int off, int len) {
+        while (len > 0) {
+            int n = chunk(idx, len);
+            System.arraycopy(b, off, chunk(idx), offset(idx), n);
+            idx += n;
+            off += n;
+            len -= n;
+        }
+    }
+
     public long length() {
         return this.length;
     }
 
+    /**
+     * free the underlying storage eagerly, this array must not be used after release.
+     * heap arrays are left to gc.
+     *
+     * @since 3.1.0
+     */
+    public void release() {
+    }
+
     public byte[] first() {
         Iterator<byte[]> it = this.iterator();
         return it.hasNext() ? it.next() : null;
@@ -104,6 +163,10 @@ public class ByteArray implements Iterable<byte[]> {
         if (srcPos + length > src.length || destPos + length > dest.length) {
             throw new IndexOutOfBoundsException();
         }
+        if (!src.heap() || !dest.heap()) {
+            copy(src, srcPos, dest, destPos, length);
+            return;
+        }
         if (srcPos + length <= src.cap && destPos + length <= dest.cap) {
             System.arraycopy(src.smallBytes, (int) srcPos, dest.smallBytes, (int) destPos, (int) length);
             return;
@@ -123,6 +186,49 @@ public class ByteArray implements Iterable<byte[]> {
         assert length == 0;
     }
 
+    protected boolean heap() {
+        return smallBytes != null || largeBytes != null;
+    }
+
+    /*
+     * at least one side is not on heap, copy through the heap side or a temp buffer.
+     */
+    private static void copy(ByteArray src, long srcPos, ByteArray dest, long destPos, long length) {
+        byte[] buf = src.heap() || dest.heap() ? null : new byte[(int) Math.min(length, 64 * 1024)];
+        while (length > 0) {
+            int n;
+            if (src.heap()) {
+                n = src.chunk(srcPos, length);
+                dest.set(destPos, src.chunk(srcPos), src.offset(srcPos), n);
+            } else if (dest.heap()) {
+                n = dest.chunk(destPos, length);
+                src.get(srcPos, dest.chunk(destPos), dest.offset(destPos), n);
+            } else {
+                n = (int) Math.min(length, buf.length);
+                src.get(srcPos, buf, 0, n);
+                dest.set(destPos, buf, 0, n);
+            }
+            srcPos += n;
+            destPos += n;
+            length -= n;
+        }
+    }
+
+    private byte[] chunk(long idx) {
+        return smallBytes != null ? smallBytes : largeBytes[(int) (idx >> BITS)];
+    }
+
+    private int offset(long idx) {
+        return smallBytes != null ? (int) idx : (int) (idx & MASK);
+    }
+
+    /*
+     * bytes that can be copied from idx without crossing a chunk.
+     */
+    private int chunk(long idx, long len) {
+        return (int) Math.min(len, chunk(idx).length - offset(idx));
+    }
+
     protected class Iter implements Iterator<byte[]> {
         protected int index = 0;
 
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.util;
+
+/**
+ * Allocates the {@link ByteArray} that strings are read and decompressed into.
+ *
+ * @author Leon Chen
+ * @see DirectByteArrayFactory
+ * @see MappedByteArrayFactory
+ * @since 3.1.0
+ */
+public interface ByteArrayFactory {
+
+    ByteArrayFactory HEAP = new ByteArrayFactory() {
+        @Override
+        public ByteArray allocate(long length) {
+            return new ByteArray(length);
+        }
+    };
+
+    /**
+     * @param length length
+     * @return a zero filled array
+     */
+    ByteArray allocate(long length);
+}
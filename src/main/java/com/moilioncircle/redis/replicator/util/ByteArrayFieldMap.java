@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.util;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only {@code Map<byte[], byte[]>} over two parallel arrays. The field array is not copied,
+ * so stream entries that use the master fields of a listpack can all share the same field array.
+ * <p>
+ * Lookups compare content and scan linearly, which is cheap for the few fields a stream entry has.
+ * Fields must be distinct, see {@link #distinct(byte[][])}.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class ByteArrayFieldMap extends AbstractMap<byte[], byte[]> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    protected final byte[][] fields;
+    protected final byte[][] values;
+
+    public ByteArrayFieldMap(byte[][] fields, byte[][] values) {
+        if (fields.length != values.length) throw new IllegalArgumentException(String.valueOf(values.length));
+        this.fields = fields;
+        this.values = values;
+    }
+
+    @Override
+    public int size() {
+        return fields.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        if (value != null && !(value instanceof byte[])) return false;
+        for (byte[] v : values) if (Arrays.equals(v, (byte[]) value)) return true;
+        return false;
+    }
+
+    @Override
+    public byte[] get(Object key) {
+        int i = indexOf(key);
+        return i < 0 ? null : values[i];
+    }
+
+    @Override
+    public Set<Entry<byte[], byte[]>> entrySet() {
+        return new AbstractSet<Entry<byte[], byte[]>>() {
+            @Override
+            public Iterator<Entry<byte[], byte[]>> iterator() {
+                return new Iterator<Entry<byte[], byte[]>>() {
+                    private int index = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < fields.length;
+                    }
+
+                    @Override
+                    public Entry<byte[], byte[]> next() {
+                        if (index >= fields.length) throw new NoSuchElementException();
+                        int i = index++;
+                        return new SimpleImmutableEntry<>(fields[i], values[i]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return fields.length;
+            }
+        };
+    }
+
+    /**
+     * @return the field array, shared and not copied
+     */
+    public byte[][] fields() {
+        return fields;
+    }
+
+    /**
+     * @param fields fields
+     * @return true if no two fields have the same content
+     */
+    public static boolean distinct(byte[][] fields) {
+        if (fields.length <= 8) {
+            for (int i = 1; i < fields.length; i++) {
+                for (int j = 0; j < i; j++) {
+                    if (Arrays.equals(fields[i], fields[j])) return false;
+                }
+            }
+            return true;
+        }
+        Set<ByteBuffer> set = new HashSet<>(fields.length << 1);
+        for (byte[] field : fields) {
+            if (!set.add(field == null ? ByteBuffer.allocate(0).asReadOnlyBuffer() : ByteBuffer.wrap(field))) return false;
+        }
+        return true;
+    }
+
+    private int indexOf(Object key) {
+        if (key != null && !(key instanceof byte[])) return -1;
+        for (int i = 0; i < fields.length; i++) {
+            if (Arrays.equals(fields[i], (byte[]) key)) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof Map)) return false;
+        Map<?, ?> that = (Map<?, ?>) o;
+        if (that.size() != size()) return false;
+        for (int i = 0; i < fields.length; i++) {
+            Object v = that.get(fields[i]);
+            if (!(v == null ? values[i] == null && that.containsKey(fields[i]) : v instanceof byte[] && Arrays.equals(values[i], (byte[]) v))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for (int i = 0; i < fields.length; i++) {
+            h += Arrays.hashCode(fields[i]) ^ Arrays.hashCode(values[i]);
+        }
+        return h;
+    }
+}
@@ -88,7 +88,8 @@ public class ByteArrayMap implements Map<byte[], byte[]>, Serializable {
     @Override
     public byte[] get(Object key) {
         if (key != null && !(key instanceof byte[])) return null;
-        return map.get(new Element((byte[]) key)).bytes;
+        Element element = map.get(new Element((byte[]) key));
+        return element != null ? element.bytes : null;
     }
     
     @Override
@@ -108,7 +109,8 @@ public class ByteArrayMap implements Map<byte[], byte[]>, Serializable {
     @Override
     public byte[] remove(Object key) {
         if (key != null && !(key instanceof byte[])) return null;
-        return map.remove(new Element((byte[]) key)).bytes;
+        Element element = map.remove(new Element((byte[]) key));
+        return element != null ? element.bytes : null;
     }
     
     @Override
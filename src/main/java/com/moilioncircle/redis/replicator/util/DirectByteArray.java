@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * A {@link ByteArray} that keeps its bytes in direct {@link ByteBuffer} segments out of java heap.
+ * <p>
+ * the segments are freed by {@link #release()}, or when this array is garbage collected.
+ * the {@link #iterator()} copies one segment at a time to heap.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class DirectByteArray extends ByteArray {
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    private static final Method CLEANER;
+    private static final Method CLEAN;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null, cleaner = null, clean = null;
+        try {
+            // java 9+
+            Class<?> clazz = Class.forName("sun.misc.Unsafe");
+            Field field = clazz.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = clazz.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Throwable e) {
+            try {
+                // java 8
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (Throwable ignore) {
+                // left to gc
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+    protected ByteBuffer[] buffers;
+
+    public DirectByteArray(long length) {
+        super(length, -1, false);
+        final int x = (int) (length >> BITS);
+        final int y = (int) (length & MASK);
+        this.buffers = new ByteBuffer[x + 1];
+        try {
+            for (int i = 0; i < x; i++) {
+                buffers[i] = ByteBuffer.allocateDirect(MAGIC);
+            }
+            buffers[x] = ByteBuffer.allocateDirect(y);
+        } catch (OutOfMemoryError e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * @param length  length
+     * @param buffers segments, all but the last one must be {@code 1 << 30} bytes
+     */
+    protected DirectByteArray(long length, ByteBuffer[] buffers) {
+        super(length, -1, false);
+        this.buffers = buffers;
+    }
+
+    @Override
+    public void set(long idx, byte value) {
+        buffers[(int) (idx >> BITS)].put((int) (idx & MASK), value);
+    }
+
+    @Override
+    public byte get(long idx) {
+        return buffers[(int) (idx >> BITS)].get((int) (idx & MASK));
+    }
+
+    @Override
+    public void get(long idx, byte[] b, int off, int len) {
+        while (len > 0) {
+            ByteBuffer buffer = segment(idx);
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            idx += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void set(long idx, byte[] b, int off, int len) {
+        while (len > 0) {
+            ByteBuffer buffer = segment(idx);
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            idx += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void release() {
+        if (buffers == null) return;
+        for (ByteBuffer buffer : buffers) {
+            if (buffer != null) clean(buffer);
+        }
+        buffers = null;
+    }
+
+    @Override
+    protected boolean heap() {
+        return false;
+    }
+
+    @Override
+    public Iterator<byte[]> iterator() {
+        return new Iterator<byte[]>() {
+            protected int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < buffers.length;
+            }
+
+            @Override
+            public byte[] next() {
+                ByteBuffer buffer = buffers[index++].duplicate();
+                buffer.clear();
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                return bytes;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /*
+     * a view of the segment that contains idx, positioned at idx.
+     */
+    private ByteBuffer segment(long idx) {
+        ByteBuffer buffer = buffers[(int) (idx >> BITS)].duplicate();
+        buffer.clear();
+        buffer.position((int) (idx & MASK));
+        return buffer;
+    }
+
+    protected static void clean(ByteBuffer buffer) {
+        if (!buffer.isDirect()) return;
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else if (CLEANER != null) {
+                Object cleaner = CLEANER.invoke(buffer);
+                if (cleaner != null) CLEAN.invoke(cleaner);
+            }
+        } catch (Throwable ignore) {
+            // left to gc
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.util;
+
+/**
+ * Allocates arrays longer than {@code threshold} out of java heap, see {@link DirectByteArray}.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class DirectByteArrayFactory implements ByteArrayFactory {
+
+    protected final long threshold;
+
+    public DirectByteArrayFactory() {
+        this(1024 * 1024);
+    }
+
+    /**
+     * @param threshold arrays up to this length stay on heap
+     */
+    public DirectByteArrayFactory(long threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public ByteArray allocate(long length) {
+        return length <= threshold ? new ByteArray(length) : new DirectByteArray(length);
+    }
+}
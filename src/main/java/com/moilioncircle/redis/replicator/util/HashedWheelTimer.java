@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A hashed wheel timer, scheduling is O(1) and one thread advances the wheel every tick, so thousands of heartbeats
+ * and retries cost no thread each. the expired tasks run on the given executor, the precision is one tick.
+ * <p>
+ * {@link #shutdown()} stops the wheel, not the executor. a task may be scheduled by several replicators, so
+ * replicators cancel their own tasks but never shut the timer down.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class HashedWheelTimer extends AbstractExecutorService implements ScheduledExecutorService {
+
+    protected final long tick;
+    protected final int mask;
+    protected final long start;
+    protected final Thread worker;
+    protected final Executor executor;
+    protected final Queue<Task<?>>[] wheel;
+    protected final Queue<Task<?>> pending = new ConcurrentLinkedQueue<>();
+    protected final CountDownLatch terminated = new CountDownLatch(1);
+    protected volatile boolean shutdown;
+    protected long ticks;
+
+    public HashedWheelTimer(Executor executor, ThreadFactory threadFactory) {
+        this(10, MILLISECONDS, 512, executor, threadFactory);
+    }
+
+    /**
+     * @param tick          duration of a tick
+     * @param unit          unit of the tick
+     * @param wheelSize     buckets of the wheel, rounded up to a power of 2
+     * @param executor      runs the expired tasks
+     * @param threadFactory creates the thread of the wheel
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(long tick, TimeUnit unit, int wheelSize, Executor executor, ThreadFactory threadFactory) {
+        if (tick <= 0) throw new IllegalArgumentException(String.valueOf(tick));
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) throw new IllegalArgumentException(String.valueOf(wheelSize));
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) size <<= 1;
+        this.tick = unit.toNanos(tick);
+        this.mask = size - 1;
+        this.wheel = (Queue<Task<?>>[]) new Queue<?>[size];
+        for (int i = 0; i < size; i++) wheel[i] = new ArrayDeque<>();
+        this.executor = executor;
+        this.start = System.nanoTime();
+        this.worker = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    HashedWheelTimer.this.run();
+                } finally {
+                    terminated.countDown();
+                }
+            }
+        });
+        this.worker.start();
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return schedule(new Task<Void>(command, null, unit.toNanos(delay), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return schedule(new Task<>(callable, unit.toNanos(delay)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) throw new IllegalArgumentException(String.valueOf(period));
+        return schedule(new Task<Void>(command, null, unit.toNanos(initialDelay), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) throw new IllegalArgumentException(String.valueOf(delay));
+        return schedule(new Task<Void>(command, null, unit.toNanos(initialDelay), -unit.toNanos(delay)));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (shutdown) throw new RejectedExecutionException("shutdown");
+        executor.execute(command);
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        LockSupport.unpark(worker);
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        // the buckets belong to the wheel thread, only the tasks not transferred yet are returned
+        List<Runnable> list = new ArrayList<>();
+        for (Task<?> task = pending.poll(); task != null; task = pending.poll()) list.add(task);
+        return list;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    protected <V> Task<V> schedule(Task<V> task) {
+        if (shutdown) throw new RejectedExecutionException("shutdown");
+        pending.add(task);
+        return task;
+    }
+
+    protected void run() {
+        while (!shutdown) {
+            long deadline = start + (ticks + 1) * tick;
+            for (long now = System.nanoTime(); now < deadline && !shutdown; now = System.nanoTime()) {
+                LockSupport.parkNanos(this, deadline - now);
+            }
+            if (shutdown) break;
+            transfer();
+            expire(wheel[(int) (ticks & mask)]);
+            ticks++;
+        }
+        for (Queue<Task<?>> bucket : wheel) bucket.clear();
+    }
+
+    protected void transfer() {
+        // bounded, a thread that keeps scheduling can not stall the wheel
+        for (int i = 0; i < 100000; i++) {
+            Task<?> task = pending.poll();
+            if (task == null) return;
+            if (task.isCancelled()) continue;
+            long at = Math.max((task.deadline - start) / tick, ticks);
+            task.rounds = (at - ticks) / wheel.length;
+            wheel[(int) (at & mask)].add(task);
+        }
+    }
+
+    protected void expire(Queue<Task<?>> bucket) {
+        for (int n = bucket.size(); n > 0; n--) {
+            Task<?> task = bucket.poll();
+            if (task.isCancelled()) continue;
+            if (task.rounds > 0) {
+                task.rounds--;
+                bucket.add(task);
+                continue;
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    protected class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        protected long deadline;
+        protected long rounds;
+        // 0 one shot, > 0 fixed rate, < 0 fixed delay
+        protected final long period;
+
+        protected Task(Runnable runnable, V result, long delay, long period) {
+            super(runnable, result);
+            this.deadline = System.nanoTime() + Math.max(delay, 0);
+            this.period = period;
+        }
+
+        protected Task(Callable<V> callable, long delay) {
+            super(callable);
+            this.deadline = System.nanoTime() + Math.max(delay, 0);
+            this.period = 0;
+        }
+
+        @Override
+        public void run() {
+            if (period == 0) {
+                super.run();
+            } else if (runAndReset() && !shutdown) {
+                deadline = period > 0 ? deadline + period : System.nanoTime() - period;
+                pending.add(this);
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getDelay(NANOSECONDS), o.getDelay(NANOSECONDS));
+        }
+    }
+}
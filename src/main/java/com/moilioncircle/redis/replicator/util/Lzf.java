@@ -23,11 +23,38 @@ package com.moilioncircle.redis.replicator.util;
 public class Lzf {
 
     public static ByteArray decode(ByteArray bytes, long len) {
-        ByteArray out = new ByteArray(len);
-        decode(bytes, 0, out, 0, len);
+        return decode(bytes, len, ByteArrayFactory.HEAP);
+    }
+
+    /**
+     * @param bytes   compressed bytes
+     * @param len     uncompressed length
+     * @param factory allocates the uncompressed array
+     * @return uncompressed bytes
+     * @since 3.1.0
+     */
+    public static ByteArray decode(ByteArray bytes, long len, ByteArrayFactory factory) {
+        ByteArray out = factory.allocate(len);
+        try {
+            decode(bytes, 0, out, 0, len);
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        }
         return out;
     }
 
+    /**
+     * @param in     compressed bytes
+     * @param inOff  offset of compressed bytes
+     * @param out    output, at least {@code outLen} bytes
+     * @param outLen uncompressed length
+     * @since 3.1.0
+     */
+    public static void decode(byte[] in, int inOff, byte[] out, int outLen) {
+        decode(new ByteArray(in), inOff, new ByteArray(out), 0, outLen);
+    }
+
     private static void decode(ByteArray in, long inPos, ByteArray out, long outPos, long outEnd) {
         do {
             int ctrl = in.get(inPos++) & 255;
@@ -238,4 +265,95 @@ public class Lzf {
             throw new AssertionError("corrupt data: overrun in decompress, input offset " + inPos + ", output offset " + outPos);
         }
     }
+
+    public static final int HASH_SIZE = 1 << 14;
+    private static final int MAX_LITERAL = 1 << 5;
+    private static final int MAX_OFF = 1 << 13;
+    private static final int MAX_REF = (1 << 8) + (1 << 3);
+
+    /**
+     * liblzf compatible compression, same output format as redis {@code lzf_compress}.
+     *
+     * @param in     input bytes
+     * @param inOff  input offset
+     * @param inLen  input length
+     * @param out    output bytes
+     * @param outOff output offset
+     * @param outLen max output length
+     * @param table  hash table of at least {@link #HASH_SIZE} entries, can be reused between calls
+     * @return compressed length, 0 if the compressed data does not fit in outLen bytes
+     * @since 3.1.0
+     */
+    public static int encode(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLen, int[] table) {
+        if (inLen == 0) return 0;
+        int ip = inOff, op = outOff, lit = 0;
+        final int inEnd = inOff + inLen, outEnd = outOff + outLen;
+        op++; // literal run length
+        if (inLen > 2) {
+            int hval = ((in[ip] & 0xFF) << 8) | (in[ip + 1] & 0xFF);
+            while (ip < inEnd - 2) {
+                hval = (hval << 8) | (in[ip + 2] & 0xFF);
+                int slot = hash(hval);
+                int ref = table[slot];
+                table[slot] = ip;
+                int off = ip - ref - 1;
+                if (ref >= inOff && ref < ip && off < MAX_OFF
+                        && in[ref] == in[ip] && in[ref + 1] == in[ip + 1] && in[ref + 2] == in[ip + 2]) {
+                    int len = 2;
+                    int maxlen = Math.min(inEnd - ip - len, MAX_REF);
+                    if (op - (lit == 0 ? 1 : 0) + 3 + 1 >= outEnd) return 0;
+                    out[op - lit - 1] = (byte) (lit - 1);
+                    if (lit == 0) op--;
+                    do {
+                        len++;
+                    } while (len < maxlen && in[ref + len] == in[ip + len]);
+                    len -= 2;
+                    ip++;
+                    if (len < 7) {
+                        out[op++] = (byte) ((off >> 8) + (len << 5));
+                    } else {
+                        out[op++] = (byte) ((off >> 8) + (7 << 5));
+                        out[op++] = (byte) (len - 7);
+                    }
+                    out[op++] = (byte) off;
+                    lit = 0;
+                    op++;
+                    ip += len + 1;
+                    if (ip >= inEnd - 2) break;
+                    ip--;
+                    hval = ((in[ip] & 0xFF) << 8) | (in[ip + 1] & 0xFF);
+                    hval = (hval << 8) | (in[ip + 2] & 0xFF);
+                    table[hash(hval)] = ip;
+                    ip++;
+                    hval = ((in[ip] & 0xFF) << 8) | (in[ip + 1] & 0xFF);
+                } else {
+                    if (op >= outEnd) return 0;
+                    lit++;
+                    out[op++] = in[ip++];
+                    if (lit == MAX_LITERAL) {
+                        out[op - lit - 1] = (byte) (lit - 1);
+                        lit = 0;
+                        op++;
+                    }
+                }
+            }
+        }
+        while (ip < inEnd) {
+            if (op >= outEnd) return 0;
+            lit++;
+            out[op++] = in[ip++];
+            if (lit == MAX_LITERAL) {
+                out[op - lit - 1] = (byte) (lit - 1);
+                lit = 0;
+                op++;
+            }
+        }
+        if (lit == 0) op--;
+        else out[op - lit - 1] = (byte) (lit - 1);
+        return op - outOff;
+    }
+
+    private static int hash(int h) {
+        return ((h >>> 10) - h * 5) & (HASH_SIZE - 1);
+    }
 }
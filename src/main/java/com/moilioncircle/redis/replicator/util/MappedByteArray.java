@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link ByteArray} backed by a memory mapped temp file, so huge values are paged by the os
+ * instead of filling java heap.
+ * <p>
+ * the temp file is deleted by {@link #release()} or when the jvm exits.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+//@NonThreadSafe
+public class MappedByteArray extends DirectByteArray {
+
+    protected File file;
+
+    /**
+     * @param length length
+     * @param dir    temp file directory, null for {@code java.io.tmpdir}
+     * @throws IOException if the temp file can't be created or mapped
+     */
+    public MappedByteArray(long length, File dir) throws IOException {
+        super(length, new ByteBuffer[(int) (length >> BITS) + 1]);
+        this.file = File.createTempFile("redis-replicator-", ".bytes", dir);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+            FileChannel channel = raf.getChannel();
+            for (int i = 0; i < buffers.length; i++) {
+                long position = (long) i << BITS;
+                buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(MAGIC, length - position));
+            }
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+        // mappings stay valid after the file is unlinked, not allowed on windows.
+        if (file.delete()) file = null;
+        else file.deleteOnExit();
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        if (file != null && file.delete()) file = null;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Spills arrays longer than {@code threshold} to memory mapped temp files, see {@link MappedByteArray}.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class MappedByteArrayFactory implements ByteArrayFactory {
+
+    protected final File dir;
+    protected final long threshold;
+
+    public MappedByteArrayFactory() {
+        this(null, 64 * 1024 * 1024);
+    }
+
+    /**
+     * @param dir       temp file directory, null for {@code java.io.tmpdir}
+     * @param threshold arrays up to this length stay on heap
+     */
+    public MappedByteArrayFactory(File dir, long threshold) {
+        this.dir = dir;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public ByteArray allocate(long length) {
+        if (length <= threshold) return new ByteArray(length);
+        try {
+            return new MappedByteArray(length, dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
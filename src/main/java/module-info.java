@@ -14,10 +14,16 @@ module com.moilioncircle.redis.replicator {
     exports com.moilioncircle.redis.replicator.rdb.datatype;
     exports com.moilioncircle.redis.replicator.rdb.dump;
     exports com.moilioncircle.redis.replicator.rdb.dump.datatype;
+    exports com.moilioncircle.redis.replicator.rdb.filter;
     exports com.moilioncircle.redis.replicator.rdb.iterable;
     exports com.moilioncircle.redis.replicator.rdb.iterable.datatype;
+    exports com.moilioncircle.redis.replicator.rdb.memory;
+    exports com.moilioncircle.redis.replicator.rdb.memory.datatype;
     exports com.moilioncircle.redis.replicator.rdb.module;
+    exports com.moilioncircle.redis.replicator.rdb.sink;
+    exports com.moilioncircle.redis.replicator.rdb.sink.datatype;
     exports com.moilioncircle.redis.replicator.rdb.skip;
+    exports com.moilioncircle.redis.replicator.rdb.writer;
     exports com.moilioncircle.redis.replicator.util;
     requires org.slf4j;
 }
\ No newline at end of file
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.cmd.impl.SetCommand;
+import com.moilioncircle.redis.replicator.event.AsyncEventListener;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.moilioncircle.redis.replicator.FakeRedisMaster.command;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class AsyncEventWindowTest {
+
+    private static final String REPL_ID = "8de1787ba490483314a4d30f1c628bc5025eb761";
+
+    @Test
+    public void testCount() throws Exception {
+        Replicator r = aof();
+        Recorder recorder = new Recorder(r);
+        AsyncEventWindow window = new AsyncEventWindow(r, recorder, 3, Long.MAX_VALUE);
+        Thread thread = open(r);
+        recorder.await(3);
+        Thread.sleep(100);
+        assertEquals(3, recorder.size());
+        assertEquals(0, window.getCheckpoint());
+
+        // out of order completions do not move the checkpoint
+        recorder.complete(1);
+        recorder.await(4);
+        Thread.sleep(100);
+        assertEquals(4, recorder.size());
+        assertEquals(0, window.getCheckpoint());
+        recorder.complete(0);
+        recorder.await(5);
+        assertEquals(recorder.offset(2), window.getCheckpoint());
+        recorder.complete(2);
+        recorder.complete(3);
+        recorder.await(7);
+        assertEquals(recorder.offset(4), window.getCheckpoint());
+
+        recorder.auto = true;
+        for (int i = 4; i < recorder.size(); i++) recorder.complete(i);
+        thread.join(10000);
+        assertEquals(Status.DISCONNECTED, r.getStatus());
+        assertEquals(0, window.getInFlight());
+        assertEquals(new File(AsyncEventWindowTest.class.getClassLoader().getResource("appendonly5.aof").toURI()).length(), window.getCheckpoint());
+    }
+
+    @Test
+    public void testBytes() throws Exception {
+        Replicator r = aof();
+        Recorder recorder = new Recorder(r);
+        AsyncEventWindow window = new AsyncEventWindow(r, recorder, 1000, 1);
+        Thread thread = open(r);
+        recorder.await(2);
+        Thread.sleep(100);
+        // stops at the first event that starts after the oldest one
+        int size = recorder.size();
+        assertEquals(size, window.getInFlight());
+        assertEquals(0, recorder.offset(size - 2));
+        assertTrue(recorder.offset(size - 1) > 0);
+        recorder.auto = true;
+        for (int i = 0; i < size; i++) recorder.complete(i);
+        thread.join(10000);
+        assertEquals(Status.DISCONNECTED, r.getStatus());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        Replicator r = aof();
+        Recorder recorder = new Recorder(r);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        r.addExceptionListener(new ExceptionListener() {
+            @Override
+            public void handle(Replicator replicator, Throwable throwable, Event event) {
+                error.set(throwable);
+            }
+        });
+        AsyncEventWindow window = new AsyncEventWindow(r, recorder, 2, Long.MAX_VALUE);
+        Thread thread = open(r);
+        recorder.await(2);
+        recorder.complete(0);
+        recorder.await(3);
+        recorder.futures.get(1).completeExceptionally(new IOException("sink"));
+        thread.join(10000);
+        assertEquals(Status.DISCONNECTED, r.getStatus());
+        assertEquals("sink", error.get().getMessage());
+        assertEquals(recorder.offset(1), window.getCheckpoint());
+    }
+
+    @Test
+    public void testSocket() throws Exception {
+        FakeRedisMaster master = master(10);
+        master.start();
+        Configuration configuration = Configuration.defaultSetting().setReplId(REPL_ID).setReplOffset(100).setRetries(1).setHeartbeatPeriod(50);
+        ack(master, new RedisReplicator("127.0.0.1", master.port(), configuration));
+    }
+
+    @Test
+    public void testHub() throws Exception {
+        FakeRedisMaster master = master(10);
+        master.start();
+        Configuration configuration = Configuration.defaultSetting().setReplId(REPL_ID).setReplOffset(100).setRetries(1).setHeartbeatPeriod(50);
+        try (RedisReplicatorHub hub = new RedisReplicatorHub(1, 1)) {
+            ack(master, hub.replicator("127.0.0.1", master.port(), configuration));
+        }
+    }
+
+    private static void ack(FakeRedisMaster master, Replicator r) throws Exception {
+        Recorder recorder = new Recorder(r);
+        AsyncEventWindow window = new AsyncEventWindow(r, recorder, 4, Long.MAX_VALUE);
+        if (r instanceof RedisReplicator) open(r);
+        else r.open();
+        recorder.await(4);
+        Thread.sleep(300);
+        assertEquals(4, recorder.size());
+        // the acks are held back to the oldest uncompleted command
+        assertTrue(master.acks.size() > 0);
+        for (String ack = master.acks.poll(); ack != null; ack = master.acks.poll()) assertEquals("100", ack);
+        recorder.auto = true;
+        for (int i = 0; i < 4; i++) recorder.complete(i);
+        recorder.await(master.commands.size() + 1);
+        String expected = String.valueOf(100 + master.sent), ack = null;
+        while (!expected.equals(ack) && (ack = master.acks.poll(10, SECONDS)) != null) assertTrue(Long.parseLong(ack) <= 100 + master.sent);
+        assertEquals(expected, ack);
+        assertEquals(100 + master.sent, window.getCheckpoint());
+        for (int i = 1; i <= master.commands.size(); i++) assertEquals(String.valueOf(i - 1), Strings.toString(((SetCommand) recorder.events.get(i)).getKey()));
+        r.close();
+    }
+
+    private static FakeRedisMaster master(int count) throws IOException {
+        FakeRedisMaster master = new FakeRedisMaster().connections(1);
+        for (int i = 0; i < count; i++) master.commands(command("SET", String.valueOf(i), "value"));
+        return master;
+    }
+
+    private static Replicator aof() {
+        return new RedisReplicator(AsyncEventWindowTest.class.getClassLoader().getResourceAsStream("appendonly5.aof"), FileType.AOF, Configuration.defaultSetting());
+    }
+
+    private static Thread open(final Replicator r) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Replicators.openQuietly(r);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static class Recorder implements AsyncEventListener {
+        private final Replicator replicator;
+        private final List<Event> events = new ArrayList<>();
+        private final List<Long> offsets = new ArrayList<>();
+        private final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        private volatile boolean auto;
+
+        private Recorder(Replicator replicator) {
+            this.replicator = replicator;
+        }
+
+        @Override
+        public synchronized CompletionStage<?> onEvent(Replicator replicator, Event event) {
+            Configuration configuration = this.replicator.getConfiguration();
+            events.add(event);
+            offsets.add(this.replicator instanceof RedisReplicator && ((RedisReplicator) this.replicator).getReplicator() instanceof RedisAofReplicator ? configuration.getAofOffset() : configuration.getReplOffset());
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            if (auto) future.complete(null);
+            futures.add(future);
+            notifyAll();
+            return future;
+        }
+
+        private synchronized int size() {
+            return events.size();
+        }
+
+        private synchronized long offset(int i) {
+            return offsets.get(i);
+        }
+
+        private void complete(int i) {
+            CompletableFuture<Void> future;
+            synchronized (this) {
+                future = futures.get(i);
+            }
+            future.complete(null);
+        }
+
+        private synchronized void await(int n) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (events.size() < n && System.currentTimeMillis() < deadline) wait(100);
+            assertTrue(events.size() >= n);
+        }
+    }
+}
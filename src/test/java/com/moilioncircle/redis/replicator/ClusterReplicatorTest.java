@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.cmd.impl.SetCommand;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.rdb.DefaultRdbVisitor;
+import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.util.CRC16;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.moilioncircle.redis.replicator.FakeRedisMaster.command;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class ClusterReplicatorTest {
+
+    private static final String REPL_ID = "8de1787ba490483314a4d30f1c628bc5025eb761";
+
+    @Test
+    public void testParse() {
+        String nodes = "" +
+                "07c37dfeb235213a872192d90877d0cd55635b91 127.0.0.1:30004@31004,host4 slave e7d1eecce10fd6bb5eb35b9f99a514335d9ba9ca 0 1426238317239 4 connected\n" +
+                "67ed2db8d677e59ec4a4cefb06858cf2a1a89fa1 127.0.0.1:30002@31002 master - 0 1426238316232 2 connected 5461-10922\n" +
+                "292f8b365bb7edb5e285caf0b7e6ddc7265d2f4f 127.0.0.1:30003@31003 master - 0 1426238318243 3 connected 10923-16383 [16383->-e7d1eecce10fd6bb5eb35b9f99a514335d9ba9ca]\n" +
+                "6ec23923021cf3ffec47632106199cb7f496ce01 127.0.0.1:30005@31005 master,fail - 0 1426238316232 5 connected 1\n" +
+                "824fe116063bc5fcf9f4ffd895bc17aee7731ac3 127.0.0.1:30006@31006 master - 0 1426238317741 6 connected\n" +
+                "e7d1eecce10fd6bb5eb35b9f99a514335d9ba9ca 127.0.0.1:30001@31001,host1 myself,master - 0 0 1 connected 0-5460 5465\n";
+        List<ClusterNode> list = ClusterNode.parse(nodes);
+        assertEquals(3, list.size());
+        ClusterNode node = list.get(2);
+        assertEquals("e7d1eecce10fd6bb5eb35b9f99a514335d9ba9ca", node.getId());
+        assertEquals("127.0.0.1", node.getHost());
+        assertEquals(30001, node.getPort());
+        assertEquals(5462, node.getSlots().cardinality());
+        assertTrue(node.hasSlot(5465));
+        assertEquals(5462, list.get(0).getSlots().cardinality());
+        assertEquals(5461, list.get(1).getSlots().cardinality());
+    }
+
+    @Test
+    public void testSlot() {
+        assertEquals(CRC16.slot("a".getBytes()), ClusterReplicator.slot(command("SET", "a", "1")));
+        assertEquals(CRC16.slot("a".getBytes()), ClusterReplicator.slot(command("BITOP", "AND", "a", "b")));
+        assertEquals(CRC16.slot("a".getBytes()), ClusterReplicator.slot(command("EVAL", "return 1", "1", "a")));
+        assertEquals(-1, ClusterReplicator.slot(command("EVAL", "return 1", "0")));
+        assertEquals(-1, ClusterReplicator.slot(command("SELECT", "0")));
+        assertEquals(-1, ClusterReplicator.slot(command("MULTI")));
+    }
+
+    @Test
+    public void testConcurrency() throws Exception {
+        AtomicReference<String> nodes = new AtomicReference<>();
+        List<Node> list = nodes(nodes, 3);
+        final Map<Integer, List<String>> keys = new ConcurrentHashMap<>();
+        final CountDownLatch latch = new CountDownLatch(9);
+        final List<Configuration> configurations = new CopyOnWriteArrayList<>();
+        Configuration configuration = configuration().setFailoverCandidates("127.0.0.1:1").setSentinelMaster("mymaster").setSentinels("127.0.0.1:2");
+        ClusterReplicator r = new ClusterReplicator("127.0.0.1", list.get(0).port(), configuration, 1, 10000) {
+            @Override
+            protected Replicator replicator(ClusterNode node, Configuration configuration) {
+                configurations.add(configuration);
+                return super.replicator(node, configuration);
+            }
+        };
+        final AtomicInteger strings = new AtomicInteger();
+        DefaultRdbVisitor visitor = new DefaultRdbVisitor(r) {
+            @Override
+            public Event applyString(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
+                strings.incrementAndGet();
+                return super.applyString(in, version, context);
+            }
+        };
+        r.setRdbVisitor(visitor);
+        assertSame(visitor, r.getRdbVisitor());
+        r.addEventListener(listener(keys, latch));
+        final CountDownLatch closed = new CountDownLatch(1);
+        r.addCloseListener(new CloseListener() {
+            @Override
+            public void handle(Replicator replicator) {
+                closed.countDown();
+            }
+        });
+        Thread thread = open(r);
+        assertTrue(latch.await(10, SECONDS));
+        // one full sync at a time
+        List<Long> times = new ArrayList<>();
+        for (Node node : list) {
+            assertEquals(1, node.psyncs.size());
+            times.add(node.psyncTimes.get(0));
+            assertEquals(node.keys, keys.get(node.port()));
+        }
+        Collections.sort(times);
+        for (int i = 1; i < times.size(); i++) assertTrue(String.valueOf(times), times.get(i) - times.get(i - 1) >= 150);
+        assertEquals(3, r.getNodes().size());
+        // each master parsed the rdb with the visitor and has no failover settings of its own
+        assertTrue(strings.get() > 0);
+        assertEquals(0, strings.get() % 3);
+        assertEquals(3, configurations.size());
+        for (Configuration c : configurations) {
+            assertNull(c.getFailoverCandidates());
+            assertNull(c.getSentinels());
+            assertNull(c.getSentinelMaster());
+        }
+        r.close();
+        assertTrue(closed.await(10, SECONDS));
+        thread.join(10000);
+        assertEquals(Status.DISCONNECTED, r.getStatus());
+        for (Node node : list) assertTrue(node.closed.await(10, SECONDS));
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        AtomicReference<String> nodes = new AtomicReference<>();
+        List<Node> list = nodes(nodes, 3);
+        final Map<Integer, List<String>> keys = new ConcurrentHashMap<>();
+        final CountDownLatch latch = new CountDownLatch(12);
+        ClusterReplicator r = new ClusterReplicator("127.0.0.1", list.get(0).port(), configuration(), 4, 100);
+        r.addEventListener(listener(keys, latch));
+        Thread thread = open(r);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (latch.getCount() > 3) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+
+        // failover of the third master
+        Node c = list.get(2);
+        Node d = new Node(nodes, "d" + c.id.substring(1), c.slots, c.keys);
+        d.start();
+        nodes.set(nodes.get().replace(c.id + " 127.0.0.1:" + c.port(), d.id + " 127.0.0.1:" + d.port()));
+        assertTrue(latch.await(10, SECONDS));
+        assertTrue(c.closed.await(10, SECONDS));
+        assertEquals(d.keys, keys.get(d.port()));
+        for (Node node : list) assertEquals(1, node.psyncs.size());
+        assertEquals(1, d.psyncs.size());
+
+        // slots moved without a sync
+        nodes.set(nodes.get().replace(" 0-5460", " 0-5459").replace(" 5461-10922", " 5460-10922"));
+        deadline = System.currentTimeMillis() + 10000;
+        while (!slot(r, 5460).equals(list.get(1).id)) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        for (Node node : list) assertEquals(1, node.psyncs.size());
+        r.close();
+        thread.join(10000);
+        assertEquals(Status.DISCONNECTED, r.getStatus());
+    }
+
+    private static String slot(ClusterReplicator r, int slot) {
+        for (ClusterNode node : r.getNodes()) if (node.hasSlot(slot)) return node.getId();
+        return "";
+    }
+
+    private static Configuration configuration() {
+        return Configuration.defaultSetting().setRetries(0).setConnectionTimeout(3000);
+    }
+
+    private static Thread open(final Replicator r) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Replicators.openQuietly(r);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static EventListener listener(final Map<Integer, List<String>> keys, final CountDownLatch latch) {
+        return new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                assertTrue(replicator instanceof ClusterReplicator);
+                ClusterEvent e = (ClusterEvent) event;
+                if (e.getEvent() instanceof KeyValuePair) {
+                    assertEquals(CRC16.slot((byte[]) ((KeyValuePair<?, ?>) e.getEvent()).getKey()), e.getSlot());
+                } else if (e.getEvent() instanceof SetCommand) {
+                    byte[] key = ((SetCommand) e.getEvent()).getKey();
+                    assertEquals(CRC16.slot(key), e.getSlot());
+                    assertTrue(e.getNode().hasSlot(e.getSlot()));
+                    List<String> list = keys.get(e.getNode().getPort());
+                    if (list == null) keys.put(e.getNode().getPort(), list = new ArrayList<>());
+                    list.add(Strings.toString(key));
+                    latch.countDown();
+                }
+            }
+        };
+    }
+
+    private static List<Node> nodes(AtomicReference<String> nodes, int count) throws IOException {
+        List<Node> list = new ArrayList<>();
+        int[][] ranges = {{0, 5460}, {5461, 10922}, {10923, 16383}};
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            List<String> keys = new ArrayList<>();
+            for (int k = 0; keys.size() < 3; k++) {
+                int slot = CRC16.slot(("key" + k).getBytes());
+                if (slot >= ranges[i][0] && slot <= ranges[i][1]) keys.add("key" + k);
+            }
+            Node node = new Node(nodes, (char) ('a' + i) + REPL_ID.substring(1), ranges[i][0] + "-" + ranges[i][1], keys);
+            builder.append(node.id).append(" 127.0.0.1:").append(node.port()).append('@').append(node.port() + 10000)
+                    .append(i == 0 ? " myself,master" : " master").append(" - 0 0 ").append(i + 1).append(" connected ").append(node.slots).append('\n');
+            list.add(node);
+        }
+        nodes.set(builder.toString());
+        for (Node node : list) node.start();
+        return list;
+    }
+
+    private static Object[] command(String... args) {
+        Object[] raw = new Object[args.length];
+        for (int i = 0; i < args.length; i++) raw[i] = args[i].getBytes();
+        return raw;
+    }
+
+    private static class Node extends FakeRedisMaster {
+        private final String id;
+        private final String slots;
+        private final List<String> keys;
+
+        private Node(AtomicReference<String> nodes, String id, String slots, List<String> keys) throws IOException {
+            this.id = id;
+            this.slots = slots;
+            this.keys = keys;
+            byte[] rdb = Files.readAllBytes(new File(ClusterReplicatorTest.class.getClassLoader().getResource("dumpV7.rdb").getFile()).toPath());
+            // a slow bgsave, then pings of the master until the replica is gone
+            nodes(nodes).psync("+FULLRESYNC " + REPL_ID + " 100\r\n").rdb(rdb, false).bgsave(200).pings(100);
+            for (String key : keys) commands(command("SET", key, "v"));
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.cmd.impl.SetCommand;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.moilioncircle.redis.replicator.FakeRedisMaster.command;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class EventPublisherTest {
+
+    private static final String REPL_ID = "8de1787ba490483314a4d30f1c628bc5025eb761";
+
+    @Test
+    public void testFile() throws Exception {
+        Replicator expected = file();
+        final List<Event> events = new ArrayList<>();
+        expected.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                events.add(event);
+            }
+        });
+        expected.open();
+
+        Recorder recorder = new Recorder();
+        new EventPublisher(file()).subscribe(recorder);
+        recorder.subscription.request(2);
+        Thread.sleep(200);
+        // the parsing thread waits for the demand
+        assertEquals(2, recorder.events.size());
+        for (int i = 2; i < events.size() - 1; i++) recorder.subscription.request(1);
+        assertFalse(recorder.completed.await(200, MILLISECONDS));
+        recorder.subscription.request(1);
+        assertTrue(recorder.completed.await(10, SECONDS));
+        assertNull(recorder.error.get());
+        assertEquals(events.size(), recorder.events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(events.get(i).getClass(), recorder.events.get(i).getClass());
+            if (events.get(i) instanceof KeyValuePair) {
+                assertEquals(Strings.toString(((KeyValuePair<?, ?>) events.get(i)).getKey()), Strings.toString(((KeyValuePair<?, ?>) recorder.events.get(i)).getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final Replicator r = file();
+        Recorder recorder = new Recorder() {
+            @Override
+            public void onNext(Event item) {
+                super.onNext(item);
+                if (item instanceof KeyValuePair) subscription.cancel();
+            }
+        };
+        new EventPublisher(r).subscribe(recorder);
+        recorder.subscription.request(Long.MAX_VALUE);
+        Thread.sleep(200);
+        assertEquals(Status.DISCONNECTED, r.getStatus());
+        int size = recorder.events.size();
+        assertTrue(recorder.events.get(size - 1) instanceof KeyValuePair);
+        Thread.sleep(200);
+        assertEquals(size, recorder.events.size());
+        assertEquals(1, recorder.completed.getCount());
+        assertNull(recorder.error.get());
+
+        Recorder second = new Recorder();
+        recorder = new Recorder();
+        EventPublisher publisher = new EventPublisher(file());
+        publisher.subscribe(second);
+        publisher.subscribe(recorder);
+        assertTrue(recorder.error.get() instanceof IllegalStateException);
+        second.subscription.request(0);
+        assertTrue(second.error.get() instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void testSocket() throws Exception {
+        FakeRedisMaster master = master(20000);
+        master.start();
+        Configuration configuration = Configuration.defaultSetting().setReplId(REPL_ID).setReplOffset(100).setRetries(1).setHeartbeatPeriod(60000);
+        backpressure(master, new RedisReplicator("127.0.0.1", master.port(), configuration));
+    }
+
+    @Test
+    public void testHub() throws Exception {
+        FakeRedisMaster master = master(20000);
+        master.start();
+        Configuration configuration = Configuration.defaultSetting().setReplId(REPL_ID).setReplOffset(100).setRetries(1).setHeartbeatPeriod(60000);
+        try (RedisReplicatorHub hub = new RedisReplicatorHub(1, 1)) {
+            backpressure(master, hub.replicator("127.0.0.1", master.port(), configuration));
+        }
+    }
+
+    private static FakeRedisMaster master(int count) throws IOException {
+        char[] chars = new char[1024];
+        Arrays.fill(chars, 'x');
+        String value = new String(chars);
+        FakeRedisMaster master = new FakeRedisMaster().connections(1);
+        for (int i = 0; i < count; i++) master.commands(command("SET", String.valueOf(i), value));
+        return master;
+    }
+
+    private static void backpressure(FakeRedisMaster master, Replicator r) throws Exception {
+        Recorder recorder = new Recorder();
+        new EventPublisher(r).subscribe(recorder);
+        recorder.subscription.request(3);
+        Thread.sleep(1000);
+        // pre command sync, SET 0 and SET 1, the master waits for the socket buffers
+        assertEquals(3, recorder.events.size());
+        assertTrue(master.sent < (long) master.commands.size() * 1050);
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertTrue(master.synced.await(30, SECONDS));
+        long deadline = System.currentTimeMillis() + 30000;
+        while (recorder.events.size() < master.commands.size() + 1 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(master.commands.size() + 1, recorder.events.size());
+        for (int i = 1; i <= master.commands.size(); i++) {
+            assertEquals(String.valueOf(i - 1), Strings.toString(((SetCommand) recorder.events.get(i)).getKey()));
+        }
+        recorder.subscription.cancel();
+        assertTrue(r.getStatus() != Status.CONNECTED);
+        // no signal after a cancellation
+        assertEquals(1, recorder.completed.getCount());
+        assertNull(recorder.error.get());
+    }
+
+    private static Replicator file() {
+        return new RedisReplicator(EventPublisherTest.class.getClassLoader().getResourceAsStream("dumpV7.rdb"), FileType.RDB, Configuration.defaultSetting());
+    }
+
+    private static class Recorder implements EventPublisher.Subscriber<Event> {
+        protected volatile EventPublisher.Subscription subscription;
+        protected final List<Event> events = Collections.synchronizedList(new ArrayList<Event>());
+        protected final AtomicReference<Throwable> error = new AtomicReference<>();
+        protected final CountDownLatch completed = new CountDownLatch(1);
+
+        @Override
+        public void onSubscribe(EventPublisher.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Event item) {
+            events.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.set(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}
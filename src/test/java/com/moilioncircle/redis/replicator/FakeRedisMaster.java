@@ -0,0 +1,326 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.cmd.ReplyParser;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.util.Strings;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A master on a local port that answers the handshake of a replica, replies to {@code PSYNC} with an optional rdb
+ * and then writes a command stream. Every connection is served on its own daemon thread.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class FakeRedisMaster extends Thread {
+
+    private static final String MARK = "0123456789abcdef0123456789abcdef01234567";
+    private static final byte[] PING = command("PING");
+
+    protected final ServerSocket server;
+    protected final boolean owner;
+    protected String psync = "+CONTINUE\r\n";
+    protected byte[] rdb;
+    protected boolean diskless;
+    protected long bgsave;
+    protected int packet;
+    protected long pings;
+    protected boolean dies;
+    protected int connections = Integer.MAX_VALUE;
+    protected AtomicReference<String> nodes;
+    protected final List<byte[]> commands = new ArrayList<>();
+
+    protected final List<List<String>> psyncs = new CopyOnWriteArrayList<>();
+    protected final List<Long> psyncTimes = new CopyOnWriteArrayList<>();
+    protected final BlockingQueue<String> acks = new LinkedBlockingQueue<>();
+    protected final CountDownLatch synced = new CountDownLatch(1);
+    protected final CountDownLatch closed = new CountDownLatch(1);
+    protected volatile long sent;
+    protected volatile long died;
+
+    public FakeRedisMaster() throws IOException {
+        this(new ServerSocket(0), true);
+    }
+
+    /**
+     * @param server a server that is not closed by the master, e.g. to serve one port from several masters in turn
+     */
+    public FakeRedisMaster(ServerSocket server) {
+        this(server, false);
+    }
+
+    private FakeRedisMaster(ServerSocket server, boolean owner) {
+        this.server = server;
+        this.owner = owner;
+        setDaemon(true);
+    }
+
+    /**
+     * @param reply the reply to {@code PSYNC} including line endings, {@code +CONTINUE\r\n} by default
+     * @return this
+     */
+    public FakeRedisMaster psync(String reply) {
+        this.psync = reply;
+        return this;
+    }
+
+    /**
+     * @param rdb      the rdb that follows the reply to {@code PSYNC}
+     * @param diskless true to send the rdb with an {@code $EOF:} mark instead of its length
+     * @return this
+     */
+    public FakeRedisMaster rdb(byte[] rdb, boolean diskless) {
+        this.rdb = rdb;
+        this.diskless = diskless;
+        return this;
+    }
+
+    /**
+     * @param millis delay between the reply to {@code PSYNC} and the rdb, a slow bgsave
+     * @return this
+     */
+    public FakeRedisMaster bgsave(long millis) {
+        this.bgsave = millis;
+        return this;
+    }
+
+    /**
+     * @param commands commands written after the rdb, see {@link #command(String...)}
+     * @return this
+     */
+    public FakeRedisMaster commands(byte[]... commands) {
+        this.commands.addAll(Arrays.asList(commands));
+        return this;
+    }
+
+    /**
+     * @param size the reply to {@code PSYNC} is written in packets of {@code size} bytes
+     * @return this
+     */
+    public FakeRedisMaster packet(int size) {
+        this.packet = size;
+        return this;
+    }
+
+    /**
+     * @param millis period of the pings after the command stream until the replica is gone
+     * @return this
+     */
+    public FakeRedisMaster pings(long millis) {
+        this.pings = millis;
+        return this;
+    }
+
+    /**
+     * the master closes its port and half closes the replica after the command stream
+     *
+     * @return this
+     */
+    public FakeRedisMaster dies() {
+        this.dies = true;
+        return this;
+    }
+
+    /**
+     * @param connections connections served before the master stops, the last one on the master thread
+     * @return this
+     */
+    public FakeRedisMaster connections(int connections) {
+        this.connections = connections;
+        return this;
+    }
+
+    /**
+     * @param nodes the reply to {@code CLUSTER NODES}
+     * @return this
+     */
+    public FakeRedisMaster nodes(AtomicReference<String> nodes) {
+        this.nodes = nodes;
+        return this;
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    public static byte[] command(String... args) {
+        StringBuilder builder = new StringBuilder("*" + args.length + "\r\n");
+        for (String arg : args) builder.append('$').append(arg.length()).append("\r\n").append(arg).append("\r\n");
+        return builder.toString().getBytes();
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (int i = 1; ; i++) {
+                final Socket socket = server.accept();
+                if (i >= connections) {
+                    handle(socket);
+                    return;
+                }
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException ignore) {
+        } finally {
+            if (owner) {
+                try {
+                    server.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @param name    name of the command in upper case
+     * @param command the command
+     * @param out     output of the replica
+     * @return true if the command is answered
+     * @throws IOException socket error
+     */
+    protected boolean reply(String name, Object[] command, OutputStream out) throws IOException {
+        return false;
+    }
+
+    /**
+     * @param offset offset of {@code REPLCONF ACK}
+     * @param out    output of the replica
+     * @throws IOException socket error
+     */
+    protected void ack(String offset, OutputStream out) throws IOException {
+        acks.add(offset);
+    }
+
+    /**
+     * @return the reply to {@code PSYNC}
+     */
+    protected String psyncReply() {
+        return psync;
+    }
+
+    /**
+     * write a command of the stream, its bytes are counted in {@link #sent}
+     *
+     * @param out     output of the replica
+     * @param command the command
+     * @throws IOException socket error
+     */
+    protected void send(OutputStream out, byte[] command) throws IOException {
+        out.write(command);
+        sent += command.length;
+    }
+
+    protected void handle(Socket socket) {
+        boolean replica = false;
+        try (Socket s = socket) {
+            ReplyParser parser = new ReplyParser(new RedisInputStream(s.getInputStream()));
+            OutputStream out = new BufferedOutputStream(packet > 0 ? packets(s.getOutputStream(), packet) : s.getOutputStream(), 64 * 1024);
+            while (true) {
+                Object[] command = (Object[]) parser.parse();
+                String name = Strings.toString(command[0]).toUpperCase();
+                if (reply(name, command, out)) {
+                    // answered by a subclass
+                } else if (name.equals("PING")) {
+                    out.write("+PONG\r\n".getBytes());
+                } else if (name.equals("REPLCONF")) {
+                    if (Strings.toString(command[1]).equalsIgnoreCase("ACK")) ack(Strings.toString(command[2]), out);
+                    else out.write("+OK\r\n".getBytes());
+                } else if (name.equals("CLUSTER") && nodes != null) {
+                    byte[] reply = nodes.get().getBytes();
+                    out.write(("$" + reply.length + "\r\n").getBytes());
+                    out.write(reply);
+                    out.write("\r\n".getBytes());
+                } else if (name.equals("PSYNC")) {
+                    replica = true;
+                    psyncs.add(Arrays.asList(Strings.toString(command[1]), Strings.toString(command[2])));
+                    psyncTimes.add(System.currentTimeMillis());
+                    sync(out);
+                    if (dies) {
+                        server.close();
+                        // half close, unread acks would reset the connection before the commands are read
+                        s.shutdownOutput();
+                        died = System.currentTimeMillis();
+                        while (s.getInputStream().read() != -1) ;
+                        return;
+                    }
+                    while (pings > 0) {
+                        send(out, PING);
+                        out.flush();
+                        Thread.sleep(pings);
+                    }
+                }
+                out.flush();
+            }
+        } catch (Exception ignore) {
+            // closed by the replica
+        } finally {
+            if (replica) closed.countDown();
+        }
+    }
+
+    protected void sync(OutputStream out) throws IOException, InterruptedException {
+        out.write(psyncReply().getBytes());
+        if (rdb != null) {
+            if (bgsave > 0) {
+                out.flush();
+                Thread.sleep(bgsave);
+            }
+            out.write((diskless ? "$EOF:" + MARK : "$" + rdb.length).getBytes());
+            out.write("\r\n".getBytes());
+            out.write(rdb);
+            if (diskless) out.write(MARK.getBytes());
+        }
+        for (byte[] command : commands) send(out, command);
+        out.flush();
+        synced.countDown();
+    }
+
+    private static OutputStream packets(OutputStream out, final int size) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                for (int i = 0; i < len; i += size) {
+                    out.write(b, off + i, Math.min(size, len - i));
+                    out.flush();
+                }
+            }
+        };
+    }
+}
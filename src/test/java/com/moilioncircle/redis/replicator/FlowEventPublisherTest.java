@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class FlowEventPublisherTest {
+
+    @Test
+    public void testFlow() throws Exception {
+        Replicator expected = file();
+        final List<Event> events = new ArrayList<>();
+        expected.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                events.add(event);
+            }
+        });
+        expected.open();
+
+        Recorder recorder = new Recorder();
+        Flow.Publisher<Event> publisher = new FlowEventPublisher(file());
+        publisher.subscribe(recorder);
+        recorder.subscription.request(2);
+        Thread.sleep(200);
+        assertEquals(2, recorder.events.size());
+        for (int i = 2; i < events.size() - 1; i++) recorder.subscription.request(1);
+        assertFalse(recorder.completed.await(200, MILLISECONDS));
+        recorder.subscription.request(1);
+        assertTrue(recorder.completed.await(10, SECONDS));
+        assertNull(recorder.error.get());
+        assertEquals(events.size(), recorder.events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(events.get(i).getClass(), recorder.events.get(i).getClass());
+        }
+
+        // unicast
+        Recorder second = new Recorder();
+        publisher.subscribe(second);
+        assertTrue(second.error.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        Replicator r = file();
+        Recorder recorder = new Recorder();
+        new FlowEventPublisher(r).subscribe(recorder);
+        recorder.subscription.request(1);
+        Thread.sleep(200);
+        recorder.subscription.cancel();
+        Thread.sleep(200);
+        assertEquals(Status.DISCONNECTED, r.getStatus());
+        assertEquals(1, recorder.events.size());
+        assertEquals(1, recorder.completed.getCount());
+        assertNull(recorder.error.get());
+    }
+
+    private static Replicator file() {
+        return new RedisReplicator(FlowEventPublisherTest.class.getClassLoader().getResourceAsStream("dumpV7.rdb"), FileType.RDB, Configuration.defaultSetting());
+    }
+
+    private static class Recorder implements Flow.Subscriber<Event> {
+        protected volatile Flow.Subscription subscription;
+        protected final List<Event> events = Collections.synchronizedList(new ArrayList<Event>());
+        protected final AtomicReference<Throwable> error = new AtomicReference<>();
+        protected final CountDownLatch completed = new CountDownLatch(1);
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Event item) {
+            events.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.set(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}
@@ -24,9 +24,26 @@ import com.moilioncircle.redis.replicator.io.RateLimitInputStream;
 import com.moilioncircle.redis.replicator.util.Strings;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Leon Chen
@@ -107,4 +124,205 @@ public class RedisAofReplicatorTest {
         assertEquals(71, acc.get());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testParallel() throws Exception {
+        List<File> files = new ArrayList<>();
+        for (String name : new String[]{"appendonly1.aof", "appendonly2.aof", "appendonly5.aof", "appendonly6.aof", "appendonly7.aof"}) {
+            files.add(new File(RedisAofReplicatorTest.class.getClassLoader().getResource(name).toURI()));
+        }
+        // values that look like frames, and a truncated tail
+        File file = File.createTempFile("appendonly", ".aof");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            String fake = "\n*3\r\n$3\r\nSET\r\n$1\r\nx\r\n$1\r\ny\r\n";
+            for (int i = 0; i < 200; i++) {
+                StringBuilder value = new StringBuilder();
+                for (int j = 0; j < i % 7; j++) value.append(fake);
+                write(out, "SELECT", String.valueOf(i % 3));
+                write(out, "SET", "key" + i, value.append(i).toString());
+            }
+            out.write("*3\r\n$3\r\nSET\r\n$1\r\na".getBytes());
+        }
+        files.add(file);
+        for (File f : files) {
+            List<String> expected = commands(f, Configuration.defaultSetting());
+            assertTrue(f.getName(), expected.size() > 0);
+            for (int size : new int[]{7, 64, 4096, 64 * 1024 * 1024}) {
+                if (size < 4096 && f.length() > 64 * 1024) continue;
+                Configuration configuration = Configuration.defaultSetting().setAofParallelism(3).setAofRangeSize(size);
+                assertEquals(f.getName() + ":" + size, expected, commands(f, configuration));
+            }
+        }
+        Replicator replicator = new RedisReplicator("redis://" + file.toURI().getPath() + "?aofParallelism=2&aofRangeSize=100");
+        assertEquals(commands(file, Configuration.defaultSetting()), commands(replicator));
+    }
+
+    @Test
+    public void testOffset() throws Exception {
+        File file = new File(RedisAofReplicatorTest.class.getClassLoader().getResource("appendonly5.aof").toURI());
+        final List<Long> offsets = new ArrayList<>();
+        Replicator replicator = new RedisReplicator(file, FileType.AOF, Configuration.defaultSetting());
+        replicator.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof Command) offsets.add(replicator.getConfiguration().getAofOffset());
+            }
+        });
+        List<String> expected = commands(replicator);
+        assertEquals(file.length(), replicator.getConfiguration().getAofOffset());
+        for (int i : new int[]{1, offsets.size() / 2, offsets.size() - 1}) {
+            List<String> rest = expected.subList(i, expected.size());
+            assertEquals(rest, commands(file, Configuration.defaultSetting().setAofOffset(offsets.get(i))));
+            assertEquals(rest, commands(file, Configuration.defaultSetting().setAofOffset(offsets.get(i)).setAofParallelism(2).setAofRangeSize(100)));
+            assertEquals(rest, commands(new RedisReplicator("redis://" + file.toURI().getPath() + "?aofOffset=" + offsets.get(i))));
+        }
+    }
+
+    @Test
+    public void testFollow() throws Exception {
+        final File file = File.createTempFile("appendonly", ".aof");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < 10; i++) write(out, "SET", "key" + i, "value" + i);
+        }
+        final Replicator replicator = new RedisReplicator(file, FileType.AOF, Configuration.defaultSetting().setAofFollow(true));
+        final List<String> keys = new CopyOnWriteArrayList<>();
+        replicator.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof SetCommand) keys.add(Strings.toString(((SetCommand) event).getKey()));
+            }
+        });
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replicator.open();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        thread.start();
+        await(keys, 10);
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            write(out, "SET", "key10", "value10");
+            out.write("*3\r\n$3\r\nSET\r\n$5\r\nke".getBytes());
+            out.flush();
+            await(keys, 11);
+            out.write("y11\r\n$7\r\nvalue11\r\n".getBytes());
+        }
+        await(keys, 12);
+        // rewrite
+        File rewrite = File.createTempFile("appendonly", ".aof", file.getParentFile());
+        try (OutputStream out = new FileOutputStream(rewrite)) {
+            write(out, "SET", "key0", "value12");
+        }
+        Files.move(rewrite.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        await(keys, 13);
+        replicator.close();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertEquals("key0", keys.get(12));
+        assertEquals("key11", keys.get(11));
+        assertEquals(13, keys.size());
+    }
+
+    @Test
+    public void testFollowTruncated() throws Exception {
+        final File file = File.createTempFile("appendonly", ".aof");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < 5; i++) write(out, "SET", "key" + i, "value" + i);
+        }
+        // the offset of a longer file before a rewrite, with and without the parallel scan
+        for (int parallelism : new int[]{0, 2}) {
+            Configuration configuration = Configuration.defaultSetting().setAofFollow(true).setAofOffset(file.length() + 100)
+                    .setAofParallelism(parallelism).setAofRangeSize(16);
+            final Replicator replicator = new RedisReplicator(file, FileType.AOF, configuration);
+            final List<String> keys = new CopyOnWriteArrayList<>();
+            replicator.addEventListener(new EventListener() {
+                @Override
+                public void onEvent(Replicator replicator, Event event) {
+                    if (event instanceof SetCommand) keys.add(Strings.toString(((SetCommand) event).getKey()));
+                }
+            });
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Replicators.openQuietly(replicator);
+                }
+            });
+            thread.start();
+            await(keys, 5);
+            assertEquals("key0", keys.get(0));
+            assertEquals(file.length(), configuration.getAofOffset());
+            replicator.close();
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    private static void await(List<String> keys, int size) throws InterruptedException {
+        for (int i = 0; i < 100 && keys.size() < size; i++) Thread.sleep(50);
+        assertEquals(size, keys.size());
+    }
+
+    private static void write(OutputStream out, String... args) throws IOException {
+        StringBuilder builder = new StringBuilder("*").append(args.length).append("\r\n");
+        for (String arg : args) builder.append("$").append(arg.length()).append("\r\n").append(arg).append("\r\n");
+        out.write(builder.toString().getBytes());
+    }
+
+    private static List<String> commands(File file, Configuration configuration) throws Exception {
+        return commands(new RedisReplicator(file, FileType.AOF, configuration));
+    }
+
+    private static List<String> commands(Replicator replicator) throws Exception {
+        final List<String> commands = new ArrayList<>();
+        replicator.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof Command) {
+                    commands.add(describe(event));
+                }
+            }
+        });
+        replicator.open();
+        return commands;
+    }
+
+    private static String describe(Object value) {
+        if (value instanceof byte[]) return Strings.toString(value);
+        if (value != null && value.getClass().isArray()) {
+            List<Object> list = new ArrayList<>();
+            for (int i = 0; i < Array.getLength(value); i++) list.add(Array.get(value, i));
+            value = list;
+        }
+        if (value instanceof Collection) {
+            StringBuilder builder = new StringBuilder("[");
+            for (Object e : (Collection<?>) value) builder.append(describe(e)).append(',');
+            return builder.append(']').toString();
+        }
+        if (value instanceof Map) {
+            StringBuilder builder = new StringBuilder("{");
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) builder.append(describe(e.getKey())).append('=').append(describe(e.getValue())).append(',');
+            return builder.append('}').toString();
+        }
+        if (!(value instanceof Command)) return String.valueOf(value);
+        StringBuilder builder = new StringBuilder(value.getClass().getSimpleName());
+        try {
+            for (Class<?> clazz = value.getClass(); clazz != Object.class; clazz = clazz.getSuperclass()) {
+                for (Field field : clazz.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) continue;
+                    field.setAccessible(true);
+                    builder.append(',').append(field.getName()).append('=').append(describe(field.get(value)));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+        return builder.toString();
+    }
+
+}
@@ -25,13 +25,23 @@ import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
 import com.moilioncircle.redis.replicator.util.Strings;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author Leon Chen
@@ -193,4 +203,53 @@ public class RedisRdbReplicatorTest {
         assertEquals(7, acc1.get());
     }
     
-}
\ No newline at end of file
+    @Test
+    public void testGzip() throws IOException, URISyntaxException {
+        File file = File.createTempFile("dump", ".rdb.gz");
+        file.deleteOnExit();
+        try (InputStream in = RedisRdbReplicatorTest.class.getClassLoader().getResourceAsStream("dumpV8.rdb");
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            byte[] buf = new byte[8192];
+            for (int len = in.read(buf); len != -1; len = in.read(buf)) out.write(buf, 0, len);
+        }
+        String path = file.toURI().getPath();
+        assertEquals(FileType.RDB, new RedisURI("redis://" + path).getFileType());
+        assertEquals(92499, count(new RedisReplicator("redis://" + path)));
+        assertEquals(92499, count(new RedisReplicator("redis://" + path + "?compression=gzip&readAheadBlockSize=1024")));
+        try {
+            new RedisReplicator("redis://" + path + "?compression=lz4");
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+
+        // a bad gzip header fails in the constructor and closes the file
+        File bad = File.createTempFile("bad", ".rdb.gz");
+        bad.deleteOnExit();
+        Files.write(bad.toPath(), "REDIS0009".getBytes());
+        File fds = new File("/proc/self/fd");
+        int open = fds.isDirectory() ? fds.list().length : 0;
+        for (int i = 0; i < 10; i++) {
+            try {
+                new RedisReplicator("redis://" + bad.toURI().getPath());
+                fail();
+            } catch (ZipException e) {
+            }
+        }
+        if (fds.isDirectory()) assertTrue(fds.list().length < open + 10);
+    }
+
+    private static int count(Replicator replicator) throws IOException {
+        final AtomicInteger acc = new AtomicInteger(0);
+        replicator.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof KeyValuePair<?, ?>) {
+                    acc.incrementAndGet();
+                }
+            }
+        });
+        replicator.open();
+        return acc.get();
+    }
+    
+}
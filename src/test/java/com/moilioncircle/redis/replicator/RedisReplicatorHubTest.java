@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.cmd.impl.SetCommand;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.event.PreCommandSyncEvent;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.moilioncircle.redis.replicator.FakeRedisMaster.command;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replicates several fake masters on one selector thread and one rdb worker.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class RedisReplicatorHubTest {
+
+    private static final String REPL_ID = "8de1787ba490483314a4d30f1c628bc5025eb761";
+    private static final byte[] GETACK = command("REPLCONF", "GETACK", "*");
+    private static final byte[] SET_B = command("SET", "b", "1");
+
+    @Test
+    public void testHub() throws Exception {
+        byte[] rdb = Files.readAllBytes(new File(RedisReplicatorHubTest.class.getClassLoader().getResource("dumpV7.rdb").toURI()).toPath());
+        int keys = keys();
+        char[] large = new char[100000];
+        Arrays.fill(large, 'x');
+        String value = new String(large);
+        // sized, disk-less and partial syncs
+        FakeRedisMaster[] masters = {master(rdb, false, value), master(rdb, true, value), master(null, false, value), master(rdb, true, value)};
+        List<List<String>> events = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(masters.length);
+        List<Replicator> replicators = new ArrayList<>();
+        try (RedisReplicatorHub hub = new RedisReplicatorHub(1, 1)) {
+            for (FakeRedisMaster master : masters) {
+                master.start();
+                Configuration configuration = Configuration.defaultSetting().setRetries(1).setBufferSize(64).setHeartbeatPeriod(60000);
+                if (master.rdb == null) configuration.setReplId(REPL_ID).setReplOffset(100);
+                Replicator r = hub.replicator("127.0.0.1", master.port(), configuration);
+                events.add(listen(r));
+                r.addCloseListener(new CloseListener() {
+                    @Override
+                    public void handle(Replicator replicator) {
+                        latch.countDown();
+                    }
+                });
+                replicators.add(r);
+                r.open();
+            }
+            assertTrue(latch.await(30, SECONDS));
+        }
+        for (int i = 0; i < masters.length; i++) {
+            FakeRedisMaster master = masters[i];
+            master.join();
+            List<String> list = events.get(i);
+            int k = master.rdb == null ? 0 : keys;
+            assertEquals(master.rdb == null ? Arrays.asList(REPL_ID, "100") : Arrays.asList("?", "-1"), master.psyncs.get(0));
+            assertEquals(k + 3, list.size());
+            assertEquals(Arrays.asList("pre command", "SET a " + value.length(), "SET b 1"), list.subList(k, k + 3));
+            assertEquals(REPL_ID, replicators.get(i).getConfiguration().getReplId());
+            assertEquals(100 + master.sent, replicators.get(i).getConfiguration().getReplOffset());
+            // the offset of an ack does not include the GETACK
+            List<String> acks = new ArrayList<>(master.acks);
+            assertEquals(String.valueOf(100 + master.sent - SET_B.length - GETACK.length), acks.get(acks.size() - 1));
+        }
+    }
+
+    @Test
+    public void testRetries() throws Exception {
+        int port;
+        try (ServerSocket server = new ServerSocket(0)) {
+            port = server.getLocalPort();
+        }
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        try (RedisReplicatorHub hub = new RedisReplicatorHub(1, 1)) {
+            Configuration configuration = Configuration.defaultSetting().setRetries(2).setRetryTimeInterval(10).setUseDefaultExceptionListener(false);
+            Replicator r = hub.replicator("127.0.0.1", port, configuration);
+            r.addExceptionListener(new ExceptionListener() {
+                @Override
+                public void handle(Replicator replicator, Throwable throwable, Event event) {
+                    error.set(throwable);
+                }
+            });
+            r.addCloseListener(new CloseListener() {
+                @Override
+                public void handle(Replicator replicator) {
+                    latch.countDown();
+                }
+            });
+            r.open();
+            assertTrue(latch.await(30, SECONDS));
+            assertTrue(String.valueOf(error.get()), error.get() instanceof IOException);
+            assertEquals(Status.DISCONNECTED, r.getStatus());
+        }
+    }
+
+    /*
+     * a full sync of the rdb or a partial sync, each ack is answered by a SET b
+     */
+    private static FakeRedisMaster master(byte[] rdb, boolean diskless, String value) throws IOException {
+        FakeRedisMaster master = new FakeRedisMaster() {
+            @Override
+            protected void ack(String offset, OutputStream out) throws IOException {
+                super.ack(offset, out);
+                send(out, SET_B);
+            }
+        };
+        if (rdb != null) master.psync("+FULLRESYNC " + REPL_ID + " 100\r\n\n").rdb(rdb, diskless);
+        // small packets
+        return master.connections(1).packet(997).commands(command("PING"), command("SET", "a", value), GETACK);
+    }
+
+    private static int keys() throws IOException {
+        Replicator r = new RedisReplicator(RedisReplicatorHubTest.class.getClassLoader().getResourceAsStream("dumpV7.rdb"), FileType.RDB, Configuration.defaultSetting());
+        List<String> keys = listen(r);
+        r.open();
+        return keys.size();
+    }
+
+    private static List<String> listen(Replicator r) {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof KeyValuePair) {
+                    events.add("key " + Strings.toString((byte[]) ((KeyValuePair<?, ?>) event).getKey()));
+                } else if (event instanceof PreCommandSyncEvent) {
+                    events.add("pre command");
+                } else if (event instanceof SetCommand) {
+                    SetCommand set = (SetCommand) event;
+                    events.add("SET " + Strings.toString(set.getKey()) + " " + set.getValue().length);
+                    if (Strings.toString(set.getKey()).equals("b")) {
+                        try {
+                            replicator.close();
+                        } catch (IOException e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                }
+            }
+        });
+        return events;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.cmd.impl.SetCommand;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.moilioncircle.redis.replicator.FakeRedisMaster.command;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class RedisSocketReplicatorFailoverTest {
+
+    private static final String REPL_ID = "8de1787ba490483314a4d30f1c628bc5025eb761";
+    private static final String NEW_REPL_ID = "5a1ba2e1b6f28e2dd0a0b3d56e6e0e8c00a5a5f0";
+
+    @Test
+    public void testCandidates() throws Exception {
+        Node master = new Node("master", "a", "b").dies();
+        Node replica = new Node("slave", "c", "d");
+        Node stale = new Node("slave", "x").link("connect");
+        Node hung = new Node(null);
+        replica.promotedBy(master);
+        for (Node node : Arrays.asList(master, replica, stale, hung)) node.start();
+        ServerSocket closed = new ServerSocket(0);
+        closed.close();
+
+        // an unreachable candidate and a candidate that never replies do not delay the failover
+        Configuration configuration = configuration().setFailoverCandidates("127.0.0.1:" + closed.getLocalPort() + ", 127.0.0.1:" + hung.port()
+                + ",127.0.0.1:" + stale.port() + ",127.0.0.1:" + replica.port());
+        RedisReplicator r = new RedisReplicator("127.0.0.1", master.port(), configuration);
+        List<String> keys = open(r, 4);
+
+        assertEquals(Arrays.asList("a", "b", "c", "d"), keys);
+        assertEquals(1, master.psyncs.size());
+        assertEquals(Arrays.asList(REPL_ID, "100"), master.psyncs.get(0));
+        // partial resync with the offset of the old master
+        assertEquals(1, replica.psyncs.size());
+        assertEquals(Arrays.asList(REPL_ID, String.valueOf(100 + master.sent)), replica.psyncs.get(0));
+        assertEquals(0, stale.psyncs.size());
+        assertEquals(NEW_REPL_ID, configuration.getReplId());
+        assertEquals(replica.port(), ((RedisSocketReplicator) r.getReplicator()).getPort());
+        assertTrue(replica.promoted - master.died < 2000);
+    }
+
+    @Test
+    public void testSentinel() throws Exception {
+        Node master = new Node("master", "a").dies();
+        Node replica = new Node("slave", "b");
+        replica.promotedBy(master);
+        Node sentinel = new Node(null).sentinel(master, replica);
+        for (Node node : Arrays.asList(master, replica, sentinel)) node.start();
+
+        Configuration configuration = configuration().setSentinels("127.0.0.1:" + sentinel.port()).setSentinelMaster("mymaster");
+        RedisReplicator r = new RedisReplicator("127.0.0.1", master.port(), configuration);
+        assertEquals(Arrays.asList("a", "b"), open(r, 2));
+        assertEquals(Arrays.asList(REPL_ID, String.valueOf(100 + master.sent)), replica.psyncs.get(0));
+    }
+
+    private static Configuration configuration() {
+        return Configuration.defaultSetting().setReplId(REPL_ID).setReplOffset(100).setRetries(3).setRetryTimeInterval(50)
+                .setConnectionTimeout(5000).setFailoverDelay(100);
+    }
+
+    private static List<String> open(Replicator r, final int count) throws IOException {
+        final List<String> keys = new ArrayList<>();
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (!(event instanceof SetCommand)) return;
+                keys.add(Strings.toString(((SetCommand) event).getKey()));
+                if (keys.size() == count) Replicators.closeQuietly(replicator);
+            }
+        });
+        r.open();
+        return keys;
+    }
+
+    private static class Node extends FakeRedisMaster {
+        private volatile String role;
+        private volatile String link = "connected";
+        private volatile long promoted;
+        private Node master;
+        private Node[] sentinel;
+
+        private Node(String role, String... keys) throws IOException {
+            this.role = role;
+            for (String key : keys) commands(command("SET", key, "v"));
+        }
+
+        @Override
+        public Node dies() {
+            super.dies();
+            return this;
+        }
+
+        private Node link(String link) {
+            this.link = link;
+            return this;
+        }
+
+        private Node sentinel(Node... nodes) {
+            this.sentinel = nodes;
+            return this;
+        }
+
+        private void promotedBy(Node master) {
+            this.master = master;
+        }
+
+        private String role() {
+            // promoted after the master died
+            if (master != null && master.died > 0 && promoted == 0) {
+                promoted = System.currentTimeMillis();
+                role = "master";
+            }
+            return role;
+        }
+
+        @Override
+        protected boolean reply(String name, Object[] command, OutputStream out) throws IOException {
+            if (name.equals("ROLE")) {
+                if (role == null) return true; // never replies
+                String role = role();
+                if (role.equals("master")) out.write("*3\r\n$6\r\nmaster\r\n:100\r\n*0\r\n".getBytes());
+                else out.write(("*5\r\n$5\r\nslave\r\n$9\r\n127.0.0.1\r\n:6379\r\n$" + link.length() + "\r\n" + link + "\r\n:100\r\n").getBytes());
+                return true;
+            } else if (name.equals("SENTINEL")) {
+                Node node = sentinel[0].died > 0 ? sentinel[1] : sentinel[0];
+                String port = String.valueOf(node.port());
+                out.write(("*2\r\n$9\r\n127.0.0.1\r\n$" + port.length() + "\r\n" + port + "\r\n").getBytes());
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected String psyncReply() {
+            return "+CONTINUE " + (role.equals("master") && master != null ? NEW_REPL_ID : REPL_ID) + "\r\n";
+        }
+    }
+}
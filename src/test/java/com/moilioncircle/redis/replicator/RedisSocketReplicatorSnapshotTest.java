@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.cmd.impl.SetCommand;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.moilioncircle.redis.replicator.FakeRedisMaster.command;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replicates from a fake master that answers the handshake, a full sync and a partial sync.
+ *
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class RedisSocketReplicatorSnapshotTest {
+
+    private static final String REPL_ID = "8de1787ba490483314a4d30f1c628bc5025eb761";
+
+    @Test
+    public void testSnapshot() throws Exception {
+        for (boolean diskless : new boolean[]{false, true}) {
+            byte[] rdb = Files.readAllBytes(new File(RedisSocketReplicatorSnapshotTest.class.getClassLoader().getResource("dumpV7.rdb").toURI()).toPath());
+            File cache = File.createTempFile("snapshot", ".rdb");
+            File psync = new File(cache.getPath() + ".psync");
+            assertTrue(cache.delete());
+            try (ServerSocket server = new ServerSocket(0)) {
+                // full sync, the rdb is followed by a command in the same packet
+                FakeRedisMaster master = new FakeRedisMaster(server).connections(1)
+                        .psync("+FULLRESYNC " + REPL_ID + " 100\r\n").rdb(rdb, diskless).commands(command("SET", "a", "1"));
+                master.start();
+                List<String> events = replicate(server.getLocalPort(), cache);
+                master.join();
+                assertEquals(Arrays.asList("?", "-1"), master.psyncs.get(0));
+                assertEquals("SET a", events.get(events.size() - 1));
+                int keys = events.size() - 1;
+                assertTrue(keys > 0);
+                assertArrayEquals(rdb, Files.readAllBytes(cache.toPath()));
+                assertEquals(REPL_ID + " 100\n", new String(Files.readAllBytes(psync.toPath())));
+                assertFalse(new File(cache.getPath() + ".tmp").exists());
+
+                // the cached rdb is replayed and the replicator continues from the offset of the full sync
+                master = new FakeRedisMaster(server).connections(1).commands(command("SET", "b", "2"));
+                master.start();
+                events = replicate(server.getLocalPort(), cache);
+                master.join();
+                assertEquals(Arrays.asList(REPL_ID, "100"), master.psyncs.get(0));
+                assertEquals(keys + 1, events.size());
+                assertEquals("SET b", events.get(events.size() - 1));
+            } finally {
+                cache.delete();
+                psync.delete();
+            }
+        }
+    }
+
+    private static List<String> replicate(int port, File cache) throws IOException {
+        final List<String> events = new ArrayList<>();
+        Replicator r = new RedisReplicator("127.0.0.1", port, Configuration.defaultSetting().setRetries(1).setSnapshotCache(cache.getPath()));
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof KeyValuePair) {
+                    events.add("key " + Strings.toString((byte[]) ((KeyValuePair<?, ?>) event).getKey()));
+                } else if (event instanceof SetCommand) {
+                    events.add("SET " + Strings.toString(((SetCommand) event).getKey()));
+                    try {
+                        replicator.close();
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            }
+        });
+        r.open();
+        return events;
+    }
+}
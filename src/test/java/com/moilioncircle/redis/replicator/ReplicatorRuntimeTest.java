@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator;
+
+import com.moilioncircle.redis.replicator.cmd.impl.SetCommand;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static com.moilioncircle.redis.replicator.FakeRedisMaster.command;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class ReplicatorRuntimeTest {
+
+    private static final String REPL_ID = "8de1787ba490483314a4d30f1c628bc5025eb761";
+
+    @Test
+    public void testSocket() throws Exception {
+        try (ReplicatorRuntime runtime = new ReplicatorRuntime()) {
+            List<FakeRedisMaster> masters = new ArrayList<>();
+            List<Thread> threads = new ArrayList<>();
+            final CountDownLatch latch = new CountDownLatch(3);
+            for (int i = 0; i < 3; i++) {
+                FakeRedisMaster master = master(10);
+                master.start();
+                masters.add(master);
+                Configuration configuration = Configuration.defaultSetting().setReplId(REPL_ID).setReplOffset(100)
+                        .setRetries(1).setHeartbeatPeriod(50).setAsyncCachedBytes(1024 * 1024).setRuntime(runtime);
+                final RedisReplicator r = new RedisReplicator("127.0.0.1", master.port(), configuration);
+                assertSame(runtime.getTimer(), ((RedisSocketReplicator) r.getReplicator()).executor);
+                r.addEventListener(listener(10, latch));
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Replicators.openQuietly(r);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            assertTrue(latch.await(10, SECONDS));
+            // heartbeats of the shared timer
+            for (FakeRedisMaster master : masters) assertNotNull(master.acks.poll(10, SECONDS));
+            for (Thread thread : threads) thread.join(10000);
+            assertFalse(runtime.getTimer().isShutdown());
+        }
+    }
+
+    @Test
+    public void testHub() throws Exception {
+        try (ReplicatorRuntime runtime = new ReplicatorRuntime()) {
+            List<FakeRedisMaster> masters = new ArrayList<>();
+            final CountDownLatch latch = new CountDownLatch(3), closed = new CountDownLatch(3);
+            try (RedisReplicatorHub hub = new RedisReplicatorHub(runtime, 1)) {
+                assertSame(runtime.getTimer(), hub.timer);
+                for (int i = 0; i < 3; i++) {
+                    FakeRedisMaster master = master(10);
+                    master.start();
+                    masters.add(master);
+                    Configuration configuration = Configuration.defaultSetting().setReplId(REPL_ID).setReplOffset(100)
+                            .setRetries(1).setHeartbeatPeriod(50);
+                    Replicator r = hub.replicator("127.0.0.1", master.port(), configuration);
+                    r.addEventListener(listener(10, latch));
+                    r.addCloseListener(new CloseListener() {
+                        @Override
+                        public void handle(Replicator replicator) {
+                            closed.countDown();
+                        }
+                    });
+                    r.open();
+                }
+                assertTrue(latch.await(10, SECONDS));
+                for (FakeRedisMaster master : masters) assertNotNull(master.acks.poll(10, SECONDS));
+                assertTrue(closed.await(10, SECONDS));
+            }
+            // the runtime outlives the hub
+            assertFalse(runtime.getTimer().isShutdown());
+            assertFalse(runtime.getExecutor().isShutdown());
+        }
+    }
+
+    private static FakeRedisMaster master(int count) throws IOException {
+        FakeRedisMaster master = new FakeRedisMaster().connections(1);
+        for (int i = 0; i < count; i++) master.commands(command("SET", String.valueOf(i), "v"));
+        // the last command closes the replicator, the master sends nothing else
+        return master.commands(command("PING"));
+    }
+
+    private static EventListener listener(final int count, final CountDownLatch latch) {
+        return new EventListener() {
+            private int sets;
+
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (!(event instanceof SetCommand)) return;
+                assertEquals(String.valueOf(sets), Strings.toString(((SetCommand) event).getKey()));
+                if (++sets < count) return;
+                latch.countDown();
+                try {
+                    // keep the connection until a heartbeat is sent
+                    Thread.sleep(200);
+                    replicator.close();
+                } catch (IOException | InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.cmd;
+
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class IncrementalReplyParserTest {
+
+    @Test
+    public void testFragments() throws IOException {
+        char[] large = new char[70000];
+        Arrays.fill(large, 'v');
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, "+FULLRESYNC 8de1787ba490483314a4d30f1c628bc5025eb761 100\r\n\n\n-ERR unknown\r\n:-42\r\n$-1\r\n*-1\r\n$0\r\n\r\n");
+        write(out, "*3\r\n$3\r\nSET\r\n$1\r\na\r\n$" + large.length + "\r\n" + new String(large) + "\r\n");
+        write(out, "*2\r\n*2\r\n:1\r\n$2\r\nab\r\n*0\r\n");
+        write(out, "*3\r\n$3\r\nSET\r\n$4\r\na\\nb\r\n$8\r\n\\x00\\r\\n\r\n");
+        byte[] bytes = out.toByteArray();
+
+        List<String> expected = new ArrayList<>();
+        RedisInputStream in = new RedisInputStream(new ByteArrayInputStream(bytes));
+        final ReplyParser parser = new ReplyParser(in, new RedisCodec());
+        final long[] len = new long[1];
+        while (in.total() - in.tail() + in.head() < bytes.length) {
+            Object reply = parser.parse(new OffsetHandler() {
+                @Override
+                public void handle(long n) {
+                    len[0] = n;
+                }
+            });
+            expected.add(describe(reply) + "/" + len[0]);
+        }
+        assertEquals(9, expected.size());
+
+        for (int fragment : new int[]{1, 2, 3, 17, 4096, bytes.length}) {
+            for (boolean direct : new boolean[]{false, true}) {
+                final List<String> actual = new ArrayList<>();
+                IncrementalReplyParser incremental = new IncrementalReplyParser(new RedisCodec());
+                ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bytes.length) : ByteBuffer.allocate(bytes.length);
+                int consumed = 0;
+                for (int i = 0; i < bytes.length; i += fragment) {
+                    buffer.put(bytes, i, Math.min(fragment, bytes.length - i));
+                    buffer.flip();
+                    consumed += incremental.parse(buffer, new ReplyHandler() {
+                        @Override
+                        public boolean handle(Object reply, int len) {
+                            actual.add(describe(reply) + "/" + len);
+                            return true;
+                        }
+                    });
+                    buffer.compact();
+                }
+                assertEquals(fragment + ":" + direct, expected, actual);
+                assertEquals(bytes.length, consumed);
+            }
+        }
+    }
+
+    @Test
+    public void testStop() {
+        ByteBuffer buffer = ByteBuffer.wrap(":1\r\n:2\r\n:3".getBytes());
+        final List<Object> replies = new ArrayList<>();
+        IncrementalReplyParser parser = new IncrementalReplyParser();
+        ReplyHandler handler = new ReplyHandler() {
+            @Override
+            public boolean handle(Object reply, int len) {
+                replies.add(reply);
+                return false;
+            }
+        };
+        assertEquals(4, parser.parse(buffer, handler));
+        assertEquals(4, parser.parse(buffer, handler));
+        assertEquals(0, parser.parse(buffer, handler));
+        assertEquals(Arrays.<Object>asList(1L, 2L), replies);
+        assertEquals(8, buffer.position());
+    }
+
+    private static void write(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes();
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String describe(Object reply) {
+        if (reply instanceof byte[]) return ((byte[]) reply).length > 100 ? "bytes " + ((byte[]) reply).length : Arrays.toString((byte[]) reply);
+        if (!(reply instanceof Object[])) return String.valueOf(reply);
+        StringBuilder builder = new StringBuilder("[");
+        for (Object obj : (Object[]) reply) builder.append(describe(obj)).append(',');
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.io;
+
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.FileType;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class ReadAheadInputStreamTest {
+
+    @Test
+    public void testRead() throws IOException {
+        byte[] bytes = new byte[100000];
+        new Random(0).nextBytes(bytes);
+        for (int blockSize : new int[]{1, 7, 4096, 200000}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = new ReadAheadInputStream(new java.io.ByteArrayInputStream(bytes), 2, blockSize)) {
+                byte[] buf = new byte[1000];
+                out.write(in.read());
+                for (int len = in.read(buf, 0, 333); len != -1; len = in.read(buf)) out.write(buf, 0, len);
+                assertEquals(-1, in.read());
+            }
+            assertArrayEquals(bytes, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void testException() throws IOException {
+        InputStream broken = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                if (count++ >= 100) throw new IOException("broken");
+                return 1;
+            }
+        };
+        try (InputStream in = new ReadAheadInputStream(broken, 2, 16)) {
+            int count = 0;
+            try {
+                while (in.read() != -1) count++;
+                fail();
+            } catch (IOException e) {
+                assertEquals("broken", e.getMessage());
+            }
+            assertEquals(100, count);
+        }
+    }
+
+    @Test
+    public void testLazy() throws IOException {
+        final int[] reads = new int[1];
+        final boolean[] closed = new boolean[1];
+        InputStream source = new InputStream() {
+            @Override
+            public int read() {
+                reads[0]++;
+                return -1;
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        final List<Thread> threads = new ArrayList<>();
+        InputStream in = new ReadAheadInputStream(source, 2, 16, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                threads.add(thread);
+                return thread;
+            }
+        });
+        // never read, the source is closed without a reading thread
+        in.close();
+        assertEquals(1, threads.size());
+        assertEquals(Thread.State.NEW, threads.get(0).getState());
+        assertEquals(0, reads[0]);
+        assertTrue(closed[0]);
+    }
+
+    @Test
+    public void testReplicator() throws IOException {
+        for (String file : new String[]{"dumpV7.rdb", "dump-huge-kv.rdb"}) {
+            Configuration configuration = Configuration.defaultSetting().setReadAheadDepth(3).setReadAheadBlockSize(1024);
+            assertEquals(keys(file, Configuration.defaultSetting(), FileType.RDB), keys(file, configuration, FileType.RDB));
+        }
+        Configuration configuration = Configuration.defaultSetting().setReadAheadDepth(2).setReadAheadBlockSize(100);
+        assertEquals(keys("appendonly1.aof", Configuration.defaultSetting(), FileType.AOF), keys("appendonly1.aof", configuration, FileType.AOF));
+    }
+
+    private static List<String> keys(String file, Configuration configuration, FileType type) throws IOException {
+        final List<String> keys = new ArrayList<>();
+        Replicator r = new RedisReplicator(ReadAheadInputStreamTest.class.getClassLoader().getResourceAsStream(file), type, configuration);
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof KeyValuePair) keys.add(Strings.toString(((KeyValuePair<?, ?>) event).getKey()));
+                else keys.add(event.getClass().getSimpleName());
+            }
+        });
+        r.open();
+        return keys;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.io;
+
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.FileType;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.filter.FilterRdbVisitor;
+import com.moilioncircle.redis.replicator.rdb.filter.RdbFilter;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class RedisInputStreamTest {
+
+    @Test
+    public void testSeek() throws IOException {
+        byte[] bytes = new byte[10000];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) (i % 251);
+        File file = File.createTempFile("redis-input-stream", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+
+        try (RedisInputStream in = new RedisInputStream(new FileInputStream(file), 16)) {
+            in.skip(3);
+            assertEquals(bytes[3], (byte) in.read());
+            in.skip(100);
+            assertEquals(bytes[104], (byte) in.read());
+            assertEquals(105, in.total() - in.tail() + in.head());
+            in.skip(10);
+            assertEquals(bytes[115], (byte) in.read());
+            in.skip(bytes.length - 117);
+            assertEquals(bytes[bytes.length - 1], (byte) in.read());
+            try {
+                in.skip(1);
+                fail();
+            } catch (EOFException e) {
+            }
+        }
+
+        // raw bytes are still read and notified
+        final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        try (RedisInputStream in = new RedisInputStream(new FileInputStream(file), 16)) {
+            List<RawByteListener> listeners = new ArrayList<>();
+            listeners.add(new RawByteListener() {
+                @Override
+                public void handle(byte... rawBytes) {
+                    raw.write(rawBytes, 0, rawBytes.length);
+                }
+            });
+            in.read();
+            in.setRawByteListeners(listeners);
+            in.skip(1000);
+            assertEquals(bytes[1001], (byte) in.read());
+            in.skip(1000, false);
+            assertEquals(bytes[2002], (byte) in.read());
+        }
+        byte[] expected = Arrays.copyOfRange(bytes, 1, 1002);
+        expected = Arrays.copyOf(expected, expected.length + 1);
+        expected[expected.length - 1] = bytes[2002];
+        assertArrayEquals(expected, raw.toByteArray());
+    }
+
+    @Test
+    public void testSkipRdbFile() throws IOException {
+        String file = RedisInputStreamTest.class.getClassLoader().getResource("dump-huge-kv.rdb").getFile();
+        RdbFilter filter = new RdbFilter().keys("*1*");
+        Set<String> expected = keys(new RedisReplicator(new BufferedInputStream(new FileInputStream(file)), FileType.RDB, Configuration.defaultSetting().setBufferSize(64)), filter);
+        assertFalse(expected.isEmpty());
+        Set<String> actual = keys(new RedisReplicator(new File(file), FileType.RDB, Configuration.defaultSetting().setBufferSize(64)), filter);
+        assertEquals(expected, actual);
+    }
+
+    private static Set<String> keys(Replicator r, RdbFilter filter) throws IOException {
+        final Set<String> keys = new TreeSet<>();
+        r.setRdbVisitor(new FilterRdbVisitor(r, filter));
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof KeyValuePair) keys.add(Strings.toString(((KeyValuePair<?, ?>) event).getKey()));
+            }
+        });
+        r.open();
+        return keys;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb;
+
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.FileType;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueList;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueSet;
+import com.moilioncircle.redis.replicator.util.ArenaByteArrayList;
+import com.moilioncircle.redis.replicator.util.ArenaByteArraySet;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class ArenaRdbVisitorTest {
+
+    @Test
+    public void test() throws IOException {
+        String[] resources = new String[]{"dumpV7.rdb", "intset_16.rdb", "intset_32.rdb", "intset_64.rdb",
+                "linkedlist.rdb", "regular_set.rdb", "ziplist_that_compresses_easily.rdb",
+                "ziplist_that_doesnt_compress.rdb", "ziplist_with_integers.rdb", "non_ascii_values.rdb"};
+        for (String file : resources) {
+            assertEquals(file, values(file, false), values(file, true));
+        }
+    }
+
+    private Map<String, List<String>> values(String file, final boolean arena) throws IOException {
+        final Map<String, List<String>> values = new LinkedHashMap<>();
+        Replicator r = new RedisReplicator(ArenaRdbVisitorTest.class.getClassLoader().getResourceAsStream(file), FileType.RDB, Configuration.defaultSetting());
+        if (arena) r.setRdbVisitor(new ArenaRdbVisitor(r));
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof KeyStringValueList) {
+                    KeyStringValueList kv = (KeyStringValueList) event;
+                    if (arena) assertTrue(kv.getValue() instanceof ArenaByteArrayList);
+                    List<String> list = new ArrayList<>();
+                    for (byte[] bytes : kv.getValue()) list.add(Strings.toString(bytes));
+                    values.put(Strings.toString(kv.getKey()), list);
+                } else if (event instanceof KeyStringValueSet) {
+                    KeyStringValueSet kv = (KeyStringValueSet) event;
+                    if (arena) assertTrue(kv.getValue() instanceof ArenaByteArraySet);
+                    List<String> list = new ArrayList<>();
+                    for (byte[] bytes : kv.getValue()) list.add(Strings.toString(bytes));
+                    Collections.sort(list);
+                    values.put(Strings.toString(kv.getKey()), list);
+                }
+            }
+        });
+        r.open();
+        return values;
+    }
+}
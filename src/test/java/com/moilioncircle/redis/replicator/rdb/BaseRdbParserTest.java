@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.rdb;
+
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class BaseRdbParserTest {
+
+    @Test
+    public void testListPackEntry32BitString() throws IOException {
+        // longer than the 4095 bytes of a 12 bit string
+        byte[] value = new byte[5000];
+        Arrays.fill(value, (byte) 'x');
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // |11110000| next 4 bytes as little endian string length
+        out.write(0xF0);
+        out.write(value.length & 0xFF);
+        out.write((value.length >>> 8) & 0xFF);
+        out.write((value.length >>> 16) & 0xFF);
+        out.write(value.length >>> 24);
+        out.write(value);
+        // <element-tot-len> of 5005 bytes
+        int backlen = 5 + value.length;
+        out.write(backlen >>> 7);
+        out.write((backlen & 127) | 128);
+        // 7 bit uint 5
+        out.write(5);
+        out.write(1);
+
+        RedisInputStream in = new RedisInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertArrayEquals(value, BaseRdbParser.StringHelper.listPackEntry(in));
+        assertEquals("5", Strings.toString(BaseRdbParser.StringHelper.listPackEntry(in)));
+    }
+}
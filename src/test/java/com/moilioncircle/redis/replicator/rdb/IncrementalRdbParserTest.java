@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.rdb;
+
+import com.moilioncircle.redis.replicator.AbstractReplicator;
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.RedisRdbReplicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.event.PostRdbSyncEvent;
+import com.moilioncircle.redis.replicator.event.PreRdbSyncEvent;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.rdb.datatype.AuxField;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.Module;
+import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class IncrementalRdbParserTest {
+
+    private static final String[] FILES = {"dumpV6.rdb", "dumpV7.rdb", "dumpV8.rdb", "dump-huge-kv.rdb", "dump-stream.rdb", "dump-stream1.rdb",
+            "dump-lfu.rdb", "dump-lru.rdb", "dump-module-2.rdb", "module.rdb", "multiple_databases.rdb", "keys_with_expiry.rdb",
+            "integer_keys.rdb", "easily_compressible_string_key.rdb", "uncompressible_string_keys.rdb", "non_ascii_values.rdb",
+            "parser_filters.rdb", "rdb_version_5_with_checksum.rdb", "hash_as_ziplist.rdb", "intset_16.rdb", "intset_32.rdb",
+            "intset_64.rdb", "linkedlist.rdb", "regular_set.rdb", "regular_sorted_set.rdb", "sorted_set_as_ziplist.rdb",
+            "ziplist_that_compresses_easily.rdb", "ziplist_that_doesnt_compress.rdb", "ziplist_with_integers.rdb",
+            "zipmap_that_compresses_easily.rdb", "zipmap_that_doesnt_compress.rdb", "zipmap_with_big_values.rdb",
+            "rdb_version_8_with_64b_length_and_scores.rdb", "dictionary.rdb", "empty_database.rdb", "binarydump.rdb"};
+
+    @Test
+    public void testFragments() throws Exception {
+        Random random = new Random(7);
+        for (String file : FILES) {
+            byte[] rdb = Files.readAllBytes(new File(IncrementalRdbParserTest.class.getClassLoader().getResource(file).toURI()).toPath());
+            List<String> expected = new ArrayList<>();
+            AbstractReplicator r = replicator(new ByteArrayInputStream(rdb), expected);
+            r.open();
+            assertTrue(file, expected.size() >= 2);
+            for (int fragment : new int[]{1, 7, 1024, 0}) {
+                // compacting a large record on every byte is slow
+                if (fragment < 1024 && rdb.length > 1024 * 1024) continue;
+                for (boolean direct : new boolean[]{false, true}) {
+                    assertEquals(file + ":" + fragment, expected, parse(rdb, fragment, direct, random));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testIncomplete() throws Exception {
+        byte[] rdb = Files.readAllBytes(new File(IncrementalRdbParserTest.class.getClassLoader().getResource("dumpV7.rdb").toURI()).toPath());
+        List<String> events = new ArrayList<>();
+        IncrementalRdbParser parser = new IncrementalRdbParser(replicator(new ByteArrayInputStream(new byte[0]), events));
+        ByteBuffer buffer = ByteBuffer.wrap(rdb, 0, rdb.length - 1);
+        int consumed = parser.parse(buffer);
+        // nothing is consumed until the checksum is complete
+        assertEquals(rdb.length - 9, consumed);
+        assertEquals(consumed, buffer.position());
+        assertFalse(parser.isDone());
+        assertFalse(events.contains("post"));
+        buffer = ByteBuffer.wrap(rdb, consumed, rdb.length - consumed);
+        assertEquals(9, parser.parse(buffer));
+        assertTrue(parser.isDone());
+        assertEquals("post", events.get(events.size() - 1));
+    }
+
+    /*
+     * fragment 0 for random fragments
+     */
+    private static List<String> parse(byte[] rdb, int fragment, boolean direct, Random random) throws IOException {
+        List<String> events = new ArrayList<>();
+        IncrementalRdbParser parser = new IncrementalRdbParser(replicator(new ByteArrayInputStream(new byte[0]), events));
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(rdb.length) : ByteBuffer.allocate(rdb.length);
+        long consumed = 0;
+        for (int i = 0; i < rdb.length; ) {
+            int len = Math.min(rdb.length - i, fragment > 0 ? fragment : 1 + random.nextInt(4096));
+            buffer.put(rdb, i, len);
+            i += len;
+            buffer.flip();
+            int position = buffer.position();
+            int n = parser.parse(buffer);
+            assertEquals(n, buffer.position() - position);
+            consumed += n;
+            buffer.compact();
+        }
+        assertTrue(parser.isDone());
+        assertEquals(rdb.length, consumed);
+        return events;
+    }
+
+    private static AbstractReplicator replicator(ByteArrayInputStream in, final List<String> events) {
+        AbstractReplicator r = new RedisRdbReplicator(in, Configuration.defaultSetting());
+        r.addModuleParser("hellotype", 0, new ModuleTest.HelloTypeModuleParser());
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof PreRdbSyncEvent) {
+                    events.add("pre");
+                } else if (event instanceof PostRdbSyncEvent) {
+                    events.add("post");
+                } else if (event instanceof AuxField) {
+                    events.add(((AuxField) event).getAuxKey() + "=" + ((AuxField) event).getAuxValue());
+                } else if (event instanceof KeyValuePair) {
+                    KeyValuePair<?, ?> kv = (KeyValuePair<?, ?>) event;
+                    events.add(kv.getDb().getDbNumber() + "," + kv.getValueRdbType() + "," + kv.getExpiredType() + kv.getExpiredValue() + ","
+                            + kv.getEvictType() + kv.getEvictValue() + "," + describe(kv.getKey()) + "," + describe(kv.getValue()));
+                }
+            }
+        });
+        return r;
+    }
+
+    private static String describe(Object value) {
+        if (value instanceof byte[]) return Strings.toString(value);
+        if (value instanceof ZSetEntry) return describe(((ZSetEntry) value).getElement()) + ":" + ((ZSetEntry) value).getScore();
+        if (value instanceof Module) return value.getClass().getSimpleName();
+        StringBuilder builder = new StringBuilder();
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                builder.append(describe(entry.getKey())).append('=').append(describe(entry.getValue())).append(' ');
+            }
+            return builder.toString();
+        }
+        if (value instanceof Collection) {
+            for (Object e : (Collection<?>) value) builder.append(describe(e)).append(' ');
+            return builder.toString();
+        }
+        return String.valueOf(value);
+    }
+}
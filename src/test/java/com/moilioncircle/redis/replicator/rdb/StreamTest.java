@@ -22,6 +22,8 @@ import com.moilioncircle.redis.replicator.RedisReplicator;
 import com.moilioncircle.redis.replicator.Replicator;
 import com.moilioncircle.redis.replicator.event.Event;
 import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
 import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueStream;
 import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
 import com.moilioncircle.redis.replicator.rdb.datatype.Stream;
@@ -31,6 +33,8 @@ import com.moilioncircle.redis.replicator.util.Strings;
 import junit.framework.TestCase;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -38,6 +42,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 
+import static com.moilioncircle.redis.replicator.Constants.STREAM_ITEM_FLAG_NONE;
+import static com.moilioncircle.redis.replicator.Constants.STREAM_ITEM_FLAG_SAMEFIELDS;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -239,4 +245,86 @@ public class StreamTest {
             assertNotNull(String.valueOf(entry.getValue()));
         }
     }
+
+    @Test
+    @SuppressWarnings("resource")
+    public void testSameFieldsAfterNoneFields() throws IOException {
+        ByteArrayOutputStream listPack = new ByteArrayOutputStream();
+        // master entry: count, deleted, num-fields, field-1, field-2, 0
+        entry(listPack, 2);
+        entry(listPack, 0);
+        entry(listPack, 2);
+        entry(listPack, "a");
+        entry(listPack, "b");
+        entry(listPack, 0);
+        // flags, ms, seq, num-fields, field-1, value-1, lp-count
+        entry(listPack, STREAM_ITEM_FLAG_NONE);
+        entry(listPack, 0);
+        entry(listPack, 0);
+        entry(listPack, 1);
+        entry(listPack, "c");
+        entry(listPack, "1");
+        entry(listPack, 6);
+        // flags, ms, seq, value-1, value-2, lp-count
+        entry(listPack, STREAM_ITEM_FLAG_SAMEFIELDS);
+        entry(listPack, 0);
+        entry(listPack, 1);
+        entry(listPack, "x");
+        entry(listPack, "y");
+        entry(listPack, 5);
+        listPack.write(255);
+        byte[] lp = listPack.toByteArray();
+        int total = 6 + lp.length;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        string(out, "s".getBytes());
+        out.write(1); // listpacks
+        out.write(16); // master id 1-0
+        out.write(new byte[]{0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0});
+        length(out, total);
+        out.write(new byte[]{(byte) total, (byte) (total >>> 8), 0, 0, 19, 0});
+        out.write(lp);
+        out.write(2); // length
+        out.write(1); // last id 1-1
+        out.write(1);
+        out.write(0); // groups
+
+        Replicator replicator = new RedisReplicator(new ByteArrayInputStream(new byte[0]), FileType.RDB, Configuration.defaultSetting());
+        RedisInputStream in = new RedisInputStream(new ByteArrayInputStream(out.toByteArray()));
+        KeyStringValueStream kv = (KeyStringValueStream) new DefaultRdbVisitor(replicator).applyStreamListPacks(in, 9, new ContextKeyValuePair());
+        List<Stream.Entry> entries = new ArrayList<>(kv.getValue().getEntries().values());
+        assertEquals(2, entries.size());
+        assertEquals(1, entries.get(0).getFields().size());
+        assertEquals("1", Strings.toString(entries.get(0).getFields().get("c".getBytes())));
+        assertEquals(2, entries.get(1).getFields().size());
+        assertEquals("x", Strings.toString(entries.get(1).getFields().get("a".getBytes())));
+        assertEquals("y", Strings.toString(entries.get(1).getFields().get("b".getBytes())));
+    }
+
+    private static void entry(ByteArrayOutputStream out, int value) {
+        // 7 bit uint and its <element-tot-len>
+        out.write(value);
+        out.write(1);
+    }
+
+    private static void entry(ByteArrayOutputStream out, String value) throws IOException {
+        // 6 bit string and its <element-tot-len>
+        out.write(0x80 | value.length());
+        out.write(value.getBytes());
+        out.write(1 + value.length());
+    }
+
+    private static void string(ByteArrayOutputStream out, byte[] value) throws IOException {
+        length(out, value.length);
+        out.write(value);
+    }
+
+    private static void length(ByteArrayOutputStream out, int len) {
+        if (len < 64) {
+            out.write(len);
+        } else {
+            out.write(0x40 | (len >>> 8));
+            out.write(len & 0xFF);
+        }
+    }
 }
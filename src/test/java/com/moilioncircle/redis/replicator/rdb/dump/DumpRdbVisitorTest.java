@@ -6,13 +6,21 @@ import com.moilioncircle.redis.replicator.RedisReplicator;
 import com.moilioncircle.redis.replicator.Replicator;
 import com.moilioncircle.redis.replicator.event.Event;
 import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.dump.datatype.ChunkedDumpKeyValuePair;
 import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
 import com.moilioncircle.redis.replicator.util.Strings;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class DumpRdbVisitorTest {
@@ -60,4 +68,58 @@ public class DumpRdbVisitorTest {
         assertArrayEquals(list, alist.get());
         assertArrayEquals(map, amap.get());
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void test2() throws IOException {
+        for (String file : new String[]{"dump-huge-kv.rdb", "dumpV7.rdb"}) {
+            testChunk(file);
+        }
+    }
+    
+    private void testChunk(String file) throws IOException {
+        final Map<String, byte[]> expected = new LinkedHashMap<>();
+        Replicator r = new RedisReplicator(DumpRdbVisitorTest.class.getClassLoader().getResourceAsStream(file), FileType.RDB, Configuration.defaultSetting());
+        r.setRdbVisitor(new DumpRdbVisitor(r));
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof DumpKeyValuePair) {
+                    DumpKeyValuePair dkv = (DumpKeyValuePair) event;
+                    expected.put(Strings.toString(dkv.getKey()), dkv.getValue());
+                }
+            }
+        });
+        r.open();
+        
+        final AtomicInteger chunks = new AtomicInteger(0);
+        final Map<String, ByteArrayOutputStream> actual = new LinkedHashMap<>();
+        r = new RedisReplicator(DumpRdbVisitorTest.class.getClassLoader().getResourceAsStream(file), FileType.RDB, Configuration.defaultSetting());
+        r.setRdbVisitor(new DumpRdbVisitor(r, -1, 8, 16));
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof DumpKeyValuePair) {
+                    DumpKeyValuePair dkv = (DumpKeyValuePair) event;
+                    String key = Strings.toString(dkv.getKey());
+                    if (event instanceof ChunkedDumpKeyValuePair) {
+                        ChunkedDumpKeyValuePair chunk = (ChunkedDumpKeyValuePair) event;
+                        if (chunk.getBatch() == 0) actual.put(key, new ByteArrayOutputStream());
+                        if (!chunk.isLast()) assertEquals(16, chunk.getValue().length);
+                        chunks.incrementAndGet();
+                    } else {
+                        assertTrue(dkv.getValue().length <= 16 + 10);
+                        actual.put(key, new ByteArrayOutputStream());
+                    }
+                    actual.get(key).write(dkv.getValue(), 0, dkv.getValue().length);
+                }
+            }
+        });
+        r.open();
+        
+        assertTrue(chunks.get() > 0);
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getValue(), actual.get(entry.getKey()).toByteArray());
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.filter;
+
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.FileType;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.io.RawByteListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.dump.DumpRdbVisitor;
+import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STRING;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class FilterRdbVisitorTest {
+
+    private static final String[] FILES = {"dumpV7.rdb", "dumpV8.rdb", "dump-huge-kv.rdb", "dump-stream.rdb", "dump-lfu.rdb", "dump-lru.rdb",
+            "multiple_databases.rdb", "keys_with_expiry.rdb", "integer_keys.rdb", "easily_compressible_string_key.rdb",
+            "uncompressible_string_keys.rdb", "non_ascii_values.rdb", "parser_filters.rdb", "rdb_version_5_with_checksum.rdb"};
+
+    @Test
+    public void testFilter() throws IOException {
+        RdbFilter[] filters = {
+                new RdbFilter(),
+                new RdbFilter().dbs(0),
+                new RdbFilter().dbs(2),
+                new RdbFilter().types(RDB_TYPE_STRING),
+                new RdbFilter().types(RDB_TYPE_HASH, RDB_TYPE_HASH_ZIPLIST).dbs(0),
+                new RdbFilter().keys("*a*"),
+                new RdbFilter().keys("1*", "-*", "[0-4]?"),
+                new RdbFilter().sample(3),
+                new RdbFilter().skipExpired(1671963072573L),
+                new RdbFilter().keys("*[^e]").sample(2).skipExpired()
+        };
+        for (String file : FILES) {
+            for (int i = 0; i < filters.length; i++) {
+                Map<String, String> expected = keys(file, filters[i], false, 8192);
+                assertEquals(file + ":" + i, expected, keys(file, filters[i], true, 8192));
+                // keys larger than the input buffer are filtered after decoding
+                assertEquals(file + ":" + i, expected, keys(file, filters[i], true, 64));
+            }
+        }
+    }
+
+    @Test
+    public void testRawBytes() throws IOException {
+        for (String file : FILES) {
+            Replicator r = new RedisReplicator(resource(file), FileType.RDB, Configuration.defaultSetting());
+            r.setRdbVisitor(new FilterRdbVisitor(r, new RdbFilter().keys("*1*").sample(2)));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            r.addRawByteListener(new RawByteListener() {
+                @Override
+                public void handle(byte... rawBytes) {
+                    out.write(rawBytes, 0, rawBytes.length);
+                }
+            });
+            r.open();
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            try (InputStream in = resource(file)) {
+                byte[] buf = new byte[8192];
+                for (int len = in.read(buf); len != -1; len = in.read(buf)) expected.write(buf, 0, len);
+            }
+            assertArrayEquals(file, expected.toByteArray(), out.toByteArray());
+        }
+    }
+
+    @Test
+    public void testDump() throws IOException {
+        final Map<String, Integer> keys = new TreeMap<>();
+        RdbFilter filter = new RdbFilter().keys("*[0-9]*").sample(2);
+        Replicator r = new RedisReplicator(resource("dumpV7.rdb"), FileType.RDB, Configuration.defaultSetting());
+        r.setRdbVisitor(new FilterRdbVisitor(r, new DumpRdbVisitor(r), filter));
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof DumpKeyValuePair) {
+                    DumpKeyValuePair kv = (DumpKeyValuePair) event;
+                    keys.put(Strings.toString(kv.getKey()), kv.getValueRdbType());
+                } else {
+                    assertFalse(event instanceof KeyValuePair);
+                }
+            }
+        });
+        r.open();
+        assertFalse(keys.isEmpty());
+        assertEquals(keys("dumpV7.rdb", filter, false, 8192).keySet(), keys.keySet());
+    }
+
+    @Test
+    public void testMatch() {
+        assertTrue(match("*", "foo"));
+        assertFalse(match("*", ""));
+        assertTrue(match("f*", "foo"));
+        assertTrue(match("*o", "foo"));
+        assertTrue(match("f**o", "foo"));
+        assertFalse(match("f*x", "foo"));
+        assertTrue(match("h?llo", "hello"));
+        assertFalse(match("h?llo", "hllo"));
+        assertTrue(match("h[ae]llo", "hallo"));
+        assertFalse(match("h[ae]llo", "hillo"));
+        assertTrue(match("h[^e]llo", "hallo"));
+        assertFalse(match("h[^e]llo", "hello"));
+        assertTrue(match("h[a-b]llo", "hbllo"));
+        assertTrue(match("h[b-a]llo", "hallo"));
+        assertFalse(match("h[a-b]llo", "hcllo"));
+        assertTrue(match("h[\\]]llo", "h]llo"));
+        assertTrue(match("h\\*llo", "h*llo"));
+        assertFalse(match("h\\*llo", "hello"));
+        assertTrue(match("a[bc", "ab"));
+        assertFalse(match("abc", "ab"));
+        assertFalse(match("ab", "abc"));
+        assertTrue(match("user:{*}:*", "user:{1}:name"));
+    }
+
+    private static boolean match(String pattern, String key) {
+        return RdbFilter.match(pattern.getBytes(), key.getBytes());
+    }
+
+    private static Map<String, String> keys(String file, final RdbFilter filter, final boolean pushdown, int bufferSize) throws IOException {
+        final Map<String, String> keys = new TreeMap<>();
+        Replicator r = new RedisReplicator(resource(file), FileType.RDB, Configuration.defaultSetting().setBufferSize(bufferSize));
+        if (pushdown) r.setRdbVisitor(new FilterRdbVisitor(r, filter));
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (!(event instanceof KeyValuePair)) return;
+                KeyValuePair<?, ?> kv = (KeyValuePair<?, ?>) event;
+                if (!pushdown && !filter.test(kv)) return;
+                String value = kv.getDb().getDbNumber() + "," + kv.getExpiredType() + kv.getExpiredValue() + ","
+                        + kv.getEvictType() + kv.getEvictValue() + "," + kv.getValueRdbType();
+                if (kv.getValue() instanceof byte[]) value += "," + Strings.toString((byte[]) kv.getValue());
+                keys.put(Strings.toString((byte[]) kv.getKey()), value);
+            }
+        });
+        r.open();
+        return keys;
+    }
+
+    private static InputStream resource(String file) {
+        return FilterRdbVisitorTest.class.getClassLoader().getResourceAsStream(file);
+    }
+}
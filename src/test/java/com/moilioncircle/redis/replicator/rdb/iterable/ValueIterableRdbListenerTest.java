@@ -6,14 +6,22 @@ import com.moilioncircle.redis.replicator.RedisReplicator;
 import com.moilioncircle.redis.replicator.Replicator;
 import com.moilioncircle.redis.replicator.event.Event;
 import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueStream;
+import com.moilioncircle.redis.replicator.rdb.datatype.Stream;
 import com.moilioncircle.redis.replicator.rdb.iterable.datatype.BatchedKeyStringValueHash;
 import com.moilioncircle.redis.replicator.rdb.iterable.datatype.BatchedKeyStringValueList;
 import com.moilioncircle.redis.replicator.rdb.iterable.datatype.BatchedKeyStringValueSet;
 import com.moilioncircle.redis.replicator.rdb.iterable.datatype.BatchedKeyStringValueStream;
 import com.moilioncircle.redis.replicator.rdb.iterable.datatype.BatchedKeyStringValueString;
 import com.moilioncircle.redis.replicator.rdb.iterable.datatype.BatchedKeyStringValueZSet;
+import com.moilioncircle.redis.replicator.util.Strings;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.TestCase.assertEquals;
@@ -114,6 +122,65 @@ public class ValueIterableRdbListenerTest {
         } catch (Exception e) {
             fail();
         }
-        assertEquals(5, stream.get());
+        assertEquals(9, stream.get());
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void test3() throws IOException {
+        for (String file : new String[]{"dump-stream.rdb", "dump-stream1.rdb"}) {
+            final Map<String, Stream> expected = new LinkedHashMap<>();
+            Replicator r = new RedisReplicator(ValueIterableRdbListenerTest.class.getClassLoader().getResourceAsStream(file), FileType.RDB, Configuration.defaultSetting());
+            r.addEventListener(new EventListener() {
+                @Override
+                public void onEvent(Replicator replicator, Event event) {
+                    if (event instanceof KeyStringValueStream) {
+                        KeyStringValueStream kv = (KeyStringValueStream) event;
+                        expected.put(Strings.toString(kv.getKey()), kv.getValue());
+                    }
+                }
+            });
+            r.open();
+            
+            final Map<String, NavigableMap<Stream.ID, Stream.Entry>> entries = new LinkedHashMap<>();
+            final Map<String, Stream> actual = new LinkedHashMap<>();
+            r = new RedisReplicator(ValueIterableRdbListenerTest.class.getClassLoader().getResourceAsStream(file), FileType.RDB, Configuration.defaultSetting());
+            r.setRdbVisitor(new ValueIterableRdbVisitor(r));
+            r.addEventListener(new ValueIterableEventListener(3, new EventListener() {
+                @Override
+                public void onEvent(Replicator replicator, Event event) {
+                    if (event instanceof BatchedKeyStringValueStream) {
+                        BatchedKeyStringValueStream kv = (BatchedKeyStringValueStream) event;
+                        String key = Strings.toString(kv.getKey());
+                        if (!entries.containsKey(key)) entries.put(key, new TreeMap<Stream.ID, Stream.Entry>(Stream.ID.COMPARATOR));
+                        entries.get(key).putAll(kv.getValue().getEntries());
+                        if (kv.isLast()) actual.put(key, kv.getValue());
+                    }
+                }
+            }));
+            r.open();
+            
+            assertEquals(expected.keySet(), actual.keySet());
+            for (Map.Entry<String, Stream> e : expected.entrySet()) {
+                Stream x = e.getValue();
+                Stream y = actual.get(e.getKey());
+                assertEquals(x.getLastId(), y.getLastId());
+                assertEquals(x.getLength(), y.getLength());
+                assertEquals(x.getGroups().size(), y.getGroups().size());
+                for (int i = 0; i < x.getGroups().size(); i++) {
+                    assertEquals(x.getGroups().get(i).getPendingEntries().keySet(), y.getGroups().get(i).getPendingEntries().keySet());
+                    assertEquals(x.getGroups().get(i).getConsumers().size(), y.getGroups().get(i).getConsumers().size());
+                }
+                NavigableMap<Stream.ID, Stream.Entry> ye = entries.get(e.getKey());
+                assertEquals(x.getEntries().keySet(), ye.keySet());
+                for (Stream.Entry entry : x.getEntries().values()) {
+                    assertEquals(entry.isDeleted(), ye.get(entry.getId()).isDeleted());
+                    Map<byte[], byte[]> fields = ye.get(entry.getId()).getFields();
+                    assertEquals(entry.getFields().size(), fields.size());
+                    for (Map.Entry<byte[], byte[]> field : entry.getFields().entrySet()) {
+                        assertEquals(Strings.toString(field.getValue()), Strings.toString(fields.get(field.getKey())));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.iterable;
+
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.FileType;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.DB;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueList;
+import com.moilioncircle.redis.replicator.rdb.iterable.datatype.KeyStringValueByteArrayIterator;
+import com.moilioncircle.redis.replicator.rdb.writer.RdbWriter;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class ValueIterableRdbVisitorTest {
+
+    @Test
+    public void testReadAhead() throws IOException {
+        for (String file : new String[]{"dumpV8.rdb", "dump-huge-kv.rdb"}) {
+            Map<String, List<String>> expected = lists(resource(file), 0);
+            assertFalse(file, expected.isEmpty());
+            for (int readAhead : new int[]{1, 2, 8}) {
+                assertEquals(file + ":" + readAhead, expected, lists(resource(file), readAhead));
+            }
+        }
+    }
+
+    @Test
+    public void testHugeList() throws IOException {
+        for (boolean compress : new boolean[]{true, false}) {
+            List<byte[]> list = new ArrayList<>();
+            for (int i = 0; i < 50000; i++) {
+                list.add(String.valueOf(i % 3 == 0 ? i : "element-element-element-" + i).getBytes());
+            }
+            KeyStringValueList kv = new KeyStringValueList();
+            kv.setDb(new DB(0));
+            kv.setKey("list".getBytes());
+            kv.setValue(list);
+            kv.setValueRdbType(RDB_TYPE_LIST_QUICKLIST);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (RdbWriter writer = new RdbWriter(out).setCompress(compress)) {
+                writer.writeHeader();
+                writer.writeKeyValuePair(kv);
+                writer.writeEof();
+            }
+            byte[] rdb = out.toByteArray();
+            Map<String, List<String>> expected = lists(new ByteArrayInputStream(rdb), 0);
+            assertEquals(list.size(), expected.get("list").size());
+            for (int readAhead : new int[]{1, 3, 16}) {
+                assertEquals(expected, lists(new ByteArrayInputStream(rdb), readAhead));
+            }
+        }
+    }
+
+    private static Map<String, List<String>> lists(InputStream in, int readAhead) throws IOException {
+        final Map<String, List<String>> lists = new LinkedHashMap<>();
+        Replicator r = new RedisReplicator(in, FileType.RDB, Configuration.defaultSetting());
+        r.setRdbVisitor(readAhead == 0 ? new ValueIterableRdbVisitor(r) : new ValueIterableRdbVisitor(r, readAhead, new ForkJoinPool(4)));
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (!(event instanceof KeyStringValueByteArrayIterator)) return;
+                KeyStringValueByteArrayIterator kv = (KeyStringValueByteArrayIterator) event;
+                if (kv.getValueRdbType() != RDB_TYPE_LIST_QUICKLIST) return;
+                List<String> list = new ArrayList<>();
+                Iterator<byte[]> it = kv.getValue();
+                while (it.hasNext()) list.add(Strings.toString(it.next()));
+                lists.put(Strings.toString(kv.getKey()), list);
+            }
+        });
+        r.open();
+        return lists;
+    }
+
+    private static InputStream resource(String file) {
+        return ValueIterableRdbVisitorTest.class.getClassLoader().getResourceAsStream(file);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.memory;
+
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.FileType;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.Stream;
+import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
+import com.moilioncircle.redis.replicator.rdb.memory.datatype.MemoryKeyValuePair;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class MemoryRdbVisitorTest {
+
+    private static final String[] FILES = {"dumpV6.rdb", "dumpV7.rdb", "dumpV8.rdb", "dump-huge-kv.rdb", "dump-stream.rdb", "dump-lfu.rdb",
+            "dump-lru.rdb", "multiple_databases.rdb", "keys_with_expiry.rdb", "integer_keys.rdb", "easily_compressible_string_key.rdb",
+            "uncompressible_string_keys.rdb", "non_ascii_values.rdb", "parser_filters.rdb", "rdb_version_5_with_checksum.rdb",
+            "hash_as_ziplist.rdb", "intset_16.rdb", "intset_32.rdb", "intset_64.rdb", "linkedlist.rdb", "regular_set.rdb",
+            "regular_sorted_set.rdb", "sorted_set_as_ziplist.rdb", "ziplist_that_compresses_easily.rdb", "ziplist_that_doesnt_compress.rdb",
+            "ziplist_with_integers.rdb", "zipmap_that_compresses_easily.rdb", "zipmap_that_doesnt_compress.rdb", "zipmap_with_big_values.rdb",
+            "rdb_version_8_with_64b_length_and_scores.rdb", "dictionary.rdb"};
+
+    @Test
+    public void testSize() throws IOException {
+        for (String file : FILES) {
+            Map<String, KeyValuePair<?, ?>> expected = events(file, false);
+            Map<String, KeyValuePair<?, ?>> actual = events(file, true);
+            assertEquals(file, expected.keySet(), actual.keySet());
+            for (Map.Entry<String, KeyValuePair<?, ?>> entry : actual.entrySet()) {
+                String message = file + ":" + entry.getKey();
+                KeyValuePair<?, ?> kv = expected.get(entry.getKey());
+                MemoryKeyValuePair memory = (MemoryKeyValuePair) entry.getValue();
+                assertEquals(message, kv.getValueRdbType(), memory.getValueRdbType());
+                assertEquals(message, kv.getDb().getDbNumber(), memory.getDb().getDbNumber());
+                assertEquals(message, kv.getExpiredType(), memory.getExpiredType());
+                assertEquals(message, kv.getExpiredValue(), memory.getExpiredValue());
+                assertEquals(message, kv.getEvictType(), memory.getEvictType());
+                assertEquals(message, kv.getEvictValue(), memory.getEvictValue());
+                assertNotNull(message, memory.getEncoding());
+                assertTrue(message, memory.getEncodedSize() > 0);
+                assertTrue(message, memory.getMemory() > memory.getEncodedSize() / 2);
+                // lengths of lzf compressed blobs may be unknown
+                if (file.contains("doesnt_compress") || file.startsWith("intset")) assertTrue(message, memory.getLength() >= 0);
+                if (memory.getLength() >= 0) assertEquals(message, length(kv.getValue()), memory.getLength());
+                if (memory.getLargestElement() >= 0) assertEquals(message, largest(kv.getValue()), memory.getLargestElement());
+            }
+        }
+    }
+
+    @Test
+    public void testReport() throws IOException {
+        MemoryReport report = new MemoryReport(3, 2, (byte) '_', 0L);
+        Replicator r = new RedisReplicator(MemoryRdbVisitorTest.class.getClassLoader().getResourceAsStream("dumpV7.rdb"), FileType.RDB, Configuration.defaultSetting());
+        r.setRdbVisitor(new MemoryRdbVisitor(r));
+        final Map<String, MemoryKeyValuePair> keys = new TreeMap<>();
+        r.addEventListener(report);
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof MemoryKeyValuePair) {
+                    MemoryKeyValuePair kv = (MemoryKeyValuePair) event;
+                    keys.put(Strings.toString(kv.getKey()), kv);
+                }
+            }
+        });
+        r.open();
+
+        assertEquals(keys.size(), report.getKeys());
+        long memory = 0, count = 0;
+        for (MemoryKeyValuePair kv : keys.values()) memory += kv.getMemory();
+        assertEquals(memory, report.getMemory());
+
+        List<MemoryKeyValuePair> top = report.getTop();
+        assertEquals(3, top.size());
+        for (int i = 1; i < top.size(); i++) assertTrue(top.get(i - 1).getMemory() >= top.get(i).getMemory());
+        for (MemoryKeyValuePair kv : keys.values()) {
+            if (!top.contains(kv)) assertTrue(kv.getMemory() <= top.get(2).getMemory());
+        }
+
+        for (long[] type : report.getTypes().values()) count += type[0];
+        assertEquals(keys.size(), count);
+        count = 0;
+        for (long[] encoding : report.getEncodings().values()) count += encoding[0];
+        assertEquals(keys.size(), count);
+        count = 0;
+        for (Long ttl : report.getTtls().values()) count += ttl;
+        assertEquals(keys.size(), count);
+        count = 0;
+        Map<String, long[]> prefixes = report.getPrefixes();
+        assertTrue(prefixes.size() <= 3);
+        for (long[] prefix : prefixes.values()) count += prefix[0];
+        assertEquals(keys.size(), count);
+
+        String summary = report.toString();
+        assertTrue(summary, summary.startsWith("keys " + keys.size() + " encoded "));
+        assertTrue(summary, summary.contains("\ntop db 0 type "));
+    }
+
+    @Test
+    public void testMalloc() {
+        MemoryRdbVisitor visitor = new MemoryRdbVisitor(null);
+        assertEquals(8, visitor.malloc(1));
+        assertEquals(16, visitor.malloc(9));
+        assertEquals(48, visitor.malloc(33));
+        assertEquals(128, visitor.malloc(128));
+        assertEquals(160, visitor.malloc(129));
+        assertEquals(256, visitor.malloc(255));
+        assertEquals(320, visitor.malloc(257));
+        assertEquals(4096, visitor.malloc(4096));
+        assertEquals(5120, visitor.malloc(4097));
+        assertEquals(8, visitor.sds(5));
+        assertEquals(32, visitor.sds(20));
+        assertEquals(48, visitor.sds(40));
+    }
+
+    private static Map<String, KeyValuePair<?, ?>> events(String file, boolean memory) throws IOException {
+        final Map<String, KeyValuePair<?, ?>> events = new TreeMap<>();
+        Replicator r = new RedisReplicator(MemoryRdbVisitorTest.class.getClassLoader().getResourceAsStream(file), FileType.RDB, Configuration.defaultSetting());
+        if (memory) r.setRdbVisitor(new MemoryRdbVisitor(r));
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof KeyValuePair) {
+                    KeyValuePair<?, ?> kv = (KeyValuePair<?, ?>) event;
+                    events.put(kv.getDb().getDbNumber() + ":" + Strings.toString((byte[]) kv.getKey()), kv);
+                }
+            }
+        });
+        r.open();
+        return events;
+    }
+
+    private static long length(Object value) {
+        if (value instanceof byte[]) return ((byte[]) value).length;
+        if (value instanceof Collection) return ((Collection<?>) value).size();
+        if (value instanceof Map) return ((Map<?, ?>) value).size();
+        if (value instanceof Stream) return ((Stream) value).getLength();
+        throw new AssertionError(String.valueOf(value));
+    }
+
+    private static long largest(Object value) {
+        if (value instanceof byte[]) return ((byte[]) value).length;
+        long largest = 0;
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                largest = Math.max(largest, ((byte[]) entry.getKey()).length);
+                largest = Math.max(largest, ((byte[]) entry.getValue()).length);
+            }
+            return largest;
+        }
+        for (Object e : (Collection<?>) value) {
+            byte[] bytes = e instanceof ZSetEntry ? ((ZSetEntry) e).getElement() : (byte[]) e;
+            largest = Math.max(largest, bytes.length);
+        }
+        return largest;
+    }
+}
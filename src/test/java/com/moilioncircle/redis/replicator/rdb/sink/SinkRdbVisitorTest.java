@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.sink;
+
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.FileType;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
+import com.moilioncircle.redis.replicator.rdb.dump.DumpRdbVisitor;
+import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.sink.datatype.SinkKeyValuePair;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPMAP;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STREAM_LISTPACKS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class SinkRdbVisitorTest {
+
+    private static final String[] FILES = {"dumpV6.rdb", "dumpV7.rdb", "dumpV8.rdb", "dump-huge-kv.rdb", "multiple_databases.rdb",
+            "keys_with_expiry.rdb", "integer_keys.rdb", "easily_compressible_string_key.rdb", "uncompressible_string_keys.rdb",
+            "non_ascii_values.rdb", "hash_as_ziplist.rdb", "intset_16.rdb", "intset_32.rdb", "intset_64.rdb", "linkedlist.rdb",
+            "regular_set.rdb", "regular_sorted_set.rdb", "sorted_set_as_ziplist.rdb", "ziplist_that_compresses_easily.rdb",
+            "ziplist_that_doesnt_compress.rdb", "ziplist_with_integers.rdb", "zipmap_that_compresses_easily.rdb",
+            "zipmap_that_doesnt_compress.rdb", "zipmap_with_big_values.rdb", "rdb_version_8_with_64b_length_and_scores.rdb", "dictionary.rdb"};
+
+    @Test
+    public void testSink() throws IOException {
+        for (String file : FILES) {
+            final Map<String, List<String>> expected = new TreeMap<>();
+            Replicator r = new RedisReplicator(resource(file), FileType.RDB, Configuration.defaultSetting());
+            r.addEventListener(new EventListener() {
+                @Override
+                public void onEvent(Replicator replicator, Event event) {
+                    if (!(event instanceof KeyValuePair)) return;
+                    KeyValuePair<?, ?> kv = (KeyValuePair<?, ?>) event;
+                    if (kv.getValueRdbType() == RDB_TYPE_STREAM_LISTPACKS) return;
+                    expected.put(key(kv), elements(kv));
+                }
+            });
+            r.open();
+
+            final RecordingSink sink = new RecordingSink();
+            final List<SinkKeyValuePair> events = new ArrayList<>();
+            r = new RedisReplicator(resource(file), FileType.RDB, Configuration.defaultSetting().setBufferSize(64));
+            r.setRdbVisitor(new SinkRdbVisitor(r, sink));
+            r.addEventListener(new EventListener() {
+                @Override
+                public void onEvent(Replicator replicator, Event event) {
+                    if (event instanceof SinkKeyValuePair) events.add((SinkKeyValuePair) event);
+                }
+            });
+            r.open();
+            assertFalse(file, expected.isEmpty());
+            assertEquals(file, expected, sink.values);
+            assertEquals(file, expected.size(), events.size());
+            for (SinkKeyValuePair kv : events) assertEquals(file, sink.lengths.get(key(kv)), Long.valueOf(kv.getLength()));
+        }
+    }
+
+    @Test
+    public void testDump() throws IOException {
+        for (String file : new String[]{"dumpV7.rdb", "dump-huge-kv.rdb", "dump-stream.rdb"}) {
+            final Map<String, byte[]> expected = new TreeMap<>();
+            Replicator r = new RedisReplicator(resource(file), FileType.RDB, Configuration.defaultSetting());
+            r.setRdbVisitor(new DumpRdbVisitor(r));
+            r.addEventListener(new EventListener() {
+                @Override
+                public void onEvent(Replicator replicator, Event event) {
+                    if (event instanceof DumpKeyValuePair) {
+                        DumpKeyValuePair kv = (DumpKeyValuePair) event;
+                        expected.put(key(kv), kv.getValue());
+                    }
+                }
+            });
+            r.open();
+
+            final Map<String, byte[]> actual = new TreeMap<>();
+            r = new RedisReplicator(resource(file), FileType.RDB, Configuration.defaultSetting().setBufferSize(64));
+            r.setRdbVisitor(new DumpRdbVisitor(r, -1, new ValueSink() {
+                private String key;
+                private ByteArrayOutputStream out;
+
+                @Override
+                public void begin(SinkKeyValuePair kv, long size) {
+                    assertEquals(-1, size);
+                    this.key = key(kv);
+                    this.out = new ByteArrayOutputStream();
+                }
+
+                @Override
+                public void element(long length) {
+                    throw new AssertionError();
+                }
+
+                @Override
+                public void score(double score) {
+                    throw new AssertionError();
+                }
+
+                @Override
+                public void write(ByteBuffer buffer) {
+                    while (buffer.hasRemaining()) out.write(buffer.get());
+                }
+
+                @Override
+                public void end() {
+                    actual.put(key, out.toByteArray());
+                }
+            }));
+            r.open();
+            assertFalse(file, expected.isEmpty());
+            assertEquals(file, expected.keySet(), actual.keySet());
+            for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+                assertArrayEquals(file + ":" + entry.getKey(), entry.getValue(), actual.get(entry.getKey()));
+            }
+        }
+    }
+
+    private static String key(KeyValuePair<?, ?> kv) {
+        return kv.getDb().getDbNumber() + ":" + Strings.toString((byte[]) kv.getKey()) + ":" + kv.getValueRdbType() + ":" + kv.getExpiredValue();
+    }
+
+    private static boolean ordered(int type) {
+        return type == RDB_TYPE_LIST || type == RDB_TYPE_LIST_ZIPLIST || type == RDB_TYPE_LIST_QUICKLIST;
+    }
+
+    private static boolean hash(int type) {
+        return type == RDB_TYPE_HASH || type == RDB_TYPE_HASH_ZIPLIST || type == RDB_TYPE_HASH_ZIPMAP;
+    }
+
+    private static List<String> elements(KeyValuePair<?, ?> kv) {
+        List<String> list = new ArrayList<>();
+        Object value = kv.getValue();
+        if (value instanceof byte[]) {
+            list.add(Strings.toString((byte[]) value));
+        } else if (value instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                list.add(Strings.toString((byte[]) e.getKey()) + "=" + Strings.toString((byte[]) e.getValue()));
+            }
+        } else {
+            for (Object e : (Collection<?>) value) {
+                if (e instanceof ZSetEntry) {
+                    list.add(Strings.toString(((ZSetEntry) e).getElement()) + "=" + ((ZSetEntry) e).getScore());
+                } else {
+                    list.add(Strings.toString((byte[]) e));
+                }
+            }
+        }
+        if (!ordered(kv.getValueRdbType())) Collections.sort(list);
+        return list;
+    }
+
+    private static class RecordingSink implements ValueSink {
+        private final Map<String, List<String>> values = new TreeMap<>();
+        private final Map<String, Long> lengths = new TreeMap<>();
+        private SinkKeyValuePair kv;
+        private List<String> elements;
+        private long remaining;
+        private long length;
+        private ByteArrayOutputStream out;
+
+        @Override
+        public void begin(SinkKeyValuePair kv, long size) {
+            assertTrue(kv.getValue() == null && out == null);
+            this.kv = kv;
+            this.elements = new ArrayList<>();
+            this.length = 0;
+            if (kv.getValueRdbType() == 0) {
+                this.remaining = size;
+                this.out = new ByteArrayOutputStream();
+            }
+        }
+
+        @Override
+        public void element(long length) {
+            flush();
+            this.remaining = length;
+            this.out = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void score(double score) {
+            flush();
+            int last = elements.size() - 1;
+            elements.set(last, elements.get(last) + "=" + score);
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) {
+            remaining -= buffer.remaining();
+            length += buffer.remaining();
+            while (buffer.hasRemaining()) out.write(buffer.get());
+        }
+
+        @Override
+        public void end() {
+            flush();
+            List<String> list = elements;
+            if (hash(kv.getValueRdbType())) {
+                list = new ArrayList<>();
+                for (int i = 0; i < elements.size(); i += 2) list.add(elements.get(i) + "=" + elements.get(i + 1));
+            }
+            if (!ordered(kv.getValueRdbType())) Collections.sort(list);
+            values.put(key(kv), list);
+            lengths.put(key(kv), length);
+        }
+
+        private void flush() {
+            if (out == null) return;
+            assertEquals(0, remaining);
+            elements.add(Strings.toString(out.toByteArray()));
+            out = null;
+        }
+    }
+
+    private static InputStream resource(String file) {
+        return SinkRdbVisitorTest.class.getClassLoader().getResourceAsStream(file);
+    }
+}
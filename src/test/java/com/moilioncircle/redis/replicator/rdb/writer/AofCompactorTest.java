@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.rdb.writer;
+
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.FileType;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.cmd.impl.ExistType;
+import com.moilioncircle.redis.replicator.cmd.impl.PFAddCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SetCommand;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class AofCompactorTest {
+
+    private static final File TMP = new File(System.getProperty("java.io.tmpdir"));
+
+    @Test
+    public void testCompact() throws IOException {
+        byte[] aof = aof(
+                "SELECT 0",
+                "SET a 1", "APPEND a 23", "INCRBY a 7",
+                "MSET b x c y", "DEL c",
+                "RPUSH l 1 2 3", "LPOP l", "RPOPLPUSH l l2", "RPOPLPUSH l l2",
+                "SADD s1 a b c", "SADD s2 b c d", "SINTERSTORE s3 s1 s2", "SMOVE s1 s2 a",
+                "HSET h f v", "HINCRBY h n 5",
+                "ZADD z 1 m1 2 m2", "ZINCRBY z 5 m1", "ZUNIONSTORE z2 2 z s3 WEIGHTS 2 1",
+                "RENAME b b2",
+                "SET t v", "PEXPIREAT t 1",
+                "SET e v", "PEXPIREAT e 4102444800000",
+                "SELECT 1", "SET d1 v",
+                "SELECT 2", "SET d2 v", "FLUSHDB",
+                "PING");
+        Map<String, String> expected = new TreeMap<>();
+        expected.put("0:a", "130");
+        expected.put("0:b2", "x");
+        expected.put("0:l2", "[2, 3]");
+        expected.put("0:s1", "[b, c]");
+        expected.put("0:s2", "[a, b, c, d]");
+        expected.put("0:s3", "[b, c]");
+        expected.put("0:h", "{f=v, n=5}");
+        expected.put("0:z", "[m1:6.0, m2:2.0]");
+        expected.put("0:z2", "[b:1.0, c:1.0, m1:12.0, m2:4.0]");
+        expected.put("0:e", "v@4102444800000");
+        expected.put("1:d1", "v");
+        for (int shards : new int[]{1, 3, 8}) {
+            for (long budget : new long[]{1, Long.MAX_VALUE}) {
+                assertEquals(shards + ":" + budget, expected, compact(new ByteArrayInputStream(aof), shards, budget));
+            }
+        }
+    }
+
+    @Test
+    public void testSpill() throws IOException {
+        Map<String, String> expected = compact(resource("appendonly2.aof"), 1, Long.MAX_VALUE);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, compact(resource("appendonly2.aof"), 4, 4096));
+        assertEquals(expected, compact(resource("appendonly2.aof"), 3, 1));
+    }
+
+    @Test
+    public void testSpillCompact() throws IOException {
+        byte[] big = new byte[64 * 1024];
+        Arrays.fill(big, (byte) 'a');
+        try (CompactStore store = new CompactStore(0, TMP)) {
+            store.apply(0, new SetCommand("big".getBytes(), big, null, null, ExistType.NONE), 0);
+            for (int i = 0; i < 200; i++) {
+                // a hot key is loaded and spilled again, its old region is reclaimed
+                assertArrayEquals(big, (byte[]) store.get(0, "big".getBytes()).data);
+                store.apply(0, new SetCommand("x".getBytes(), String.valueOf(i).getBytes(), null, null, ExistType.NONE), 0);
+            }
+            assertEquals(401, store.getSpilled());
+            assertTrue(String.valueOf(store.getSpillLength()), store.getSpillLength() < 4 * 1024 * 1024);
+            assertArrayEquals(big, (byte[]) store.get(0, "big".getBytes()).data);
+            assertArrayEquals("199".getBytes(), (byte[]) store.get(0, "x".getBytes()).data);
+        }
+    }
+
+    @Test
+    public void testUnsupported() throws IOException {
+        try (AofCompactor compactor = new AofCompactor(new ByteArrayOutputStream(), 2, Long.MAX_VALUE, TMP)) {
+            compactor.apply(new SetCommand("a".getBytes(), "1".getBytes(), null, null, ExistType.NONE));
+            try {
+                compactor.apply(new PFAddCommand("h".getBytes(), new byte[][]{"a".getBytes()}));
+                fail();
+            } catch (UnsupportedOperationException e) {
+                assertEquals("PFAddCommand", e.getMessage());
+            }
+        }
+    }
+
+    private static Map<String, String> compact(InputStream in, int shards, long budget) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final AofCompactor compactor = new AofCompactor(out, RdbWriter.DEFAULT_VERSION, shards, budget, TMP, 4, 8, Executors.defaultThreadFactory());
+        Replicator r = new RedisReplicator(in, FileType.AOF, Configuration.defaultSetting());
+        r.addEventListener(compactor);
+        try {
+            r.open();
+        } finally {
+            compactor.close();
+        }
+        return keys(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static Map<String, String> keys(InputStream in) throws IOException {
+        final Map<String, String> keys = new TreeMap<>();
+        Replicator r = new RedisReplicator(in, FileType.RDB, Configuration.defaultSetting());
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (!(event instanceof KeyValuePair)) return;
+                KeyValuePair<?, ?> kv = (KeyValuePair<?, ?>) event;
+                String value = toString(kv.getValue());
+                if (kv.getExpiredValue() != null) value += "@" + kv.getExpiredMs();
+                keys.put(kv.getDb().getDbNumber() + ":" + Strings.toString((byte[]) kv.getKey()), value);
+            }
+
+            private String toString(Object value) {
+                if (value instanceof byte[]) return Strings.toString((byte[]) value);
+                if (value instanceof Map) {
+                    Map<String, String> map = new TreeMap<>();
+                    for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) map.put(toString(e.getKey()), toString(e.getValue()));
+                    return map.toString();
+                }
+                List<String> list = new ArrayList<>();
+                for (Object e : (Collection<?>) value) {
+                    if (e instanceof ZSetEntry) list.add(Strings.toString(((ZSetEntry) e).getElement()) + ":" + ((ZSetEntry) e).getScore());
+                    else list.add(toString(e));
+                }
+                if (!(value instanceof List)) Collections.sort(list);
+                return list.toString();
+            }
+        });
+        r.open();
+        return keys;
+    }
+
+    private static byte[] aof(String... commands) {
+        StringBuilder builder = new StringBuilder();
+        for (String command : commands) {
+            String[] args = command.split(" ");
+            builder.append('*').append(args.length).append("\r\n");
+            for (String arg : args) builder.append('$').append(arg.length()).append("\r\n").append(arg).append("\r\n");
+        }
+        return builder.toString().getBytes();
+    }
+
+    private static InputStream resource(String file) {
+        return AofCompactorTest.class.getClassLoader().getResourceAsStream(file);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.writer;
+
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.FileType;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.AuxField;
+import com.moilioncircle.redis.replicator.rdb.datatype.DB;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.dump.DumpRdbVisitor;
+import com.moilioncircle.redis.replicator.util.CRC16;
+import com.moilioncircle.redis.replicator.util.CRC64;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class RdbSplitterTest {
+
+    @Test
+    public void testSlot() throws IOException {
+        for (String file : new String[]{"dumpV7.rdb", "dump-huge-kv.rdb", "dump-stream.rdb", "multiple_databases.rdb", "keys_with_expiry.rdb"}) {
+            final int n = 4;
+            ByteArrayOutputStream[] outs = split(file, n, RdbSplitter.slot(n), true);
+            Map<String, String> expected = keys(resource(file));
+            Map<String, String> actual = new TreeMap<>();
+            for (int i = 0; i < n; i++) {
+                byte[] rdb = outs[i].toByteArray();
+                assertArrayEquals(CRC64.longToByteArray(CRC64.crc64(rdb, 0, rdb.length - 8)), Arrays.copyOfRange(rdb, rdb.length - 8, rdb.length));
+                Map<String, String> keys = keys(new ByteArrayInputStream(rdb));
+                for (Map.Entry<String, String> entry : keys.entrySet()) {
+                    if (entry.getKey().startsWith("aux:")) {
+                        assertEquals(expected.get(entry.getKey()), entry.getValue());
+                        continue;
+                    }
+                    assertEquals(i, CRC16.slot(entry.getKey().getBytes()) * n / 16384);
+                    actual.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (Map.Entry<String, String> entry : expected.entrySet()) {
+                if (entry.getKey().startsWith("aux:")) actual.put(entry.getKey(), entry.getValue());
+            }
+            assertEquals(file, expected, actual);
+        }
+    }
+
+    @Test
+    public void testPartitioner() throws IOException {
+        final int n = 3;
+        ByteArrayOutputStream[] outs = split("dumpV7.rdb", n, new RdbSplitter.Partitioner() {
+            @Override
+            public int partition(byte[] key) {
+                return (Arrays.hashCode(key) & 0x7FFFFFFF) % n;
+            }
+        }, false);
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            for (String key : keys(new ByteArrayInputStream(outs[i].toByteArray())).keySet()) {
+                if (key.startsWith("aux:")) continue;
+                assertEquals(i, (Arrays.hashCode(key.getBytes()) & 0x7FFFFFFF) % n);
+                total++;
+            }
+        }
+        assertTrue(total > 0);
+        int expected = 0;
+        for (String key : keys(resource("dumpV7.rdb")).keySet()) if (!key.startsWith("aux:")) expected++;
+        assertEquals(expected, total);
+    }
+
+    @Test
+    public void testResizeDB() throws IOException {
+        final int n = 4;
+        ByteArrayOutputStream[] outs = split("dumpV7.rdb", n, RdbSplitter.slot(n), false);
+        DB expected = db(resource("dumpV7.rdb"));
+        assertTrue(expected.getDbsize() > n);
+        for (int i = 0; i < n; i++) {
+            // every shard preallocates for its part of the db only
+            DB db = db(new ByteArrayInputStream(outs[i].toByteArray()));
+            assertEquals((expected.getDbsize() + n - 1) / n, (long) db.getDbsize());
+            assertEquals((expected.getExpires() + n - 1) / n, (long) db.getExpires());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testEofError() throws IOException {
+        // the header is buffered, the first write to the output is in writeEof after END was taken
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken");
+            }
+        };
+        RdbSplitter splitter = new RdbSplitter(new OutputStream[]{out}, RdbSplitter.slot(1));
+        try {
+            splitter.close();
+            fail();
+        } catch (IOException e) {
+            assertEquals("broken", e.getMessage());
+        }
+    }
+
+    private static DB db(InputStream in) throws IOException {
+        final DB[] db = new DB[1];
+        Replicator r = new RedisReplicator(in, FileType.RDB, Configuration.defaultSetting());
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof KeyValuePair && db[0] == null) db[0] = ((KeyValuePair<?, ?>) event).getDb();
+            }
+        });
+        r.open();
+        return db[0];
+    }
+
+    private static ByteArrayOutputStream[] split(String file, int n, RdbSplitter.Partitioner partitioner, boolean dump) throws IOException {
+        ByteArrayOutputStream[] outs = new ByteArrayOutputStream[n];
+        for (int i = 0; i < n; i++) outs[i] = new ByteArrayOutputStream();
+        Replicator r = new RedisReplicator(resource(file), FileType.RDB, Configuration.defaultSetting());
+        if (dump) r.setRdbVisitor(new DumpRdbVisitor(r, -1, 8, 32));
+        RdbSplitter splitter = new RdbSplitter(Arrays.<OutputStream>copyOf(outs, n), partitioner);
+        r.addEventListener(splitter);
+        r.open();
+        splitter.close();
+        return outs;
+    }
+
+    private static Map<String, String> keys(InputStream in) throws IOException {
+        final Map<String, String> keys = new TreeMap<>();
+        Replicator r = new RedisReplicator(in, FileType.RDB, Configuration.defaultSetting());
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof AuxField) {
+                    AuxField aux = (AuxField) event;
+                    keys.put("aux:" + aux.getAuxKey(), aux.getAuxValue());
+                } else if (event instanceof KeyValuePair) {
+                    KeyValuePair<?, ?> kv = (KeyValuePair<?, ?>) event;
+                    String value = kv.getDb().getDbNumber() + "," + kv.getExpiredType() + kv.getExpiredValue() + "," + kv.getValueRdbType();
+                    if (kv.getValue() instanceof byte[]) value += "," + Strings.toString((byte[]) kv.getValue());
+                    keys.put(Strings.toString((byte[]) kv.getKey()), value);
+                }
+            }
+        });
+        r.open();
+        return keys;
+    }
+
+    private static InputStream resource(String file) {
+        return RdbSplitterTest.class.getClassLoader().getResourceAsStream(file);
+    }
+}
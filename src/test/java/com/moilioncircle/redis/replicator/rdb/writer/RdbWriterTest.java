@@ -0,0 +1,281 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.rdb.writer;
+
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.FileType;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.AuxField;
+import com.moilioncircle.redis.replicator.rdb.datatype.DB;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueByteArray;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueHash;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueList;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueSet;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueStream;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueString;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueZSet;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.Stream;
+import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
+import com.moilioncircle.redis.replicator.rdb.dump.DumpRdbVisitor;
+import com.moilioncircle.redis.replicator.util.ByteArray;
+import com.moilioncircle.redis.replicator.util.ByteArrayMap;
+import com.moilioncircle.redis.replicator.util.ByteArraySet;
+import com.moilioncircle.redis.replicator.util.CRC64;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class RdbWriterTest {
+
+    private static final String[] RESOURCES = new String[]{"dumpV6.rdb", "dumpV7.rdb", "dumpV8.rdb", "dump-huge-kv.rdb",
+            "dump-stream.rdb", "dump-stream1.rdb", "dump-lru.rdb", "dump-lfu.rdb", "multiple_databases.rdb",
+            "keys_with_expiry.rdb", "intset_16.rdb", "intset_32.rdb", "intset_64.rdb", "linkedlist.rdb",
+            "regular_set.rdb", "regular_sorted_set.rdb", "sorted_set_as_ziplist.rdb", "hash_as_ziplist.rdb",
+            "zipmap_with_big_values.rdb", "easily_compressible_string_key.rdb", "integer_keys.rdb",
+            "non_ascii_values.rdb", "ziplist_with_integers.rdb", "rdb_version_8_with_64b_length_and_scores.rdb"};
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (String file : RESOURCES) {
+            List<Object> events = parse(resource(file), false);
+            for (boolean compress : new boolean[]{true, false}) {
+                byte[] rdb = write(events, compress);
+                assertCRC(rdb);
+                assertEquals(file, describe(events), describe(parse(new ByteArrayInputStream(rdb), false)));
+            }
+        }
+    }
+
+    @Test
+    public void testDump() throws IOException {
+        for (String file : new String[]{"dumpV7.rdb", "dump-huge-kv.rdb", "dump-stream.rdb", "dump-lfu.rdb"}) {
+            List<Object> expected = parse(resource(file), false);
+            byte[] rdb = write(parse(resource(file), true), true);
+            assertCRC(rdb);
+            assertEquals(file, describe(expected), describe(parse(new ByteArrayInputStream(rdb), false)));
+        }
+    }
+
+    @Test
+    public void testEncoding() throws IOException {
+        List<Object> events = new ArrayList<>();
+        events.add(new AuxField("redis-ver", "5.0.0"));
+
+        List<byte[]> list = new ArrayList<>();
+        for (long v : new long[]{0, 12, 13, -1, 127, -128, 128, 32767, -32768, 32768, 8388607, -8388608, 8388608,
+                Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            list.add(String.valueOf(v).getBytes());
+        }
+        for (String s : new String[]{"", "-0", "01", "+1", "1 ", "9223372036854775808", "-9223372036854775809"}) {
+            list.add(s.getBytes());
+        }
+        for (int i = 0; i < 5000; i++) list.add(("element-" + i).getBytes());
+        list.add(bytes(20000, 'x'));
+        events.add(kv(new KeyStringValueList(), 0, "list", list));
+
+        Set<byte[]> intset = new ByteArraySet();
+        for (long v : new long[]{5, -70000, 3, Long.MAX_VALUE}) intset.add(String.valueOf(v).getBytes());
+        events.add(kv(new KeyStringValueSet(), 0, "intset", intset));
+
+        Set<ZSetEntry> zset = new LinkedHashSet<>();
+        zset.add(new ZSetEntry("b".getBytes(), 1.5d));
+        zset.add(new ZSetEntry("a".getBytes(), -3d));
+        zset.add(new ZSetEntry("c".getBytes(), 1e20d));
+        events.add(kv(new KeyStringValueZSet(), 1, "zset", zset));
+        Set<ZSetEntry> inf = new LinkedHashSet<>(zset);
+        inf.add(new ZSetEntry("d".getBytes(), Double.POSITIVE_INFINITY));
+        events.add(kv(new KeyStringValueZSet(), 1, "inf", inf));
+
+        events.add(kv(new KeyStringValueString(), 2, "string", bytes(300, 'y')));
+        events.add(kv(new KeyStringValueString(), 2, "int", "-2147483648".getBytes()));
+
+        Map<byte[], byte[]> hash = new ByteArrayMap();
+        hash.put("f".getBytes(), bytes(100, 'z'));
+        events.add(kv(new KeyStringValueHash(), 2, "hash", hash));
+
+        TreeMap<Stream.ID, Stream.Entry> entries = new TreeMap<>(Stream.ID.COMPARATOR);
+        for (int i = 0; i < 250; i++) {
+            Stream.ID id = new Stream.ID(1000L + i / 3, i % 3);
+            Map<byte[], byte[]> fields = new ByteArrayMap();
+            fields.put("name".getBytes(), ("v" + i).getBytes());
+            if (i % 7 == 0) fields.put("big".getBytes(), bytes(5000, 'w'));
+            entries.put(id, new Stream.Entry(id, i % 11 == 0, fields));
+        }
+        Stream stream = new Stream(entries.lastKey(), entries, 227, new ArrayList<Stream.Group>());
+        events.add(kv(new KeyStringValueStream(), 3, "stream", stream));
+
+        byte[] rdb = write(events, true);
+        assertCRC(rdb);
+        List<Object> actual = parse(new ByteArrayInputStream(rdb), false);
+        assertEquals(describe(events), describe(actual));
+    }
+
+    @Test
+    public void testByteArrayLength() throws IOException {
+        // a value over 1mb is written in chunks that bypass the block buffer
+        ByteArray value = new ByteArray(bytes(3 * 1024 * 1024 + 7, 'b'));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (RdbWriter writer = new RdbWriter(out)) {
+            writer.writeHeader();
+            writer.writeKeyValuePair(kv(new KeyStringValueByteArray(), 0, "big", value));
+            writer.writeKeyValuePair(kv(new KeyStringValueString(), 0, "small", "v".getBytes()));
+            writer.flush();
+            assertEquals(out.size(), writer.length());
+        }
+    }
+
+    private static List<Object> parse(InputStream in, boolean dump) throws IOException {
+        final List<Object> events = new ArrayList<>();
+        Replicator r = new RedisReplicator(in, FileType.RDB, Configuration.defaultSetting());
+        if (dump) r.setRdbVisitor(new DumpRdbVisitor(r));
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof KeyValuePair || event instanceof AuxField) events.add(event);
+            }
+        });
+        r.open();
+        return events;
+    }
+
+    private static byte[] write(List<Object> events, boolean compress) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (RdbWriter writer = new RdbWriter(out).setCompress(compress)) {
+            writer.writeHeader();
+            for (Object event : events) {
+                if (event instanceof AuxField) writer.writeAux((AuxField) event);
+                else writer.writeKeyValuePair((KeyValuePair<?, ?>) event);
+            }
+            writer.writeEof();
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertCRC(byte[] rdb) {
+        byte[] crc = CRC64.longToByteArray(CRC64.crc64(rdb, 0, rdb.length - 8));
+        assertArrayEquals(crc, Arrays.copyOfRange(rdb, rdb.length - 8, rdb.length));
+    }
+
+    private static InputStream resource(String file) {
+        return RdbWriterTest.class.getClassLoader().getResourceAsStream(file);
+    }
+
+    private static <V> KeyValuePair<byte[], V> kv(KeyValuePair<byte[], V> kv, long db, String key, V value) {
+        kv.setDb(new DB(db));
+        kv.setKey(key.getBytes());
+        kv.setValue(value);
+        return kv;
+    }
+
+    private static byte[] bytes(int len, char c) {
+        byte[] bytes = new byte[len];
+        Arrays.fill(bytes, (byte) c);
+        return bytes;
+    }
+
+    private static List<String> describe(List<Object> events) {
+        List<String> list = new ArrayList<>();
+        for (Object event : events) {
+            if (event instanceof AuxField) {
+                list.add(event.toString());
+                continue;
+            }
+            KeyValuePair<?, ?> kv = (KeyValuePair<?, ?>) event;
+            String prefix = "db=" + (kv.getDb() == null ? null : kv.getDb().getDbNumber()) + ", expired=" + kv.getExpiredType() + ":" + kv.getExpiredValue()
+                    + ", evict=" + kv.getEvictType() + ":" + kv.getEvictValue() + ", key=" + str((byte[]) kv.getKey()) + ", value=";
+            list.add(prefix + describe(kv));
+        }
+        return list;
+    }
+
+    private static String describe(KeyValuePair<?, ?> kv) {
+        if (kv instanceof KeyStringValueString) {
+            return str(((KeyStringValueString) kv).getValue());
+        } else if (kv instanceof KeyStringValueList) {
+            List<String> list = new ArrayList<>();
+            for (byte[] e : ((KeyStringValueList) kv).getValue()) list.add(str(e));
+            return list.toString();
+        } else if (kv instanceof KeyStringValueSet) {
+            Set<String> set = new TreeSet<>();
+            for (byte[] e : ((KeyStringValueSet) kv).getValue()) set.add(str(e));
+            return set.toString();
+        } else if (kv instanceof KeyStringValueZSet) {
+            Map<String, Double> zset = new TreeMap<>();
+            for (ZSetEntry e : ((KeyStringValueZSet) kv).getValue()) zset.put(str(e.getElement()), e.getScore());
+            return zset.toString();
+        } else if (kv instanceof KeyStringValueHash) {
+            return map(((KeyStringValueHash) kv).getValue()).toString();
+        } else if (kv instanceof KeyStringValueStream) {
+            Stream stream = ((KeyStringValueStream) kv).getValue();
+            StringBuilder sb = new StringBuilder();
+            sb.append(stream.getLastId()).append(',').append(stream.getLength()).append(',');
+            for (Stream.Entry e : stream.getEntries().values()) {
+                sb.append(e.getId()).append(e.isDeleted()).append(map(e.getFields())).append(',');
+            }
+            for (Stream.Group g : stream.getGroups()) {
+                sb.append(str(g.getName())).append(g.getLastId());
+                for (Stream.Nack n : g.getPendingEntries().values()) {
+                    sb.append(n.getId()).append(n.getDeliveryTime()).append(n.getDeliveryCount()).append(str(n.getConsumer().getName()));
+                }
+                for (Stream.Consumer c : g.getConsumers()) {
+                    sb.append(str(c.getName())).append(c.getSeenTime()).append(c.getPendingEntries().keySet());
+                }
+            }
+            return sb.toString();
+        }
+        assertFalse(kv.getClass().getName(), true);
+        return null;
+    }
+
+    private static Map<String, String> map(Map<byte[], byte[]> map) {
+        Map<String, String> r = new LinkedHashMap<>();
+        for (Map.Entry<byte[], byte[]> e : map.entrySet()) r.put(str(e.getKey()), str(e.getValue()));
+        assertTrue(r.size() == map.size());
+        return r;
+    }
+
+    private static String str(byte[] bytes) {
+        return new String(bytes, ISO_8859_1);
+    }
+}
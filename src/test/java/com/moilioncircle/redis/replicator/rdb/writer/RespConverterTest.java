@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.rdb.writer;
+
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.FileType;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.cmd.Command;
+import com.moilioncircle.redis.replicator.cmd.CommandName;
+import com.moilioncircle.redis.replicator.cmd.CommandParser;
+import com.moilioncircle.redis.replicator.cmd.ReplyParser;
+import com.moilioncircle.redis.replicator.cmd.impl.XAddCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.XGroupCreateCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.XSetIdCommand;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.Stream;
+import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
+import com.moilioncircle.redis.replicator.rdb.iterable.ValueIterableEventListener;
+import com.moilioncircle.redis.replicator.rdb.iterable.ValueIterableRdbVisitor;
+import com.moilioncircle.redis.replicator.util.Strings;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class RespConverterTest {
+
+    private static final String[] FILES = {"dumpV6.rdb", "dumpV7.rdb", "dump-huge-kv.rdb", "multiple_databases.rdb",
+            "keys_with_expiry.rdb", "integer_keys.rdb", "easily_compressible_string_key.rdb", "non_ascii_values.rdb",
+            "hash_as_ziplist.rdb", "intset_64.rdb", "linkedlist.rdb", "regular_set.rdb", "regular_sorted_set.rdb",
+            "sorted_set_as_ziplist.rdb", "ziplist_with_integers.rdb", "zipmap_with_big_values.rdb",
+            "rdb_version_8_with_64b_length_and_scores.rdb"};
+
+    @Test
+    public void testConvert() throws IOException {
+        for (String file : FILES) {
+            Map<String, String> expected = keys(resource(file), System.currentTimeMillis());
+            for (int mode = 0; mode < 3; mode++) {
+                assertEquals(file + ":" + mode, expected, replay(convert(file, mode, 0, 64, 1024 * 1024)));
+                assertEquals(file + ":" + mode, expected, replay(convert(file, mode, 2, 3, 64)));
+            }
+        }
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        final List<Stream> streams = new ArrayList<>();
+        Replicator r = new RedisReplicator(resource("dump-stream.rdb"), FileType.RDB, Configuration.defaultSetting());
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof KeyValuePair && ((KeyValuePair<?, ?>) event).getValue() instanceof Stream) {
+                    streams.add((Stream) ((KeyValuePair<?, ?>) event).getValue());
+                }
+            }
+        });
+        r.open();
+        long entries = 0, groups = 0;
+        for (Stream stream : streams) {
+            for (Stream.Entry entry : stream.getEntries().values()) if (!entry.isDeleted()) entries++;
+            if (stream.getGroups() != null) groups += stream.getGroups().size();
+        }
+        assertFalse(streams.isEmpty());
+        for (int mode = 0; mode < 3; mode++) {
+            final long[] counts = new long[3];
+            r = new RedisReplicator(new ByteArrayInputStream(convert("dump-stream.rdb", mode, 2, 2, 64)), FileType.AOF, Configuration.defaultSetting());
+            r.addEventListener(new EventListener() {
+                @Override
+                public void onEvent(Replicator replicator, Event event) {
+                    if (event instanceof XAddCommand && ((XAddCommand) event).getMaxLen() == null) counts[0]++;
+                    else if (event instanceof XSetIdCommand) counts[1]++;
+                    else if (event instanceof XGroupCreateCommand) counts[2]++;
+                }
+            });
+            r.open();
+            assertEquals(entries, counts[0]);
+            assertEquals(streams.size(), counts[1]);
+            assertEquals(groups, counts[2]);
+        }
+    }
+
+    @Test
+    public void testScore() {
+        assertEquals("inf", Strings.toString(RespConverter.score(Double.POSITIVE_INFINITY)));
+        assertEquals("-inf", Strings.toString(RespConverter.score(Double.NEGATIVE_INFINITY)));
+        assertEquals("3", Strings.toString(RespConverter.score(3)));
+        assertEquals("-1.5", Strings.toString(RespConverter.score(-1.5)));
+        assertEquals(1.0E20, Double.parseDouble(Strings.toString(RespConverter.score(1.0E20))), 0);
+    }
+
+    /*
+     * mode 0: DefaultRdbVisitor, 1: ValueIterableRdbVisitor, 2: batches of ValueIterableEventListener
+     */
+    private static byte[] convert(String file, int mode, int threads, int items, int bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RespConverter converter = new RespConverter(out, threads, items, bytes, Executors.defaultThreadFactory());
+        Replicator r = new RedisReplicator(resource(file), FileType.RDB, Configuration.defaultSetting());
+        if (mode > 0) r.setRdbVisitor(new ValueIterableRdbVisitor(r));
+        r.addEventListener(mode == 2 ? new ValueIterableEventListener(2, converter) : converter);
+        r.open();
+        converter.close();
+        return out.toByteArray();
+    }
+
+    /*
+     * without RedisCodec, the aof replicator unescapes '\\' in values
+     */
+    private static Map<String, String> replay(byte[] aof) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AofCompactor compactor = new AofCompactor(out, 1, Long.MAX_VALUE, new File(System.getProperty("java.io.tmpdir")));
+        Replicator r = new RedisReplicator(new ByteArrayInputStream(aof), FileType.AOF, Configuration.defaultSetting());
+        RedisInputStream in = new RedisInputStream(new ByteArrayInputStream(aof));
+        ReplyParser parser = new ReplyParser(in);
+        while (true) {
+            Object[] raw;
+            try {
+                raw = (Object[]) parser.parse();
+            } catch (EOFException e) {
+                break;
+            }
+            CommandParser<? extends Command> p = r.getCommandParser(CommandName.name(Strings.toString(raw[0])));
+            compactor.apply(p.parse(raw));
+        }
+        compactor.close();
+        return keys(new ByteArrayInputStream(out.toByteArray()), 0);
+    }
+
+    private static Map<String, String> keys(InputStream in, final long now) throws IOException {
+        final Map<String, String> keys = new TreeMap<>();
+        Replicator r = new RedisReplicator(in, FileType.RDB, Configuration.defaultSetting());
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (!(event instanceof KeyValuePair)) return;
+                KeyValuePair<?, ?> kv = (KeyValuePair<?, ?>) event;
+                if (kv.getExpiredMs() != null && kv.getExpiredMs() < now) return;
+                String value = toString(kv.getValue());
+                if (kv.getExpiredValue() != null) value += "@" + kv.getExpiredMs();
+                keys.put(kv.getDb().getDbNumber() + ":" + Strings.toString((byte[]) kv.getKey()), value);
+            }
+
+            private String toString(Object value) {
+                if (value instanceof byte[]) return Strings.toString((byte[]) value);
+                if (value instanceof Map) {
+                    Map<String, String> map = new TreeMap<>();
+                    for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) map.put(toString(e.getKey()), toString(e.getValue()));
+                    return map.toString();
+                }
+                List<String> list = new ArrayList<>();
+                for (Object e : (Collection<?>) value) {
+                    if (e instanceof ZSetEntry) list.add(Strings.toString(((ZSetEntry) e).getElement()) + ":" + ((ZSetEntry) e).getScore());
+                    else list.add(toString(e));
+                }
+                if (!(value instanceof List)) Collections.sort(list);
+                return list.toString();
+            }
+        });
+        r.open();
+        return keys;
+    }
+
+    private static InputStream resource(String file) {
+        return RespConverterTest.class.getClassLoader().getResourceAsStream(file);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class ArenaByteArrayListTest {
+
+    @Test
+    public void testList() throws IOException {
+        ArenaByteArrayList list = new ArenaByteArrayList(0, 8);
+        List<byte[]> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] bytes = String.valueOf(i * 997).getBytes();
+            list.add(bytes);
+            expected.add(bytes);
+        }
+        byte[] big = new byte[32];
+        Arrays.fill(big, (byte) 'x');
+        list.add(new ByteArrayInputStream(big), big.length);
+        expected.add(big);
+        list.add(null);
+        expected.add(null);
+
+        assertEquals(expected.size(), list.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), list.get(i));
+        }
+        assertNull(list.buffer(list.size() - 1));
+        assertEquals(-1, list.length(list.size() - 1));
+        assertEquals(ByteBuffer.wrap(big), list.buffer(100));
+        assertEquals(100, list.indexOf(big));
+        assertEquals(101, list.indexOf(null));
+        assertTrue(list.contains("997".getBytes()));
+
+        list.remove(0);
+        expected.remove(0);
+        list.add(0, "first".getBytes());
+        expected.add(0, "first".getBytes());
+        list.set(1, "second".getBytes());
+        expected.set(1, "second".getBytes());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), list.get(i));
+            assertEquals(Arrays.hashCode(expected.get(i)), list.elementHashCode(i));
+        }
+        assertEquals(list, new ArenaByteArrayList(expected));
+        assertEquals(new ArenaByteArrayList(expected).hashCode(), list.hashCode());
+
+        list.clear();
+        assertEquals(0, list.size());
+        list.add("a".getBytes());
+        assertArrayEquals("a".getBytes(), list.get(0));
+    }
+
+    @Test
+    public void testSet() throws IOException {
+        ArenaByteArraySet set = new ArenaByteArraySet(0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(set.add(String.valueOf(i).getBytes()));
+        }
+        assertFalse(set.add("10".getBytes()));
+        assertFalse(set.add(new ByteArrayInputStream("999".getBytes()), 3));
+        assertTrue(set.add(new ByteArrayInputStream("1000".getBytes()), 4));
+        assertTrue(set.add(null));
+        assertFalse(set.add(null));
+        assertEquals(1002, set.size());
+        assertTrue(set.contains("1000".getBytes()));
+        assertTrue(set.contains(null));
+        assertFalse(set.contains("1001".getBytes()));
+
+        assertTrue(set.remove("0".getBytes()));
+        assertFalse(set.remove("0".getBytes()));
+        assertEquals(1001, set.size());
+        assertTrue(set.contains("500".getBytes()));
+
+        Iterator<byte[]> it = set.iterator();
+        assertArrayEquals("1".getBytes(), it.next());
+        it.remove();
+        assertFalse(set.contains("1".getBytes()));
+        assertArrayEquals("2".getBytes(), it.next());
+        assertEquals(1000, set.size());
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.replicator.util;
+
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.FileType;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueByteArray;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueString;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.writer.RdbWriter;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STRING;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class ByteArrayFactoryTest {
+
+    private static final String[] FILES = {"dumpV7.rdb", "easily_compressible_string_key.rdb",
+            "ziplist_that_compresses_easily.rdb", "zipmap_that_compresses_easily.rdb", "dictionary.rdb", "non_ascii_values.rdb"};
+
+    @Test
+    public void testBackends() throws IOException {
+        ByteArrayFactory[] factories = {ByteArrayFactory.HEAP, new DirectByteArrayFactory(0), new MappedByteArrayFactory(null, 0)};
+        byte[] expected = new byte[100000];
+        new Random(0).nextBytes(expected);
+        for (ByteArrayFactory factory : factories) {
+            ByteArray bytes = factory.allocate(expected.length);
+            assertEquals(expected.length, bytes.length());
+            for (int i = 0; i < 100; i++) bytes.set(i, expected[i]);
+            bytes.set(100, expected, 100, expected.length - 100);
+            for (int i = 0; i < expected.length; i += 997) assertEquals(expected[i], bytes.get(i));
+            byte[] actual = new byte[expected.length];
+            bytes.get(0, actual, 0, actual.length);
+            assertArrayEquals(expected, actual);
+            assertArrayEquals(expected, bytes.first());
+
+            // copy between every pair of backends
+            for (ByteArrayFactory other : factories) {
+                ByteArray copy = other.allocate(expected.length - 10);
+                ByteArray.arraycopy(bytes, 10, copy, 0, copy.length());
+                assertArrayEquals(Arrays.copyOfRange(expected, 10, expected.length), copy.first());
+                copy.release();
+            }
+            bytes.release();
+        }
+    }
+
+    @Test
+    public void testLzf() {
+        byte[] expected = new byte[200000];
+        for (int i = 0; i < expected.length; i++) expected[i] = (byte) ("abcdefg".charAt(i % 7) + i / 5000);
+        byte[] compressed = new byte[expected.length];
+        int clen = Lzf.encode(expected, 0, expected.length, compressed, 0, compressed.length, new int[Lzf.HASH_SIZE]);
+        assertTrue(clen > 0 && clen < expected.length);
+        ByteArray in = new DirectByteArrayFactory(0).allocate(clen);
+        in.set(0, compressed, 0, clen);
+        for (ByteArrayFactory factory : new ByteArrayFactory[]{new DirectByteArrayFactory(0), new MappedByteArrayFactory(null, 0)}) {
+            ByteArray out = Lzf.decode(in, expected.length, factory);
+            assertTrue(out instanceof DirectByteArray);
+            assertArrayEquals(expected, out.first());
+            out.release();
+        }
+        in.release();
+    }
+
+    @Test
+    public void testReplicator() throws IOException {
+        for (String file : FILES) {
+            byte[] expected = rewrite(file, ByteArrayFactory.HEAP);
+            assertArrayEquals(file, expected, rewrite(file, new DirectByteArrayFactory(64)));
+            assertArrayEquals(file, expected, rewrite(file, new MappedByteArrayFactory(null, 1024)));
+        }
+    }
+
+    @Test
+    public void testHugeString() throws IOException {
+        // a value of more than one segment is never copied to heap
+        final long length = (1L << 30) + 100000;
+        final long[] read = new long[1];
+        Configuration configuration = Configuration.defaultSetting().setByteArrayFactory(new MappedByteArrayFactory(null, 1024 * 1024));
+        Replicator r = new RedisReplicator(new HugeStringInputStream(length), FileType.RDB, configuration);
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (!(event instanceof KeyValuePair)) return;
+                assertTrue(event instanceof KeyStringValueByteArray);
+                ByteArray value = ((KeyStringValueByteArray) event).getValue();
+                assertEquals(length, value.length());
+                byte[] buf = new byte[1024 * 1024];
+                for (long off = 0; off < length; off += buf.length) {
+                    int len = (int) Math.min(buf.length, length - off);
+                    value.get(off, buf, 0, len);
+                    for (int i = 0; i < len; i++) assertEquals(HugeStringInputStream.value(off + i), buf[i]);
+                }
+                read[0] = value.length();
+                value.release();
+            }
+        });
+        r.open();
+        assertEquals(length, read[0]);
+    }
+
+    @Test
+    public void testWriteByteArray() throws IOException {
+        byte[] expected = new byte[3 * 1024 * 1024 + 7];
+        new Random(1).nextBytes(expected);
+        KeyStringValueByteArray kv = new KeyStringValueByteArray();
+        kv.setKey("big".getBytes());
+        kv.setValueRdbType(RDB_TYPE_STRING);
+        kv.setValue(new DirectByteArrayFactory(0).allocate(expected.length));
+        kv.getValue().set(0, expected, 0, expected.length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RdbWriter writer = new RdbWriter(out);
+        writer.writeHeader();
+        writer.writeKeyValuePair(kv);
+        writer.writeEof();
+        writer.close();
+        kv.getValue().release();
+
+        final byte[][] actual = new byte[1][];
+        Replicator r = new RedisReplicator(new ByteArrayInputStream(out.toByteArray()), FileType.RDB, Configuration.defaultSetting());
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (event instanceof KeyStringValueString) actual[0] = ((KeyStringValueString) event).getValue();
+            }
+        });
+        r.open();
+        assertArrayEquals(expected, actual[0]);
+    }
+
+    private static byte[] rewrite(String file, ByteArrayFactory factory) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RdbWriter writer = new RdbWriter(out);
+        writer.writeHeader();
+        Configuration configuration = Configuration.defaultSetting().setByteArrayFactory(factory);
+        Replicator r = new RedisReplicator(ByteArrayFactoryTest.class.getClassLoader().getResourceAsStream(file), FileType.RDB, configuration);
+        r.addEventListener(new EventListener() {
+            @Override
+            public void onEvent(Replicator replicator, Event event) {
+                if (!(event instanceof KeyValuePair)) return;
+                try {
+                    writer.writeKeyValuePair((KeyValuePair<?, ?>) event);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        r.open();
+        writer.writeEof();
+        writer.close();
+        return out.toByteArray();
+    }
+
+    /*
+     * an rdb with a single string key "big" of the given length, generated on the fly
+     */
+    private static class HugeStringInputStream extends InputStream {
+        private final byte[] head;
+        private final long length;
+        private final byte[] tail = {(byte) 0xFF, 0, 0, 0, 0, 0, 0, 0, 0};
+        private long pos;
+
+        private HugeStringInputStream(long length) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write("REDIS0009".getBytes(), 0, 9);
+            out.write(RDB_TYPE_STRING);
+            out.write(3);
+            out.write("big".getBytes(), 0, 3);
+            out.write(0x81);
+            for (int i = 7; i >= 0; i--) out.write((int) (length >>> (i * 8)));
+            this.head = out.toByteArray();
+            this.length = length;
+        }
+
+        private static byte value(long i) {
+            return (byte) (i * 31 + (i >>> 20));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            long end = head.length + length + tail.length;
+            if (pos >= end) return -1;
+            int n = (int) Math.min(len, end - pos);
+            for (int i = 0; i < n; i++, pos++) {
+                if (pos < head.length) b[off + i] = head[(int) pos];
+                else if (pos < head.length + length) b[off + i] = value(pos - head.length);
+                else b[off + i] = tail[(int) (pos - head.length - length)];
+            }
+            return n;
+        }
+    }
+}
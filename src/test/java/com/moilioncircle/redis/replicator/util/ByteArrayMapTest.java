@@ -174,7 +174,8 @@ public class ByteArrayMapTest {
         m.put(new byte[]{1, 2, 3}, new byte[]{4, 5, 6});
         m.put(null, new byte[]{4});
         m.put(new byte[]{4, 5, 6}, null);
-        File file = new File("./test.txt");
+        File file = File.createTempFile("ByteArrayMapTest", ".bin");
+        file.deleteOnExit();
         ByteArrayMap bytes = new ByteArrayMap(m);
         ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
         out.writeObject(bytes);
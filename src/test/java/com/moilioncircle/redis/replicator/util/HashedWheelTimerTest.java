@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016-2018 Leon Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.replicator.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Leon Chen
+ * @since 3.1.0
+ */
+public class HashedWheelTimerTest {
+
+    @Test
+    public void testSchedule() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        HashedWheelTimer timer = new HashedWheelTimer(5, MILLISECONDS, 8, executor, Executors.defaultThreadFactory());
+        try {
+            // more rounds than buckets
+            long start = System.nanoTime();
+            ScheduledFuture<String> future = timer.schedule(new Callable<String>() {
+                @Override
+                public String call() {
+                    return "done";
+                }
+            }, 120, MILLISECONDS);
+            assertEquals("done", future.get(5, SECONDS));
+            assertTrue(NANOSECONDS.toMillis(System.nanoTime() - start) >= 120);
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            }, 0, MILLISECONDS);
+            assertTrue(latch.await(5, SECONDS));
+
+            final AtomicInteger cancelled = new AtomicInteger();
+            ScheduledFuture<?> f = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    cancelled.incrementAndGet();
+                }
+            }, 30, MILLISECONDS);
+            assertTrue(f.cancel(false));
+            Thread.sleep(100);
+            assertEquals(0, cancelled.get());
+        } finally {
+            timer.shutdown();
+            assertTrue(timer.awaitTermination(5, SECONDS));
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPeriodic() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        HashedWheelTimer timer = new HashedWheelTimer(executor, Executors.defaultThreadFactory());
+        try {
+            final AtomicInteger rate = new AtomicInteger(), delay = new AtomicInteger();
+            ScheduledFuture<?> f1 = timer.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    rate.incrementAndGet();
+                }
+            }, 0, 20, MILLISECONDS);
+            ScheduledFuture<?> f2 = timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    delay.incrementAndGet();
+                }
+            }, 20, 20, MILLISECONDS);
+            Thread.sleep(500);
+            f1.cancel(false);
+            f2.cancel(false);
+            int r = rate.get(), d = delay.get();
+            assertTrue(String.valueOf(r), r >= 10 && r <= 30);
+            assertTrue(String.valueOf(d), d >= 5 && d <= 30);
+            Thread.sleep(100);
+            assertEquals(r, rate.get());
+            assertEquals(d, delay.get());
+        } finally {
+            timer.shutdownNow();
+            assertTrue(timer.awaitTermination(5, SECONDS));
+            assertTrue(timer.isTerminated());
+        }
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, 10, MILLISECONDS);
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        // the executor is not owned by the timer
+        assertTrue(!executor.isShutdown());
+        executor.shutdown();
+    }
+}
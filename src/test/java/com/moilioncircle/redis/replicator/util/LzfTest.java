@@ -19,8 +19,12 @@ package com.moilioncircle.redis.replicator.util;
 import org.junit.Test;
 
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Leon Chen
@@ -62,6 +66,25 @@ public class LzfTest {
 
     }
 
+    @Test
+    public void encode() throws Exception {
+        int[] table = new int[Lzf.HASH_SIZE];
+        InputStream in = LzfTest.class.getClassLoader().getResourceAsStream("low-comp-120k.txt");
+        byte[] bytes = new byte[121444];
+        int len = in.read(bytes);
+        for (String str : new String[]{"aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa", "abcdsklafjslfjfd;sfdklafjlsafjslfjasl;fkjdsalfjasfjlas;dkfjalsvlasfkal;sj", new String(bytes, 0, len)}) {
+            byte[] raw = str.getBytes();
+            byte[] out = new byte[raw.length];
+            int clen = Lzf.encode(raw, 0, raw.length, out, 0, out.length, table);
+            assertTrue(clen > 0);
+            ByteArray bin = Lzf.decode(new ByteArray(Arrays.copyOf(out, clen)), raw.length);
+            assertArrayEquals(raw, bin.first());
+        }
+        byte[] random = new byte[1024];
+        new Random(0).nextBytes(random);
+        assertEquals(0, Lzf.encode(random, 0, random.length, new byte[1020], 0, 1020, table));
+    }
+
     private byte[] compress(byte[] in) {
         CompressLZF c = new CompressLZF();
         byte[] compressed = new byte[in.length];